@@ -0,0 +1,78 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.extensions.restapi;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * List result of a {@link RestView} whose elements are produced on demand.
+ *
+ * <p>The server glue writes the elements of a streaming list to the client while they are
+ * produced, so that large results don't need to be held in memory completely. Callers that access
+ * the list by the {@link List} methods get all elements, which are then produced at once.
+ *
+ * <p>A streaming list can be consumed only once, either by {@link #streamingIterator()} or by the
+ * {@link List} methods.
+ */
+public abstract class StreamingList<T> extends AbstractList<T> {
+  private List<T> elements;
+  private boolean streamed;
+
+  /**
+   * Produces the elements of the list.
+   *
+   * <p>Invoked at most once.
+   */
+  protected abstract Iterator<T> produce();
+
+  /**
+   * Returns an iterator that produces the elements of the list on demand, without keeping them in
+   * the list.
+   *
+   * @throws IllegalStateException if the list was already consumed
+   */
+  public Iterator<T> streamingIterator() {
+    if (streamed || elements != null) {
+      throw new IllegalStateException("list was already consumed");
+    }
+    streamed = true;
+    return produce();
+  }
+
+  private List<T> elements() {
+    if (elements == null) {
+      if (streamed) {
+        throw new IllegalStateException("list was already streamed");
+      }
+      List<T> list = new ArrayList<>();
+      produce().forEachRemaining(list::add);
+      elements = list;
+    }
+    return elements;
+  }
+
+  @Override
+  public T get(int index) {
+    return elements().get(index);
+  }
+
+  @Override
+  public int size() {
+    return elements().size();
+  }
+}
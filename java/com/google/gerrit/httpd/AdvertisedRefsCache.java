@@ -0,0 +1,206 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.config.GerritIsReplica;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.ServiceMayNotContinueException;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Cache of the refs that git-upload-pack over HTTP advertises to users.
+ *
+ * <p>Without this cache every {@code info/refs} request reads all refs of the repository and
+ * filters them by the permissions of the user, which is expensive for tools that poll repositories
+ * at a high rate. With this cache the filtered and peeled refs are reused for identical requests.
+ *
+ * <p>The cached refs are keyed by the project, a fingerprint of the user (the account and the
+ * groups of the user) and a version of the refs. The version is made of a counter of the project
+ * that is increased whenever a ref of the project is updated, and of the revisions of the project
+ * configs of the project and its parents, so that updates of refs or access rights never hit
+ * outdated refs.
+ *
+ * <p>Refs that are updated without Gerrit, e.g. by replication to a replica, don't increase the
+ * counter. Hence the cache is disabled by default and is never used on replicas.
+ */
+@Singleton
+public class AdvertisedRefsCache implements GitReferenceUpdatedListener {
+  static final String CACHE_NAME = "advertised_refs";
+
+  @AutoValue
+  abstract static class Key {
+    static Key create(
+        Project.NameKey project, String user, long refsVersion, String configVersion) {
+      return new AutoValue_AdvertisedRefsCache_Key(project, user, refsVersion, configVersion);
+    }
+
+    abstract Project.NameKey project();
+
+    /** Fingerprint of the account and groups of the user. */
+    abstract String user();
+
+    /** Number of ref updates of the project that were observed. */
+    abstract long refsVersion();
+
+    /** Fingerprint of the project configs of the project and its parents. */
+    abstract String configVersion();
+  }
+
+  static class AdvertisedRefsWeigher implements Weigher<Key, ImmutableMap<String, Ref>> {
+    @Override
+    public int weigh(Key key, ImmutableMap<String, Ref> refs) {
+      return 1 + refs.size();
+    }
+  }
+
+  private final Cache<Key, ImmutableMap<String, Ref>> cache;
+  private final boolean enabled;
+  private final ConcurrentMap<Project.NameKey, AtomicLong> refsVersions = new ConcurrentHashMap<>();
+
+  @Inject
+  AdvertisedRefsCache(
+      @GerritServerConfig Config cfg,
+      @Named(CACHE_NAME) Cache<Key, ImmutableMap<String, Ref>> cache,
+      @GerritIsReplica boolean isReplica) {
+    this.cache = cache;
+    this.enabled = !isReplica && cfg.getLong("cache", CACHE_NAME, "memoryLimit", 0) > 0;
+  }
+
+  @Override
+  public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    refsVersion(Project.nameKey(event.getProjectName())).incrementAndGet();
+  }
+
+  /**
+   * Returns a hook that advertises the cached refs of the project for the user.
+   *
+   * @return the hook, {@code null} if the refs that are advertised to the user can't be cached
+   */
+  @Nullable
+  AdvertiseRefsHook newHook(ProjectState state, CurrentUser user) {
+    if (!enabled || state.isAllUsers()) {
+      return null;
+    }
+    String userFingerprint = userFingerprint(user);
+    if (userFingerprint == null) {
+      return null;
+    }
+    return new AdvertiseRefsHook() {
+      @Override
+      public void advertiseRefs(UploadPack up) throws ServiceMayNotContinueException {
+        // The version must be read before the refs are loaded, so that the refs of an update that
+        // happens concurrently are never cached with the version after the update.
+        Key key =
+            Key.create(
+                state.getNameKey(),
+                userFingerprint,
+                refsVersion(state.getNameKey()).get(),
+                configVersion(state));
+        try {
+          up.setAdvertisedRefs(cache.get(key, () -> load(up.getRepository().getRefDatabase())));
+        } catch (ExecutionException e) {
+          throw new ServiceMayNotContinueException(e.getCause());
+        }
+      }
+
+      @Override
+      public void advertiseRefs(ReceivePack rp) {
+        // Only the refs that are advertised by upload-pack are cached.
+      }
+    };
+  }
+
+  private AtomicLong refsVersion(Project.NameKey project) {
+    return refsVersions.computeIfAbsent(project, p -> new AtomicLong());
+  }
+
+  /**
+   * Loads the refs that are visible to the user.
+   *
+   * @param refDb ref database that only contains the refs that are visible to the user
+   */
+  private static ImmutableMap<String, Ref> load(RefDatabase refDb) throws IOException {
+    ImmutableMap.Builder<String, Ref> refs = ImmutableMap.builder();
+    for (Ref r : refDb.getRefs()) {
+      // Peel the refs once when they are loaded, rather than for every advertisement.
+      if (!r.isPeeled()) {
+        try {
+          r = refDb.peel(r);
+        } catch (IOException e) {
+          // Advertise the ref as is, the advertisement peels it again if needed.
+        }
+      }
+      refs.put(r.getName(), r);
+    }
+    return refs.build();
+  }
+
+  @Nullable
+  private static String userFingerprint(CurrentUser user) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    if (user.isIdentifiedUser()) {
+      h.putInt(user.getAccountId().get());
+    } else if (user instanceof AnonymousUser) {
+      h.putInt(-1);
+    } else {
+      // The refs that are visible to internal users are not cached.
+      return null;
+    }
+    user.getEffectiveGroups().getKnownGroups().stream()
+        .map(AccountGroup.UUID::get)
+        .sorted()
+        .forEach(g -> h.putString(g, UTF_8).putByte((byte) 0));
+    return h.hash().toString();
+  }
+
+  private static String configVersion(ProjectState state) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    for (ProjectState p : state.tree()) {
+      h.putString(p.getNameKey().get(), UTF_8).putByte((byte) 0);
+      h.putString(p.getConfig().getRevision().map(ObjectId::name).orElse(""), UTF_8);
+      h.putByte((byte) 0);
+    }
+    return h.hash().toString();
+  }
+}
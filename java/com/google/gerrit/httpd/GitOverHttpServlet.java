@@ -17,12 +17,14 @@ package com.google.gerrit.httpd;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.gerrit.common.data.Capable;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.server.AccessPath;
 import com.google.gerrit.server.AnonymousUser;
 import com.google.gerrit.server.CurrentUser;
@@ -39,6 +41,7 @@ import com.google.gerrit.server.git.UsersSelfAdvertiseRefsHook;
 import com.google.gerrit.server.git.receive.AsyncReceiveCommits;
 import com.google.gerrit.server.git.validators.UploadValidators;
 import com.google.gerrit.server.group.GroupAuditService;
+import com.google.gerrit.server.logging.RunningRequests;
 import com.google.gerrit.server.logging.TraceContext;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
@@ -47,7 +50,6 @@ import com.google.gerrit.server.plugincontext.PluginSetContext;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.util.time.TimeUtil;
-import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -76,7 +78,9 @@ import org.eclipse.jgit.http.server.GitSmartHttpTools;
 import org.eclipse.jgit.http.server.ServletUtils;
 import org.eclipse.jgit.http.server.resolver.AsIsFileService;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
 import org.eclipse.jgit.transport.PostUploadHook;
 import org.eclipse.jgit.transport.PostUploadHookChain;
 import org.eclipse.jgit.transport.PreUploadHook;
@@ -111,7 +115,7 @@ public class GitOverHttpServlet extends GitServlet {
     URL_REGEX = url.toString();
   }
 
-  static class Module extends AbstractModule {
+  static class Module extends LifecycleModule {
 
     private final boolean enableReceive;
 
@@ -127,6 +131,7 @@ public class GitOverHttpServlet extends GitServlet {
       bind(new TypeLiteral<ReceivePackFactory<HttpServletRequest>>() {})
           .to(enableReceive ? ReceiveFactory.class : DisabledReceiveFactory.class);
       bind(ReceiveFilter.class);
+      listener().to(UploadPackResponseCache.class);
       install(
           new CacheModule() {
             @Override
@@ -134,6 +139,13 @@ public class GitOverHttpServlet extends GitServlet {
               cache(ID_CACHE, AdvertisedObjectsCacheKey.class, new TypeLiteral<Set<ObjectId>>() {})
                   .maximumWeight(4096)
                   .expireAfterWrite(Duration.ofMinutes(10));
+              cache(
+                      AdvertisedRefsCache.CACHE_NAME,
+                      AdvertisedRefsCache.Key.class,
+                      new TypeLiteral<ImmutableMap<String, Ref>>() {})
+                  .maximumWeight(0)
+                  .expireAfterWrite(Duration.ofMinutes(5))
+                  .weigher(AdvertisedRefsCache.AdvertisedRefsWeigher.class);
             }
           });
 
@@ -361,6 +373,8 @@ public class GitOverHttpServlet extends GitServlet {
     private final PluginSetContext<RequestListener> requestListeners;
     private final UsersSelfAdvertiseRefsHook usersSelfAdvertiseRefsHook;
     private final Provider<WebSession> sessionProvider;
+    private final UploadPackResponseCache responseCache;
+    private final AdvertisedRefsCache advertisedRefsCache;
 
     @Inject
     UploadFilter(
@@ -371,7 +385,9 @@ public class GitOverHttpServlet extends GitServlet {
         Metrics metrics,
         PluginSetContext<RequestListener> requestListeners,
         UsersSelfAdvertiseRefsHook usersSelfAdvertiseRefsHook,
-        Provider<WebSession> sessionProvider) {
+        Provider<WebSession> sessionProvider,
+        UploadPackResponseCache responseCache,
+        AdvertisedRefsCache advertisedRefsCache) {
       this.uploadValidatorsFactory = uploadValidatorsFactory;
       this.permissionBackend = permissionBackend;
       this.userProvider = userProvider;
@@ -380,6 +396,8 @@ public class GitOverHttpServlet extends GitServlet {
       this.requestListeners = requestListeners;
       this.usersSelfAdvertiseRefsHook = usersSelfAdvertiseRefsHook;
       this.sessionProvider = sessionProvider;
+      this.responseCache = responseCache;
+      this.advertisedRefsCache = advertisedRefsCache;
     }
 
     @Override
@@ -397,7 +415,9 @@ public class GitOverHttpServlet extends GitServlet {
       HttpServletRequest httpRequest = (HttpServletRequest) request;
       String sessionId = getSessionIdOrNull(sessionProvider);
 
-      try (TraceContext traceContext = TraceContext.open()) {
+      try (TraceContext traceContext = TraceContext.open();
+          RunningRequests.Registration ignored =
+              RunningRequests.register("GIT", "git-upload-pack")) {
         RequestInfo requestInfo =
             RequestInfo.builder(
                     RequestInfo.RequestType.GIT_UPLOAD, userProvider.get(), traceContext)
@@ -428,11 +448,20 @@ public class GitOverHttpServlet extends GitServlet {
                 Lists.newArrayList(up.getPreUploadHook(), uploadValidators)));
         if (state.isAllUsers()) {
           up.setAdvertiseRefsHook(usersSelfAdvertiseRefsHook);
+        } else if (up.getAdvertiseRefsHook() == AdvertiseRefsHook.DEFAULT) {
+          AdvertiseRefsHook hook = advertisedRefsCache.newHook(state, userProvider.get());
+          if (hook != null) {
+            up.setAdvertiseRefsHook(hook);
+          }
         }
 
         try (TracingHook tracingHook = new TracingHook()) {
           up.setProtocolV2Hook(tracingHook);
-          next.doFilter(httpRequest, responseWrapper);
+          if (!state.isAllUsers() && responseCache.isCacheable(httpRequest)) {
+            responseCache.doFilter(httpRequest, responseWrapper, state.getNameKey(), up, next);
+          } else {
+            next.doFilter(httpRequest, responseWrapper);
+          }
         }
       } finally {
         groupAuditService.dispatch(
@@ -10,5 +10,8 @@ public class HttpdModule extends FactoryModule {
     bind(GitReferenceUpdatedListener.class)
         .annotatedWith(Exports.named(GitReferenceUpdatedTracker.class.getSimpleName()))
         .to(GitReferenceUpdatedTracker.class);
+    bind(GitReferenceUpdatedListener.class)
+        .annotatedWith(Exports.named(AdvertisedRefsCache.class.getSimpleName()))
+        .to(AdvertisedRefsCache.class);
   }
 }
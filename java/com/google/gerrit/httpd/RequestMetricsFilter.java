@@ -14,8 +14,10 @@
 
 package com.google.gerrit.httpd;
 
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.metrics.proc.ThreadMXBeanFactory;
 import com.google.gerrit.metrics.proc.ThreadMXBeanInterface;
+import com.google.gerrit.server.logging.PerformanceSummary;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
@@ -48,6 +50,7 @@ public class RequestMetricsFilter implements Filter {
     private final long startedTotalCpu;
     private final long startedUserCpu;
     private final long startedMemory;
+    private volatile PerformanceSummary performanceSummary;
 
     Context() {
       startedTotalCpu = threadMxBean.getCurrentThreadCpuTime();
@@ -71,6 +74,19 @@ public class RequestMetricsFilter implements Filter {
           ? -1
           : threadMxBean.getCurrentThreadAllocatedBytes() - startedMemory;
     }
+
+    /**
+     * @return number of expensive operations executed by the request, null if the request was not
+     *     handled by a REST view or if {@code tracing.performanceSummary} is disabled
+     */
+    @Nullable
+    public PerformanceSummary getPerformanceSummary() {
+      return performanceSummary;
+    }
+
+    public void setPerformanceSummary(PerformanceSummary performanceSummary) {
+      this.performanceSummary = performanceSummary;
+    }
   }
 
   private final RequestMetrics metrics;
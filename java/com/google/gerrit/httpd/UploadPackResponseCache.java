@@ -0,0 +1,617 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd;
+
+import static com.google.common.base.Strings.nullToEmpty;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.UploadPackInitializer;
+import com.google.gerrit.server.git.validators.UploadValidationListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.eclipse.jgit.http.server.GitSmartHttpTools;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.PostUploadHook;
+import org.eclipse.jgit.transport.PostUploadHookChain;
+import org.eclipse.jgit.transport.PreUploadHook;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Cache of the responses of git-upload-pack requests over HTTP that sent a pack.
+ *
+ * <p>CI systems often clone or fetch the same commits from many agents at the same time. Every
+ * such request enumerates and compresses the same objects again. With this cache the response of
+ * an upload-pack request that sent a pack is stored on disk and is sent as is for identical
+ * requests.
+ *
+ * <p>Two requests are identical if they are for the same project, have the same (decompressed)
+ * request body, which contains the wants, haves, capabilities and filter spec, use the same
+ * protocol version, accept the same content encodings and if the refs that are visible to the
+ * users are the same. Since the visible refs are part of the key, a cached response is never sent
+ * to a user that can't see all refs that were visible to the user for whom the response was
+ * generated, and new commits on a branch never hit an outdated response. The {@code
+ * Content-Encoding} of a cached response is sent along with it.
+ *
+ * <p>If an identical request is generating a response, requests wait for it and are answered from
+ * the cache, so that a burst of identical requests runs upload-pack only once.
+ *
+ * <p>The size of the cache is bounded, the least recently used responses are evicted first.
+ * Responses are not cached if plugins register upload validation listeners, pre-upload hooks or
+ * upload pack initializers, since they wouldn't be invoked for responses sent from the cache. The
+ * post-upload hooks are invoked for responses sent from the cache with the pack statistics of the
+ * request for which the response was generated. The statistics are only kept in memory, hence the
+ * cached responses are discarded when the server is restarted.
+ */
+@Singleton
+public class UploadPackResponseCache implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final String SUFFIX = ".pack";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+
+  /**
+   * Requests with larger bodies are not cached. They contain many haves and are unlikely to be
+   * repeated.
+   */
+  @VisibleForTesting static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+  private final boolean enabled;
+  private final Path dir;
+  private final long maxSize;
+  private final DynamicSet<PreUploadHook> preUploadHooks;
+  private final DynamicSet<UploadValidationListener> uploadValidationListeners;
+  private final DynamicSet<UploadPackInitializer> uploadPackInitializers;
+  private final Counter1<String> requests;
+  private final AtomicLong seq = new AtomicLong();
+
+  /** A cached response. */
+  private static class Entry {
+    final long size;
+
+    /** The {@code Content-Encoding} of the response, {@code null} if it is not encoded. */
+    @Nullable final String contentEncoding;
+
+    /** Statistics of the pack that was sent when the response was generated. */
+    final PackStatistics statistics;
+
+    Entry(long size, @Nullable String contentEncoding, PackStatistics statistics) {
+      this.size = size;
+      this.contentEncoding = contentEncoding;
+      this.statistics = statistics;
+    }
+  }
+
+  /**
+   * Requests that are generating a response that may be cached by key. Identical requests wait for
+   * them instead of running upload-pack at the same time.
+   */
+  private final ConcurrentMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<>();
+
+  /** The cached responses by key, in access order. Guarded by {@code this}. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Total size of the cached responses. Guarded by {@code this}. */
+  private long size;
+
+  @Inject
+  UploadPackResponseCache(
+      @GerritServerConfig Config cfg,
+      SitePaths site,
+      MetricMaker metricMaker,
+      DynamicSet<PreUploadHook> preUploadHooks,
+      DynamicSet<UploadValidationListener> uploadValidationListeners,
+      DynamicSet<UploadPackInitializer> uploadPackInitializers) {
+    this.enabled = cfg.getBoolean("upload", null, "responseCache", false);
+    String d = cfg.getString("upload", null, "responseCacheDirectory");
+    this.dir = d != null ? site.resolve(d) : site.data_dir.resolve("upload-pack-cache");
+    this.maxSize = cfg.getLong("upload", null, "responseCacheMaxSize", 1024L * 1024 * 1024);
+    this.preUploadHooks = preUploadHooks;
+    this.uploadValidationListeners = uploadValidationListeners;
+    this.uploadPackInitializers = uploadPackInitializers;
+
+    this.requests =
+        metricMaker.newCounter(
+            "git/upload-pack/response_cache/requests",
+            new Description("Rate of git-upload-pack requests that could be cached")
+                .setRate()
+                .setUnit("requests"),
+            Field.ofString("result", (metadataBuilder, resolveAllUsers) -> {})
+                .description(
+                    "'hit' if the response was sent from the cache, 'miss' if it was generated.")
+                .build());
+    metricMaker.newCallbackMetric(
+        "git/upload-pack/response_cache/size",
+        Long.class,
+        new Description("Total size of the cached git-upload-pack responses")
+            .setGauge()
+            .setUnit(Description.Units.BYTES),
+        this::size);
+  }
+
+  @Override
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      Files.createDirectories(dir);
+      // The pack statistics of responses that were cached before the server was restarted are
+      // lost, hence they can't be sent from the cache anymore.
+      try (DirectoryStream<Path> s = Files.newDirectoryStream(dir)) {
+        for (Path f : s) {
+          Files.deleteIfExists(f);
+        }
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot clear cached upload-pack responses in %s", dir);
+    }
+  }
+
+  @Override
+  public void stop() {}
+
+  /** Whether the response of the request may be taken from or stored in the cache. */
+  boolean isCacheable(HttpServletRequest req) {
+    return enabled
+        && "POST".equals(req.getMethod())
+        && req.getRequestURI().endsWith("/" + GitSmartHttpTools.UPLOAD_PACK)
+        && !preUploadHooks.iterator().hasNext()
+        && !uploadValidationListeners.iterator().hasNext()
+        && !uploadPackInitializers.iterator().hasNext();
+  }
+
+  /**
+   * Sends the cached response for the request, or runs upload-pack and stores its response in the
+   * cache if it sent a pack.
+   */
+  void doFilter(
+      HttpServletRequest req,
+      HttpServletResponse rsp,
+      Project.NameKey project,
+      UploadPack up,
+      FilterChain next)
+      throws IOException, ServletException {
+    BufferedRequest bufferedReq = new BufferedRequest(req);
+    String key = bufferedReq.isComplete() ? key(project, bufferedReq, up) : null;
+    if (key == null) {
+      next.doFilter(bufferedReq, rsp);
+      return;
+    }
+
+    if (send(key, rsp, up.getPostUploadHook())) {
+      requests.increment("hit");
+      return;
+    }
+
+    CountDownLatch generated = new CountDownLatch(1);
+    CountDownLatch running = inFlight.putIfAbsent(key, generated);
+    if (running != null) {
+      // An identical request is generating the response, wait for it instead of running
+      // upload-pack again. If the response wasn't cached, e.g. because it didn't send a pack, the
+      // response is generated for this request, without waiting for other requests.
+      await(running, up.getTimeout());
+      if (send(key, rsp, up.getPostUploadHook())) {
+        requests.increment("hit");
+        return;
+      }
+      generated = null;
+    }
+    requests.increment("miss");
+
+    try {
+      generate(key, bufferedReq, rsp, up, next);
+    } finally {
+      if (generated != null) {
+        inFlight.remove(key, generated);
+        generated.countDown();
+      }
+    }
+  }
+
+  /** Runs upload-pack and stores its response in the cache if it sent a pack. */
+  private void generate(
+      String key,
+      BufferedRequest bufferedReq,
+      HttpServletResponse rsp,
+      UploadPack up,
+      FilterChain next)
+      throws IOException, ServletException {
+    AtomicReference<PackStatistics> packSent = new AtomicReference<>();
+    PostUploadHook recordPackSent = packSent::set;
+    up.setPostUploadHook(
+        PostUploadHookChain.newChain(Lists.newArrayList(up.getPostUploadHook(), recordPackSent)));
+    Path tmp = dir.resolve(key + "-" + seq.incrementAndGet() + TMP_SUFFIX);
+    try {
+      try (RecordingResponse recordingRsp = new RecordingResponse(rsp, tmp)) {
+        next.doFilter(bufferedReq, recordingRsp);
+        if (packSent.get() != null
+            && recordingRsp.getStatus() == HttpServletResponse.SC_OK
+            && recordingRsp.finish()) {
+          store(key, tmp, recordingRsp.getHeader(CONTENT_ENCODING), packSent.get());
+        }
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Waits until an identical request finished generating its response.
+   *
+   * @param running latch that is released when the identical request is done
+   * @param timeoutSeconds timeout of upload-pack, {@code 0} if there is no timeout
+   */
+  private static void await(CountDownLatch running, int timeoutSeconds) {
+    try {
+      if (timeoutSeconds > 0) {
+        running.await(timeoutSeconds, TimeUnit.SECONDS);
+      } else {
+        running.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String key(Project.NameKey project, BufferedRequest req, UploadPack up)
+      throws IOException {
+    byte[] body = req.body();
+    if ("gzip".equals(req.getHeader(CONTENT_ENCODING))) {
+      try (InputStream in =
+          ByteStreams.limit(
+              new GZIPInputStream(new ByteArrayInputStream(body)), MAX_REQUEST_SIZE + 1)) {
+        body = ByteStreams.toByteArray(in);
+      }
+      if (body.length > MAX_REQUEST_SIZE) {
+        return null;
+      }
+    }
+
+    Hasher h = Hashing.sha256().newHasher();
+    h.putString(project.get(), UTF_8).putByte((byte) 0);
+    h.putString(nullToEmpty(req.getHeader("Git-Protocol")), UTF_8).putByte((byte) 0);
+    // Upload-pack compresses small responses if the client accepts a gzip encoded response.
+    h.putString(nullToEmpty(req.getHeader(ACCEPT_ENCODING)), UTF_8).putByte((byte) 0);
+    h.putInt(body.length).putBytes(body);
+    // The repository of the UploadPack only contains the refs that are visible to the user.
+    List<Ref> refs = new ArrayList<>(up.getRepository().getRefDatabase().getRefs());
+    refs.sort(comparing(Ref::getName));
+    for (Ref r : refs) {
+      h.putString(r.getName(), UTF_8).putByte((byte) 0);
+      if (r.isSymbolic()) {
+        h.putString(r.getTarget().getName(), UTF_8);
+      }
+      h.putByte((byte) 0);
+      ObjectId id = r.getObjectId();
+      if (id != null) {
+        h.putString(id.name(), UTF_8);
+      }
+      h.putByte((byte) 0);
+    }
+    return h.hash().toString();
+  }
+
+  /**
+   * Sends the cached response and invokes the post-upload hook, returns {@code false} if there is
+   * no cached response.
+   */
+  private boolean send(String key, HttpServletResponse rsp, PostUploadHook postUploadHook)
+      throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        return false;
+      }
+    }
+    FileChannel ch;
+    try {
+      ch = FileChannel.open(file(key), StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      // The response was evicted after it was looked up, or the file was deleted.
+      synchronized (this) {
+        if (entries.get(key) == entry && !Files.exists(file(key))) {
+          entries.remove(key);
+          size -= entry.size;
+        }
+      }
+      return false;
+    }
+    try (FileChannel c = ch) {
+      long length = c.size();
+      rsp.setContentType(GitSmartHttpTools.UPLOAD_PACK_RESULT_TYPE);
+      if (entry.contentEncoding != null) {
+        rsp.setHeader(CONTENT_ENCODING, entry.contentEncoding);
+      }
+      rsp.setContentLengthLong(length);
+      OutputStream out = rsp.getOutputStream();
+      // Transfer the file directly to the channel of the servlet container if it has one, so that
+      // the response isn't copied through a buffer in the heap.
+      WritableByteChannel target =
+          out instanceof WritableByteChannel ? (WritableByteChannel) out : Channels.newChannel(out);
+      for (long pos = 0; pos < length; ) {
+        pos += c.transferTo(pos, length - pos, target);
+      }
+      out.flush();
+    }
+    postUploadHook.onPostUpload(entry.statistics);
+    return true;
+  }
+
+  private void store(
+      String key, Path tmp, @Nullable String contentEncoding, PackStatistics statistics)
+      throws IOException {
+    long length = Files.size(tmp);
+    if (length > maxSize) {
+      return;
+    }
+    Files.move(tmp, file(key), StandardCopyOption.ATOMIC_MOVE);
+    synchronized (this) {
+      Entry old = entries.remove(key);
+      if (old != null) {
+        size -= old.size;
+      }
+      put(key, new Entry(length, contentEncoding, statistics));
+    }
+  }
+
+  /** Adds an entry and evicts the least recently used entries if the cache is full. */
+  private void put(String key, Entry entry) {
+    entries.put(key, entry);
+    size += entry.size;
+    for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        size > maxSize && i.hasNext(); ) {
+      Map.Entry<String, Entry> e = i.next();
+      i.remove();
+      size -= e.getValue().size;
+      try {
+        Files.deleteIfExists(file(e.getKey()));
+      } catch (IOException err) {
+        logger.atWarning().withCause(err).log("Cannot delete cached upload-pack response");
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long size() {
+    return size;
+  }
+
+  private Path file(String key) {
+    return dir.resolve(key + SUFFIX);
+  }
+
+  /** Request of which the first {@link #MAX_REQUEST_SIZE} bytes of the body are buffered. */
+  private static class BufferedRequest extends HttpServletRequestWrapper {
+    private final byte[] body;
+    private final ServletInputStream in;
+
+    BufferedRequest(HttpServletRequest req) throws IOException {
+      super(req);
+      ServletInputStream raw = req.getInputStream();
+      body = ByteStreams.toByteArray(ByteStreams.limit(raw, MAX_REQUEST_SIZE + 1));
+      InputStream combined = new SequenceInputStream(new ByteArrayInputStream(body), raw);
+      in =
+          new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+              return combined.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              return combined.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+              return raw.isFinished();
+            }
+
+            @Override
+            public boolean isReady() {
+              return raw.isReady();
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+              raw.setReadListener(readListener);
+            }
+          };
+    }
+
+    /** Whether the whole body is buffered. */
+    boolean isComplete() {
+      return body.length <= MAX_REQUEST_SIZE;
+    }
+
+    byte[] body() {
+      return body;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      return in;
+    }
+  }
+
+  /** Response that records the bytes that are written to it in a file. */
+  private class RecordingResponse extends HttpServletResponseWrapper implements AutoCloseable {
+    private final Path file;
+    private OutputStream fileOut;
+    private ServletOutputStream out;
+    private long written;
+    private boolean aborted;
+
+    RecordingResponse(HttpServletResponse rsp, Path file) {
+      super(rsp);
+      this.file = file;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (out == null) {
+        ServletOutputStream rspOut = super.getOutputStream();
+        try {
+          fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+        } catch (IOException e) {
+          logger.atWarning().withCause(e).log("Cannot cache upload-pack response in %s", file);
+          aborted = true;
+        }
+        out =
+            new ServletOutputStream() {
+              @Override
+              public void write(int b) throws IOException {
+                rspOut.write(b);
+                record(new byte[] {(byte) b}, 0, 1);
+              }
+
+              @Override
+              public void write(byte[] b, int off, int len) throws IOException {
+                rspOut.write(b, off, len);
+                record(b, off, len);
+              }
+
+              @Override
+              public void flush() throws IOException {
+                rspOut.flush();
+              }
+
+              @Override
+              public void close() throws IOException {
+                rspOut.close();
+              }
+
+              @Override
+              public boolean isReady() {
+                return rspOut.isReady();
+              }
+
+              @Override
+              public void setWriteListener(WriteListener writeListener) {
+                rspOut.setWriteListener(writeListener);
+              }
+            };
+      }
+      return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      // Packs are never sent through the writer.
+      aborted = true;
+      return super.getWriter();
+    }
+
+    private void record(byte[] b, int off, int len) {
+      if (aborted) {
+        return;
+      }
+      written += len;
+      if (written > maxSize) {
+        // The response is too large to be cached.
+        aborted = true;
+        return;
+      }
+      try {
+        fileOut.write(b, off, len);
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot cache upload-pack response in %s", file);
+        aborted = true;
+      }
+    }
+
+    /**
+     * Completes the recording.
+     *
+     * @return whether the whole response was recorded
+     */
+    boolean finish() throws IOException {
+      if (fileOut == null || aborted) {
+        return false;
+      }
+      fileOut.close();
+      fileOut = null;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (fileOut != null) {
+        fileOut.close();
+      }
+    }
+  }
+}
@@ -40,6 +40,11 @@ public class RestApiMetrics {
   final Counter3<String, Integer, String> errorCount;
   final Timer1<String> serverLatency;
   final Histogram1<String> responseBytes;
+  final Histogram1<String> cpuTime;
+  final Histogram1<String> allocatedBytes;
+  final Histogram1<String> noteDbReads;
+  final Histogram1<String> indexQueries;
+  final Histogram1<String> cacheLoads;
 
   @Inject
   RestApiMetrics(MetricMaker metrics) {
@@ -80,6 +85,46 @@ public class RestApiMetrics {
                 .setCumulative()
                 .setUnit(Units.BYTES),
             viewField);
+
+    cpuTime =
+        metrics.newHistogram(
+            "http/server/rest_api/cpu_time",
+            new Description("CPU time of the request thread by view")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            viewField);
+
+    allocatedBytes =
+        metrics.newHistogram(
+            "http/server/rest_api/allocated_bytes",
+            new Description("Memory allocated by the request thread by view")
+                .setCumulative()
+                .setUnit(Units.BYTES),
+            viewField);
+
+    noteDbReads =
+        metrics.newHistogram(
+            "http/server/rest_api/notedb_reads",
+            new Description("Number of changes read from NoteDb per REST API call by view")
+                .setCumulative()
+                .setUnit("reads"),
+            viewField);
+
+    indexQueries =
+        metrics.newHistogram(
+            "http/server/rest_api/index_queries",
+            new Description("Number of index queries per REST API call by view")
+                .setCumulative()
+                .setUnit("queries"),
+            viewField);
+
+    cacheLoads =
+        metrics.newHistogram(
+            "http/server/rest_api/cache_loads",
+            new Description("Number of persistent cache loads per REST API call by view")
+                .setCumulative()
+                .setUnit("loads"),
+            viewField);
   }
 
   String view(ViewData viewData) {
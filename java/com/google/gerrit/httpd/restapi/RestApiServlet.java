@@ -47,6 +47,7 @@ import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 import static javax.servlet.http.HttpServletResponse.SC_PRECONDITION_FAILED;
 import static javax.servlet.http.HttpServletResponse.SC_REQUEST_TIMEOUT;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
@@ -97,13 +98,16 @@ import com.google.gerrit.extensions.restapi.RestModifyView;
 import com.google.gerrit.extensions.restapi.RestReadView;
 import com.google.gerrit.extensions.restapi.RestResource;
 import com.google.gerrit.extensions.restapi.RestView;
+import com.google.gerrit.extensions.restapi.StreamingList;
 import com.google.gerrit.extensions.restapi.TopLevelResource;
 import com.google.gerrit.extensions.restapi.UnprocessableEntityException;
 import com.google.gerrit.extensions.restapi.Url;
+import com.google.gerrit.httpd.RequestMetricsFilter;
 import com.google.gerrit.httpd.WebSession;
 import com.google.gerrit.httpd.restapi.ParameterParser.QueryParams;
 import com.google.gerrit.json.OutputFormat;
 import com.google.gerrit.server.AccessPath;
+import com.google.gerrit.server.AdmissionController;
 import com.google.gerrit.server.AnonymousUser;
 import com.google.gerrit.server.CancellationMetrics;
 import com.google.gerrit.server.CurrentUser;
@@ -126,8 +130,11 @@ import com.google.gerrit.server.experiments.ExperimentFeatures;
 import com.google.gerrit.server.group.GroupAuditService;
 import com.google.gerrit.server.logging.Metadata;
 import com.google.gerrit.server.logging.PerformanceLogContext;
+import com.google.gerrit.server.logging.PerformanceLogDispatcher;
 import com.google.gerrit.server.logging.PerformanceLogger;
+import com.google.gerrit.server.logging.PerformanceSummary;
 import com.google.gerrit.server.logging.RequestId;
+import com.google.gerrit.server.logging.RunningRequests;
 import com.google.gerrit.server.logging.TraceContext;
 import com.google.gerrit.server.logging.TraceContext.TraceTimer;
 import com.google.gerrit.server.notedb.ChangeNotes;
@@ -181,6 +188,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -265,6 +273,7 @@ public class RestApiServlet extends HttpServlet {
     final RestApiQuotaEnforcer quotaChecker;
     final Config config;
     final DynamicSet<PerformanceLogger> performanceLoggers;
+    final PerformanceLogDispatcher performanceLogDispatcher;
     final ChangeFinder changeFinder;
     final RetryHelper retryHelper;
     final PluginSetContext<ExceptionHook> exceptionHooks;
@@ -273,6 +282,7 @@ public class RestApiServlet extends HttpServlet {
     final ExperimentFeatures experimentFeatures;
     final DeadlineChecker.Factory deadlineCheckerFactory;
     final CancellationMetrics cancellationMetrics;
+    final AdmissionController admissionController;
 
     @Inject
     Globals(
@@ -286,6 +296,7 @@ public class RestApiServlet extends HttpServlet {
         RestApiQuotaEnforcer quotaChecker,
         @GerritServerConfig Config config,
         DynamicSet<PerformanceLogger> performanceLoggers,
+        PerformanceLogDispatcher performanceLogDispatcher,
         ChangeFinder changeFinder,
         RetryHelper retryHelper,
         PluginSetContext<ExceptionHook> exceptionHooks,
@@ -293,7 +304,8 @@ public class RestApiServlet extends HttpServlet {
         DynamicMap<DynamicOptions.DynamicBean> dynamicBeans,
         ExperimentFeatures experimentFeatures,
         DeadlineChecker.Factory deadlineCheckerFactory,
-        CancellationMetrics cancellationMetrics) {
+        CancellationMetrics cancellationMetrics,
+        AdmissionController admissionController) {
       this.currentUser = currentUser;
       this.webSession = webSession;
       this.paramParser = paramParser;
@@ -304,6 +316,7 @@ public class RestApiServlet extends HttpServlet {
       this.quotaChecker = quotaChecker;
       this.config = config;
       this.performanceLoggers = performanceLoggers;
+      this.performanceLogDispatcher = performanceLogDispatcher;
       this.changeFinder = changeFinder;
       this.retryHelper = retryHelper;
       this.exceptionHooks = exceptionHooks;
@@ -313,6 +326,7 @@ public class RestApiServlet extends HttpServlet {
       this.experimentFeatures = experimentFeatures;
       this.deadlineCheckerFactory = deadlineCheckerFactory;
       this.cancellationMetrics = cancellationMetrics;
+      this.admissionController = admissionController;
     }
 
     private static Pattern makeAllowOrigin(Config cfg) {
@@ -357,6 +371,7 @@ public class RestApiServlet extends HttpServlet {
     Object inputRequestBody = null;
     RestResource rsrc = TopLevelResource.INSTANCE;
     ViewData viewData = null;
+    PerformanceLogContext performanceLogContext = null;
 
     try (TraceContext traceContext = enableTracing(req, res)) {
       List<IdString> path = splitPath(req);
@@ -374,9 +389,14 @@ public class RestApiServlet extends HttpServlet {
         // the client. Only this way it is ensured that the invocation of the PerformanceLogger
         // plugins happens before the client sees the response. This is needed for being able to
         // test performance logging from an acceptance test (see
-        // TraceIT#performanceLoggingForRestCall()).
-        try (PerformanceLogContext performanceLogContext =
-            new PerformanceLogContext(globals.config, globals.performanceLoggers)) {
+        // TraceIT#performanceLoggingForRestCall()). If tracing.asyncPerformanceLogging is enabled
+        // the PerformanceLogger plugins are invoked asynchronously after the response was sent.
+        try (PerformanceLogContext plc =
+                new PerformanceLogContext(
+                    globals.config, globals.performanceLoggers, globals.performanceLogDispatcher);
+            RunningRequests.Registration runningRequest = RunningRequests.register("REST", null);
+            AdmissionController.Permit admission = globals.admissionController.admit(requestInfo)) {
+          performanceLogContext = plc;
           traceRequestData(req);
 
           if (isCorsPreflight(req)) {
@@ -530,12 +550,7 @@ public class RestApiServlet extends HttpServlet {
             checkRequiresCapability(viewData);
           }
 
-          if (notModified(req, traceContext, viewData, rsrc)) {
-            logger.atFinest().log("REST call succeeded: %d", SC_NOT_MODIFIED);
-            res.sendError(SC_NOT_MODIFIED);
-            return;
-          }
-
+          runningRequest.setOperation(getViewName(viewData));
           try (DynamicOptions pluginOptions =
               new DynamicOptions(globals.injector, globals.dynamicBeans)) {
             if (!globals
@@ -545,6 +560,13 @@ public class RestApiServlet extends HttpServlet {
               return;
             }
 
+            // Checked after the options were parsed, since the ETag of a view may depend on them.
+            if (notModified(req, traceContext, viewData, rsrc)) {
+              logger.atFinest().log("REST call succeeded: %d", SC_NOT_MODIFIED);
+              res.sendError(SC_NOT_MODIFIED);
+              return;
+            }
+
             if (viewData.view instanceof RestReadView<?> && isRead(req)) {
               response =
                   invokeRestReadViewWithRetry(
@@ -788,6 +810,7 @@ public class RestApiServlet extends HttpServlet {
         }
         globals.metrics.serverLatency.record(
             metric, System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        recordResourceUsage(req, metric, performanceLogContext);
         globals.auditService.dispatch(
             new ExtendedHttpAuditEvent(
                 globals.webSession.get().getSessionId(),
@@ -804,6 +827,32 @@ public class RestApiServlet extends HttpServlet {
     }
   }
 
+  private void recordResourceUsage(
+      HttpServletRequest req,
+      String metric,
+      @Nullable PerformanceLogContext performanceLogContext) {
+    RequestMetricsFilter.Context ctx =
+        (RequestMetricsFilter.Context) req.getAttribute(RequestMetricsFilter.METRICS_CONTEXT);
+    if (ctx != null) {
+      globals.metrics.cpuTime.record(metric, ctx.getTotalCpuTime());
+      long allocatedMemory = ctx.getAllocatedMemory();
+      if (allocatedMemory != -1) {
+        globals.metrics.allocatedBytes.record(metric, allocatedMemory);
+      }
+    }
+    Optional<PerformanceSummary> performanceSummary =
+        performanceLogContext != null ? performanceLogContext.getSummary() : Optional.empty();
+    if (performanceSummary.isPresent()) {
+      PerformanceSummary summary = performanceSummary.get();
+      globals.metrics.noteDbReads.record(metric, summary.noteDbReads());
+      globals.metrics.indexQueries.record(metric, summary.indexQueries());
+      globals.metrics.cacheLoads.record(metric, summary.cacheLoads());
+      if (ctx != null) {
+        ctx.setPerformanceSummary(summary);
+      }
+    }
+  }
+
   /**
    * Fill in the refs that were updated during this request in the response header. The updated refs
    * will be in the form of "project~ref~updated_SHA-1".
@@ -1220,7 +1269,9 @@ public class RestApiServlet extends HttpServlet {
     if (view instanceof ETagView) {
       String eTag =
           getEtagWithRetry(req, traceContext, viewData, (ETagView<RestResource>) view, rsrc);
-      res.setHeader(HttpHeaders.ETAG, eTag);
+      if (!Strings.isNullOrEmpty(eTag)) {
+        res.setHeader(HttpHeaders.ETAG, eTag);
+      }
     } else if (rsrc instanceof RestResource.HasETag) {
       String eTag = getEtagWithRetry(req, traceContext, (RestResource.HasETag) rsrc);
       if (!Strings.isNullOrEmpty(eTag)) {
@@ -1434,6 +1485,10 @@ public class RestApiServlet extends HttpServlet {
       ListMultimap<String, String> config,
       Object result)
       throws IOException {
+    if (isStreaming(result)) {
+      return replyJsonStreaming(req, res, config, result);
+    }
+
     TemporaryBuffer.Heap buf = heap(HEAP_EST_SIZE, Integer.MAX_VALUE);
     buf.write(JSON_MAGIC);
     Writer w = new BufferedWriter(new OutputStreamWriter(buf, UTF_8));
@@ -1464,6 +1519,76 @@ public class RestApiServlet extends HttpServlet {
         req, res, asBinaryResult(buf).setContentType(JSON_TYPE).setCharacterEncoding(UTF_8));
   }
 
+  private static boolean isStreaming(Object result) {
+    if (result instanceof StreamingList) {
+      return true;
+    }
+    // Queries with multiple query strings return a list of streaming lists.
+    return result instanceof List
+        && ((List<?>) result).stream().anyMatch(StreamingList.class::isInstance);
+  }
+
+  /**
+   * Writes a JSON reply that contains {@link StreamingList}s to the HTTP servlet response while the
+   * elements of the streaming lists are produced.
+   *
+   * <p>The reply is neither buffered nor logged if tracing is enabled. Its content length is not
+   * known in advance, hence it is sent with chunked transfer encoding and, if the client accepts
+   * it, compressed on the fly.
+   */
+  private static long replyJsonStreaming(
+      @Nullable HttpServletRequest req,
+      HttpServletResponse res,
+      ListMultimap<String, String> config,
+      Object result)
+      throws IOException {
+    res.setContentType(JSON_TYPE);
+    res.setCharacterEncoding(UTF_8.name());
+    boolean gzip = acceptsGzip(req);
+    if (gzip) {
+      res.setHeader("Content-Encoding", "gzip");
+    }
+    if (req != null && "HEAD".equals(req.getMethod())) {
+      return 0;
+    }
+
+    Gson gson = newGson(config);
+    try (CountingOutputStream dst = new CountingOutputStream(res.getOutputStream())) {
+      OutputStream out = gzip ? new GZIPOutputStream(dst) : dst;
+      out.write(JSON_MAGIC);
+      Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+      JsonWriter json = gson.newJsonWriter(w);
+      writeJsonStreaming(gson, json, result);
+      json.flush();
+      w.write('\n');
+      w.flush();
+      if (gzip) {
+        ((GZIPOutputStream) out).finish();
+      }
+      logger.atFinest().log("Streamed JSON response body");
+      return dst.getCount();
+    }
+  }
+
+  private static void writeJsonStreaming(Gson gson, JsonWriter json, @Nullable Object value)
+      throws IOException {
+    if (value == null) {
+      json.nullValue();
+    } else if (value instanceof List) {
+      Iterator<?> it =
+          value instanceof StreamingList
+              ? ((StreamingList<?>) value).streamingIterator()
+              : ((List<?>) value).iterator();
+      json.beginArray();
+      while (it.hasNext()) {
+        writeJsonStreaming(gson, json, it.next());
+      }
+      json.endArray();
+    } else {
+      gson.toJson(value, value.getClass(), json);
+    }
+  }
+
   private static Gson newGson(ListMultimap<String, String> config) {
     GsonBuilder gb = OutputFormat.JSON_COMPACT.newGsonBuilder();
 
@@ -1986,6 +2111,8 @@ public class RestApiServlet extends HttpServlet {
       case CLIENT_PROVIDED_DEADLINE_EXCEEDED:
       case SERVER_DEADLINE_EXCEEDED:
         return SC_REQUEST_TIMEOUT;
+      case SERVER_OVERLOADED:
+        return SC_SERVICE_UNAVAILABLE;
     }
     logger.atSevere().log("Unexpected cancellation reason: %s", cancellationReason);
     return SC_INTERNAL_SERVER_ERROR;
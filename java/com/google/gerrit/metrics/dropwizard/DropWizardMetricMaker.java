@@ -48,6 +48,8 @@ import com.google.gerrit.metrics.Timer3;
 import com.google.gerrit.metrics.proc.JGitMetricModule;
 import com.google.gerrit.metrics.proc.ProcMetricModule;
 import com.google.gerrit.server.cache.CacheMetrics;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.inject.Inject;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
@@ -56,6 +58,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import org.eclipse.jgit.lib.Config;
 
 /**
  * Connects Gerrit metric package onto DropWizard.
@@ -86,13 +89,36 @@ public class DropWizardMetricMaker extends MetricMaker {
     }
   }
 
+  /** Reservoir used for the percentiles of timers and histograms. */
+  public enum ReservoirType {
+    /** Dropwizard's default reservoir that is biased towards the last 5 minutes. */
+    EXPONENTIALLY_DECAYING,
+
+    /** Lock-free, fixed-size reservoir over recent values, see {@link LogLinearReservoir}. */
+    LOG_LINEAR
+  }
+
   private final MetricRegistry registry;
+  private final ReservoirType reservoirType;
+  private final long reservoirWindowMillis;
   private final Map<String, BucketedMetric> bucketed;
   private final Map<String, ImmutableMap<String, String>> descriptions;
 
   @Inject
-  DropWizardMetricMaker(MetricRegistry registry) {
+  DropWizardMetricMaker(MetricRegistry registry, @GerritServerConfig Config cfg) {
     this.registry = registry;
+    this.reservoirType =
+        cfg.getEnum("metrics", null, "reservoir", ReservoirType.EXPONENTIALLY_DECAYING);
+    this.reservoirWindowMillis =
+        Math.max(
+            1,
+            ConfigUtil.getTimeUnit(
+                cfg,
+                "metrics",
+                null,
+                "reservoirWindow",
+                TimeUnit.MINUTES.toMillis(1),
+                TimeUnit.MILLISECONDS));
     this.bucketed = new ConcurrentHashMap<>();
     this.descriptions = new ConcurrentHashMap<>();
   }
@@ -113,15 +139,14 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized Counter0 newCounter(String name, Description desc) {
+  public Counter0 newCounter(String name, Description desc) {
     checkCounterDescription(name, desc);
     define(name, desc);
     return newCounterImpl(name, desc.isRate());
   }
 
   @Override
-  public synchronized <F1> Counter1<F1> newCounter(
-      String name, Description desc, Field<F1> field1) {
+  public <F1> Counter1<F1> newCounter(String name, Description desc, Field<F1> field1) {
     checkCounterDescription(name, desc);
     CounterImpl1<F1> m = new CounterImpl1<>(this, name, desc, field1);
     define(name, desc);
@@ -130,7 +155,7 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized <F1, F2> Counter2<F1, F2> newCounter(
+  public <F1, F2> Counter2<F1, F2> newCounter(
       String name, Description desc, Field<F1> field1, Field<F2> field2) {
     checkCounterDescription(name, desc);
     CounterImplN m = new CounterImplN(this, name, desc, field1, field2);
@@ -140,7 +165,7 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized <F1, F2, F3> Counter3<F1, F2, F3> newCounter(
+  public <F1, F2, F3> Counter3<F1, F2, F3> newCounter(
       String name, Description desc, Field<F1> field1, Field<F2> field2, Field<F3> field3) {
     checkCounterDescription(name, desc);
     CounterImplN m = new CounterImplN(this, name, desc, field1, field2, field3);
@@ -177,14 +202,14 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized Timer0 newTimer(String name, Description desc) {
+  public Timer0 newTimer(String name, Description desc) {
     checkTimerDescription(name, desc);
     define(name, desc);
     return newTimerImpl(name);
   }
 
   @Override
-  public synchronized <F1> Timer1<F1> newTimer(String name, Description desc, Field<F1> field1) {
+  public <F1> Timer1<F1> newTimer(String name, Description desc, Field<F1> field1) {
     checkTimerDescription(name, desc);
     TimerImpl1<F1> m = new TimerImpl1<>(this, name, desc, field1);
     define(name, desc);
@@ -193,7 +218,7 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized <F1, F2> Timer2<F1, F2> newTimer(
+  public <F1, F2> Timer2<F1, F2> newTimer(
       String name, Description desc, Field<F1> field1, Field<F2> field2) {
     checkTimerDescription(name, desc);
     TimerImplN m = new TimerImplN(this, name, desc, field1, field2);
@@ -203,7 +228,7 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized <F1, F2, F3> Timer3<F1, F2, F3> newTimer(
+  public <F1, F2, F3> Timer3<F1, F2, F3> newTimer(
       String name, Description desc, Field<F1> field1, Field<F2> field2, Field<F3> field3) {
     checkTimerDescription(name, desc);
     TimerImplN m = new TimerImplN(this, name, desc, field1, field2, field3);
@@ -222,19 +247,23 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   TimerImpl newTimerImpl(String name) {
+    if (reservoirType == ReservoirType.LOG_LINEAR) {
+      return new TimerImpl(
+          name,
+          registry.timer(name, () -> new com.codahale.metrics.Timer(newLogLinearReservoir())));
+    }
     return new TimerImpl(name, registry.timer(name));
   }
 
   @Override
-  public synchronized Histogram0 newHistogram(String name, Description desc) {
+  public Histogram0 newHistogram(String name, Description desc) {
     checkHistogramDescription(name, desc);
     define(name, desc);
     return newHistogramImpl(name);
   }
 
   @Override
-  public synchronized <F1> Histogram1<F1> newHistogram(
-      String name, Description desc, Field<F1> field1) {
+  public <F1> Histogram1<F1> newHistogram(String name, Description desc, Field<F1> field1) {
     checkHistogramDescription(name, desc);
     HistogramImpl1<F1> m = new HistogramImpl1<>(this, name, desc, field1);
     define(name, desc);
@@ -243,7 +272,7 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized <F1, F2> Histogram2<F1, F2> newHistogram(
+  public <F1, F2> Histogram2<F1, F2> newHistogram(
       String name, Description desc, Field<F1> field1, Field<F2> field2) {
     checkHistogramDescription(name, desc);
     HistogramImplN m = new HistogramImplN(this, name, desc, field1, field2);
@@ -253,7 +282,7 @@ public class DropWizardMetricMaker extends MetricMaker {
   }
 
   @Override
-  public synchronized <F1, F2, F3> Histogram3<F1, F2, F3> newHistogram(
+  public <F1, F2, F3> Histogram3<F1, F2, F3> newHistogram(
       String name, Description desc, Field<F1> field1, Field<F2> field2, Field<F3> field3) {
     checkHistogramDescription(name, desc);
     HistogramImplN m = new HistogramImplN(this, name, desc, field1, field2, field3);
@@ -270,7 +299,17 @@ public class DropWizardMetricMaker extends MetricMaker {
     checkArgument(desc.isCumulative(), "histogram must be cumulative");
   }
 
+  private LogLinearReservoir newLogLinearReservoir() {
+    return new LogLinearReservoir(reservoirWindowMillis, TimeUnit.MILLISECONDS);
+  }
+
   HistogramImpl newHistogramImpl(String name) {
+    if (reservoirType == ReservoirType.LOG_LINEAR) {
+      return new HistogramImpl(
+          name,
+          registry.histogram(
+              name, () -> new com.codahale.metrics.Histogram(newLogLinearReservoir())));
+    }
     return new HistogramImpl(name, registry.histogram(name));
   }
 
@@ -308,21 +347,19 @@ public class DropWizardMetricMaker extends MetricMaker {
     return () -> all.forEach(CallbackMetricGlue::remove);
   }
 
-  synchronized void remove(String name) {
+  void remove(String name) {
     bucketed.remove(name);
     descriptions.remove(name);
   }
 
-  private synchronized void define(String name, Description desc) {
-    if (descriptions.containsKey(name)) {
-      ImmutableMap<String, String> annotations = descriptions.get(name);
-      if (!desc.getAnnotations()
-          .get(Description.DESCRIPTION)
-          .equals(annotations.get(Description.DESCRIPTION))) {
-        throw new IllegalStateException(String.format("metric '%s' already defined", name));
-      }
-    } else {
-      descriptions.put(name, desc.getAnnotations());
+  private void define(String name, Description desc) {
+    ImmutableMap<String, String> annotations =
+        descriptions.putIfAbsent(name, desc.getAnnotations());
+    if (annotations != null
+        && !desc.getAnnotations()
+            .get(Description.DESCRIPTION)
+            .equals(annotations.get(Description.DESCRIPTION))) {
+      throw new IllegalStateException(String.format("metric '%s' already defined", name));
     }
   }
 
@@ -0,0 +1,269 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.metrics.dropwizard;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free {@link Reservoir} with a fixed memory footprint that counts values in log-linear
+ * buckets, similar to an HdrHistogram.
+ *
+ * <p>Values below {@link #SUB_BUCKET_COUNT} are counted exactly. Larger values are counted in
+ * buckets that split each power of two into {@link #SUB_BUCKET_COUNT} linear sub-buckets, hence
+ * the relative error of reported quantiles is below {@code 1 / SUB_BUCKET_COUNT}. Recording a
+ * value only increments atomic counters and allocates only when a new window starts.
+ *
+ * <p>Values are counted in consecutive windows of a fixed length. A snapshot covers the current
+ * and the previous window, i.e. the values recorded within the last one to two window lengths, so
+ * that the reported quantiles follow the current latency like the default {@link
+ * com.codahale.metrics.ExponentiallyDecayingReservoir}. Negative values are recorded as 0.
+ */
+class LogLinearReservoir implements Reservoir {
+  private static final int SUB_BUCKET_BITS = 6;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (Long.SIZE - SUB_BUCKET_BITS);
+
+  /** Values recorded within one window. */
+  private static class Window {
+    final long start;
+    final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    final LongAdder sum = new LongAdder();
+    final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Window(long start) {
+      this.start = start;
+    }
+
+    void update(long value) {
+      counts.incrementAndGet(bucket(value));
+      sum.add(value);
+      min.accumulate(value);
+      max.accumulate(value);
+    }
+  }
+
+  private final long windowNanos;
+  private final Clock clock;
+  private final AtomicReference<Window> current;
+  private volatile Window previous;
+
+  LogLinearReservoir(long window, TimeUnit unit) {
+    this(window, unit, Clock.defaultClock());
+  }
+
+  LogLinearReservoir(long window, TimeUnit unit, Clock clock) {
+    checkArgument(window > 0, "window must be positive");
+    this.windowNanos = unit.toNanos(window);
+    this.clock = clock;
+    this.current = new AtomicReference<>(new Window(clock.getTick()));
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return SUB_BUCKET_COUNT * (shift + 1) + sub;
+  }
+
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKET_COUNT - 1;
+    long sub = bucket % SUB_BUCKET_COUNT;
+    return (SUB_BUCKET_COUNT + sub) << shift;
+  }
+
+  /** Returns the value that represents all values counted in the given bucket. */
+  static long representative(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKET_COUNT - 1;
+    return lowerBound(bucket) + ((1L << shift) >>> 1);
+  }
+
+  @Override
+  public int size() {
+    return getSnapshot().size();
+  }
+
+  @Override
+  public void update(long value) {
+    window(clock.getTick()).update(Math.max(value, 0));
+  }
+
+  /** Returns the window that contains {@code now}, starting a new window if needed. */
+  private Window window(long now) {
+    while (true) {
+      Window w = current.get();
+      long elapsed = now - w.start;
+      if (elapsed < windowNanos) {
+        return w;
+      }
+      Window next = new Window(w.start + elapsed / windowNanos * windowNanos);
+      if (current.compareAndSet(w, next)) {
+        // If more than one window elapsed, the values of w are too old to be reported.
+        previous = elapsed < 2 * windowNanos ? w : null;
+        return next;
+      }
+    }
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    long now = clock.getTick();
+    long[] c = new long[BUCKET_COUNT];
+    long total = 0;
+    long sum = 0;
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    for (Window w : Arrays.asList(current.get(), previous)) {
+      // Windows are only replaced when a value is recorded, hence they may be outdated by now.
+      if (w == null || now - w.start >= 2 * windowNanos) {
+        continue;
+      }
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        long n = w.counts.get(i);
+        c[i] += n;
+        total += n;
+      }
+      sum += w.sum.sum();
+      min = Math.min(min, w.min.get());
+      max = Math.max(max, w.max.get());
+    }
+    return new LogLinearSnapshot(c, total, sum, min, max);
+  }
+
+  private static class LogLinearSnapshot extends Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    LogLinearSnapshot(long[] counts, long count, long sum, long min, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.min = count > 0 ? min : 0;
+      this.max = count > 0 ? max : 0;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      checkArgument(
+          quantile >= 0.0 && quantile <= 1.0 && !Double.isNaN(quantile),
+          "%s is not in [0..1]",
+          quantile);
+      if (count == 0) {
+        return 0.0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return clamp(representative(i));
+        }
+      }
+      return max;
+    }
+
+    /**
+     * Returns the distinct bucket values of this snapshot in ascending order. Each value stands
+     * for all recorded values in its bucket.
+     */
+    @Override
+    public long[] getValues() {
+      return Arrays.stream(nonEmptyBuckets()).mapToLong(i -> clamp(representative(i))).toArray();
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+      return max;
+    }
+
+    @Override
+    public double getMean() {
+      return count > 0 ? (double) sum / count : 0.0;
+    }
+
+    @Override
+    public long getMin() {
+      return min;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (count <= 1) {
+        return 0.0;
+      }
+      double mean = getMean();
+      double variance = 0.0;
+      for (int i : nonEmptyBuckets()) {
+        double diff = clamp(representative(i)) - mean;
+        variance += counts[i] * diff * diff;
+      }
+      return Math.sqrt(variance / (count - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF_8))) {
+        for (int i : nonEmptyBuckets()) {
+          out.printf("%d\t%d%n", clamp(representative(i)), counts[i]);
+        }
+      }
+    }
+
+    private int[] nonEmptyBuckets() {
+      int[] buckets = new int[counts.length];
+      int n = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          buckets[n++] = i;
+        }
+      }
+      return Arrays.copyOf(buckets, n);
+    }
+
+    private long clamp(long value) {
+      return Math.min(Math.max(value, min), max);
+    }
+  }
+}
@@ -82,6 +82,7 @@ import com.google.gerrit.server.config.GerritRuntime;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SysExecutorModule;
 import com.google.gerrit.server.events.EventBroker;
+import com.google.gerrit.server.events.EventLog;
 import com.google.gerrit.server.events.StreamEventsApiListener;
 import com.google.gerrit.server.git.GarbageCollectionModule;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
@@ -437,6 +438,7 @@ public class Daemon extends SiteProgram {
     modules.add(new SuperprojectUpdateSubmissionListener.Module());
     modules.add(new WorkQueue.Module());
     modules.add(new StreamEventsApiListener.Module());
+    modules.add(new EventLog.Module());
     modules.add(new EventBroker.Module());
     modules.add(new JdbcAccountPatchReviewStore.Module(config));
     modules.add(new SysExecutorModule());
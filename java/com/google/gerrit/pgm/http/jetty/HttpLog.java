@@ -19,6 +19,7 @@ import com.google.gerrit.httpd.GetUserFilter;
 import com.google.gerrit.httpd.RequestMetricsFilter;
 import com.google.gerrit.httpd.restapi.LogRedactUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.logging.PerformanceSummary;
 import com.google.gerrit.server.util.SystemLog;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.inject.Inject;
@@ -55,6 +56,9 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
   protected static final String P_CPU_TOTAL = "Cpu-Total";
   protected static final String P_CPU_USER = "Cpu-User";
   protected static final String P_MEMORY = "Memory";
+  protected static final String P_NOTEDB_READS = "NoteDb-Reads";
+  protected static final String P_INDEX_QUERIES = "Index-Queries";
+  protected static final String P_CACHE_LOADS = "Cache-Loads";
 
   private final AsyncAppender async;
 
@@ -124,6 +128,12 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
       set(event, P_CPU_TOTAL, ctx.getTotalCpuTime());
       set(event, P_CPU_USER, ctx.getUserCpuTime());
       set(event, P_MEMORY, ctx.getAllocatedMemory());
+      PerformanceSummary summary = ctx.getPerformanceSummary();
+      if (summary != null) {
+        set(event, P_NOTEDB_READS, summary.noteDbReads());
+        set(event, P_INDEX_QUERIES, summary.indexQueries());
+        set(event, P_CACHE_LOADS, summary.cacheLoads());
+      }
     }
 
     async.append(event);
@@ -14,13 +14,16 @@
 
 package com.google.gerrit.pgm.http.jetty;
 
+import static com.google.gerrit.pgm.http.jetty.HttpLog.P_CACHE_LOADS;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_CONTENT_LENGTH;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_CPU_TOTAL;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_CPU_USER;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_HOST;
+import static com.google.gerrit.pgm.http.jetty.HttpLog.P_INDEX_QUERIES;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_LATENCY;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_MEMORY;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_METHOD;
+import static com.google.gerrit.pgm.http.jetty.HttpLog.P_NOTEDB_READS;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_PROTOCOL;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_REFERER;
 import static com.google.gerrit.pgm.http.jetty.HttpLog.P_RESOURCE;
@@ -54,6 +57,9 @@ public class HttpLogJsonLayout extends JsonLayout {
     public String cpuTotal;
     public String cpuUser;
     public String memory;
+    public String noteDbReads;
+    public String indexQueries;
+    public String cacheLoads;
     public String referer;
     public String userAgent;
 
@@ -71,6 +77,9 @@ public class HttpLogJsonLayout extends JsonLayout {
       this.cpuTotal = getMdcString(event, P_CPU_TOTAL);
       this.cpuUser = getMdcString(event, P_CPU_USER);
       this.memory = getMdcString(event, P_MEMORY);
+      this.noteDbReads = getMdcString(event, P_NOTEDB_READS);
+      this.indexQueries = getMdcString(event, P_INDEX_QUERIES);
+      this.cacheLoads = getMdcString(event, P_CACHE_LOADS);
       this.referer = getMdcString(event, P_REFERER);
       this.userAgent = getMdcString(event, P_USER_AGENT);
     }
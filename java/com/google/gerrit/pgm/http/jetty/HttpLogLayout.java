@@ -80,6 +80,15 @@ public final class HttpLogLayout extends Layout {
     buf.append(' ');
     opt(buf, event, HttpLog.P_MEMORY);
 
+    buf.append(' ');
+    opt(buf, event, HttpLog.P_NOTEDB_READS);
+
+    buf.append(' ');
+    opt(buf, event, HttpLog.P_INDEX_QUERIES);
+
+    buf.append(' ');
+    opt(buf, event, HttpLog.P_CACHE_LOADS);
+
     buf.append('\n');
     return buf.toString();
   }
@@ -25,6 +25,7 @@ import com.google.gerrit.pgm.http.jetty.HttpLog.HttpLogFactory;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.config.ThreadSettingsConfig;
+import com.google.gerrit.server.util.VirtualThreads;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Singleton;
@@ -42,6 +43,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.DispatcherType;
@@ -461,6 +463,7 @@ public class JettyServer {
     int maxQueued = cfg.getInt("httpd", null, "maxqueued", 200);
     int idleTimeout = (int) MILLISECONDS.convert(60, SECONDS);
     int maxCapacity = maxQueued == 0 ? Integer.MAX_VALUE : Math.max(minThreads, maxQueued);
+    ThreadFactory virtualThreadFactory = VirtualThreads.threadFactory(cfg).orElse(null);
     QueuedThreadPool pool =
         new QueuedThreadPool(
             maxThreads,
@@ -470,7 +473,19 @@ public class JettyServer {
                 minThreads, // capacity,
                 minThreads, // growBy,
                 maxCapacity // maxCapacity
-                ));
+                )) {
+          @Override
+          protected Thread newThread(Runnable runnable) {
+            if (virtualThreadFactory != null) {
+              return virtualThreadFactory.newThread(runnable);
+            }
+            return super.newThread(runnable);
+          }
+        };
+    if (virtualThreadFactory != null) {
+      // Virtual threads are always daemon threads, the pool must not try to change this.
+      pool.setDaemon(true);
+    }
     pool.setName("HTTP");
     return pool;
   }
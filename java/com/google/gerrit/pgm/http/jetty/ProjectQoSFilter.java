@@ -16,6 +16,7 @@ package com.google.gerrit.pgm.http.jetty;
 
 import static com.google.gerrit.server.config.ConfigUtil.getTimeUnit;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -23,6 +24,7 @@ import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.account.AccountLimits;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.QueueProvider;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
 import com.google.gerrit.sshd.CommandExecutorQueueProvider;
 import com.google.inject.Inject;
@@ -137,6 +139,7 @@ public class ProjectQoSFilter implements Filter {
   private final QueueProvider queue;
   private final ServletContext context;
   private final long maxWait;
+  private final boolean shedRequests;
 
   @Inject
   ProjectQoSFilter(
@@ -150,6 +153,7 @@ public class ProjectQoSFilter implements Filter {
     this.queue = queue;
     this.context = context;
     this.maxWait = MINUTES.toMillis(getTimeUnit(cfg, "httpd", null, "maxwait", 5, MINUTES));
+    this.shedRequests = cfg.getBoolean("httpd", "shedRequests", false);
   }
 
   @Override
@@ -162,6 +166,14 @@ public class ProjectQoSFilter implements Filter {
 
     switch (RequestState.get(request)) {
       case INITIAL:
+        ScheduledThreadPoolExecutor executor = getExecutor();
+        if (shedRequests && maxWait > 0 && exceedsMaxWait(executor)) {
+          // The request would time out in the queue anyway, reject it right away so that it
+          // doesn't hold a connection and doesn't delay the queued requests further.
+          rsp.sendError(SC_SERVICE_UNAVAILABLE);
+          break;
+        }
+
         AsyncContext asyncContext = suspend(request);
         task = new TaskThunk(asyncContext, req);
         if (maxWait > 0) {
@@ -170,7 +182,7 @@ public class ProjectQoSFilter implements Filter {
 
         request.setAttribute(TASK, task);
 
-        Future<?> f = getExecutor().submit(task);
+        Future<?> f = executor.submit(task);
         asyncContext.addListener(new Listener(f, task));
         break;
       case CANCELED:
@@ -200,6 +212,11 @@ public class ProjectQoSFilter implements Filter {
     return asyncContext;
   }
 
+  private boolean exceedsMaxWait(ScheduledThreadPoolExecutor executor) {
+    Optional<Long> estimatedWait = WorkQueue.estimateWaitTime(executor);
+    return estimatedWait.isPresent() && NANOSECONDS.toMillis(estimatedWait.get()) > maxWait;
+  }
+
   private ScheduledThreadPoolExecutor getExecutor() {
     QueueProvider.QueueType qt = limitsFactory.create(user.get()).getQueueType();
     return queue.getQueue(qt);
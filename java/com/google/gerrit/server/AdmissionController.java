@@ -0,0 +1,224 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.cancellation.RequestCancelledException;
+import com.google.gerrit.server.cancellation.RequestStateContext;
+import com.google.gerrit.server.cancellation.RequestStateProvider;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Admission control for requests.
+ *
+ * <p>Requests are matched against the {@code admission.<id>} subsections of the server config
+ * (using the same matching criteria as server-side deadlines). For each matching subsection, which
+ * is called an endpoint here, the number of requests that are executed concurrently is limited to
+ * {@code admission.<id>.maxConcurrency}. Requests that exceed the limit are deferred until a
+ * running request finishes.
+ *
+ * <p>The admission controller tracks the latency of the requests of each endpoint. By Little's law
+ * an endpoint that is at its concurrency limit finishes {@code maxConcurrency / latency} requests
+ * per time unit, which allows to estimate how long a deferred request has to wait. Deferred
+ * requests that can't be finished within their deadline (see {@link
+ * RequestStateContext#getDeadline()}) are rejected immediately, instead of accepting them only to
+ * cancel them when their deadline is exceeded. Requests without deadline are deferred for at most
+ * {@code admission.<id>.maxWait}. Requests are never rejected while an endpoint is below its
+ * concurrency limit.
+ *
+ * <p>Rejected requests are aborted by a {@link RequestCancelledException} with the {@link
+ * RequestStateProvider.Reason#SERVER_OVERLOADED} reason.
+ */
+@Singleton
+public class AdmissionController {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final String SECTION_ADMISSION = "admission";
+
+  /** Permit to execute a request that must be closed when the request is done. */
+  @FunctionalInterface
+  public interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final Permit NO_OP = () -> {};
+
+  private final ImmutableList<Endpoint> endpoints;
+  private final Counter1<String> rejectedCount;
+  private final Counter1<String> deferredCount;
+
+  @Inject
+  AdmissionController(@GerritServerConfig Config cfg, MetricMaker metricMaker) {
+    this.endpoints =
+        RequestConfig.parseConfigs(cfg, SECTION_ADMISSION).stream()
+            .map(this::readFrom)
+            .filter(e -> e.maxConcurrency > 0)
+            .collect(toImmutableList());
+
+    Field<String> endpointField =
+        Field.ofString("endpoint", (metadataBuilder, resolveAllUsers) -> {})
+            .description("The ID of the admission configuration that matched the request.")
+            .build();
+    this.rejectedCount =
+        metricMaker.newCounter(
+            "admission/rejected_count",
+            new Description("Requests that were rejected by admission control").setRate(),
+            endpointField);
+    this.deferredCount =
+        metricMaker.newCounter(
+            "admission/deferred_count",
+            new Description("Requests that were deferred by admission control").setRate(),
+            endpointField);
+  }
+
+  /**
+   * Admits the given request, waiting until the concurrency limits of all matching endpoints allow
+   * to execute it.
+   *
+   * <p>Must be invoked after the request state providers of the request have been registered in
+   * the {@link RequestStateContext}, so that the deadline of the request is known.
+   *
+   * @param requestInfo the request that should be admitted
+   * @return the permit to execute the request, must be closed when the request is done
+   * @throws RequestCancelledException if the request is rejected
+   */
+  public Permit admit(RequestInfo requestInfo) throws RequestCancelledException {
+    if (endpoints.isEmpty()) {
+      return NO_OP;
+    }
+
+    Optional<Long> deadline = RequestStateContext.getDeadline();
+    List<Permit> permits = new ArrayList<>();
+    try {
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.requestConfig.matches(requestInfo)) {
+          permits.add(endpoint.acquire(deadline));
+        }
+      }
+    } catch (RuntimeException e) {
+      permits.forEach(Permit::close);
+      throw e;
+    }
+    return () -> permits.forEach(Permit::close);
+  }
+
+  private RequestCancelledException reject(Endpoint endpoint, String message) {
+    logger.atFine().log("Rejecting request for endpoint %s: %s", endpoint.id(), message);
+    rejectedCount.increment(endpoint.id());
+    return new RequestCancelledException(RequestStateProvider.Reason.SERVER_OVERLOADED, message);
+  }
+
+  private class Endpoint {
+    private final RequestConfig requestConfig;
+    private final int maxConcurrency;
+    private final long maxWaitNanos;
+
+    private int inFlight;
+    private int waiting;
+
+    /** Moving average of the latency of the requests, {@code 0} if no request finished yet. */
+    private long averageLatencyNanos;
+
+    Endpoint(RequestConfig requestConfig, int maxConcurrency, long maxWaitNanos) {
+      this.requestConfig = requestConfig;
+      this.maxConcurrency = maxConcurrency;
+      this.maxWaitNanos = maxWaitNanos;
+    }
+
+    String id() {
+      return requestConfig.id();
+    }
+
+    synchronized Permit acquire(Optional<Long> deadline) throws RequestCancelledException {
+      // Requests are only rejected if the endpoint is at its concurrency limit. If there is spare
+      // capacity the request is always admitted, even if the average latency suggests that it
+      // can't be finished within its deadline. Otherwise a spike of slow requests would keep the
+      // endpoint closed, as the average latency is only updated when admitted requests finish.
+      if (inFlight >= maxConcurrency) {
+        long now = System.nanoTime();
+        long waitUntil = now + maxWaitNanos;
+        if (deadline.isPresent()) {
+          // Little's law: at the concurrency limit the endpoint finishes maxConcurrency requests
+          // per averageLatencyNanos, the request has to wait until the requests before it are done.
+          long expectedWait = (waiting + 1) * averageLatencyNanos / maxConcurrency;
+          if (now + expectedWait + averageLatencyNanos > deadline.get()) {
+            throw reject(
+                this,
+                String.format(
+                    "%d requests are running, expected wait time of %dms exceeds the deadline",
+                    inFlight, NANOSECONDS.toMillis(expectedWait)));
+          }
+          waitUntil = deadline.get() - averageLatencyNanos;
+        }
+
+        deferredCount.increment(id());
+        waiting++;
+        try {
+          while (inFlight >= maxConcurrency) {
+            long remaining = waitUntil - System.nanoTime();
+            if (remaining <= 0) {
+              throw reject(
+                  this, String.format("%d requests are running, waited too long", inFlight));
+            }
+            NANOSECONDS.timedWait(this, remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw reject(this, "interrupted while waiting");
+        } finally {
+          waiting--;
+        }
+      }
+
+      inFlight++;
+      long start = System.nanoTime();
+      return () -> release(System.nanoTime() - start);
+    }
+
+    private synchronized void release(long latencyNanos) {
+      inFlight--;
+      averageLatencyNanos =
+          averageLatencyNanos == 0 ? latencyNanos : (4 * averageLatencyNanos + latencyNanos) / 5;
+      notify();
+    }
+  }
+
+  private Endpoint readFrom(RequestConfig requestConfig) {
+    Config cfg = requestConfig.cfg();
+    int maxConcurrency =
+        cfg.getInt(requestConfig.section(), requestConfig.id(), "maxConcurrency", 0);
+    long maxWait =
+        ConfigUtil.getTimeUnit(
+            cfg, requestConfig.section(), requestConfig.id(), "maxWait", 0, MILLISECONDS);
+    return new Endpoint(requestConfig, maxConcurrency, MILLISECONDS.toNanos(maxWait));
+  }
+}
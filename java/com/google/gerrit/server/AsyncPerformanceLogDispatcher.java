@@ -0,0 +1,178 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.logging.LoggingContext;
+import com.google.gerrit.server.logging.PerformanceLogDispatcher;
+import com.google.gerrit.server.logging.PerformanceLogRecord;
+import com.google.gerrit.server.logging.PerformanceLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * {@link PerformanceLogDispatcher} that invokes the {@link PerformanceLogger}s on a background
+ * thread if {@code tracing.asyncPerformanceLogging} is enabled, so that slow performance loggers
+ * don't add to the latency of requests.
+ *
+ * <p>The performance log records of finished requests are queued and handed over to the
+ * performance loggers in batches of up to {@code tracing.performanceLoggingBatchSize} records. At
+ * most {@code tracing.performanceLoggingQueueSize} records are queued, performance log records of
+ * requests that finish while the queue is full are dropped.
+ *
+ * <p>The logging tags of the request that created the records are captured when the records are
+ * queued and are set while the performance loggers are invoked for these records, so that
+ * performance loggers see the same tags as if they were invoked synchronously. A batch may contain
+ * the records of many requests.
+ */
+@Singleton
+public class AsyncPerformanceLogDispatcher implements PerformanceLogDispatcher {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final ExecutorService executor;
+  private final int maxQueuedRecords;
+  private final int batchSize;
+  private final Queue<PendingRecords> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queuedRecords = new AtomicInteger();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final Counter0 droppedRecords;
+  private final Histogram0 dispatchedBatchSize;
+
+  @Inject
+  AsyncPerformanceLogDispatcher(
+      @GerritServerConfig Config cfg, WorkQueue workQueue, MetricMaker metricMaker) {
+    this.executor =
+        cfg.getBoolean("tracing", "asyncPerformanceLogging", false)
+            ? workQueue.createQueue(1, "PerformanceLogger")
+            : null;
+    this.maxQueuedRecords =
+        Math.max(1, cfg.getInt("tracing", "performanceLoggingQueueSize", 10_000));
+    this.batchSize = Math.max(1, cfg.getInt("tracing", "performanceLoggingBatchSize", 1_000));
+
+    metricMaker.newCallbackMetric(
+        "performance_logger/queued_records",
+        Integer.class,
+        new Description("Performance log records waiting to be handed over to performance loggers")
+            .setGauge()
+            .setUnit("records"),
+        queuedRecords::get);
+    this.droppedRecords =
+        metricMaker.newCounter(
+            "performance_logger/dropped_records",
+            new Description("Performance log records dropped because the queue was full")
+                .setRate()
+                .setUnit("records"));
+    this.dispatchedBatchSize =
+        metricMaker.newHistogram(
+            "performance_logger/batch_size",
+            new Description("Performance log records handed over to performance loggers at once")
+                .setCumulative()
+                .setUnit("records"));
+  }
+
+  @Override
+  public void dispatch(
+      DynamicSet<PerformanceLogger> performanceLoggers,
+      ImmutableList<PerformanceLogRecord> performanceLogRecords) {
+    if (executor == null) {
+      SYNCHRONOUS.dispatch(performanceLoggers, performanceLogRecords);
+      return;
+    }
+
+    int count = performanceLogRecords.size();
+    if (queuedRecords.addAndGet(count) > maxQueuedRecords) {
+      queuedRecords.addAndGet(-count);
+      droppedRecords.incrementBy(count);
+      logger.atFine().log("Dropped %d performance log records, queue is full", count);
+      return;
+    }
+    queue.add(
+        new PendingRecords(
+            performanceLoggers,
+            LoggingContext.getInstance().getTagsAsMap(),
+            performanceLogRecords));
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::flush);
+      } catch (RejectedExecutionException e) {
+        // The server is shutting down, the queued records will not be dispatched anymore.
+        flushScheduled.set(false);
+      }
+    }
+  }
+
+  private void flush() {
+    try {
+      while (!queue.isEmpty()) {
+        List<PendingRecords> batch = new ArrayList<>();
+        int count = 0;
+        PendingRecords pending;
+        while (count < batchSize && (pending = queue.poll()) != null) {
+          batch.add(pending);
+          count += pending.records.size();
+        }
+        queuedRecords.addAndGet(-count);
+        dispatchedBatchSize.record(count);
+        for (PendingRecords p : batch) {
+          LoggingContext.getInstance()
+              .runWithTags(p.tags, () -> SYNCHRONOUS.dispatch(p.performanceLoggers, p.records));
+        }
+      }
+    } finally {
+      flushScheduled.set(false);
+      if (!queue.isEmpty()) {
+        scheduleFlush();
+      }
+    }
+  }
+
+  /** Performance log records of one request, together with the logging tags of the request. */
+  private static class PendingRecords {
+    final DynamicSet<PerformanceLogger> performanceLoggers;
+    final ImmutableSetMultimap<String, String> tags;
+    final ImmutableList<PerformanceLogRecord> records;
+
+    PendingRecords(
+        DynamicSet<PerformanceLogger> performanceLoggers,
+        ImmutableSetMultimap<String, String> tags,
+        ImmutableList<PerformanceLogRecord> records) {
+      this.performanceLoggers = performanceLoggers;
+      this.tags = tags;
+      this.records = records;
+    }
+  }
+}
@@ -218,6 +218,11 @@ public class DeadlineChecker implements RequestStateProvider {
     }
   }
 
+  @Override
+  public Optional<Long> getDeadline() {
+    return deadline;
+  }
+
   /**
    * Parses the given timeout value.
    *
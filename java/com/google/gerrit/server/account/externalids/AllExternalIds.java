@@ -14,9 +14,16 @@
 
 package com.google.gerrit.server.account.externalids;
 
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.collect.ImmutableSetMultimap.toImmutableSetMultimap;
+import static java.util.stream.Collectors.toList;
+
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.proto.Protos;
@@ -24,41 +31,173 @@ import com.google.gerrit.server.cache.proto.Cache.AllExternalIdsProto;
 import com.google.gerrit.server.cache.proto.Cache.AllExternalIdsProto.ExternalIdProto;
 import com.google.gerrit.server.cache.serialize.CacheSerializer;
 import com.google.gerrit.server.cache.serialize.ObjectIdConverter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.stream.Stream;
 
-/** Cache value containing all external IDs. */
+/**
+ * Cache value containing all external IDs.
+ *
+ * <p>The external IDs are stored in {@link ShardedMap}s, so that a new state that is derived from
+ * an old state by {@link #update(Collection, Collection)} shares most of its memory with the old
+ * state.
+ */
 @AutoValue
 public abstract class AllExternalIds {
   static AllExternalIds create(Stream<ExternalId> externalIds) {
-    ImmutableMap.Builder<ExternalId.Key, ExternalId> byKey = ImmutableMap.builder();
-    ImmutableSetMultimap.Builder<Account.Id, ExternalId> byAccount = ImmutableSetMultimap.builder();
-    ImmutableSetMultimap.Builder<String, ExternalId> byEmail = ImmutableSetMultimap.builder();
-    externalIds.forEach(
-        id -> {
-          byKey.put(id.key(), id);
-          byAccount.put(id.accountId(), id);
-          if (!Strings.isNullOrEmpty(id.email())) {
-            byEmail.put(id.email(), id);
-          }
-        });
-
-    return new AutoValue_AllExternalIds(byKey.build(), byAccount.build(), byEmail.build());
+    Builder builder = new Builder(empty());
+    externalIds.forEach(builder::add);
+    return builder.build();
+  }
+
+  private static AllExternalIds empty() {
+    return new AutoValue_AllExternalIds(
+        ShardedMap.empty(), ShardedMap.empty(), ShardedMap.empty());
+  }
+
+  abstract ShardedMap<ExternalId.Key, ExternalId> keys();
+
+  abstract ShardedMap<Account.Id, ImmutableSet<ExternalId>> accounts();
+
+  abstract ShardedMap<String, ImmutableSet<ExternalId>> emails();
+
+  public Optional<ExternalId> byKey(ExternalId.Key key) {
+    return Optional.ofNullable(keys().get(key));
+  }
+
+  public ImmutableSet<ExternalId> byAccount(Account.Id accountId) {
+    return MoreObjects.firstNonNull(accounts().get(accountId), ImmutableSet.of());
+  }
+
+  public ImmutableSet<ExternalId> byEmail(String email) {
+    return MoreObjects.firstNonNull(emails().get(email), ImmutableSet.of());
+  }
+
+  public int size() {
+    return keys().size();
+  }
+
+  /** Returns all external IDs by account, computed on first use. */
+  @Memoized
+  public ImmutableSetMultimap<Account.Id, ExternalId> allByAccount() {
+    return keys().values().collect(toImmutableSetMultimap(ExternalId::accountId, e -> e));
+  }
+
+  /** Returns all external IDs that have an email by email, computed on first use. */
+  @Memoized
+  public ImmutableSetMultimap<String, ExternalId> allByEmail() {
+    return keys()
+        .values()
+        .filter(e -> !Strings.isNullOrEmpty(e.email()))
+        .collect(toImmutableSetMultimap(ExternalId::email, e -> e));
+  }
+
+  /**
+   * Returns a new state in which the given external IDs were removed and added.
+   *
+   * <p>Removals are applied before additions. The time and the memory that is needed for the new
+   * state is proportional to the number of updated external IDs, not to the number of all external
+   * IDs.
+   */
+  AllExternalIds update(Collection<ExternalId> toRemove, Collection<ExternalId> toAdd) {
+    Builder builder = new Builder(this);
+    toRemove.forEach(builder::remove);
+    toAdd.forEach(builder::add);
+    return builder.build();
   }
 
-  public abstract ImmutableMap<ExternalId.Key, ExternalId> byKey();
+  static class Builder {
+    private final ShardedMap.Builder<ExternalId.Key, ExternalId> keys;
+    private final ShardedMap.Builder<Account.Id, ImmutableSet<ExternalId>> accounts;
+    private final ShardedMap.Builder<String, ImmutableSet<ExternalId>> emails;
 
-  public abstract ImmutableSetMultimap<Account.Id, ExternalId> byAccount();
+    Builder(AllExternalIds base) {
+      keys = base.keys().toBuilder();
+      accounts = base.accounts().toBuilder();
+      emails = base.emails().toBuilder();
+    }
+
+    /** Removes the external ID if it is present, {@link ExternalId#blobId()} is ignored. */
+    void remove(ExternalId externalId) {
+      ExternalId existing = keys.get(externalId.key());
+      if (existing == null || !existing.equals(externalId)) {
+        return;
+      }
+      keys.remove(existing.key());
+      removeValue(accounts, existing.accountId(), existing);
+      if (!Strings.isNullOrEmpty(existing.email())) {
+        removeValue(emails, existing.email(), existing);
+      }
+    }
+
+    /** Adds the external ID, replacing the external ID with the same key if it exists. */
+    void add(ExternalId externalId) {
+      ExternalId existing = keys.get(externalId.key());
+      if (existing != null) {
+        remove(existing);
+      }
+      keys.put(externalId.key(), externalId);
+      addValue(accounts, externalId.accountId(), externalId);
+      if (!Strings.isNullOrEmpty(externalId.email())) {
+        addValue(emails, externalId.email(), externalId);
+      }
+    }
+
+    AllExternalIds build() {
+      return new AutoValue_AllExternalIds(keys.build(), accounts.build(), emails.build());
+    }
+
+    private static <K> void addValue(
+        ShardedMap.Builder<K, ImmutableSet<ExternalId>> map, K key, ExternalId value) {
+      ImmutableSet<ExternalId> values = map.get(key);
+      map.put(
+          key,
+          values == null
+              ? ImmutableSet.of(value)
+              : ImmutableSet.<ExternalId>builder().addAll(values).add(value).build());
+    }
 
-  public abstract ImmutableSetMultimap<String, ExternalId> byEmail();
+    private static <K> void removeValue(
+        ShardedMap.Builder<K, ImmutableSet<ExternalId>> map, K key, ExternalId value) {
+      ImmutableSet<ExternalId> values = map.get(key);
+      if (values == null) {
+        return;
+      }
+      ImmutableSet<ExternalId> remaining =
+          values.stream().filter(v -> !v.equals(value)).collect(toImmutableSet());
+      if (remaining.isEmpty()) {
+        map.remove(key);
+      } else {
+        map.put(key, remaining);
+      }
+    }
+  }
 
   enum Serializer implements CacheSerializer<AllExternalIds> {
     INSTANCE;
 
     @Override
     public byte[] serialize(AllExternalIds object) {
+      // A serialized proto with a repeated field is the concatenation of the serialized elements.
+      // Hence the shards can be serialized independently, which allows to reuse the serialized
+      // form of the shards that were not modified since a previous state was serialized, as long
+      // as it was not garbage collected.
+      List<byte[]> shards =
+          object.keys().deriveFromShards(Serializer::serializeShard).collect(toList());
+      byte[] result = new byte[shards.stream().mapToInt(b -> b.length).sum()];
+      int pos = 0;
+      for (byte[] shard : shards) {
+        System.arraycopy(shard, 0, result, pos, shard.length);
+        pos += shard.length;
+      }
+      return result;
+    }
+
+    private static byte[] serializeShard(ImmutableMap<ExternalId.Key, ExternalId> shard) {
       ObjectIdConverter idConverter = ObjectIdConverter.create();
       AllExternalIdsProto.Builder allBuilder = AllExternalIdsProto.newBuilder();
-      object.byAccount().values().stream()
+      shard.values().stream()
           .map(extId -> toProto(idConverter, extId))
           .forEach(allBuilder::addExternalId);
       return Protos.toByteArray(allBuilder.build());
@@ -17,8 +17,6 @@ package com.google.gerrit.server.account.externalids;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.SetMultimap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Account;
 import com.google.inject.Inject;
@@ -30,7 +28,7 @@ import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Consumer;
+import java.util.stream.Stream;
 import org.eclipse.jgit.lib.ObjectId;
 
 /** Caches external IDs of all accounts. The external IDs are always loaded from NoteDb. */
@@ -59,38 +57,27 @@ class ExternalIdCacheImpl implements ExternalIdCache {
       ObjectId newNotesRev,
       Collection<ExternalId> toRemove,
       Collection<ExternalId> toAdd) {
-    updateCache(
-        oldNotesRev,
-        newNotesRev,
-        m -> {
-          for (ExternalId extId : toRemove) {
-            m.remove(extId.accountId(), extId);
-          }
-          for (ExternalId extId : toAdd) {
-            extId.checkThatBlobIdIsSet();
-            m.put(extId.accountId(), extId);
-          }
-        });
+    updateCache(oldNotesRev, newNotesRev, toRemove, toAdd);
   }
 
   @Override
   public Optional<ExternalId> byKey(ExternalId.Key key) throws IOException {
-    return Optional.ofNullable(get().byKey().get(key));
+    return get().byKey(key);
   }
 
   @Override
   public ImmutableSet<ExternalId> byAccount(Account.Id accountId) throws IOException {
-    return get().byAccount().get(accountId);
+    return get().byAccount(accountId);
   }
 
   @Override
   public ImmutableSet<ExternalId> byAccount(Account.Id accountId, ObjectId rev) throws IOException {
-    return get(rev).byAccount().get(accountId);
+    return get(rev).byAccount(accountId);
   }
 
   @Override
   public ImmutableSetMultimap<Account.Id, ExternalId> allByAccount() throws IOException {
-    return get().byAccount();
+    return get().allByAccount();
   }
 
   @Override
@@ -98,14 +85,14 @@ class ExternalIdCacheImpl implements ExternalIdCache {
     AllExternalIds allExternalIds = get();
     ImmutableSetMultimap.Builder<String, ExternalId> byEmails = ImmutableSetMultimap.builder();
     for (String email : emails) {
-      byEmails.putAll(email, allExternalIds.byEmail().get(email));
+      byEmails.putAll(email, allExternalIds.byEmail(email));
     }
     return byEmails.build();
   }
 
   @Override
   public ImmutableSetMultimap<String, ExternalId> allByEmail() throws IOException {
-    return get().byEmail();
+    return get().allByEmail();
   }
 
   private AllExternalIds get() throws IOException {
@@ -123,25 +110,22 @@ class ExternalIdCacheImpl implements ExternalIdCache {
   private void updateCache(
       ObjectId oldNotesRev,
       ObjectId newNotesRev,
-      Consumer<SetMultimap<Account.Id, ExternalId>> update) {
+      Collection<ExternalId> toRemove,
+      Collection<ExternalId> toAdd) {
     if (oldNotesRev.equals(newNotesRev)) {
       // No need to update external id cache since there is no update to those external ids.
       return;
     }
 
+    toAdd.forEach(ExternalId::checkThatBlobIdIsSet);
     lock.lock();
     try {
-      SetMultimap<Account.Id, ExternalId> m;
-      if (!ObjectId.zeroId().equals(oldNotesRev)) {
-        m =
-            MultimapBuilder.hashKeys()
-                .hashSetValues()
-                .build(extIdsByAccount.get(oldNotesRev).byAccount());
-      } else {
-        m = MultimapBuilder.hashKeys().hashSetValues().build();
-      }
-      update.accept(m);
-      extIdsByAccount.put(newNotesRev, AllExternalIds.create(m.values().stream()));
+      AllExternalIds oldExternalIds =
+          !ObjectId.zeroId().equals(oldNotesRev)
+              ? extIdsByAccount.get(oldNotesRev)
+              : AllExternalIds.create(Stream.empty());
+      // The new state shares the memory for all unmodified external IDs with the old state.
+      extIdsByAccount.put(newNotesRev, oldExternalIds.update(toRemove, toAdd));
     } catch (ExecutionException e) {
       logger.atWarning().withCause(e).log("Cannot update external IDs");
     } finally {
@@ -17,11 +17,9 @@ package com.google.gerrit.server.account.externalids;
 import com.google.common.base.CharMatcher;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheLoader;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.flogger.FluentLogger;
-import com.google.gerrit.entities.Account;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
@@ -40,10 +38,10 @@ import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Config;
@@ -169,7 +167,7 @@ public class ExternalIdCacheLoader extends CacheLoader<ObjectId, AllExternalIds>
       }
 
       // Diff trees to recognize modifications
-      Set<ObjectId> removals = new HashSet<>(); // Set<Blob-Object-Id>
+      Map<ObjectId, ObjectId> removals = new HashMap<>(); // Map<Name-ObjectId, Blob-Object-Id>
       Map<ObjectId, ObjectId> additions = new HashMap<>(); // Map<Name-ObjectId, Blob-Object-Id>
       try (TreeWalk treeWalk = new TreeWalk(repo)) {
         treeWalk.setFilter(TreeFilter.ANY_DIFF);
@@ -181,13 +179,13 @@ public class ExternalIdCacheLoader extends CacheLoader<ObjectId, AllExternalIds>
           ObjectId newBlob = treeWalk.getObjectId(1);
           if (ObjectId.zeroId().equals(newBlob)) {
             // Deletion
-            removals.add(oldBlob);
+            removals.put(fileNameToObjectId(path), oldBlob);
           } else if (ObjectId.zeroId().equals(oldBlob)) {
             // Addition
             additions.put(fileNameToObjectId(path), newBlob);
           } else {
             // Modification
-            removals.add(oldBlob);
+            removals.put(fileNameToObjectId(path), oldBlob);
             additions.put(fileNameToObjectId(path), newBlob);
           }
         }
@@ -209,60 +207,56 @@ public class ExternalIdCacheLoader extends CacheLoader<ObjectId, AllExternalIds>
    * Build a new {@link AllExternalIds} from an old state by applying additions and removals that
    * were performed since then.
    *
-   * <p>Removals are applied before additions.
+   * <p>Removals are applied before additions. The new state shares the memory for all external IDs
+   * that were not modified with the old state.
    *
    * @param repo open repository
    * @param oldExternalIds prior state that is used as base
    * @param additions map of name to blob ID for each external ID that should be added
-   * @param removals set of name {@link ObjectId}s that should be removed
+   * @param removals map of name to blob ID for each external ID that should be removed
    */
   private static AllExternalIds buildAllExternalIds(
       Repository repo,
       AllExternalIds oldExternalIds,
       Map<ObjectId, ObjectId> additions,
-      Set<ObjectId> removals)
+      Map<ObjectId, ObjectId> removals)
       throws IOException {
-    ImmutableMap.Builder<ExternalId.Key, ExternalId> byKey = ImmutableMap.builder();
-    ImmutableSetMultimap.Builder<Account.Id, ExternalId> byAccount = ImmutableSetMultimap.builder();
-    ImmutableSetMultimap.Builder<String, ExternalId> byEmail = ImmutableSetMultimap.builder();
-
-    // Copy over old ExternalIds but exclude deleted ones
-    for (ExternalId externalId : oldExternalIds.byAccount().values()) {
-      if (removals.contains(externalId.blobId())) {
-        continue;
-      }
-
-      byKey.put(externalId.key(), externalId);
-      byAccount.put(externalId.accountId(), externalId);
-      if (externalId.email() != null) {
-        byEmail.put(externalId.email(), externalId);
-      }
-    }
-
-    // Add newly discovered ExternalIds
+    List<ExternalId> toRemove = new ArrayList<>(removals.size());
+    List<ExternalId> toAdd = new ArrayList<>(additions.size());
     try (ObjectReader reader = repo.newObjectReader()) {
-      for (Map.Entry<ObjectId, ObjectId> nameToBlob : additions.entrySet()) {
-        ExternalId parsedExternalId;
-        try {
-          parsedExternalId =
-              ExternalId.parse(
-                  nameToBlob.getKey().name(),
-                  reader.open(nameToBlob.getValue()).getCachedBytes(),
-                  nameToBlob.getValue());
-        } catch (ConfigInvalidException | RuntimeException e) {
-          logger.atSevere().withCause(e).log(
-              "Ignoring invalid external ID note %s", nameToBlob.getKey().name());
-          continue;
+      // The removed notes still exist in the old tree. Parse them to find the keys of the external
+      // IDs that must be removed, instead of scanning all old external IDs for their blob IDs.
+      for (Map.Entry<ObjectId, ObjectId> nameToBlob : removals.entrySet()) {
+        ExternalId removed = parse(reader, nameToBlob);
+        if (removed != null) {
+          toRemove.add(removed);
         }
+      }
 
-        byKey.put(parsedExternalId.key(), parsedExternalId);
-        byAccount.put(parsedExternalId.accountId(), parsedExternalId);
-        if (parsedExternalId.email() != null) {
-          byEmail.put(parsedExternalId.email(), parsedExternalId);
+      // Add newly discovered ExternalIds
+      for (Map.Entry<ObjectId, ObjectId> nameToBlob : additions.entrySet()) {
+        ExternalId added = parse(reader, nameToBlob);
+        if (added != null) {
+          toAdd.add(added);
         }
       }
     }
-    return new AutoValue_AllExternalIds(byKey.build(), byAccount.build(), byEmail.build());
+    return oldExternalIds.update(toRemove, toAdd);
+  }
+
+  @Nullable
+  private static ExternalId parse(ObjectReader reader, Map.Entry<ObjectId, ObjectId> nameToBlob)
+      throws IOException {
+    try {
+      return ExternalId.parse(
+          nameToBlob.getKey().name(),
+          reader.open(nameToBlob.getValue()).getCachedBytes(),
+          nameToBlob.getValue());
+    } catch (ConfigInvalidException | RuntimeException e) {
+      logger.atSevere().withCause(e).log(
+          "Ignoring invalid external ID note %s", nameToBlob.getKey().name());
+      return null;
+    }
   }
 
   private AllExternalIds reloadAllExternalIds(ObjectId notesRev)
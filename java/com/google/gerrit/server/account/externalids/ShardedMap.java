@@ -0,0 +1,198 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.account.externalids;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.common.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Immutable hash map that shares structure with the versions it was derived from.
+ *
+ * <p>The entries are distributed over a fixed number of shards by the hash of their keys. Each
+ * shard is an immutable map. Deriving a new version of the map by {@link #toBuilder()} copies only
+ * the shards that are modified, all other shards are shared with the old version. This makes
+ * updating a few entries of a large map cheap in time and memory.
+ */
+final class ShardedMap<K, V> {
+  private static final int SHARD_BITS = 10;
+
+  private static final int SHARD_COUNT = 1 << SHARD_BITS;
+
+  private static final ShardedMap<?, ?> EMPTY = new ShardedMap<>(emptyShards(), 0);
+
+  @SuppressWarnings("unchecked")
+  static <K, V> ShardedMap<K, V> empty() {
+    return (ShardedMap<K, V>) EMPTY;
+  }
+
+  private final Shard<K, V>[] shards;
+  private final int size;
+
+  private ShardedMap(Shard<K, V>[] shards, int size) {
+    this.shards = shards;
+    this.size = size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  @Nullable
+  V get(K key) {
+    return shards[shardIndex(key)].entries.get(key);
+  }
+
+  Stream<V> values() {
+    return Arrays.stream(shards).flatMap(s -> s.entries.values().stream());
+  }
+
+  /**
+   * Returns a value that is derived from the entries of each shard.
+   *
+   * <p>The derived value of a shard is shared with the versions of the map that share the shard.
+   * It is only weakly referenced, so that derived values, e.g. the serialized form of the shard,
+   * don't add to the memory that is retained by the map. If the derived value was garbage
+   * collected it is computed again. Callers must always pass the same function.
+   */
+  <T> Stream<T> deriveFromShards(Function<ImmutableMap<K, V>, T> fn) {
+    return Arrays.stream(shards).map(s -> s.derive(fn));
+  }
+
+  Builder<K, V> toBuilder() {
+    return new Builder<>(this);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ShardedMap)) {
+      return false;
+    }
+    ShardedMap<?, ?> other = (ShardedMap<?, ?>) o;
+    if (size != other.size) {
+      return false;
+    }
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      if (shards[i] != other.shards[i] && !shards[i].entries.equals(other.shards[i].entries)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = 0;
+    for (Shard<K, V> shard : shards) {
+      h += shard.entries.hashCode();
+    }
+    return h;
+  }
+
+  @Override
+  public String toString() {
+    return "ShardedMap{size=" + size + "}";
+  }
+
+  private static int shardIndex(Object key) {
+    // Spread the bits of the hash code, so that keys with similar hash codes, e.g. account IDs,
+    // are distributed over all shards.
+    return (key.hashCode() * 0x9E3779B9) >>> (Integer.SIZE - SHARD_BITS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Shard<K, V>[] emptyShards() {
+    Shard<K, V>[] shards = new Shard[SHARD_COUNT];
+    Arrays.fill(shards, new Shard<>(ImmutableMap.of()));
+    return shards;
+  }
+
+  private static class Shard<K, V> {
+    final ImmutableMap<K, V> entries;
+    private volatile WeakReference<Object> derived;
+
+    Shard(ImmutableMap<K, V> entries) {
+      this.entries = entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T derive(Function<ImmutableMap<K, V>, T> fn) {
+      if (entries.isEmpty()) {
+        // Empty shards are shared by all maps, don't memoize values derived from them.
+        return fn.apply(entries);
+      }
+      WeakReference<Object> ref = derived;
+      Object d = ref != null ? ref.get() : null;
+      if (d == null) {
+        // Computing the value twice in case of a race is harmless.
+        d = fn.apply(entries);
+        derived = new WeakReference<>(d);
+      }
+      return (T) d;
+    }
+  }
+
+  /** Builder for a new version of a {@link ShardedMap}. */
+  static class Builder<K, V> {
+    private final ShardedMap<K, V> base;
+    private final Map<Integer, Map<K, V>> modifiedShards = new HashMap<>();
+
+    private Builder(ShardedMap<K, V> base) {
+      this.base = base;
+    }
+
+    @Nullable
+    V get(K key) {
+      Map<K, V> modified = modifiedShards.get(shardIndex(key));
+      return modified != null ? modified.get(key) : base.get(key);
+    }
+
+    Builder<K, V> put(K key, V value) {
+      modifiableShard(key).put(key, value);
+      return this;
+    }
+
+    Builder<K, V> remove(K key) {
+      if (get(key) != null) {
+        modifiableShard(key).remove(key);
+      }
+      return this;
+    }
+
+    private Map<K, V> modifiableShard(K key) {
+      return modifiedShards.computeIfAbsent(
+          shardIndex(key), i -> new HashMap<>(base.shards[i].entries));
+    }
+
+    ShardedMap<K, V> build() {
+      if (modifiedShards.isEmpty()) {
+        return base;
+      }
+      Shard<K, V>[] shards = Arrays.copyOf(base.shards, SHARD_COUNT);
+      int size = base.size;
+      for (Map.Entry<Integer, Map<K, V>> e : modifiedShards.entrySet()) {
+        int i = e.getKey();
+        size += e.getValue().size() - shards[i].entries.size();
+        shards[i] = new Shard<>(ImmutableMap.copyOf(e.getValue()));
+      }
+      return new ShardedMap<>(shards, size);
+    }
+  }
+}
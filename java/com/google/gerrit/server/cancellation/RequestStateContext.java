@@ -17,7 +17,9 @@ package com.google.gerrit.server.cancellation;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Context that allows to register {@link RequestStateProvider}s.
@@ -30,10 +32,11 @@ import java.util.Set;
  *
  * <p>Nesting {@code RequestStateContext}s is possible.
  *
- * <p>Currently there is no logic to automatically copy the {@link RequestStateContext} to
- * background threads, but implementing this may be considered in the future. This means that by
- * default we only support cancellation of the main thread, but not of background threads. That's
- * fine as all significant work is being done in the main thread.
+ * <p>The {@link RequestStateContext} is not automatically copied to background threads. This means
+ * that by default we only support cancellation of the main thread, but not of background threads.
+ * That's fine as most significant work is being done in the main thread. Work that is done on
+ * behalf of the request by other threads can be made cancellable by wrapping it with {@link
+ * #copy(Callable)}.
  *
  * <p>{@link com.google.gerrit.server.util.RequestContext} is also a context that is available for
  * the time of the request, but it is not suitable to manage registrations of {@link
@@ -50,7 +53,7 @@ import java.util.Set;
  *       requests scopes but also for other scopes that are not a request (e.g. plugin invocations,
  *       email sending, manual scopes).
  *   <li>{@link com.google.gerrit.server.util.RequestContext} is not copied to background and should
- *       not be, but for {@link RequestStateContext} we may consider doing this in the future.
+ *       not be, but {@link RequestStateContext} can be copied by {@link #copy(Callable)}.
  * </ul>
  */
 public class RequestStateContext implements AutoCloseable {
@@ -108,6 +111,20 @@ public class RequestStateContext implements AutoCloseable {
     };
   }
 
+  /**
+   * Returns the earliest deadline of the {@link RequestStateProvider}s that have been registered
+   * for the thread, as a {@link System#nanoTime()} value.
+   *
+   * @see RequestStateProvider#getDeadline()
+   */
+  public static Optional<Long> getDeadline() {
+    return getRequestStateProviders().stream()
+        .map(RequestStateProvider::getDeadline)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .min(Long::compare);
+  }
+
   /** Returns the {@link RequestStateProvider}s that have been registered for the thread. */
   @VisibleForTesting
   static ImmutableSet<RequestStateProvider> getRequestStateProviders() {
@@ -117,6 +134,30 @@ public class RequestStateContext implements AutoCloseable {
     return ImmutableSet.copyOf(threadLocalRequestStateProviders.get());
   }
 
+  /**
+   * Wraps the given callable so that it is executed with the {@link RequestStateProvider}s that are
+   * registered for the current thread.
+   *
+   * <p>Must be used for work that is done on behalf of the request by other threads, so that the
+   * work is aborted if the request is cancelled and that its deadline is known.
+   *
+   * @param callable the callable that should be executed with the request state providers of the
+   *     current thread
+   * @return the wrapped callable
+   */
+  public static <T> Callable<T> copy(Callable<T> callable) {
+    ImmutableSet<RequestStateProvider> requestStateProviders = getRequestStateProviders();
+    if (requestStateProviders.isEmpty()) {
+      return callable;
+    }
+    return () -> {
+      try (RequestStateContext requestStateContext = open()) {
+        requestStateProviders.forEach(requestStateContext::addRequestStateProvider);
+        return callable.call();
+      }
+    };
+  }
+
   /** Opens a {@code RequestStateContext}. */
   public static RequestStateContext open() {
     return new RequestStateContext();
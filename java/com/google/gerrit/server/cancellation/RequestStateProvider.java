@@ -15,6 +15,7 @@
 package com.google.gerrit.server.cancellation;
 
 import com.google.gerrit.common.Nullable;
+import java.util.Optional;
 
 /** Interface that provides information about the state of the current request. */
 public interface RequestStateProvider {
@@ -30,6 +31,15 @@ public interface RequestStateProvider {
    */
   void checkIfCancelled(OnCancelled onCancelled);
 
+  /**
+   * Returns the deadline after which the current request is cancelled, as a {@link
+   * System#nanoTime()} value, or {@link Optional#empty()} if this provider doesn't cancel the
+   * request at a known point in time.
+   */
+  default Optional<Long> getDeadline() {
+    return Optional.empty();
+  }
+
   /** Callback interface to be invoked if a request is cancelled. */
   @FunctionalInterface
   interface OnCancelled {
@@ -55,6 +65,12 @@ public interface RequestStateProvider {
      *
      * <p>Server-side deadlines are usually configurable, but may also be hard-coded.
      */
-    SERVER_DEADLINE_EXCEEDED;
+    SERVER_DEADLINE_EXCEEDED,
+
+    /**
+     * The server is overloaded and rejected the request before executing it, because the request
+     * could not have been finished within its deadline or a concurrency limit was reached.
+     */
+    SERVER_OVERLOADED;
   }
 }
@@ -0,0 +1,198 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.change;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.PatchSet;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.SubmitTypeRecord;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.FanOutExecutor;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.MergeUtil;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.submit.SubmitDryRun;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Computes the mergeability of many open changes of a project at once, e.g. after their destination
+ * branch was updated.
+ *
+ * <p>Computing the mergeability of each change on its own reads all branches and tags of the
+ * repository to find the already accepted commits and parses the destination branch with a new
+ * object reader. This class does this only once per project and destination branch. The changes of
+ * a branch are split into at most {@code change.mergeabilityBatchParallelism} chunks that are
+ * computed in parallel on the {@link FanOutExecutor}, each chunk sharing one object reader.
+ *
+ * <p>Results are written to the {@link MergeabilityCache}, so that reindexing the changes
+ * afterwards finds the mergeability there.
+ */
+@Singleton
+public class BatchMergeabilityComputer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final GitRepositoryManager repoManager;
+  private final MergeabilityCache mergeabilityCache;
+  private final MergeUtil.Factory mergeUtilFactory;
+  private final ProjectCache projectCache;
+  private final OneOffRequestContext requestContext;
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final Timer0 latency;
+  private final Histogram0 batchSize;
+
+  @Inject
+  BatchMergeabilityComputer(
+      @GerritServerConfig Config cfg,
+      GitRepositoryManager repoManager,
+      MergeabilityCache mergeabilityCache,
+      MergeUtil.Factory mergeUtilFactory,
+      ProjectCache projectCache,
+      OneOffRequestContext requestContext,
+      @FanOutExecutor ExecutorService executor,
+      MetricMaker metricMaker) {
+    this.repoManager = repoManager;
+    this.mergeabilityCache = mergeabilityCache;
+    this.mergeUtilFactory = mergeUtilFactory;
+    this.projectCache = projectCache;
+    this.requestContext = requestContext;
+    this.executor = executor;
+    this.parallelism = Math.max(1, cfg.getInt("change", "mergeabilityBatchParallelism", 4));
+    this.latency =
+        metricMaker.newTimer(
+            "change/mergeability/batch_latency",
+            new Description("Latency of computing the mergeability of a batch of changes")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    this.batchSize =
+        metricMaker.newHistogram(
+            "change/mergeability/batch_size",
+            new Description("Number of changes per batch mergeability computation")
+                .setCumulative()
+                .setUnit("changes"));
+  }
+
+  /**
+   * Computes the mergeability of the given changes and stores it in the {@link MergeabilityCache}.
+   *
+   * <p>Changes that are not open or work in progress are skipped, as for these {@link
+   * ChangeData#isMergeable()} doesn't compute mergeability. Failures are logged and don't abort the
+   * computation for the other changes.
+   *
+   * @param project project of all given changes.
+   * @param changes changes for which the mergeability should be computed. Each {@link ChangeData}
+   *     instance is only accessed by a single thread.
+   */
+  public void compute(Project.NameKey project, Collection<ChangeData> changes) {
+    if (changes.isEmpty()) {
+      return;
+    }
+    Optional<ProjectState> projectState = projectCache.get(project);
+    if (!projectState.isPresent()) {
+      logger.atWarning().log(
+          "Failed to compute mergeability of %d changes, project %s not found",
+          changes.size(), project);
+      return;
+    }
+    batchSize.record(changes.size());
+    try (Timer0.Context ignored = latency.start();
+        Repository repo = repoManager.openRepository(project)) {
+      String mergeStrategy = mergeUtilFactory.create(projectState.get()).mergeStrategyName();
+      ImmutableSet<ObjectId> alreadyAccepted =
+          ImmutableSet.copyOf(SubmitDryRun.getAlreadyAccepted(repo));
+      Map<BranchNameKey, List<ChangeData>> byBranch =
+          changes.stream().collect(Collectors.groupingBy(cd -> cd.change().getDest()));
+
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (Map.Entry<BranchNameKey, List<ChangeData>> e : byBranch.entrySet()) {
+        Ref destRef = repo.getRefDatabase().exactRef(e.getKey().branch());
+        int chunkSize = (e.getValue().size() + parallelism - 1) / parallelism;
+        for (List<ChangeData> chunk : Lists.partition(e.getValue(), chunkSize)) {
+          tasks.add(() -> computeChunk(repo, destRef, mergeStrategy, alreadyAccepted, chunk));
+        }
+      }
+      executor.invokeAll(tasks);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Failed to compute mergeability of %d changes in project %s", changes.size(), project);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Void computeChunk(
+      Repository repo,
+      Ref destRef,
+      String mergeStrategy,
+      ImmutableSet<ObjectId> alreadyAccepted,
+      List<ChangeData> chunk) {
+    try (ManualRequestContext ctx = requestContext.open();
+        ObjectReader reader = repo.newObjectReader()) {
+      for (ChangeData cd : chunk) {
+        try {
+          Change c = cd.change();
+          if (!c.isNew() || c.isWorkInProgress()) {
+            continue;
+          }
+          PatchSet ps = cd.currentPatchSet();
+          SubmitTypeRecord str = cd.submitTypeRecord();
+          if (ps == null || !str.isOk()) {
+            continue;
+          }
+          mergeabilityCache.get(
+              ps.commitId(),
+              destRef,
+              str.type,
+              mergeStrategy,
+              c.getDest(),
+              repo,
+              reader,
+              alreadyAccepted);
+        } catch (RuntimeException e) {
+          logger.atWarning().withCause(e).log(
+              "Failed to compute mergeability of change %s", cd.getId());
+        }
+      }
+    }
+    return null;
+  }
+}
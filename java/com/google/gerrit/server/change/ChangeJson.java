@@ -43,6 +43,8 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -51,8 +53,10 @@ import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.entities.Address;
+import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.ChangeMessage;
+import com.google.gerrit.entities.LabelTypes;
 import com.google.gerrit.entities.LegacySubmitRequirement;
 import com.google.gerrit.entities.PatchSet;
 import com.google.gerrit.entities.PatchSetApproval;
@@ -82,6 +86,7 @@ import com.google.gerrit.extensions.common.RevisionInfo;
 import com.google.gerrit.extensions.common.SubmitRequirementExpressionInfo;
 import com.google.gerrit.extensions.common.SubmitRequirementResultInfo;
 import com.google.gerrit.extensions.common.TrackingIdInfo;
+import com.google.gerrit.extensions.restapi.StreamingList;
 import com.google.gerrit.extensions.restapi.Url;
 import com.google.gerrit.index.RefState;
 import com.google.gerrit.index.query.QueryResult;
@@ -91,6 +96,7 @@ import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.server.ChangeMessagesUtil;
 import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.FanOutExecutor;
 import com.google.gerrit.server.GpgException;
 import com.google.gerrit.server.ReviewerByEmailSet;
 import com.google.gerrit.server.ReviewerSet;
@@ -99,6 +105,7 @@ import com.google.gerrit.server.StarredChangesUtil;
 import com.google.gerrit.server.account.AccountInfoComparator;
 import com.google.gerrit.server.account.AccountLoader;
 import com.google.gerrit.server.cancellation.RequestCancelledException;
+import com.google.gerrit.server.cancellation.RequestStateContext;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.TrackingFooters;
 import com.google.gerrit.server.index.change.ChangeField;
@@ -113,6 +120,8 @@ import com.google.gerrit.server.project.SubmitRuleOptions;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.ChangeData.ChangedLines;
 import com.google.gerrit.server.util.AttentionSetUtil;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -123,10 +132,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
@@ -157,6 +173,12 @@ public class ChangeJson {
           CURRENT_COMMIT,
           MESSAGES);
 
+  /** Number of changes that are formatted at once when query results are streamed. */
+  private static final int STREAMING_BATCH_SIZE = 100;
+
+  /** Minimal number of changes that are formatted by one thread when formatting in parallel. */
+  private static final int MIN_CHANGES_PER_CHUNK = 10;
+
   @Singleton
   public static class Factory {
     private final AssistedFactory factory;
@@ -236,6 +258,10 @@ public class ChangeJson {
   private final Optional<PluginDefinedInfosFactory> pluginDefinedInfosFactory;
   private final boolean includeMergeable;
   private final boolean lazyLoad;
+  private final ThreadLocalRequestContext threadLocalRequestContext;
+  private final ExecutorService executor;
+  private final int formatParallelism;
+  private final Map<BranchNameKey, LabelTypes> labelTypesByBranch = new ConcurrentHashMap<>();
 
   private AccountLoader accountLoader;
   private FixInput fix;
@@ -256,6 +282,8 @@ public class ChangeJson {
       Metrics metrics,
       RevisionJson.Factory revisionJsonFactory,
       @GerritServerConfig Config cfg,
+      ThreadLocalRequestContext threadLocalRequestContext,
+      @FanOutExecutor ExecutorService executor,
       @Assisted Iterable<ListChangesOption> options,
       @Assisted Optional<PluginDefinedInfosFactory> pluginDefinedInfosFactory) {
     this.userProvider = user;
@@ -275,6 +303,9 @@ public class ChangeJson {
     this.includeMergeable = MergeabilityComputationBehavior.fromConfig(cfg).includeInApi();
     this.lazyLoad = containsAnyOf(this.options, REQUIRE_LAZY_LOAD);
     this.pluginDefinedInfosFactory = pluginDefinedInfosFactory;
+    this.threadLocalRequestContext = threadLocalRequestContext;
+    this.executor = executor;
+    this.formatParallelism = cfg.getInt("change", "formatParallelism", 1);
 
     logger.atFine().log("options = %s", options);
   }
@@ -326,13 +357,61 @@ public class ChangeJson {
     }
   }
 
+  /**
+   * Formats the given query results lazily.
+   *
+   * <p>The returned lists are {@link StreamingList}s that format the changes in batches while they
+   * are iterated, so that the {@link ChangeInfo}s of large results are not all held in memory at
+   * once. Unlike {@link #format(List)}, changes that are contained in the results of several
+   * queries are formatted once per query.
+   */
+  public List<List<ChangeInfo>> formatStreaming(List<QueryResult<ChangeData>> in) {
+    List<List<ChangeInfo>> res = new ArrayList<>(in.size());
+    for (QueryResult<ChangeData> r : in) {
+      res.add(
+          new StreamingList<ChangeInfo>() {
+            @Override
+            protected Iterator<ChangeInfo> produce() {
+              return Iterators.concat(
+                  Iterators.transform(
+                      Lists.partition(r.entities(), STREAMING_BATCH_SIZE).iterator(),
+                      batch -> formatBatch(batch, r).iterator()));
+            }
+          });
+    }
+    return res;
+  }
+
+  private List<ChangeInfo> formatBatch(List<ChangeData> batch, QueryResult<ChangeData> r) {
+    try (Timer0.Context ignored = metrics.formatQueryResultsLatency.start()) {
+      accountLoader = accountLoaderFactory.create(has(DETAILED_ACCOUNTS));
+      List<ChangeInfo> infos = toChangeInfos(batch, new HashMap<>(), getPluginInfos(batch));
+      try {
+        accountLoader.fill();
+      } catch (PermissionBackendException e) {
+        throw new StorageException(e);
+      }
+      boolean lastBatch = Iterables.getLast(batch) == Iterables.getLast(r.entities());
+      if (lastBatch && r.more() && !infos.isEmpty()) {
+        Iterables.getLast(infos)._moreChanges = true;
+      }
+      return infos;
+    }
+  }
+
   public List<ChangeInfo> format(Collection<ChangeData> in) throws PermissionBackendException {
     accountLoader = accountLoaderFactory.create(has(DETAILED_ACCOUNTS));
     ensureLoaded(in);
     List<ChangeInfo> out = new ArrayList<>(in.size());
     ImmutableListMultimap<Change.Id, PluginDefinedInfo> pluginInfosByChange = getPluginInfos(in);
+    Map<Change.Id, ChangeInfo> formatted = formatInParallel(in, pluginInfosByChange);
     for (ChangeData cd : in) {
-      out.add(format(cd, Optional.empty(), false, pluginInfosByChange.get(cd.getId())));
+      ChangeInfo info = formatted.remove(cd.getId());
+      if (info == null) {
+        shareLabelTypes(cd);
+        info = format(cd, Optional.empty(), false, pluginInfosByChange.get(cd.getId()));
+      }
+      out.add(info);
     }
     accountLoader.fill();
     return out;
@@ -485,6 +564,10 @@ public class ChangeJson {
       Map<Change.Id, ChangeInfo> cache,
       ImmutableListMultimap<Change.Id, PluginDefinedInfo> pluginInfosByChange) {
     try (Timer0.Context ignored = metrics.toChangeInfosLatency.start()) {
+      Map<Change.Id, ChangeInfo> formatted =
+          formatInParallel(
+              changes.stream().filter(cd -> !cache.containsKey(cd.getId())).collect(toList()),
+              pluginInfosByChange);
       List<ChangeInfo> changeInfos = new ArrayList<>(changes.size());
       for (int i = 0; i < changes.size(); i++) {
         // We can only cache and re-use an entity if it's not the last in the list. The last entity
@@ -501,9 +584,19 @@ public class ChangeJson {
           continue;
         }
 
-        // Compute and cache if possible
+        // Compute and cache if possible. Each change that was formatted in parallel is used only
+        // once, so that the info of the last entity is never shared.
+        info = formatted.remove(cd.getId());
+        if (info != null) {
+          changeInfos.add(info);
+          if (isCacheable) {
+            cache.put(cd.getId(), info);
+          }
+          continue;
+        }
         try {
           ensureLoaded(Collections.singleton(cd));
+          shareLabelTypes(cd);
           info = format(cd, Optional.empty(), false, pluginInfosByChange.get(cd.getId()));
           changeInfos.add(info);
           if (isCacheable) {
@@ -523,6 +616,99 @@ public class ChangeJson {
     }
   }
 
+  /**
+   * Formats the given changes in parallel on the {@link FanOutExecutor}, if {@code
+   * change.formatParallelism} is greater than 1 and there are enough changes.
+   *
+   * <p>Changes are not formatted in parallel if change actions are requested, since UI actions of
+   * plugins may depend on the request thread, or if the changes should be checked, since this may
+   * fix them.
+   *
+   * @return the formatted changes by ID, changes that failed to format are omitted so that the
+   *     caller can format them sequentially and handle the error
+   */
+  private Map<Change.Id, ChangeInfo> formatInParallel(
+      Collection<ChangeData> changes,
+      ImmutableListMultimap<Change.Id, PluginDefinedInfo> pluginInfosByChange) {
+    Map<Change.Id, ChangeData> distinct = new LinkedHashMap<>();
+    changes.forEach(cd -> distinct.putIfAbsent(cd.getId(), cd));
+    int chunks = Math.min(formatParallelism, distinct.size() / MIN_CHANGES_PER_CHUNK);
+    if (chunks <= 1 || has(CHECK) || has(CHANGE_ACTIONS) || has(CURRENT_ACTIONS)) {
+      return new HashMap<>();
+    }
+
+    CurrentUser user = userProvider.get();
+    List<ChangeData> all = new ArrayList<>(distinct.values());
+    List<Callable<Map<Change.Id, ChangeInfo>>> tasks = new ArrayList<>(chunks);
+    for (List<ChangeData> chunk : Lists.partition(all, (all.size() + chunks - 1) / chunks)) {
+      // The deadlines of the request and its cancellation apply to the formatting threads too.
+      tasks.add(RequestStateContext.copy(() -> formatChunk(user, chunk, pluginInfosByChange)));
+    }
+
+    Map<Change.Id, ChangeInfo> formatted = Maps.newHashMapWithExpectedSize(all.size());
+    try {
+      for (Future<Map<Change.Id, ChangeInfo>> f : executor.invokeAll(tasks)) {
+        formatted.putAll(f.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StorageException("Interrupted while formatting changes", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new StorageException(e.getCause());
+    }
+    return formatted;
+  }
+
+  private Map<Change.Id, ChangeInfo> formatChunk(
+      CurrentUser user,
+      List<ChangeData> chunk,
+      ImmutableListMultimap<Change.Id, PluginDefinedInfo> pluginInfosByChange) {
+    Map<Change.Id, ChangeInfo> formatted = Maps.newHashMapWithExpectedSize(chunk.size());
+    try (ManualRequestContext ctx = new ManualRequestContext(user, threadLocalRequestContext)) {
+      for (ChangeData cd : chunk) {
+        RequestStateContext.abortIfCancelled();
+        try {
+          ensureLoaded(Collections.singleton(cd));
+          shareLabelTypes(cd);
+          formatted.put(
+              cd.getId(),
+              format(cd, Optional.empty(), false, pluginInfosByChange.get(cd.getId())));
+        } catch (RuntimeException e) {
+          if (RequestCancelledException.getFromCausalChain(e).isPresent()) {
+            throw e;
+          }
+          // The change is formatted again by the caller, which handles the error.
+        }
+      }
+    }
+    return formatted;
+  }
+
+  /**
+   * Lets the given change use the label types of other changes of the same destination branch
+   * that were already formatted, so that they are computed only once per branch.
+   */
+  private void shareLabelTypes(ChangeData cd) {
+    try {
+      BranchNameKey branch = cd.change().getDest();
+      LabelTypes labelTypes = labelTypesByBranch.get(branch);
+      if (labelTypes != null) {
+        cd.setLabelTypes(labelTypes);
+        return;
+      }
+      // The label types are computed outside of the map, since this loads the project config and
+      // must not block the formatting of changes of other branches. If several threads compute the
+      // label types of the same branch concurrently, the first result is shared.
+      labelTypes = labelTypesByBranch.putIfAbsent(branch, cd.getLabelTypes());
+      if (labelTypes != null) {
+        cd.setLabelTypes(labelTypes);
+      }
+    } catch (RuntimeException e) {
+      // Formatting the change fails in the same way, errors are handled there.
+    }
+  }
+
   private ChangeInfo checkOnly(ChangeData cd) {
     ChangeNotes notes;
     try {
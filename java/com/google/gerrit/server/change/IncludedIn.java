@@ -28,6 +28,11 @@ import com.google.gerrit.extensions.config.ExternalIncludedIn;
 import com.google.gerrit.extensions.restapi.BadRequestException;
 import com.google.gerrit.extensions.restapi.ResourceConflictException;
 import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackend.RefFilterOptions;
@@ -50,15 +55,28 @@ public class IncludedIn {
   private final GitRepositoryManager repoManager;
   private final PermissionBackend permissionBackend;
   private final PluginSetContext<ExternalIncludedIn> externalIncludedIn;
+  private final Timer1<Boolean> latency;
 
   @Inject
   IncludedIn(
       GitRepositoryManager repoManager,
       PermissionBackend permissionBackend,
-      PluginSetContext<ExternalIncludedIn> externalIncludedIn) {
+      PluginSetContext<ExternalIncludedIn> externalIncludedIn,
+      MetricMaker metricMaker) {
     this.repoManager = repoManager;
     this.permissionBackend = permissionBackend;
     this.externalIncludedIn = externalIncludedIn;
+    this.latency =
+        metricMaker.newTimer(
+            "change/included_in/latency",
+            new Description("Latency of resolving the branches and tags that include a commit")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofBoolean("bitmap_index", (metadataBuilder, bitmapIndex) -> {})
+                .description(
+                    "Whether the bitmap index of the repository was used, rather than walking the"
+                        + " history.")
+                .build());
   }
 
   public IncludedInInfo apply(Project.NameKey project, String revisionId)
@@ -75,7 +93,11 @@ public class IncludedIn {
         throw new ResourceConflictException(err.getMessage());
       }
 
-      IncludedInResolver.Result d = IncludedInResolver.resolve(r, rw, rev);
+      IncludedInResolver.Result d;
+      try (Timer1.Context<Boolean> ignored =
+          latency.start(IncludedInResolver.hasBitmapIndex(rw))) {
+        d = IncludedInResolver.resolve(r, rw, rev);
+      }
 
       // Filter branches and tags according to their visbility by the user
       ImmutableSortedSet<String> filteredBranches =
@@ -28,12 +28,14 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ReachabilityChecker;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -55,6 +57,14 @@ public class IncludedInResolver {
     return rw.newFlag("CONTAINS_TARGET");
   }
 
+  /**
+   * Returns whether the reachability of commits can be checked with the bitmap index of the
+   * repository, rather than by walking the history.
+   */
+  public static boolean hasBitmapIndex(RevWalk rw) throws IOException {
+    return rw.getObjectReader().getBitmapIndex() != null;
+  }
+
   private final Repository repo;
   private final RevWalk rw;
   private final RevCommit target;
@@ -79,7 +89,10 @@ public class IncludedInResolver {
     allTagsAndBranches.addAll(tags);
     allTagsAndBranches.addAll(branches);
     parseCommits(allTagsAndBranches);
-    Set<String> allMatchingTagsAndBranches = includedIn(tipsByCommitTime, 0);
+    Set<String> allMatchingTagsAndBranches =
+        hasBitmapIndex(rw)
+            ? includedInUsingBitmaps(tipsByCommitTime)
+            : includedIn(tipsByCommitTime, 0);
 
     return new AutoValue_IncludedInResolver_Result(
         getMatchingRefNames(allMatchingTagsAndBranches, branches),
@@ -111,6 +124,28 @@ public class IncludedInResolver {
     return result;
   }
 
+  /**
+   * Resolves which tip refs include the target commit, using the bitmap index.
+   *
+   * <p>The history of a tip is only walked until commits that have a bitmap, which contains all
+   * commits that are reachable from them. This is much faster than walking the history of large
+   * repositories down to the target commit.
+   */
+  private Set<String> includedInUsingBitmaps(Collection<RevCommit> tips) throws IOException {
+    Set<String> result = new HashSet<>();
+    // The reachability checker resets the walk, hence it gets a walk of its own.
+    try (RevWalk walk = new RevWalk(rw.getObjectReader())) {
+      ReachabilityChecker checker = walk.getObjectReader().createReachabilityChecker(walk);
+      ImmutableList<RevCommit> targets = ImmutableList.of(walk.parseCommit(target));
+      for (RevCommit tip : tips) {
+        if (!checker.areAllReachable(targets, Stream.of(walk.parseCommit(tip))).isPresent()) {
+          result.addAll(commitToRef.get(tip));
+        }
+      }
+    }
+    return result;
+  }
+
   /**
    * Returns the short names of refs which are as well in the matchingRefs list as well as in the
    * allRef list.
@@ -16,7 +16,9 @@ package com.google.gerrit.server.change;
 
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.extensions.client.SubmitType;
+import java.util.Set;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 
@@ -34,6 +36,19 @@ public interface MergeabilityCache {
       throw new UnsupportedOperationException("Mergeability checking disabled");
     }
 
+    @Override
+    public boolean get(
+        ObjectId commit,
+        Ref intoRef,
+        SubmitType submitType,
+        String mergeStrategy,
+        BranchNameKey dest,
+        Repository repo,
+        ObjectReader reader,
+        Set<ObjectId> alreadyAccepted) {
+      throw new UnsupportedOperationException("Mergeability checking disabled");
+    }
+
     @Override
     public Boolean getIfPresent(
         ObjectId commit, Ref intoRef, SubmitType submitType, String mergeStrategy) {
@@ -49,5 +64,27 @@ public interface MergeabilityCache {
       BranchNameKey dest,
       Repository repo);
 
+  /**
+   * Same as {@link #get(ObjectId, Ref, SubmitType, String, BranchNameKey, Repository)}, but reads
+   * commits through the given {@code reader} and uses the given already accepted commits instead
+   * of reading all branches and tags of {@code repo}.
+   *
+   * <p>Meant for computing the mergeability of many commits of the same repository, see {@link
+   * BatchMergeabilityComputer}.
+   *
+   * @param reader reader of {@code repo}. Not closed by this method.
+   * @param alreadyAccepted tips of all branches and tags of {@code repo}, as returned by {@link
+   *     com.google.gerrit.server.submit.SubmitDryRun#getAlreadyAccepted(Repository)}.
+   */
+  boolean get(
+      ObjectId commit,
+      Ref intoRef,
+      SubmitType submitType,
+      String mergeStrategy,
+      BranchNameKey dest,
+      Repository repo,
+      ObjectReader reader,
+      Set<ObjectId> alreadyAccepted);
+
   Boolean getIfPresent(ObjectId commit, Ref intoRef, SubmitType submitType, String mergeStrategy);
 }
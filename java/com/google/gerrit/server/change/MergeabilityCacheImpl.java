@@ -34,16 +34,21 @@ import com.google.gerrit.server.cache.serialize.CacheSerializer;
 import com.google.gerrit.server.cache.serialize.ObjectIdConverter;
 import com.google.gerrit.server.git.CodeReviewCommit;
 import com.google.gerrit.server.git.CodeReviewCommit.CodeReviewRevWalk;
+import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.submit.SubmitDryRun;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -195,21 +200,38 @@ public class MergeabilityCacheImpl implements MergeabilityCache {
       Repository repo) {
     ObjectId into = intoRef != null ? intoRef.getObjectId() : ObjectId.zeroId();
     EntryKey key = new EntryKey(commit, into, submitType, mergeStrategy);
+    return get(
+        key,
+        () -> {
+          try (CodeReviewRevWalk rw = CodeReviewCommit.newRevWalk(repo)) {
+            return compute(key, dest, repo, rw, SubmitDryRun.getAlreadyAccepted(repo));
+          }
+        });
+  }
+
+  @Override
+  public boolean get(
+      ObjectId commit,
+      Ref intoRef,
+      SubmitType submitType,
+      String mergeStrategy,
+      BranchNameKey dest,
+      Repository repo,
+      ObjectReader reader,
+      Set<ObjectId> alreadyAccepted) {
+    EntryKey key = new EntryKey(commit, toId(intoRef), submitType, mergeStrategy);
+    return get(
+        key,
+        () -> {
+          try (CodeReviewRevWalk rw = CodeReviewCommit.newRevWalk(reader)) {
+            return compute(key, dest, repo, rw, alreadyAccepted);
+          }
+        });
+  }
+
+  private boolean get(EntryKey key, Callable<Boolean> loader) {
     try {
-      return cache.get(
-          key,
-          () -> {
-            if (key.into.equals(ObjectId.zeroId())) {
-              return true; // Assume yes on new branch.
-            }
-            try (CodeReviewRevWalk rw = CodeReviewCommit.newRevWalk(repo)) {
-              Set<RevCommit> accepted = SubmitDryRun.getAlreadyAccepted(repo, rw);
-              accepted.add(rw.parseCommit(key.into));
-              accepted.addAll(Arrays.asList(rw.parseCommit(key.commit).getParents()));
-              return submitDryRun.run(
-                  null, key.submitType, repo, rw, dest, key.into, key.commit, accepted);
-            }
-          });
+      return cache.get(key, loader);
     } catch (ExecutionException | UncheckedExecutionException e) {
       logger.atSevere().withCause(e.getCause()).log(
           "Error checking mergeability of %s into %s (%s)",
@@ -218,6 +240,23 @@ public class MergeabilityCacheImpl implements MergeabilityCache {
     }
   }
 
+  private boolean compute(
+      EntryKey key,
+      BranchNameKey dest,
+      Repository repo,
+      CodeReviewRevWalk rw,
+      Set<ObjectId> alreadyAccepted)
+      throws NoSuchProjectException, IOException {
+    if (key.into.equals(ObjectId.zeroId())) {
+      return true; // Assume yes on new branch.
+    }
+    Set<RevCommit> accepted = new HashSet<>();
+    SubmitDryRun.addCommits(alreadyAccepted, rw, accepted);
+    accepted.add(rw.parseCommit(key.into));
+    accepted.addAll(Arrays.asList(rw.parseCommit(key.commit).getParents()));
+    return submitDryRun.run(null, key.submitType, repo, rw, dest, key.into, key.commit, accepted);
+  }
+
   @Override
   public Boolean getIfPresent(
       ObjectId commit, Ref intoRef, SubmitType submitType, String mergeStrategy) {
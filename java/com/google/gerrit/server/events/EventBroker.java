@@ -24,8 +24,20 @@ import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.config.GerritInstanceId;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.data.ChangeAttribute;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.logging.Metadata;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.permissions.ChangePermission;
 import com.google.gerrit.server.permissions.PermissionBackend;
@@ -40,13 +52,37 @@ import com.google.gerrit.server.project.ProjectState;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
 
-/** Distributes Events to listeners if they are allowed to see them */
+/**
+ * Distributes Events to listeners if they are allowed to see them
+ *
+ * <p>The visibility of an event is checked once per distinct user of the {@link
+ * UserScopedEventListener}s, e.g. if a user has many {@code stream-events} sessions the visibility
+ * is checked only once for all of them. If {@code event.asyncFanOut} is enabled, the user scoped
+ * listeners are invoked on a background thread, so that the visibility checks don't add to the
+ * latency of the operation that posted the event. The events are still delivered in the order in
+ * which they were posted.
+ */
 @Singleton
 public class EventBroker implements EventDispatcher {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+  /** Checks whether an event is visible to a user. */
+  @FunctionalInterface
+  protected interface VisibilityCheck {
+    boolean isVisibleTo(CurrentUser user) throws PermissionBackendException;
+  }
+
   public static class Module extends LifecycleModule {
     @Override
     protected void configure() {
@@ -70,7 +106,18 @@ public class EventBroker implements EventDispatcher {
 
   protected final String gerritInstanceId;
 
-  @Inject
+  private final ExecutorService fanOutExecutor;
+  private final AtomicInteger queuedEvents = new AtomicInteger();
+  private final Counter0 visibilityChecks;
+  private final Counter1<String> deliveredEvents;
+  private final Timer0 fanOutDelay;
+
+  /**
+   * Creates an event broker that delivers the events synchronously and doesn't report metrics.
+   *
+   * <p>Kept for subclasses in plugins, {@code event.asyncFanOut} has no effect on brokers that are
+   * created by this constructor.
+   */
   public EventBroker(
       PluginSetContext<UserScopedEventListener> listeners,
       PluginSetContext<EventListener> unrestrictedListeners,
@@ -78,12 +125,70 @@ public class EventBroker implements EventDispatcher {
       ProjectCache projectCache,
       ChangeNotes.Factory notesFactory,
       @Nullable @GerritInstanceId String gerritInstanceId) {
+    this(
+        listeners,
+        unrestrictedListeners,
+        permissionBackend,
+        projectCache,
+        notesFactory,
+        gerritInstanceId,
+        new Config(),
+        null,
+        new DisabledMetricMaker());
+  }
+
+  @Inject
+  public EventBroker(
+      PluginSetContext<UserScopedEventListener> listeners,
+      PluginSetContext<EventListener> unrestrictedListeners,
+      PermissionBackend permissionBackend,
+      ProjectCache projectCache,
+      ChangeNotes.Factory notesFactory,
+      @Nullable @GerritInstanceId String gerritInstanceId,
+      @GerritServerConfig Config cfg,
+      @Nullable WorkQueue workQueue,
+      MetricMaker metricMaker) {
     this.listeners = listeners;
     this.unrestrictedListeners = unrestrictedListeners;
     this.permissionBackend = permissionBackend;
     this.projectCache = projectCache;
     this.notesFactory = notesFactory;
     this.gerritInstanceId = gerritInstanceId;
+    // A single thread, so that the listeners get the events in the order in which they were posted.
+    this.fanOutExecutor =
+        cfg.getBoolean("event", "asyncFanOut", false)
+            ? workQueue.createQueue(1, "EventFanOut")
+            : null;
+
+    metricMaker.newCallbackMetric(
+        "events/fan_out/queued_events",
+        Integer.class,
+        new Description("Events waiting to be delivered to user scoped event listeners")
+            .setGauge()
+            .setUnit("events"),
+        queuedEvents::get);
+    this.visibilityChecks =
+        metricMaker.newCounter(
+            "events/fan_out/visibility_checks",
+            new Description("Visibility checks for delivering events to user scoped listeners")
+                .setRate()
+                .setUnit("checks"));
+    this.deliveredEvents =
+        metricMaker.newCounter(
+            "events/fan_out/delivered_events",
+            new Description("Events delivered to user scoped event listeners")
+                .setRate()
+                .setUnit("events"),
+            Field.ofString("plugin_name", Metadata.Builder::pluginName)
+                .description("The name of the plugin that registered the listener.")
+                .build());
+    this.fanOutDelay =
+        metricMaker.newTimer(
+            "events/fan_out/delay",
+            new Description(
+                    "Time between posting an event and delivering it to user scoped listeners")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
   }
 
   @Override
@@ -113,23 +218,17 @@ public class EventBroker implements EventDispatcher {
 
   protected void fireEvent(Change change, ChangeEvent event) throws PermissionBackendException {
     setInstanceIdWhenEmpty(event);
-    for (PluginSetEntryContext<UserScopedEventListener> c : listeners) {
-      CurrentUser user = c.call(UserScopedEventListener::getUser);
-      if (isVisibleTo(change, user)) {
-        c.run(l -> l.onEvent(event));
-      }
-    }
+    fanOut(event, user -> isVisibleTo(change, user));
     fireEventForUnrestrictedListeners(event);
   }
 
   protected void fireEvent(Project.NameKey project, ProjectEvent event) {
     setInstanceIdWhenEmpty(event);
-    for (PluginSetEntryContext<UserScopedEventListener> c : listeners) {
-
-      CurrentUser user = c.call(UserScopedEventListener::getUser);
-      if (isVisibleTo(project, user)) {
-        c.run(l -> l.onEvent(event));
-      }
+    try {
+      fanOut(event, user -> isVisibleTo(project, user));
+    } catch (PermissionBackendException e) {
+      // Not thrown, project visibility checks treat permission backend failures as not visible.
+      logger.atWarning().withCause(e).log("Failed to deliver event %s", event.getType());
     }
     fireEventForUnrestrictedListeners(event);
   }
@@ -137,24 +236,73 @@ public class EventBroker implements EventDispatcher {
   protected void fireEvent(BranchNameKey branchName, RefEvent event)
       throws PermissionBackendException {
     setInstanceIdWhenEmpty(event);
-    for (PluginSetEntryContext<UserScopedEventListener> c : listeners) {
-      CurrentUser user = c.call(UserScopedEventListener::getUser);
-      if (isVisibleTo(branchName, user)) {
-        c.run(l -> l.onEvent(event));
-      }
-    }
+    fanOut(event, user -> isVisibleTo(branchName, user));
     fireEventForUnrestrictedListeners(event);
   }
 
   protected void fireEvent(Event event) throws PermissionBackendException {
     setInstanceIdWhenEmpty(event);
+    fanOut(event, user -> isVisibleTo(event, user));
+    fireEventForUnrestrictedListeners(event);
+  }
+
+  /**
+   * Delivers the event to the user scoped listeners that are allowed to see it.
+   *
+   * <p>If the fan-out is asynchronous, the event is queued and permission backend failures are
+   * logged instead of being thrown.
+   */
+  protected void fanOut(Event event, VisibilityCheck visibilityCheck)
+      throws PermissionBackendException {
+    if (fanOutExecutor == null) {
+      deliver(event, visibilityCheck);
+      return;
+    }
+
+    long posted = System.nanoTime();
+    queuedEvents.incrementAndGet();
+    try {
+      fanOutExecutor.execute(
+          () -> {
+            queuedEvents.decrementAndGet();
+            fanOutDelay.record(System.nanoTime() - posted, TimeUnit.NANOSECONDS);
+            try {
+              deliver(event, visibilityCheck);
+            } catch (PermissionBackendException | RuntimeException e) {
+              logger.atWarning().withCause(e).log(
+                  "Failed to deliver event %s to user scoped listeners", event.getType());
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The server is shutting down.
+      queuedEvents.decrementAndGet();
+      logger.atFine().log("Dropped event %s, server is shutting down", event.getType());
+    }
+  }
+
+  private void deliver(Event event, VisibilityCheck visibilityCheck)
+      throws PermissionBackendException {
+    // Listeners whose users have the same identity and group memberships see the same events.
+    Map<List<Object>, Boolean> visibleByUser = new HashMap<>();
     for (PluginSetEntryContext<UserScopedEventListener> c : listeners) {
       CurrentUser user = c.call(UserScopedEventListener::getUser);
-      if (isVisibleTo(event, user)) {
+      List<Object> fingerprint = fingerprint(user);
+      Boolean visible = visibleByUser.get(fingerprint);
+      if (visible == null) {
+        visibilityChecks.increment();
+        visible = visibilityCheck.isVisibleTo(user);
+        visibleByUser.put(fingerprint, visible);
+      }
+      if (visible) {
         c.run(l -> l.onEvent(event));
+        deliveredEvents.increment(c.getPluginName());
       }
     }
-    fireEventForUnrestrictedListeners(event);
+  }
+
+  private static List<Object> fingerprint(CurrentUser user) {
+    return Arrays.asList(
+        user.getClass(), user.getCacheKey(), user.getEffectiveGroups().getKnownGroups());
   }
 
   protected void setInstanceIdWhenEmpty(Event event) {
@@ -163,6 +311,31 @@ public class EventBroker implements EventDispatcher {
     }
   }
 
+  /**
+   * Checks whether an event that was read back from the {@link EventLog} is visible to the user.
+   *
+   * <p>Unlike for posted events, the change of a change event is not known and is looked up by the
+   * number that was recorded in the event.
+   */
+  public boolean isVisibleToUser(Event event, CurrentUser user)
+      throws PermissionBackendException {
+    if (event instanceof ChangeEvent) {
+      ChangeEvent changeEvent = (ChangeEvent) event;
+      ChangeAttribute attribute = changeEvent.change != null ? changeEvent.change.get() : null;
+      if (attribute != null && changeEvent.project != null) {
+        Change.Id cid = Change.id(attribute.number);
+        try {
+          Change change = notesFactory.createChecked(changeEvent.project, cid).getChange();
+          return isVisibleTo(change, user);
+        } catch (NoSuchChangeException e) {
+          logger.atFine().log(
+              "Change %s cannot be found, falling back on ref visibility check", cid.get());
+        }
+      }
+    }
+    return isVisibleTo(event, user);
+  }
+
   protected boolean isVisibleTo(Project.NameKey project, CurrentUser user) {
     try {
       Optional<ProjectState> state = projectCache.get(project);
@@ -0,0 +1,447 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.events;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Durable log of the events, which allows clients to replay the events they missed.
+ *
+ * <p>If {@code eventLog.enabled} is set, every event is serialized as JSON and appended to the log.
+ * The log is stored in segment files in {@code $site_path/data/events}. Each segment is named after
+ * the offset of its first event. When a segment exceeds {@code eventLog.segmentSize} a new
+ * segment is started. Old segments are deleted when the log exceeds {@code eventLog.maxSize} or
+ * when they are older than {@code eventLog.maxAge}. Expired segments are also deleted periodically,
+ * so that the age limit holds when no events are logged.
+ *
+ * <p>Each record in a segment consists of the length of the payload, the offset of the event, the
+ * time at which the event was logged and the JSON payload. The offsets are consecutive and are
+ * kept across restarts. Segments are memory-mapped for reading.
+ */
+@Singleton
+public class EventLog implements EventListener, LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final String SECTION = "eventLog";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES;
+
+  public static class Module extends LifecycleModule {
+    @Override
+    protected void configure() {
+      DynamicSet.bind(binder(), EventListener.class).to(EventLog.class);
+      listener().to(EventLog.class);
+      listener().to(Expiry.class);
+    }
+  }
+
+  /** Deletes expired segments periodically, also when no events are logged. */
+  static class Expiry implements LifecycleListener {
+    private final WorkQueue queue;
+    private final EventLog log;
+
+    @Inject
+    Expiry(WorkQueue queue, EventLog log) {
+      this.queue = queue;
+      this.log = log;
+    }
+
+    @Override
+    public void start() {
+      if (log.isEnabled()) {
+        long interval =
+            Math.max(MINUTES.toMillis(1), Math.min(log.maxAgeMillis, HOURS.toMillis(1)));
+        queue
+            .getDefaultQueue()
+            .scheduleAtFixedRate(log::deleteExpiredSegments, interval, interval, MILLISECONDS);
+      }
+    }
+
+    @Override
+    public void stop() {
+      // handled by WorkQueue.stop() already
+    }
+  }
+
+  /** Event in the log. */
+  public static class Record {
+    /** Offset of the event in the log. */
+    public final long offset;
+
+    /** Time at which the event was logged, in milliseconds since the epoch. */
+    public final long loggedOn;
+
+    /** The event, serialized as JSON. */
+    public final String json;
+
+    @VisibleForTesting
+    Record(long offset, long loggedOn, String json) {
+      this.offset = offset;
+      this.loggedOn = loggedOn;
+      this.json = json;
+    }
+  }
+
+  private final Gson gson;
+  private final Provider<EventBroker> eventBroker;
+  private final boolean enabled;
+  private final Path dir;
+  private final long segmentSize;
+  private final long maxSize;
+  private final long maxAgeMillis;
+
+  /** Segments by the offset of their first record, guarded by {@code this}. */
+  private final NavigableMap<Long, Path> segments = new TreeMap<>();
+
+  private FileChannel current;
+  private long currentSize;
+  private long nextOffset;
+
+  @Inject
+  EventLog(
+      @EventGson Gson gson,
+      Provider<EventBroker> eventBroker,
+      @GerritServerConfig Config cfg,
+      SitePaths site) {
+    this(
+        gson,
+        eventBroker,
+        cfg.getBoolean(SECTION, "enabled", false),
+        site.data_dir.resolve("events"),
+        cfg.getLong(SECTION, "segmentSize", 64 * 1024 * 1024),
+        cfg.getLong(SECTION, "maxSize", 1024 * 1024 * 1024),
+        ConfigUtil.getTimeUnit(cfg, SECTION, null, "maxAge", DAYS.toMillis(7), MILLISECONDS));
+  }
+
+  @VisibleForTesting
+  EventLog(
+      Gson gson,
+      Provider<EventBroker> eventBroker,
+      boolean enabled,
+      Path dir,
+      long segmentSize,
+      long maxSize,
+      long maxAgeMillis) {
+    this.gson = gson;
+    this.eventBroker = eventBroker;
+    this.enabled = enabled;
+    this.dir = dir;
+    this.segmentSize = Math.max(HEADER_SIZE, segmentSize);
+    this.maxSize = maxSize;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns the offset that the next logged event will get. */
+  public synchronized long nextOffset() {
+    return nextOffset;
+  }
+
+  @Override
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      open();
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Cannot open event log in %s, events are not logged", dir);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (current != null) {
+      try {
+        current.force(false);
+        current.close();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Cannot close event log");
+      }
+      current = null;
+    }
+  }
+
+  @Override
+  public void onEvent(Event event) {
+    if (!enabled) {
+      return;
+    }
+    byte[] payload;
+    try {
+      payload = gson.toJson(event).getBytes(UTF_8);
+    } catch (RuntimeException e) {
+      logger.atWarning().withCause(e).log("Cannot serialize event %s", event.getType());
+      return;
+    }
+    append(payload, TimeUtil.nowMs());
+  }
+
+  @VisibleForTesting
+  synchronized void open() throws IOException {
+    Files.createDirectories(dir);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          segments.put(
+              Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+        } catch (NumberFormatException e) {
+          logger.atWarning().log("Ignoring unexpected file %s in event log", file);
+        }
+      }
+    }
+
+    if (segments.isEmpty()) {
+      startSegment(0);
+      return;
+    }
+
+    // Continue the last segment, dropping a partially written record at its end.
+    Map.Entry<Long, Path> last = segments.lastEntry();
+    nextOffset = last.getKey();
+    current = FileChannel.open(last.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long size = current.size();
+    long pos = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (pos + HEADER_SIZE <= size) {
+      header.clear();
+      current.read(header, pos);
+      header.flip();
+      int length = header.getInt();
+      if (length < 0 || pos + HEADER_SIZE + length > size) {
+        break;
+      }
+      nextOffset = header.getLong() + 1;
+      pos += HEADER_SIZE + length;
+    }
+    if (pos < size) {
+      logger.atWarning().log("Truncating partially written record in event log %s", last);
+      current.truncate(pos);
+    }
+    current.position(pos);
+    currentSize = pos;
+  }
+
+  private synchronized void append(byte[] payload, long now) {
+    if (current == null) {
+      return;
+    }
+    try {
+      if (currentSize > 0 && currentSize + HEADER_SIZE + payload.length > segmentSize) {
+        current.force(false);
+        current.close();
+        current = null;
+        startSegment(nextOffset);
+        deleteExpiredSegments(now);
+      }
+      ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+      buf.putInt(payload.length).putLong(nextOffset).putLong(now).put(payload).flip();
+      while (buf.hasRemaining()) {
+        current.write(buf);
+      }
+      currentSize += HEADER_SIZE + payload.length;
+      nextOffset++;
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log("Cannot append event to event log");
+    }
+  }
+
+  private void startSegment(long firstOffset) throws IOException {
+    Path file = dir.resolve(String.format("%020d%s", firstOffset, SEGMENT_SUFFIX));
+    current =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    currentSize = 0;
+    nextOffset = firstOffset;
+    segments.put(firstOffset, file);
+  }
+
+  @VisibleForTesting
+  synchronized void deleteExpiredSegments() {
+    if (current == null) {
+      return;
+    }
+    try {
+      deleteExpiredSegments(TimeUtil.nowMs());
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot delete expired event log segments");
+    }
+  }
+
+  private void deleteExpiredSegments(long now) throws IOException {
+    long totalSize = 0;
+    for (Path file : segments.values()) {
+      totalSize += Files.size(file);
+    }
+    // The current segment is never deleted.
+    while (segments.size() > 1) {
+      Path oldest = segments.firstEntry().getValue();
+      long size = Files.size(oldest);
+      if (totalSize <= maxSize
+          && Files.getLastModifiedTime(oldest).toMillis() >= now - maxAgeMillis) {
+        break;
+      }
+      logger.atFine().log("Deleting event log segment %s", oldest);
+      Files.deleteIfExists(oldest);
+      segments.pollFirstEntry();
+      totalSize -= size;
+    }
+  }
+
+  /**
+   * Reads events from the log.
+   *
+   * @param fromOffset offset of the first event that should be read
+   * @param fromTime only events that were logged at or after this time are read, in milliseconds
+   *     since the epoch
+   * @param limit maximum number of events to read
+   * @return the events in the order in which they were logged
+   */
+  public ImmutableList<Record> read(long fromOffset, long fromTime, int limit) throws IOException {
+    List<Path> files;
+    long endOffset;
+    synchronized (this) {
+      Long first = segments.floorKey(fromOffset);
+      files = new ArrayList<>((first != null ? segments.tailMap(first, true) : segments).values());
+      endOffset = nextOffset;
+    }
+
+    ImmutableList.Builder<Record> result = ImmutableList.builder();
+    int count = 0;
+    for (Path file : files) {
+      if (count >= limit) {
+        break;
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        if (Files.getLastModifiedTime(file).toMillis() < fromTime) {
+          // All events in the segment were logged before the requested time.
+          continue;
+        }
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        while (count < limit && buf.remaining() >= HEADER_SIZE) {
+          int length = buf.getInt();
+          long offset = buf.getLong();
+          long loggedOn = buf.getLong();
+          if (length < 0 || length > buf.remaining() || offset >= endOffset) {
+            // Partially written or appended after the read was started.
+            break;
+          }
+          if (offset < fromOffset || loggedOn < fromTime) {
+            buf.position(buf.position() + length);
+            continue;
+          }
+          byte[] payload = new byte[length];
+          buf.get(payload);
+          result.add(new Record(offset, loggedOn, new String(payload, UTF_8)));
+          count++;
+        }
+      } catch (NoSuchFileException e) {
+        // The segment was deleted by retention while reading.
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Replays the events from the log that are visible to the given user.
+   *
+   * @param user the user for which the events are replayed
+   * @param fromOffset offset of the first event that should be replayed
+   * @param fromTime only events that were logged at or after this time are replayed, in
+   *     milliseconds since the epoch
+   * @param limit maximum number of events to return
+   * @param filter filter on the events, e.g. to replay only events of certain types
+   * @return the visible events in the order in which they were logged
+   */
+  public ImmutableList<Record> replay(
+      CurrentUser user, long fromOffset, long fromTime, int limit, Predicate<Event> filter)
+      throws IOException, PermissionBackendException {
+    ImmutableList.Builder<Record> result = ImmutableList.builder();
+    int count = 0;
+    long offset = fromOffset;
+    while (count < limit) {
+      ImmutableList<Record> records = read(offset, fromTime, limit);
+      if (records.isEmpty()) {
+        break;
+      }
+      for (Record record : records) {
+        Event event;
+        try {
+          event = gson.fromJson(record.json, Event.class);
+        } catch (RuntimeException e) {
+          logger.atWarning().withCause(e).log(
+              "Skipping event %d in event log that cannot be parsed", record.offset);
+          continue;
+        }
+        if (event != null
+            && filter.test(event)
+            && eventBroker.get().isVisibleToUser(event, user)) {
+          result.add(record);
+          if (++count >= limit) {
+            break;
+          }
+        }
+      }
+      offset = records.get(records.size() - 1).offset + 1;
+    }
+    return result.build();
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the order in which the tasks of a fair-share {@link WorkQueue} queue are executed.
+ *
+ * <p>Implements start-time fair queuing: when a task is queued it gets a virtual start tag, tasks
+ * are executed in the order of their start tags. The start tag of a task is the later of the
+ * current virtual time (the start tag of the task that was started last) and the virtual finish
+ * time of the previous task of the same tenant. The virtual finish time of a task is its start
+ * tag plus its cost divided by the weight of its priority, where the cost is the time it took to
+ * execute the previous tasks of the tenant.
+ *
+ * <p>This way a tenant that queues many or expensive tasks can't starve other tenants, and
+ * tenants with a higher weight get a larger share of the queue.
+ */
+class FairShareScheduler {
+  /** Cost that is assumed for the tasks of a tenant that didn't execute any task yet. */
+  @VisibleForTesting static final long INITIAL_COST_NANOS = 1_000_000;
+
+  /** Number of queued tasks after which tenants without backlog are forgotten. */
+  private static final int CLEANUP_INTERVAL = 1000;
+
+  private final EnumMap<WorkQueue.Priority, Integer> weights;
+  private final Map<String, Tenant> tenants = new HashMap<>();
+  private long virtualTime;
+  private int queuedSinceCleanup;
+
+  FairShareScheduler(EnumMap<WorkQueue.Priority, Integer> weights) {
+    this.weights = weights;
+  }
+
+  /** Returns the ticket for a task of the given tenant that is being queued. */
+  synchronized Ticket enqueue(String tenantName, WorkQueue.Priority priority) {
+    if (++queuedSinceCleanup >= CLEANUP_INTERVAL) {
+      // A tenant whose finish time is not ahead of the virtual time is scheduled in the same way
+      // as a new tenant. Forget such tenants to not accumulate all tenants that were ever seen.
+      tenants.values().removeIf(t -> t.finishTag <= virtualTime);
+      queuedSinceCleanup = 0;
+    }
+    Tenant tenant = tenants.computeIfAbsent(tenantName, k -> new Tenant());
+    long startTag = Math.max(virtualTime, tenant.finishTag);
+    tenant.finishTag = startTag + tenant.estimatedCostNanos / weight(priority);
+    return new Ticket(tenantName, priority, startTag, tenant.estimatedCostNanos);
+  }
+
+  /** Notifies the scheduler that the task of the given ticket was started. */
+  synchronized void started(Ticket ticket) {
+    virtualTime = Math.max(virtualTime, ticket.startTag);
+  }
+
+  /**
+   * Notifies the scheduler that the task of the given ticket finished, so that its actual cost is
+   * charged to the tenant.
+   */
+  synchronized void finished(Ticket ticket, long costNanos) {
+    Tenant tenant = tenants.get(ticket.tenant);
+    if (tenant == null) {
+      return;
+    }
+    // Correct the estimate that was charged when the task was queued.
+    tenant.finishTag += (costNanos - ticket.estimatedCostNanos) / weight(ticket.priority);
+    // Exponentially weighted moving average, so that the estimate follows recent tasks.
+    tenant.estimatedCostNanos = Math.max(1, (4 * tenant.estimatedCostNanos + costNanos) / 5);
+  }
+
+  private long weight(WorkQueue.Priority priority) {
+    return Math.max(1, weights.getOrDefault(priority, 1));
+  }
+
+  /** Scheduling information of a queued task. */
+  static class Ticket implements Comparable<Ticket> {
+    final String tenant;
+    final WorkQueue.Priority priority;
+    final long startTag;
+    final long estimatedCostNanos;
+
+    private Ticket(
+        String tenant, WorkQueue.Priority priority, long startTag, long estimatedCostNanos) {
+      this.tenant = tenant;
+      this.priority = priority;
+      this.startTag = startTag;
+      this.estimatedCostNanos = estimatedCostNanos;
+    }
+
+    @Override
+    public int compareTo(Ticket o) {
+      return Long.compare(startTag, o.startTag);
+    }
+  }
+
+  private static class Tenant {
+    long finishTag;
+    long estimatedCostNanos = INITIAL_COST_NANOS;
+  }
+}
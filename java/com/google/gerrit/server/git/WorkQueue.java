@@ -14,20 +14,25 @@
 
 package com.google.gerrit.server.git;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.stream.Collectors.toList;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.ScheduleConfig.Schedule;
 import com.google.gerrit.server.logging.LoggingContext;
 import com.google.gerrit.server.logging.LoggingContextAwareRunnable;
 import com.google.gerrit.server.util.IdGenerator;
+import com.google.gerrit.server.util.VirtualThreads;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.lang.Thread.UncaughtExceptionHandler;
@@ -35,7 +40,10 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -52,6 +60,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.eclipse.jgit.lib.Config;
 
 /** Delayed execution of tasks using a background thread pool. */
@@ -92,20 +101,56 @@ public class WorkQueue {
   private final IdGenerator idGenerator;
   private final MetricMaker metrics;
   private final CopyOnWriteArrayList<Executor> queues;
+  private final Optional<ThreadFactory> virtualThreadFactory;
+  private final ImmutableSet<String> fairShareQueues;
+  private final EnumMap<Priority, Integer> fairShareWeights;
 
   @Inject
   WorkQueue(IdGenerator idGenerator, @GerritServerConfig Config cfg, MetricMaker metrics) {
-    this(idGenerator, Math.max(cfg.getInt("execution", "defaultThreadPoolSize", 2), 2), metrics);
+    this(
+        idGenerator,
+        Math.max(cfg.getInt("execution", "defaultThreadPoolSize", 2), 2),
+        metrics,
+        VirtualThreads.threadFactory(cfg),
+        ImmutableSet.copyOf(cfg.getStringList("execution", null, "fairShareQueue")),
+        fairShareWeights(cfg));
   }
 
   /** Constructor to allow binding the WorkQueue more explicitly in a vhost setup. */
   public WorkQueue(IdGenerator idGenerator, int defaultThreadPoolSize, MetricMaker metrics) {
+    this(
+        idGenerator,
+        defaultThreadPoolSize,
+        metrics,
+        Optional.empty(),
+        ImmutableSet.of(),
+        new EnumMap<>(Priority.class));
+  }
+
+  private WorkQueue(
+      IdGenerator idGenerator,
+      int defaultThreadPoolSize,
+      MetricMaker metrics,
+      Optional<ThreadFactory> virtualThreadFactory,
+      ImmutableSet<String> fairShareQueues,
+      EnumMap<Priority, Integer> fairShareWeights) {
     this.idGenerator = idGenerator;
     this.metrics = metrics;
     this.queues = new CopyOnWriteArrayList<>();
+    this.virtualThreadFactory = virtualThreadFactory;
+    this.fairShareQueues = fairShareQueues;
+    this.fairShareWeights = fairShareWeights;
     this.defaultQueue = createQueue(defaultThreadPoolSize, "WorkQueue", true);
   }
 
+  private static EnumMap<Priority, Integer> fairShareWeights(Config cfg) {
+    EnumMap<Priority, Integer> weights = new EnumMap<>(Priority.class);
+    weights.put(Priority.INTERACTIVE, cfg.getInt("execution", "interactiveWeight", 4));
+    weights.put(Priority.BATCH, cfg.getInt("execution", "batchWeight", 2));
+    weights.put(Priority.BACKGROUND, cfg.getInt("execution", "backgroundWeight", 1));
+    return weights;
+  }
+
   /** Get the default work queue, for miscellaneous tasks. */
   public ScheduledExecutorService getDefaultQueue() {
     return defaultQueue;
@@ -147,6 +192,14 @@ public class WorkQueue {
    * <p>Creates a new executor queue, optionally with associated metrics. Metrics should not be
    * requested for queues created by plugins.
    *
+   * <p>If {@code execution.virtualThreads} is enabled, the tasks are executed on virtual threads
+   * and the pool size only limits the number of tasks that are executed concurrently. The thread
+   * priority has no effect in this case.
+   *
+   * <p>If the queue name is listed in {@code execution.fairShareQueue}, the tasks that are
+   * submitted for immediate execution are not executed in FIFO order, but shared fairly between
+   * the tenants of the tasks, see {@link FairShareRunnable}.
+   *
    * @param poolsize the size of the pool.
    * @param queueName the name of the queue.
    * @param threadPriority thread priority.
@@ -154,11 +207,17 @@ public class WorkQueue {
    */
   public ScheduledThreadPoolExecutor createQueue(
       int poolsize, String queueName, int threadPriority, boolean withMetrics) {
-    Executor executor = new Executor(poolsize, queueName);
+    Executor executor =
+        new Executor(
+            poolsize, queueName, virtualThreadFactory.orElseGet(Executors::defaultThreadFactory));
     if (withMetrics) {
       logger.atInfo().log("Adding metrics for '%s' queue", queueName);
       executor.buildMetrics(queueName);
     }
+    if (fairShareQueues.contains(queueName)) {
+      logger.atInfo().log("Enabling fair-share scheduling for '%s' queue", queueName);
+      executor.enableFairShare(queueName);
+    }
     executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
     executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(true);
     queues.add(executor);
@@ -219,6 +278,24 @@ public class WorkQueue {
     return result;
   }
 
+  /**
+   * Estimates how long a task that is submitted now to the given executor has to wait before it is
+   * started.
+   *
+   * <p>The estimate is based on the number of queued tasks and the average execution time of the
+   * recent tasks of the queue, assuming that all threads of the queue work off the queued tasks.
+   *
+   * @param executor executor that was created by a {@link WorkQueue}
+   * @return the estimated wait time in nanoseconds, {@link Optional#empty()} if the executor was
+   *     not created by a {@link WorkQueue} or if no task of the executor finished yet
+   */
+  public static Optional<Long> estimateWaitTime(ScheduledExecutorService executor) {
+    if (!(executor instanceof Executor)) {
+      return Optional.empty();
+    }
+    return ((Executor) executor).estimateWaitTime();
+  }
+
   public ScheduledThreadPoolExecutor getExecutor(String queueName) {
     for (Executor e : queues) {
       if (e.queueName.equals(queueName)) {
@@ -247,12 +324,16 @@ public class WorkQueue {
   private class Executor extends ScheduledThreadPoolExecutor {
     private final ConcurrentHashMap<Integer, Task<?>> all;
     private final String queueName;
+    @Nullable private volatile FairShareScheduler fairShare;
+    @Nullable private volatile Timer1<Priority> fairShareWaitTime;
+
+    /** Moving average of the execution time of non-periodic tasks, {@code 0} if unknown. */
+    private final AtomicLong averageRunTimeNanos = new AtomicLong();
 
-    Executor(int corePoolSize, final String queueName) {
+    Executor(int corePoolSize, final String queueName, ThreadFactory parent) {
       super(
           corePoolSize,
           new ThreadFactory() {
-            private final ThreadFactory parent = Executors.defaultThreadFactory();
             private final AtomicInteger tid = new AtomicInteger(1);
 
             @Override
@@ -387,6 +468,27 @@ public class WorkQueue {
               .setCumulative()
               .setUnit("tasks"),
           this::getCompletedTaskCount);
+      metrics.newCallbackMetric(
+          getMetricName(queueName, "estimated_wait_time"),
+          Long.class,
+          new Description("Estimated time that a newly submitted task waits before it is started")
+              .setGauge()
+              .setUnit(Description.Units.MILLISECONDS),
+          () -> NANOSECONDS.toMillis(estimateWaitTime().orElse(0L)));
+    }
+
+    private void enableFairShare(String queueName) {
+      fairShareWaitTime =
+          metrics.newTimer(
+              getMetricName(queueName, "fair_share_wait_time"),
+              new Description("Time that tasks waited in the queue before they were started")
+                  .setCumulative()
+                  .setUnit(Description.Units.MILLISECONDS),
+              com.google.gerrit.metrics.Field.ofEnum(
+                      Priority.class, "priority", (metadataBuilder, resolveAllUsers) -> {})
+                  .description("The priority of the task.")
+                  .build());
+      fairShare = new FairShareScheduler(fairShareWeights);
     }
 
     private String getMetricName(String queueName, String metricName) {
@@ -416,6 +518,9 @@ public class WorkQueue {
         }
 
         if (all.putIfAbsent(task.getTaskId(), task) == null) {
+          if (!r.isPeriodic() && r.getDelay(NANOSECONDS) <= 0) {
+            enqueue(task);
+          }
           return task;
         }
       }
@@ -431,6 +536,65 @@ public class WorkQueue {
       all.remove(task.getTaskId(), task);
     }
 
+    /**
+     * Gives the task a ticket of the fair-share scheduler, if the queue uses fair-share scheduling.
+     * Delayed and periodic tasks get their ticket when they are due.
+     */
+    void enqueue(Task<?> task) {
+      FairShareScheduler scheduler = fairShare;
+      if (scheduler != null) {
+        task.ticket = scheduler.enqueue(tenant(task.runnable), priority(task.runnable));
+        task.queuedAt = System.nanoTime();
+      }
+    }
+
+    void onStart(Task<?> task, @Nullable FairShareScheduler.Ticket ticket) {
+      if (fairShare != null) {
+        requeueDueTasks();
+      }
+      if (ticket != null) {
+        fairShare.started(ticket);
+        fairShareWaitTime.record(ticket.priority, System.nanoTime() - task.queuedAt, NANOSECONDS);
+      }
+    }
+
+    /**
+     * Queues delayed and periodic tasks that are due again, so that their position in the queue
+     * reflects the ticket that they got when they became due.
+     */
+    private void requeueDueTasks() {
+      BlockingQueue<Runnable> queue = getQueue();
+      for (Runnable r : queue) {
+        if (r instanceof Task && ((Task<?>) r).isDueWithoutTicket() && queue.remove(r)) {
+          queue.add(r);
+        }
+      }
+    }
+
+    void onFinish(Task<?> task, @Nullable FairShareScheduler.Ticket ticket, long elapsedNanos) {
+      if (ticket != null) {
+        fairShare.finished(ticket, elapsedNanos);
+      }
+      if (!task.isPeriodic()) {
+        averageRunTimeNanos.getAndUpdate(
+            avg -> avg == 0 ? elapsedNanos : (4 * avg + elapsedNanos) / 5);
+      }
+    }
+
+    Optional<Long> estimateWaitTime() {
+      long avg = averageRunTimeNanos.get();
+      if (avg == 0) {
+        return Optional.empty();
+      }
+      int threads = Math.max(1, getCorePoolSize());
+      int queued = getQueue().size();
+      if (getActiveCount() < threads && queued == 0) {
+        return Optional.of(0L);
+      }
+      // Little's law: with all threads busy the queue completes one task every avg / threads.
+      return Optional.of((queued + 1) * avg / threads);
+    }
+
     Task<?> getTask(int id) {
       return all.get(id);
     }
@@ -464,6 +628,54 @@ public class WorkQueue {
     void setCanceledWhileRunning();
   }
 
+  /** Priority of a task in a fair-share queue. */
+  public enum Priority {
+    /** Task of an interactive user. */
+    INTERACTIVE,
+
+    /** Task of a batch user, e.g. a CI system. */
+    BATCH,
+
+    /** Task that was not triggered by a user. */
+    BACKGROUND
+  }
+
+  /**
+   * Runnable that knows on behalf of which tenant it is executed.
+   *
+   * <p>Queues that are listed in {@code execution.fairShareQueue} share the worker threads fairly
+   * between tenants, weighted by the priority of the tasks. Tasks that don't implement this
+   * interface are attributed to their project if they are a {@link ProjectRunnable}, and to the
+   * queue itself otherwise, with {@link Priority#BACKGROUND} priority.
+   */
+  public interface FairShareRunnable extends Runnable {
+    /** Returns the tenant of the task, e.g. the name of the user on behalf of which it runs. */
+    String getTenant();
+
+    /** Returns the priority of the task. */
+    Priority getPriority();
+  }
+
+  private static String tenant(Runnable runnable) {
+    if (runnable instanceof FairShareRunnable) {
+      return ((FairShareRunnable) runnable).getTenant();
+    }
+    if (runnable instanceof ProjectRunnable) {
+      Project.NameKey project = ((ProjectRunnable) runnable).getProjectNameKey();
+      if (project != null) {
+        return project.get();
+      }
+    }
+    return "background";
+  }
+
+  private static Priority priority(Runnable runnable) {
+    if (runnable instanceof FairShareRunnable) {
+      return ((FairShareRunnable) runnable).getPriority();
+    }
+    return Priority.BACKGROUND;
+  }
+
   /** A wrapper around a scheduled Runnable, as maintained in the queue. */
   public static class Task<V> implements RunnableScheduledFuture<V> {
     /**
@@ -498,6 +710,11 @@ public class WorkQueue {
     private final AtomicBoolean running;
     private final Date startTime;
 
+    // Set by the executor when the task is due if the queue uses fair-share scheduling. Guarded by
+    // the lock of the queue of the executor, which is held while the tasks are compared.
+    @Nullable private FairShareScheduler.Ticket ticket;
+    private long queuedAt;
+
     Task(Runnable runnable, RunnableScheduledFuture<V> task, Executor executor, int taskId) {
       this.runnable = runnable;
       this.task = task;
@@ -567,9 +784,46 @@ public class WorkQueue {
       return false;
     }
 
+    /**
+     * Orders the tasks in the queue of the executor.
+     *
+     * <p>Tasks of a fair-share queue that are ready have a ticket, they are ordered by their ticket
+     * and come before all tasks that are not due yet. Delayed and periodic tasks get their ticket
+     * when they are due, so that they compete with the other ready tasks and can't be starved by
+     * them. Tasks without ticket are ordered by their scheduled execution time, as in any other
+     * queue. Ties are broken by the order in which the tasks were submitted.
+     */
     @Override
     public int compareTo(Delayed o) {
-      return task.compareTo(o);
+      if (!(o instanceof Task)) {
+        return task.compareTo(o);
+      }
+      Task<?> other = (Task<?>) o;
+      enqueueIfDue();
+      other.enqueueIfDue();
+      if (ticket != null || other.ticket != null) {
+        if (ticket == null) {
+          return 1;
+        }
+        if (other.ticket == null) {
+          return -1;
+        }
+        int cmp = ticket.compareTo(other.ticket);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return task.compareTo(other.task);
+    }
+
+    private boolean isDueWithoutTicket() {
+      return ticket == null && !running.get() && getDelay(NANOSECONDS) <= 0;
+    }
+
+    private void enqueueIfDue() {
+      if (isDueWithoutTicket()) {
+        executor.enqueue(this);
+      }
     }
 
     @Override
@@ -607,10 +861,18 @@ public class WorkQueue {
     public void run() {
       if (running.compareAndSet(false, true)) {
         String oldThreadName = Thread.currentThread().getName();
+        long start = System.nanoTime();
+        FairShareScheduler.Ticket started = ticket;
+        if (isPeriodic()) {
+          // The next execution gets a new ticket when it is due.
+          ticket = null;
+        }
         try {
           Thread.currentThread().setName(oldThreadName + "[" + task.toString() + "]");
+          executor.onStart(this, started);
           task.run();
         } finally {
+          executor.onFinish(this, started, System.nanoTime() - start);
           Thread.currentThread().setName(oldThreadName);
           if (isPeriodic()) {
             running.set(false);
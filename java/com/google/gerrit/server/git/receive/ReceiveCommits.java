@@ -104,6 +104,7 @@ import com.google.gerrit.extensions.validators.CommentValidator;
 import com.google.gerrit.metrics.Counter0;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.AdmissionController;
 import com.google.gerrit.server.CancellationMetrics;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.CommentsUtil;
@@ -151,8 +152,10 @@ import com.google.gerrit.server.git.validators.ValidationMessage;
 import com.google.gerrit.server.index.change.ChangeIndexer;
 import com.google.gerrit.server.logging.Metadata;
 import com.google.gerrit.server.logging.PerformanceLogContext;
+import com.google.gerrit.server.logging.PerformanceLogDispatcher;
 import com.google.gerrit.server.logging.PerformanceLogger;
 import com.google.gerrit.server.logging.RequestId;
+import com.google.gerrit.server.logging.RunningRequests;
 import com.google.gerrit.server.logging.TraceContext;
 import com.google.gerrit.server.logging.TraceContext.TraceTimer;
 import com.google.gerrit.server.mail.MailUtil.MailRecipients;
@@ -339,6 +342,7 @@ class ReceiveCommits {
 
   // Injected fields.
   private final AccountResolver accountResolver;
+  private final AdmissionController admissionController;
   private final AllProjectsName allProjectsName;
   private final BatchUpdate.Factory batchUpdateFactory;
   private final CancellationMetrics cancellationMetrics;
@@ -363,6 +367,7 @@ class ReceiveCommits {
   private final PatchSetInfoFactory patchSetInfoFactory;
   private final PatchSetUtil psUtil;
   private final DynamicSet<PerformanceLogger> performanceLoggers;
+  private final PerformanceLogDispatcher performanceLogDispatcher;
   private final PermissionBackend permissionBackend;
   private final ProjectCache projectCache;
   private final Provider<InternalChangeQuery> queryProvider;
@@ -426,6 +431,7 @@ class ReceiveCommits {
   @Inject
   ReceiveCommits(
       AccountResolver accountResolver,
+      AdmissionController admissionController,
       AllProjectsName allProjectsName,
       BatchUpdate.Factory batchUpdateFactory,
       CancellationMetrics cancellationMetrics,
@@ -451,6 +457,7 @@ class ReceiveCommits {
       PatchSetInfoFactory patchSetInfoFactory,
       PatchSetUtil psUtil,
       DynamicSet<PerformanceLogger> performanceLoggers,
+      PerformanceLogDispatcher performanceLogDispatcher,
       PermissionBackend permissionBackend,
       ProjectCache projectCache,
       Provider<InternalChangeQuery> queryProvider,
@@ -482,6 +489,7 @@ class ReceiveCommits {
       throws IOException {
     // Injected fields.
     this.accountResolver = accountResolver;
+    this.admissionController = admissionController;
     this.allProjectsName = allProjectsName;
     this.batchUpdateFactory = batchUpdateFactory;
     this.cancellationMetrics = cancellationMetrics;
@@ -512,6 +520,7 @@ class ReceiveCommits {
     this.projectCache = projectCache;
     this.psUtil = psUtil;
     this.performanceLoggers = performanceLoggers;
+    this.performanceLogDispatcher = performanceLogDispatcher;
     this.publishCommentsOp = publishCommentsOp;
     this.queryProvider = queryProvider;
     this.receiveConfig = receiveConfig;
@@ -640,7 +649,7 @@ class ReceiveCommits {
         TraceTimer traceTimer =
             newTimer("processCommands", Metadata.builder().resourceCount(commandCount));
         PerformanceLogContext performanceLogContext =
-            new PerformanceLogContext(config, performanceLoggers)) {
+            new PerformanceLogContext(config, performanceLoggers, performanceLogDispatcher)) {
       RequestInfo requestInfo =
           RequestInfo.builder(RequestInfo.RequestType.GIT_RECEIVE, user, traceContext)
               .project(project.getNameKey())
@@ -657,10 +666,14 @@ class ReceiveCommits {
           commands.stream().map(c -> wrapReceiveCommand(c, commandProgress)).collect(toList());
 
       try (RequestStateContext requestStateContext =
-          RequestStateContext.open()
-              .addRequestStateProvider(progress)
-              .addRequestStateProvider(
-                  deadlineCheckerFactory.create(start, requestInfo, clientProvidedDeadlineValue))) {
+              RequestStateContext.open()
+                  .addRequestStateProvider(progress)
+                  .addRequestStateProvider(
+                      deadlineCheckerFactory.create(
+                          start, requestInfo, clientProvidedDeadlineValue));
+          RunningRequests.Registration ignored =
+              RunningRequests.register("GIT", "git-receive-pack");
+          AdmissionController.Permit admission = admissionController.admit(requestInfo)) {
         processCommandsUnsafe(commands, progress);
         rejectRemaining(commands, INTERNAL_SERVER_ERROR);
       } catch (InvalidDeadlineException e) {
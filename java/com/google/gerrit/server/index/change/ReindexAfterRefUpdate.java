@@ -27,12 +27,14 @@ import com.google.gerrit.entities.Change;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.server.change.BatchMergeabilityComputer;
 import com.google.gerrit.server.change.MergeabilityComputationBehavior;
 import com.google.gerrit.server.config.AllUsersName;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.QueueProvider.QueueType;
 import com.google.gerrit.server.index.IndexExecutor;
 import com.google.gerrit.server.index.account.AccountIndexer;
+import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.OneOffRequestContext;
@@ -49,7 +51,8 @@ import org.eclipse.jgit.lib.Config;
  * to compute contents of an index document.
  *
  * <p>Reindexes any open changes that has a destination branch that was updated to ensure that
- * 'mergeable' is still current.
+ * 'mergeable' is still current. The mergeability of these changes is computed in one batch by the
+ * {@link BatchMergeabilityComputer} before the changes are reindexed.
  *
  * <p>Will reindex accounts when the account's NoteDb ref changes.
  */
@@ -62,6 +65,7 @@ public class ReindexAfterRefUpdate implements GitReferenceUpdatedListener {
   private final ChangeIndexCollection indexes;
   private final AllUsersName allUsersName;
   private final Provider<AccountIndexer> indexer;
+  private final BatchMergeabilityComputer batchMergeabilityComputer;
   private final ListeningExecutorService executor;
   private final boolean enabled;
 
@@ -74,6 +78,7 @@ public class ReindexAfterRefUpdate implements GitReferenceUpdatedListener {
       ChangeIndexCollection indexes,
       AllUsersName allUsersName,
       Provider<AccountIndexer> indexer,
+      BatchMergeabilityComputer batchMergeabilityComputer,
       @IndexExecutor(QueueType.BATCH) ListeningExecutorService executor) {
     this.requestContext = requestContext;
     this.queryProvider = queryProvider;
@@ -81,6 +86,7 @@ public class ReindexAfterRefUpdate implements GitReferenceUpdatedListener {
     this.indexes = indexes;
     this.allUsersName = allUsersName;
     this.indexer = indexer;
+    this.batchMergeabilityComputer = batchMergeabilityComputer;
     this.executor = executor;
     this.enabled = MergeabilityComputationBehavior.fromConfig(cfg).includeInIndex();
   }
@@ -154,10 +160,14 @@ public class ReindexAfterRefUpdate implements GitReferenceUpdatedListener {
     protected List<Change> impl(RequestContext ctx) {
       String ref = event.getRefName();
       Project.NameKey project = Project.nameKey(event.getProjectName());
-      if (ref.equals(RefNames.REFS_CONFIG)) {
-        return asChanges(queryProvider.get().byProjectOpen(project));
-      }
-      return asChanges(queryProvider.get().byBranchNew(BranchNameKey.create(project, ref)));
+      List<ChangeData> changes =
+          ref.equals(RefNames.REFS_CONFIG)
+              ? queryProvider.get().byProjectOpen(project)
+              : queryProvider.get().byBranchNew(BranchNameKey.create(project, ref));
+      // Compute mergeability for all changes at once, so that reindexing the individual changes
+      // finds it in the mergeability cache.
+      batchMergeabilityComputer.compute(project, changes);
+      return asChanges(changes);
     }
 
     @Override
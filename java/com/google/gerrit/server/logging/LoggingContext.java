@@ -143,6 +143,26 @@ public class LoggingContext extends com.google.common.flogger.backend.system.Log
     tags.remove();
   }
 
+  /**
+   * Runs the given runnable with the given tags and restores the current tags afterwards.
+   *
+   * <p>Allows to do work on behalf of a request on a thread that didn't execute the request, e.g.
+   * to invoke performance loggers asynchronously with the tags of the request that created the
+   * performance log records.
+   *
+   * @param newTags tags that should be set while the runnable is executed
+   * @param runnable the runnable that should be executed with the given tags
+   */
+  public void runWithTags(ImmutableSetMultimap<String, String> newTags, Runnable runnable) {
+    ImmutableSetMultimap<String, String> oldTags = getTagsAsMap();
+    setTags(newTags);
+    try {
+      runnable.run();
+    } finally {
+      setTags(oldTags);
+    }
+  }
+
   private MutableTags getMutableTags() {
     MutableTags mutableTags = tags.get();
     if (mutableTags == null) {
@@ -57,7 +57,7 @@ public abstract class Metadata {
 
   /**
    * The reason of a request cancellation (CLIENT_CLOSED_REQUEST, CLIENT_PROVIDED_DEADLINE_EXCEEDED,
-   * SERVER_DEADLINE_EXCEEDED).
+   * SERVER_DEADLINE_EXCEEDED, SERVER_OVERLOADED).
    */
   public abstract Optional<String> cancellationReason();
 
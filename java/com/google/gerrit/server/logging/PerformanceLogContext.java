@@ -19,14 +19,19 @@ import com.google.common.collect.Iterables;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.registration.Extension;
+import java.util.Optional;
 import org.eclipse.jgit.lib.Config;
 
 /**
  * Context for capturing performance log records. When the context is closed the performance log
- * records are handed over to the registered {@link PerformanceLogger}s.
+ * records are handed over to the registered {@link PerformanceLogger}s by a {@link
+ * PerformanceLogDispatcher}.
  *
  * <p>Capturing performance log records is disabled if there are no {@link PerformanceLogger}
- * registered (in this case the captured performance log records would never be used).
+ * registered (in this case the captured performance log records would never be used), unless
+ * {@code tracing.performanceSummary} is enabled. Then the captured performance log records are
+ * also condensed into a {@link PerformanceSummary} that is available from {@link #getSummary()}
+ * after the context was closed.
  *
  * <p>It's important to enable capturing of performance log records in a context that ensures to
  * consume the captured performance log records. Otherwise captured performance log records might
@@ -41,12 +46,29 @@ public class PerformanceLogContext implements AutoCloseable {
   // a performance log in the performance log (endless loop).
   private final DynamicSet<PerformanceLogger> performanceLoggers;
 
+  private final PerformanceLogDispatcher dispatcher;
+
   private final boolean oldPerformanceLogging;
   private final ImmutableList<PerformanceLogRecord> oldPerformanceLogRecords;
+  private final boolean computeSummary;
+
+  private Optional<PerformanceSummary> summary = Optional.empty();
 
   public PerformanceLogContext(
       Config gerritConfig, DynamicSet<PerformanceLogger> performanceLoggers) {
+    this(gerritConfig, performanceLoggers, PerformanceLogDispatcher.SYNCHRONOUS);
+  }
+
+  /**
+   * Creates a performance log context that hands over the captured performance log records to the
+   * given dispatcher when it is closed.
+   */
+  public PerformanceLogContext(
+      Config gerritConfig,
+      DynamicSet<PerformanceLogger> performanceLoggers,
+      PerformanceLogDispatcher dispatcher) {
     this.performanceLoggers = performanceLoggers;
+    this.dispatcher = dispatcher;
 
     // Just in case remember the old state and reset performance log entries.
     this.oldPerformanceLogging = LoggingContext.getInstance().isPerformanceLogging();
@@ -54,23 +76,53 @@ public class PerformanceLogContext implements AutoCloseable {
     LoggingContext.getInstance().clearPerformanceLogEntries();
 
     // Do not create performance log entries if performance logging is disabled or if no
-    // PerformanceLogger is registered.
+    // PerformanceLogger is registered and no performance summary is requested.
     boolean enablePerformanceLogging =
         gerritConfig.getBoolean("tracing", "performanceLogging", true);
+    this.computeSummary =
+        enablePerformanceLogging
+            && gerritConfig.getBoolean("tracing", "performanceSummary", false);
     LoggingContext.getInstance()
         .performanceLogging(
-            enablePerformanceLogging && !Iterables.isEmpty(performanceLoggers.entries()));
+            computeSummary
+                || (enablePerformanceLogging && !Iterables.isEmpty(performanceLoggers.entries())));
+  }
+
+  /**
+   * Returns the number of expensive operations that were executed while this context was open.
+   *
+   * <p>Only available after the context was closed and if {@code tracing.performanceSummary} is
+   * enabled.
+   */
+  public Optional<PerformanceSummary> getSummary() {
+    return summary;
   }
 
   @Override
   public void close() {
-    if (LoggingContext.getInstance().isPerformanceLogging()) {
-      runEach(performanceLoggers, LoggingContext.getInstance().getPerformanceLogRecords());
-    }
+    ImmutableList<PerformanceLogRecord> records =
+        LoggingContext.getInstance().isPerformanceLogging()
+            ? LoggingContext.getInstance().getPerformanceLogRecords()
+            : ImmutableList.of();
 
-    // Restore old state. Required to support nesting of PerformanceLogContext's.
-    LoggingContext.getInstance().performanceLogging(oldPerformanceLogging);
-    LoggingContext.getInstance().setPerformanceLogRecords(oldPerformanceLogRecords);
+    // Hand over the captured records while performance logging is disabled, so that records which
+    // are created by the performance loggers are neither captured by this context nor by an
+    // enclosing context, and an asynchronous dispatcher doesn't propagate the state of either
+    // context to its threads.
+    LoggingContext.getInstance().performanceLogging(false);
+    LoggingContext.getInstance().clearPerformanceLogEntries();
+    try {
+      if (!records.isEmpty() && !Iterables.isEmpty(performanceLoggers.entries())) {
+        dispatcher.dispatch(performanceLoggers, records);
+      }
+    } finally {
+      // Restore old state. Required to support nesting of PerformanceLogContext's.
+      LoggingContext.getInstance().performanceLogging(oldPerformanceLogging);
+      LoggingContext.getInstance().setPerformanceLogRecords(oldPerformanceLogRecords);
+    }
+    if (computeSummary) {
+      summary = Optional.of(PerformanceSummary.of(records));
+    }
   }
 
   /**
@@ -83,7 +135,7 @@ public class PerformanceLogContext implements AutoCloseable {
    * @param performanceLogRecords the performance log records that should be handed over to the
    *     performance loggers
    */
-  private static void runEach(
+  static void runEach(
       DynamicSet<PerformanceLogger> performanceLoggers,
       ImmutableList<PerformanceLogRecord> performanceLogRecords) {
     performanceLoggers
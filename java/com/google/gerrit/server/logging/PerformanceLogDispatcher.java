@@ -0,0 +1,41 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.logging;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.registration.DynamicSet;
+
+/**
+ * Hands over the performance log records that were captured by a {@link PerformanceLogContext} to
+ * the registered {@link PerformanceLogger}s.
+ */
+@FunctionalInterface
+public interface PerformanceLogDispatcher {
+  /** Invokes the performance loggers synchronously on the calling thread. */
+  PerformanceLogDispatcher SYNCHRONOUS = PerformanceLogContext::runEach;
+
+  /**
+   * Hands over the given performance log records to the given performance loggers.
+   *
+   * <p>Implementations may invoke the performance loggers asynchronously.
+   *
+   * @param performanceLoggers the performance loggers that should be invoked
+   * @param performanceLogRecords the performance log records that should be handed over to the
+   *     performance loggers
+   */
+  void dispatch(
+      DynamicSet<PerformanceLogger> performanceLoggers,
+      ImmutableList<PerformanceLogRecord> performanceLogRecords);
+}
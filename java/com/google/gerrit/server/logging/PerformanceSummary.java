@@ -0,0 +1,71 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.logging;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Number of expensive operations that were executed by a request, computed from the {@link
+ * PerformanceLogRecord}s that were captured while the request was running.
+ */
+@AutoValue
+public abstract class PerformanceSummary {
+  /** Operation of the performance log record that is written for each NoteDb read of a change. */
+  static final String NOTEDB_READ = "notedb/read_latency";
+
+  /** Operation of the performance log record that is written for each index query. */
+  static final String INDEX_QUERY = "query/query_latency";
+
+  /** Operations of the performance log records that are written for loads of persistent caches. */
+  static final String CACHE_LOAD = "Loading value from cache";
+
+  static final String CACHE_LOAD_ALL = "Loading multiple values from cache";
+
+  public static PerformanceSummary create(int noteDbReads, int indexQueries, int cacheLoads) {
+    return new AutoValue_PerformanceSummary(noteDbReads, indexQueries, cacheLoads);
+  }
+
+  static PerformanceSummary of(Iterable<PerformanceLogRecord> records) {
+    int noteDbReads = 0;
+    int indexQueries = 0;
+    int cacheLoads = 0;
+    for (PerformanceLogRecord r : records) {
+      switch (r.operation()) {
+        case NOTEDB_READ:
+          noteDbReads++;
+          break;
+        case INDEX_QUERY:
+          indexQueries++;
+          break;
+        case CACHE_LOAD:
+        case CACHE_LOAD_ALL:
+          cacheLoads++;
+          break;
+        default:
+          break;
+      }
+    }
+    return create(noteDbReads, indexQueries, cacheLoads);
+  }
+
+  /** Number of changes that were read from NoteDb. */
+  public abstract int noteDbReads();
+
+  /** Number of queries that were executed against the secondary index. */
+  public abstract int indexQueries();
+
+  /** Number of lookups in persistent caches that were not answered from memory. */
+  public abstract int cacheLoads();
+}
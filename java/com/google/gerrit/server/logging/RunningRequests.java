@@ -0,0 +1,129 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.logging;
+
+import static com.google.common.collect.ImmutableSetMultimap.toImmutableSetMultimap;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.gerrit.common.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the threads that are currently executing a request, together with the type and the
+ * operation of the request.
+ *
+ * <p>{@link LoggingContext} is thread-local and hence can't be inspected by other threads. This
+ * registry allows to attribute thread samples that are taken by another thread, e.g. by a sampling
+ * profiler, to the request that the sampled thread was executing.
+ *
+ * <p>Registering a request only puts the current thread into a concurrent map, so it is cheap
+ * enough to be done for every request.
+ */
+public class RunningRequests {
+  private static final ConcurrentHashMap<Thread, Request> requests = new ConcurrentHashMap<>();
+
+  /**
+   * Registers the current thread as executing a request. The registration must be closed by the
+   * same thread when the request is done.
+   *
+   * <p>Registrations can be nested, closing the inner registration restores the outer one.
+   *
+   * @param requestType type of the request, e.g. {@code REST}, {@code SSH} or {@code GIT}
+   * @param operation operation of the request, e.g. the REST view or SSH command name, may be set
+   *     later by {@link Registration#setOperation(String)} if it is not known yet
+   * @return the registration
+   */
+  public static Registration register(String requestType, @Nullable String operation) {
+    Thread thread = Thread.currentThread();
+    Request request =
+        new Request(requestType, operation, LoggingContext.getInstance().getTagsAsMap());
+    return new Registration(thread, request, requests.put(thread, request));
+  }
+
+  /** Returns the requests that are currently running by thread. */
+  public static ImmutableMap<Thread, Request> snapshot() {
+    return ImmutableMap.copyOf(requests);
+  }
+
+  /** A request that is executed by a thread. */
+  public static class Request {
+    private final String requestType;
+    private final ImmutableSetMultimap<String, String> tags;
+    private volatile String operation;
+
+    private Request(
+        String requestType,
+        @Nullable String operation,
+        ImmutableSetMultimap<String, String> tags) {
+      this.requestType = requireNonNull(requestType, "requestType");
+      this.operation = operation;
+      this.tags = tags;
+    }
+
+    public String getRequestType() {
+      return requestType;
+    }
+
+    /** Returns the operation of the request, null if it is not known (yet). */
+    @Nullable
+    public String getOperation() {
+      return operation;
+    }
+
+    /** Returns the logging tags of the thread at the time when the request was registered. */
+    public ImmutableSetMultimap<String, String> getTags() {
+      return tags;
+    }
+
+    /** Returns the request IDs from the logging tags, by ID type. */
+    public ImmutableSetMultimap<String, String> getRequestIds() {
+      return tags.entries().stream()
+          .filter(e -> RequestId.Type.isId(e.getKey()))
+          .collect(toImmutableSetMultimap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+  }
+
+  /** Registration of a running request that must be closed when the request is done. */
+  public static class Registration implements AutoCloseable {
+    private final Thread thread;
+    private final Request request;
+    @Nullable private final Request previous;
+
+    private Registration(Thread thread, Request request, @Nullable Request previous) {
+      this.thread = thread;
+      this.request = request;
+      this.previous = previous;
+    }
+
+    /** Sets the operation of the request once it is known. */
+    public void setOperation(String operation) {
+      request.operation = operation;
+    }
+
+    @Override
+    public void close() {
+      if (previous != null) {
+        requests.put(thread, previous);
+      } else {
+        requests.remove(thread, request);
+      }
+    }
+  }
+
+  private RunningRequests() {}
+}
@@ -16,6 +16,8 @@ package com.google.gerrit.server.mail.send;
 
 import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.plugincontext.PluginSetContext;
 import com.google.inject.Inject;
@@ -30,6 +32,11 @@ import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
 
 /** Configures Soy Sauce object for rendering email templates. */
 @Singleton
@@ -85,22 +92,78 @@ public class MailSoySauceProvider implements Provider<SoySauce> {
     "SetAssigneeHtml.soy",
   };
 
+  /** Compiled templates and the key of the sources they were compiled from. */
+  private static class Compiled {
+    final SoySauce soySauce;
+    final List<Object> key;
+    final long checkedAt;
+
+    Compiled(SoySauce soySauce, List<Object> key, long checkedAt) {
+      this.soySauce = soySauce;
+      this.key = key;
+      this.checkedAt = checkedAt;
+    }
+  }
+
   private final SitePaths site;
   private final SoyAstCache cache;
   private final PluginSetContext<MailSoyTemplateProvider> templateProviders;
+  private final long checkFrequencyNanos;
+
+  private volatile Compiled compiled;
 
   @Inject
   MailSoySauceProvider(
+      @GerritServerConfig Config cfg,
       SitePaths site,
       SoyAstCache cache,
       PluginSetContext<MailSoyTemplateProvider> templateProviders) {
     this.site = site;
     this.cache = cache;
     this.templateProviders = templateProviders;
+    this.checkFrequencyNanos =
+        ConfigUtil.getTimeUnit(
+            cfg,
+            "sendemail",
+            null,
+            "templateCheckFrequency",
+            TimeUnit.MINUTES.toNanos(1),
+            TimeUnit.NANOSECONDS);
   }
 
+  /**
+   * Returns the compiled templates.
+   *
+   * <p>Compiling the templates is expensive, hence the compiled templates are reused until a
+   * template in the mail templates directory of the site is added, modified or removed, or the set
+   * of plugin templates changes. The templates are checked for changes at most once per {@code
+   * sendemail.templateCheckFrequency}.
+   */
   @Override
   public SoySauce get() throws ProvisionException {
+    Compiled c = compiled;
+    long now = System.nanoTime();
+    if (c != null && now - c.checkedAt < checkFrequencyNanos) {
+      return c.soySauce;
+    }
+
+    List<Object> key = sourceKey();
+    if (c != null && key.equals(c.key)) {
+      compiled = new Compiled(c.soySauce, key, now);
+      return c.soySauce;
+    }
+    synchronized (this) {
+      // Another thread may have compiled the templates in the meantime.
+      c = compiled;
+      if (c == null || !key.equals(c.key)) {
+        c = new Compiled(compile(), key, now);
+        compiled = c;
+      }
+      return c.soySauce;
+    }
+  }
+
+  private SoySauce compile() throws ProvisionException {
     SoyFileSet.Builder builder = SoyFileSet.builder();
     builder.setSoyAstCache(cache);
     for (String name : TEMPLATES) {
@@ -111,6 +174,44 @@ public class MailSoySauceProvider implements Provider<SoySauce> {
     return builder.build().compileTemplates();
   }
 
+  /**
+   * Returns a key that identifies the sources of the templates: the state of the template files in
+   * the mail templates directory of the site and the templates provided by plugins.
+   */
+  private List<Object> sourceKey() {
+    List<Object> key = new ArrayList<>();
+    for (String name : TEMPLATES) {
+      addSiteTemplateState(key, name);
+    }
+    templateProviders.runEach(
+        e -> {
+          key.add(e);
+          key.add(e.getPath());
+          e.getFileNames()
+              .forEach(
+                  name -> {
+                    key.add(name);
+                    addSiteTemplateState(key, name);
+                  });
+        });
+    return key;
+  }
+
+  private void addSiteTemplateState(List<Object> key, String name) {
+    try {
+      BasicFileAttributes attrs =
+          Files.readAttributes(site.mail_dir.resolve(name), BasicFileAttributes.class);
+      if (attrs.isRegularFile()) {
+        key.add(attrs.lastModifiedTime());
+        key.add(attrs.size());
+        return;
+      }
+    } catch (IOException e) {
+      // The template is not overridden in the site.
+    }
+    key.add(false);
+  }
+
   private void addTemplate(SoyFileSet.Builder builder, String resourcePath, String name)
       throws ProvisionException {
     if (!resourcePath.endsWith("/")) {
@@ -122,8 +223,6 @@ public class MailSoySauceProvider implements Provider<SoySauce> {
     Path tmpl = site.mail_dir.resolve(name);
     if (Files.isRegularFile(tmpl)) {
       String content;
-      // TODO(davido): Consider using JGit's FileSnapshot to cache based on
-      // mtime.
       try (Reader r = Files.newBufferedReader(tmpl, StandardCharsets.UTF_8)) {
         content = CharStreams.toString(r);
       } catch (IOException err) {
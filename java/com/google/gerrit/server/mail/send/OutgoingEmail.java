@@ -68,6 +68,7 @@ public abstract class OutgoingEmail {
   private StringBuilder textBody;
   private StringBuilder htmlBody;
   private MessageIdGenerator.MessageId messageId;
+  private SoySauce soySauce;
   protected Map<String, Object> soyContext;
   protected Map<String, Object> soyContextEmailData;
   protected List<String> footers;
@@ -614,7 +615,10 @@ public abstract class OutgoingEmail {
     String templateInFileNamespace =
         String.join(".", SOY_TEMPLATE_NAMESPACE, fileNamespace, templateName);
     String templateInCommonNamespace = String.join(".", SOY_TEMPLATE_NAMESPACE, templateName);
-    SoySauce soySauce = args.soySauce.get();
+    if (soySauce == null) {
+      // All templates of an email are rendered with the same compiled templates.
+      soySauce = args.soySauce.get();
+    }
     // For backwards compatibility with existing customizations and plugin templates with the
     // old non-unique namespace.
     String fullTemplateName =
@@ -15,6 +15,7 @@
 package com.google.gerrit.server.mail.send;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Account;
@@ -28,8 +29,6 @@ import com.google.gerrit.index.query.Predicate;
 import com.google.gerrit.index.query.QueryParseException;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
-import com.google.gerrit.server.account.AccountState;
-import com.google.gerrit.server.account.ProjectWatches.ProjectWatchKey;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.ChangeQueryBuilder;
@@ -65,26 +64,22 @@ public class ProjectWatch {
     Watchers matching = new Watchers();
     Set<Account.Id> projectWatchers = new HashSet<>();
 
-    for (AccountState a : args.accountQueryProvider.get().byWatchedProject(project)) {
-      Account.Id accountId = a.account().id();
-      for (Map.Entry<ProjectWatchKey, ImmutableSet<NotifyConfig.NotifyType>> e :
-          a.projectWatches().entrySet()) {
-        if (project.equals(e.getKey().project())
-            && add(matching, accountId, e.getKey(), e.getValue(), type)) {
+    for (Map.Entry<Account.Id, ImmutableList<ProjectWatchIndex.Watch>> e :
+        args.projectWatchIndex.get(project).entrySet()) {
+      Account.Id accountId = e.getKey();
+      for (ProjectWatchIndex.Watch w : e.getValue()) {
+        if (add(matching, w, type)) {
           // We only want to prevent matching All-Projects if this filter hits
           projectWatchers.add(accountId);
         }
       }
     }
 
-    for (AccountState a : args.accountQueryProvider.get().byWatchedProject(args.allProjectsName)) {
-      for (Map.Entry<ProjectWatchKey, ImmutableSet<NotifyConfig.NotifyType>> e :
-          a.projectWatches().entrySet()) {
-        if (args.allProjectsName.equals(e.getKey().project())) {
-          Account.Id accountId = a.account().id();
-          if (!projectWatchers.contains(accountId)) {
-            add(matching, accountId, e.getKey(), e.getValue(), type);
-          }
+    for (Map.Entry<Account.Id, ImmutableList<ProjectWatchIndex.Watch>> e :
+        args.projectWatchIndex.get(args.allProjectsName).entrySet()) {
+      if (!projectWatchers.contains(e.getKey())) {
+        for (ProjectWatchIndex.Watch w : e.getValue()) {
+          add(matching, w, type);
         }
       }
     }
@@ -211,19 +206,16 @@ public class ProjectWatch {
   }
 
   private boolean add(
-      Watchers matching,
-      Account.Id accountId,
-      ProjectWatchKey key,
-      Set<NotifyConfig.NotifyType> watchedTypes,
-      NotifyConfig.NotifyType type) {
-    logger.atFine().log("Checking project watch %s of account %s", key, accountId);
+      Watchers matching, ProjectWatchIndex.Watch watch, NotifyConfig.NotifyType type) {
+    Account.Id accountId = watch.accountId;
+    logger.atFine().log("Checking project watch %s of account %s", watch.key, accountId);
 
     IdentifiedUser user = args.identifiedUserFactory.create(accountId);
     try {
-      if (filterMatch(user, key.filter())) {
+      if (filterMatch(user, watch.key.filter())) {
         // If we are set to notify on this type, add the user.
         // Otherwise, still return true to stop notifications for this user.
-        if (watchedTypes.contains(type)) {
+        if (watch.notifyTypes.contains(type)) {
           matching.bcc.accounts.add(accountId);
         }
         logger.atFine().log("Added account %s as watcher", accountId);
@@ -233,7 +225,8 @@ public class ProjectWatch {
     } catch (QueryParseException e) {
       // Ignore broken filter expressions.
       logger.atInfo().log(
-          "Account %s has invalid filter in project watch %s: %s", accountId, key, e.getMessage());
+          "Account %s has invalid filter in project watch %s: %s",
+          accountId, watch.key, e.getMessage());
     }
     return false;
   }
@@ -0,0 +1,151 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail.send;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.NotifyConfig.NotifyType;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.AccountIndexedListener;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.account.ProjectWatches.ProjectWatchKey;
+import com.google.gerrit.server.query.account.InternalAccountQuery;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of the project watches by the watched project.
+ *
+ * <p>Without this index the watchers of a project are looked up in the account index for every
+ * notification. The watches of a project are loaded from the account index when they are first
+ * needed and are kept up to date by updating them whenever an account is reindexed. The watches of
+ * at most {@link #MAX_PROJECTS} projects are kept, the least recently used projects are evicted.
+ *
+ * <p>The filter queries of the watches are not cached, since the parsed predicates depend on the
+ * time at which they were parsed (e.g. {@code age:}) and on the state of the server (e.g. group
+ * memberships). They are parsed for every notification.
+ */
+@Singleton
+public class ProjectWatchIndex implements AccountIndexedListener {
+  private static final int MAX_PROJECTS = 5000;
+
+  /** A project watch of an account. */
+  static class Watch {
+    final Account.Id accountId;
+    final ProjectWatchKey key;
+    final ImmutableSet<NotifyType> notifyTypes;
+
+    private Watch(Account.Id accountId, ProjectWatchKey key, ImmutableSet<NotifyType> notifyTypes) {
+      this.accountId = accountId;
+      this.key = key;
+      this.notifyTypes = notifyTypes;
+    }
+  }
+
+  private final Provider<InternalAccountQuery> accountQueryProvider;
+  private final AccountCache accountCache;
+
+  /** Watches of the loaded projects by watching account. */
+  private final Cache<Project.NameKey, ImmutableMap<Account.Id, ImmutableList<Watch>>>
+      watchesByProject = CacheBuilder.newBuilder().maximumSize(MAX_PROJECTS).build();
+
+  @Inject
+  ProjectWatchIndex(
+      Provider<InternalAccountQuery> accountQueryProvider, AccountCache accountCache) {
+    this.accountQueryProvider = accountQueryProvider;
+    this.accountCache = accountCache;
+  }
+
+  /** Returns the watches of the given project by the accounts that watch the project. */
+  ImmutableMap<Account.Id, ImmutableList<Watch>> get(Project.NameKey project) {
+    ImmutableMap<Account.Id, ImmutableList<Watch>> watches =
+        watchesByProject.getIfPresent(project);
+    if (watches != null) {
+      return watches;
+    }
+    // Projects are loaded while holding the lock, so that updates of accounts that are reindexed
+    // while a project is loaded are not lost.
+    synchronized (this) {
+      watches = watchesByProject.getIfPresent(project);
+      if (watches == null) {
+        watches = load(project);
+        watchesByProject.put(project, watches);
+      }
+      return watches;
+    }
+  }
+
+  @Override
+  public synchronized void onAccountIndexed(int id) {
+    Account.Id accountId = Account.id(id);
+    Optional<AccountState> state = accountCache.get(accountId);
+    ConcurrentMap<Project.NameKey, ImmutableMap<Account.Id, ImmutableList<Watch>>> loaded =
+        watchesByProject.asMap();
+    for (Project.NameKey project : loaded.keySet()) {
+      loaded.computeIfPresent(project, (p, w) -> update(w, p, accountId, state));
+    }
+  }
+
+  private ImmutableMap<Account.Id, ImmutableList<Watch>> load(Project.NameKey project) {
+    ImmutableMap.Builder<Account.Id, ImmutableList<Watch>> watches = ImmutableMap.builder();
+    for (AccountState a : accountQueryProvider.get().byWatchedProject(project)) {
+      ImmutableList<Watch> w = watchesOf(a, project);
+      if (!w.isEmpty()) {
+        watches.put(a.account().id(), w);
+      }
+    }
+    return watches.build();
+  }
+
+  private static ImmutableMap<Account.Id, ImmutableList<Watch>> update(
+      ImmutableMap<Account.Id, ImmutableList<Watch>> watches,
+      Project.NameKey project,
+      Account.Id accountId,
+      Optional<AccountState> state) {
+    // The watches of an updated account are always replaced, since their filters or notify types
+    // may have changed.
+    ImmutableList<Watch> updated = state.map(a -> watchesOf(a, project)).orElse(ImmutableList.of());
+    if (updated.isEmpty() && !watches.containsKey(accountId)) {
+      return watches;
+    }
+    Map<Account.Id, ImmutableList<Watch>> result = new LinkedHashMap<>(watches);
+    if (updated.isEmpty()) {
+      result.remove(accountId);
+    } else {
+      result.put(accountId, updated);
+    }
+    return ImmutableMap.copyOf(result);
+  }
+
+  private static ImmutableList<Watch> watchesOf(AccountState a, Project.NameKey project) {
+    ImmutableList.Builder<Watch> watches = ImmutableList.builder();
+    for (Map.Entry<ProjectWatchKey, ImmutableSet<NotifyType>> e : a.projectWatches().entrySet()) {
+      if (project.equals(e.getKey().project())) {
+        watches.add(new Watch(a.account().id(), e.getKey(), e.getValue()));
+      }
+    }
+    return watches.build();
+  }
+}
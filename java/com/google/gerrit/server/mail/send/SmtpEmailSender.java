@@ -15,7 +15,9 @@
 package com.google.gerrit.server.mail.send;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.flogger.FluentLogger;
 import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Ints;
@@ -24,25 +26,39 @@ import com.google.gerrit.common.Version;
 import com.google.gerrit.entities.Address;
 import com.google.gerrit.entities.EmailHeader;
 import com.google.gerrit.exceptions.EmailException;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.mail.Encryption;
 import com.google.gerrit.server.util.time.TimeUtil;
-import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import org.apache.commons.net.smtp.AuthSMTPClient;
@@ -51,23 +67,50 @@ import org.apache.commons.net.smtp.SMTPReply;
 import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.eclipse.jgit.lib.Config;
 
-/** Sends email via a nearby SMTP server. */
+/**
+ * Sends email via a nearby SMTP server.
+ *
+ * <p>Connections to the SMTP server are kept open for a while after an email was sent and are
+ * reused for the next emails. If {@code sendemail.outboundQueue} is set, emails are not delivered
+ * on the sending thread, but are put into a {@link SmtpOutboundQueue} from which they are
+ * delivered in the background.
+ */
 @Singleton
-public class SmtpEmailSender implements EmailSender {
+public class SmtpEmailSender implements EmailSender, LifecycleListener {
   /** The socket's connect timeout (0 = infinite timeout) */
   private static final int DEFAULT_CONNECT_TIMEOUT = 0;
 
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-  public static class Module extends AbstractModule {
+  public static class Module extends LifecycleModule {
     @Override
     protected void configure() {
       bind(EmailSender.class).to(SmtpEmailSender.class);
+      listener().to(SmtpEmailSender.class);
+    }
+  }
+
+  /** Connection to the SMTP server that can be reused. */
+  private static class PooledConnection {
+    final SMTPClient client;
+    long lastUsed;
+    int messages;
+
+    PooledConnection(SMTPClient client) {
+      this.client = client;
     }
   }
 
   private final boolean enabled;
   private final int connectTimeout;
+  private final int maxIdleConnections;
+  private final long idleConnectionTimeoutMillis;
+  private final int maxMessagesPerConnection;
+  private final Counter1<String> connections;
+  @Nullable private final SmtpOutboundQueue outboundQueue;
+
+  /** Idle connections, the most recently used last. */
+  private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
 
   private String smtpHost;
   private int smtpPort;
@@ -81,7 +124,27 @@ public class SmtpEmailSender implements EmailSender {
   private int expiryDays;
 
   @Inject
-  SmtpEmailSender(@GerritServerConfig Config cfg) {
+  SmtpEmailSender(
+      @GerritServerConfig Config cfg,
+      SitePaths site,
+      WorkQueue workQueue,
+      MetricMaker metricMaker) {
+    this(
+        cfg,
+        metricMaker,
+        cfg.getBoolean("sendemail", null, "outboundQueue", false)
+            ? workQueue.createQueue(
+                cfg.getInt("sendemail", null, "deliveryThreads", 2), "SmtpDelivery")
+            : null,
+        site.data_dir.resolve("mail-queue"));
+  }
+
+  @VisibleForTesting
+  SmtpEmailSender(
+      Config cfg,
+      MetricMaker metricMaker,
+      @Nullable ScheduledExecutorService deliveryExecutor,
+      Path queueDir) {
     enabled = cfg.getBoolean("sendemail", null, "enable", true);
     connectTimeout =
         Ints.checkedCast(
@@ -126,6 +189,73 @@ public class SmtpEmailSender implements EmailSender {
     denyrcpt = Collections.unmodifiableSet(rcptdeny);
     importance = cfg.getString("sendemail", null, "importance");
     expiryDays = cfg.getInt("sendemail", null, "expiryDays", 0);
+
+    maxIdleConnections = cfg.getInt("sendemail", null, "maxIdleConnections", 4);
+    idleConnectionTimeoutMillis =
+        ConfigUtil.getTimeUnit(
+            cfg,
+            "sendemail",
+            null,
+            "idleConnectionTimeout",
+            TimeUnit.SECONDS.toMillis(30),
+            TimeUnit.MILLISECONDS);
+    maxMessagesPerConnection = cfg.getInt("sendemail", null, "maxMessagesPerConnection", 100);
+    connections =
+        metricMaker.newCounter(
+            "sendemail/smtp_connections",
+            new Description("Connections to the SMTP server used to send emails")
+                .setRate()
+                .setUnit("connections"),
+            Field.ofString("state", (metadataBuilder, resolveAllUsers) -> {})
+                .description(
+                    "'opened' for new connections, 'reused' for idle connections that were"
+                        + " reused.")
+                .build());
+
+    outboundQueue =
+        deliveryExecutor != null
+            ? new SmtpOutboundQueue(
+                queueDir,
+                deliveryExecutor,
+                this::deliverQueued,
+                metricMaker,
+                cfg.getInt("sendemail", null, "maxDeliveryAttempts", 10),
+                ConfigUtil.getTimeUnit(
+                    cfg,
+                    "sendemail",
+                    null,
+                    "retryDelay",
+                    TimeUnit.MINUTES.toMillis(1),
+                    TimeUnit.MILLISECONDS),
+                ConfigUtil.getTimeUnit(
+                    cfg,
+                    "sendemail",
+                    null,
+                    "maxRetryDelay",
+                    TimeUnit.HOURS.toMillis(1),
+                    TimeUnit.MILLISECONDS))
+            : null;
+  }
+
+  @Override
+  public void start() {
+    if (outboundQueue != null) {
+      try {
+        outboundQueue.start();
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Cannot read outbound email queue");
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    List<PooledConnection> idle;
+    synchronized (idleConnections) {
+      idle = new ArrayList<>(idleConnections);
+      idleConnections.clear();
+    }
+    idle.forEach(c -> close(c, true));
   }
 
   @Override
@@ -202,66 +332,154 @@ public class SmtpEmailSender implements EmailSender {
       throw new EmailException("Sending email is disabled");
     }
 
+    StringWriter data = new StringWriter();
+    try {
+      render(data, callerHeaders, textBody, htmlBody);
+    } catch (IOException e) {
+      throw new EmailException("Cannot render outgoing email", e);
+    }
+    List<String> rcptEmails = rcpt.stream().map(Address::email).collect(toList());
+    if (outboundQueue != null) {
+      outboundQueue.add(from.email(), rcptEmails, data.toString());
+      return;
+    }
+    String rejected = deliver(from.email(), rcptEmails, data.toString());
+    if (!rejected.isEmpty()) {
+      throw new EmailException(rejected);
+    }
+  }
+
+  private void deliverQueued(String from, List<String> rcpt, String data) throws EmailException {
+    String rejected = deliver(from, rcpt, data);
+    if (!rejected.isEmpty()) {
+      // The email was delivered to the other recipients, retrying would send it to them again.
+      logger.atWarning().log("%s", rejected);
+    }
+  }
+
+  /**
+   * Delivers a rendered email to the SMTP server, reusing an idle connection if possible.
+   *
+   * @return the errors for the recipients that were rejected by the server, empty if all
+   *     recipients were accepted
+   */
+  @VisibleForTesting
+  String deliver(String from, List<String> rcpt, String data) throws EmailException {
     StringBuilder rejected = new StringBuilder();
+    PooledConnection c = borrow();
+    boolean reusable = false;
     try {
-      final SMTPClient client = open();
-      try {
-        if (!client.setSender(from.email())) {
-          throw new EmailException("Server " + smtpHost + " rejected from address " + from.email());
-        }
+      SMTPClient client = c.client;
+      if (!client.setSender(from)) {
+        throw new EmailException("Server " + smtpHost + " rejected from address " + from);
+      }
 
-        /* Do not prevent the email from being sent to "good" users simply
-         * because some users get rejected.  If not, a single rejected
-         * project watcher could prevent email for most actions on a project
-         * from being sent to any user!  Instead, queue up the errors, and
-         * throw an exception after sending the email to get the rejected
-         * error(s) logged.
-         */
-        for (Address addr : rcpt) {
-          if (!client.addRecipient(addr.email())) {
-            String error = client.getReplyString();
-            rejected
-                .append("Server ")
-                .append(smtpHost)
-                .append(" rejected recipient ")
-                .append(addr)
-                .append(": ")
-                .append(error);
-          }
+      /* Do not prevent the email from being sent to "good" users simply
+       * because some users get rejected.  If not, a single rejected
+       * project watcher could prevent email for most actions on a project
+       * from being sent to any user!  Instead, queue up the errors, and
+       * throw an exception after sending the email to get the rejected
+       * error(s) logged.
+       */
+      for (String addr : rcpt) {
+        if (!client.addRecipient(addr)) {
+          String error = client.getReplyString();
+          rejected
+              .append("Server ")
+              .append(smtpHost)
+              .append(" rejected recipient ")
+              .append(addr)
+              .append(": ")
+              .append(error);
         }
+      }
 
-        try (Writer messageDataWriter = client.sendMessageData()) {
-          if (messageDataWriter == null) {
-            /* Include rejected recipient error messages here to not lose that
-             * information. That piece of the puzzle is vital if zero recipients
-             * are accepted and the server consequently rejects the DATA command.
-             */
-            throw new EmailException(
-                rejected
-                    .append("Server ")
-                    .append(smtpHost)
-                    .append(" rejected DATA command: ")
-                    .append(client.getReplyString())
-                    .toString());
-          }
-
-          render(messageDataWriter, callerHeaders, textBody, htmlBody);
-
-          if (!client.completePendingCommand()) {
-            throw new EmailException(
-                "Server " + smtpHost + " rejected message body: " + client.getReplyString());
-          }
-
-          client.logout();
-          if (rejected.length() > 0) {
-            throw new EmailException(rejected.toString());
-          }
+      try (Writer messageDataWriter = client.sendMessageData()) {
+        if (messageDataWriter == null) {
+          /* Include rejected recipient error messages here to not lose that
+           * information. That piece of the puzzle is vital if zero recipients
+           * are accepted and the server consequently rejects the DATA command.
+           */
+          throw new EmailException(
+              rejected
+                  .append("Server ")
+                  .append(smtpHost)
+                  .append(" rejected DATA command: ")
+                  .append(client.getReplyString())
+                  .toString());
         }
-      } finally {
-        client.disconnect();
+        messageDataWriter.write(data);
+      }
+
+      if (!client.completePendingCommand()) {
+        throw new EmailException(
+            "Server " + smtpHost + " rejected message body: " + client.getReplyString());
       }
+      reusable = true;
+      return rejected.toString();
     } catch (IOException e) {
       throw new EmailException("Cannot send outgoing email", e);
+    } finally {
+      release(c, reusable);
+    }
+  }
+
+  private PooledConnection borrow() throws EmailException {
+    long now = TimeUtil.nowMs();
+    while (true) {
+      PooledConnection c;
+      synchronized (idleConnections) {
+        c = idleConnections.pollLast();
+      }
+      if (c == null) {
+        break;
+      }
+      if (now - c.lastUsed > idleConnectionTimeoutMillis) {
+        close(c, true);
+        continue;
+      }
+      try {
+        // The server may have closed the idle connection.
+        if (c.client.reset()) {
+          connections.increment("reused");
+          return c;
+        }
+      } catch (IOException e) {
+        logger.atFine().withCause(e).log("Idle SMTP connection is broken");
+      }
+      close(c, false);
+    }
+    connections.increment("opened");
+    return new PooledConnection(open());
+  }
+
+  private void release(PooledConnection c, boolean reusable) {
+    c.messages++;
+    c.lastUsed = TimeUtil.nowMs();
+    if (reusable && c.messages < maxMessagesPerConnection) {
+      synchronized (idleConnections) {
+        if (idleConnections.size() < maxIdleConnections) {
+          idleConnections.addLast(c);
+          return;
+        }
+      }
+    }
+    close(c, reusable);
+  }
+
+  private static void close(PooledConnection c, boolean logout) {
+    try {
+      if (logout) {
+        c.client.logout();
+      }
+    } catch (IOException e) {
+      // Ignored
+    } finally {
+      try {
+        c.client.disconnect();
+      } catch (IOException e) {
+        // Ignored
+      }
     }
   }
 
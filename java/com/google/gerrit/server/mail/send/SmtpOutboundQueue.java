@@ -0,0 +1,235 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail.send;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.exceptions.EmailException;
+import com.google.gerrit.json.OutputFormat;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of the emails that are waiting to be delivered to the SMTP server.
+ *
+ * <p>Queued emails are stored in a spool directory until they are delivered, so that they survive
+ * restarts. The emails are delivered by a pool of threads. If delivering an email fails, it is
+ * retried with exponential backoff. Emails that cannot be delivered after the maximum number of
+ * attempts are moved to the {@code failed} subdirectory of the spool directory.
+ */
+class SmtpOutboundQueue {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final String SUFFIX = ".json";
+  private static final String FAILED_DIR = "failed";
+
+  /** Delivers an email to the SMTP server. */
+  @FunctionalInterface
+  interface Transport {
+    void deliver(String from, List<String> rcpt, String data) throws EmailException;
+  }
+
+  /** An email in the queue, as stored in the spool directory. */
+  @VisibleForTesting
+  static class Message {
+    String from;
+    List<String> rcpt;
+    String data;
+    long queuedOn;
+  }
+
+  private final Path dir;
+  private final ScheduledExecutorService executor;
+  private final Transport transport;
+  private final int maxAttempts;
+  private final long retryDelayMillis;
+  private final long maxRetryDelayMillis;
+  private final Gson gson = OutputFormat.JSON_COMPACT.newGson();
+  private final AtomicLong seq = new AtomicLong();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Counter1<String> deliveryAttempts;
+  private final Timer0 deliveryLatency;
+
+  SmtpOutboundQueue(
+      Path dir,
+      ScheduledExecutorService executor,
+      Transport transport,
+      MetricMaker metricMaker,
+      int maxAttempts,
+      long retryDelayMillis,
+      long maxRetryDelayMillis) {
+    this.dir = dir;
+    this.executor = executor;
+    this.transport = transport;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryDelayMillis = retryDelayMillis;
+    this.maxRetryDelayMillis = Math.max(retryDelayMillis, maxRetryDelayMillis);
+
+    metricMaker.newCallbackMetric(
+        "sendemail/outbound_queue/pending_messages",
+        Integer.class,
+        new Description("Emails in the outbound queue that are waiting to be delivered")
+            .setGauge()
+            .setUnit("emails"),
+        pending::get);
+    this.deliveryAttempts =
+        metricMaker.newCounter(
+            "sendemail/outbound_queue/delivery_attempts",
+            new Description("Attempts to deliver emails from the outbound queue")
+                .setRate()
+                .setUnit("attempts"),
+            Field.ofString("result", (metadataBuilder, resolveAllUsers) -> {})
+                .description(
+                    "The result of the attempt: 'delivered', 'retry' if the delivery failed and"
+                        + " will be retried, or 'failed' if the email was given up.")
+                .build());
+    this.deliveryLatency =
+        metricMaker.newTimer(
+            "sendemail/outbound_queue/delivery_latency",
+            new Description("Time between queuing an email and delivering it")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+  }
+
+  /** Schedules the delivery of the emails that were queued before the server was restarted. */
+  void start() throws IOException {
+    Files.createDirectories(dir);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> s = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      s.forEach(files::add);
+    }
+    // The file names start with the time at which the email was queued.
+    Collections.sort(files);
+    for (Path file : files) {
+      Message msg;
+      try {
+        msg = gson.fromJson(new String(Files.readAllBytes(file), UTF_8), Message.class);
+      } catch (IOException | JsonParseException e) {
+        logger.atSevere().withCause(e).log("Cannot read queued email %s", file);
+        moveToFailed(file);
+        continue;
+      }
+      pending.incrementAndGet();
+      schedule(file, msg, 1, 0);
+    }
+    if (!files.isEmpty()) {
+      logger.atInfo().log("Delivering %d queued emails", files.size());
+    }
+  }
+
+  /** Adds an email to the queue. */
+  void add(String from, List<String> rcpt, String data) throws EmailException {
+    Message msg = new Message();
+    msg.from = from;
+    msg.rcpt = ImmutableList.copyOf(rcpt);
+    msg.data = data;
+    msg.queuedOn = TimeUtil.nowMs();
+
+    Path file =
+        dir.resolve(String.format("%013d-%08d%s", msg.queuedOn, seq.incrementAndGet(), SUFFIX));
+    Path tmp = dir.resolve(file.getFileName() + ".tmp");
+    try {
+      Files.write(tmp, gson.toJson(msg).getBytes(UTF_8));
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new EmailException("Cannot queue outgoing email", e);
+    }
+    pending.incrementAndGet();
+    schedule(file, msg, 1, 0);
+  }
+
+  int pending() {
+    return pending.get();
+  }
+
+  private void schedule(Path file, Message msg, int attempt, long delayMillis) {
+    try {
+      executor.schedule(() -> deliver(file, msg, attempt), delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The server is shutting down, the email is delivered after the restart.
+      pending.decrementAndGet();
+    }
+  }
+
+  private void deliver(Path file, Message msg, int attempt) {
+    try {
+      transport.deliver(msg.from, msg.rcpt, msg.data);
+    } catch (EmailException e) {
+      if (attempt < maxAttempts) {
+        long delay = retryDelay(attempt);
+        logger.atWarning().withCause(e).log(
+            "Cannot deliver email %s (attempt %d of %d), retrying in %d ms",
+            file.getFileName(), attempt, maxAttempts, delay);
+        deliveryAttempts.increment("retry");
+        schedule(file, msg, attempt + 1, delay);
+        return;
+      }
+      logger.atSevere().withCause(e).log(
+          "Cannot deliver email %s after %d attempts, giving up", file.getFileName(), attempt);
+      deliveryAttempts.increment("failed");
+      pending.decrementAndGet();
+      moveToFailed(file);
+      return;
+    }
+
+    deliveryAttempts.increment("delivered");
+    deliveryLatency.record(Math.max(0, TimeUtil.nowMs() - msg.queuedOn), TimeUnit.MILLISECONDS);
+    pending.decrementAndGet();
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot delete delivered email %s", file);
+    }
+  }
+
+  @VisibleForTesting
+  long retryDelay(int attempt) {
+    // Double the delay with every attempt, avoiding an overflow of the shift.
+    long delay = retryDelayMillis << Math.min(attempt - 1, 30);
+    return delay < 0 || delay > maxRetryDelayMillis ? maxRetryDelayMillis : delay;
+  }
+
+  private void moveToFailed(Path file) {
+    try {
+      Path failed = Files.createDirectories(dir.resolve(FAILED_DIR));
+      Files.move(file, failed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Cannot move undeliverable email %s", file);
+    }
+  }
+}
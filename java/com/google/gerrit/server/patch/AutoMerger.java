@@ -16,6 +16,10 @@ package com.google.gerrit.server.patch;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.UsedAt;
 import com.google.gerrit.entities.RefNames;
@@ -25,14 +29,18 @@ import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.git.InsertedObject;
 import com.google.gerrit.server.git.MergeUtil;
 import com.google.gerrit.server.logging.Metadata;
 import com.google.gerrit.server.update.RepoView;
 import com.google.inject.Inject;
+import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import java.io.IOException;
 import java.util.Optional;
 import org.eclipse.jgit.dircache.DirCache;
@@ -71,6 +79,12 @@ import org.eclipse.jgit.transport.ReceiveCommand;
  *
  * <p>The second point means that these commits are referenced from NoteDb. The consequence of this
  * is that these refs should never be deleted.
+ *
+ * <p>Auto-merge commits that are not stored in the repository (e.g. for changes that were created
+ * before auto-merge commits were written transactionally, or if {@code change.cacheAutomerge} is
+ * {@code false}) are computed in-memory. The objects of such in-memory auto-merges are kept in the
+ * bounded {@code "auto_merge_in_memory"} cache, so that repeated diffs of the same merge commit
+ * don't redo the three-way content merge.
  */
 @Singleton
 public class AutoMerger {
@@ -78,6 +92,19 @@ public class AutoMerger {
 
   public static final String AUTO_MERGE_MSG_PREFIX = "Auto-merge of ";
 
+  private static final String IN_MEMORY_CACHE_NAME = "auto_merge_in_memory";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(IN_MEMORY_CACHE_NAME, InMemoryAutoMergeKey.class, InMemoryAutoMerge.class)
+            .maximumWeight(10 << 20)
+            .weigher(InMemoryAutoMergeWeigher.class);
+      }
+    };
+  }
+
   @UsedAt(UsedAt.Project.GOOGLE)
   public static boolean cacheAutomerge(Config cfg) {
     return cfg.getBoolean("change", null, "cacheAutomerge", true);
@@ -85,6 +112,7 @@ public class AutoMerger {
 
   private enum OperationType {
     CACHE_LOAD,
+    IN_MEMORY_CACHE_LOAD,
     IN_MEMORY_WRITE,
     ON_DISK_WRITE
   }
@@ -94,12 +122,14 @@ public class AutoMerger {
   private final Provider<PersonIdent> gerritIdentProvider;
   private final boolean save;
   private final ThreeWayMergeStrategy configuredMergeStrategy;
+  private final Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> inMemoryCache;
 
   @Inject
   AutoMerger(
       MetricMaker metricMaker,
       @GerritServerConfig Config cfg,
-      @GerritPersonIdent Provider<PersonIdent> gerritIdentProvider) {
+      @GerritPersonIdent Provider<PersonIdent> gerritIdentProvider,
+      @Named(IN_MEMORY_CACHE_NAME) Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> inMemoryCache) {
     this.counter =
         metricMaker.newCounter(
             "git/auto-merge/num_operations",
@@ -115,6 +145,7 @@ public class AutoMerger {
     this.save = cacheAutomerge(cfg);
     this.gerritIdentProvider = gerritIdentProvider;
     this.configuredMergeStrategy = MergeUtil.getMergeStrategy(cfg);
+    this.inMemoryCache = inMemoryCache;
   }
 
   /**
@@ -124,6 +155,9 @@ public class AutoMerger {
    * exists for backwards compatibility only. All new changes have their auto-merge commits written
    * transactionally when the change or patch set is created.
    *
+   * <p>In-memory results are cached. On a cache hit the cached objects are inserted into {@code
+   * ins}, so that they can be read through {@code rw}, the same as if they had been computed.
+   *
    * @return auto-merge commit. Headers of the returned RevCommit are parsed.
    */
   public RevCommit lookupFromGitOrMergeInMemory(
@@ -140,11 +174,29 @@ public class AutoMerger {
       counter.increment(OperationType.CACHE_LOAD);
       return existingCommit.get();
     }
+
+    InMemoryAutoMergeKey key = InMemoryAutoMergeKey.create(merge, mergeStrategy.getName());
+    InMemoryAutoMerge cached = inMemoryCache.getIfPresent(key);
+    if (cached != null) {
+      counter.increment(OperationType.IN_MEMORY_CACHE_LOAD);
+      cached.insertedObjects().forEach(ins::insert);
+      return rw.parseCommit(cached.commitId());
+    }
+
     counter.increment(OperationType.IN_MEMORY_WRITE);
     logger.atInfo().log("Computing in-memory AutoMerge for " + merge.name());
-    try (Timer1.Context<OperationType> ignored = latency.start(OperationType.IN_MEMORY_WRITE)) {
-      return rw.parseCommit(createAutoMergeCommit(repo.getConfig(), rw, ins, merge, mergeStrategy));
+    InMemoryAutoMerge autoMerge;
+    // Use a separate inserter for the computation, so that we know exactly which objects belong to
+    // the auto-merge. Its reader still sees all objects of the caller's inserter.
+    try (Timer1.Context<OperationType> ignored = latency.start(OperationType.IN_MEMORY_WRITE);
+        InMemoryInserter autoMergeIns = new InMemoryInserter(rw.getObjectReader())) {
+      ObjectId commitId =
+          createAutoMergeCommit(repo.getConfig(), rw, autoMergeIns, merge, mergeStrategy);
+      autoMerge = InMemoryAutoMerge.create(commitId, autoMergeIns.getInsertedObjects());
     }
+    autoMerge.insertedObjects().forEach(ins::insert);
+    inMemoryCache.put(key, autoMerge);
+    return rw.parseCommit(autoMerge.commitId());
   }
 
   /**
@@ -263,6 +315,42 @@ public class AutoMerger {
     return Optional.empty();
   }
 
+  /** Key of an in-memory auto-merge: the merge commit and the name of the merge strategy. */
+  @AutoValue
+  abstract static class InMemoryAutoMergeKey {
+    static InMemoryAutoMergeKey create(ObjectId merge, String mergeStrategy) {
+      return new AutoValue_AutoMerger_InMemoryAutoMergeKey(merge.copy(), mergeStrategy);
+    }
+
+    abstract ObjectId merge();
+
+    abstract String mergeStrategy();
+  }
+
+  /** An auto-merge commit that was computed in-memory, along with all objects created for it. */
+  @AutoValue
+  abstract static class InMemoryAutoMerge {
+    static InMemoryAutoMerge create(ObjectId commitId, ImmutableList<InsertedObject> objects) {
+      return new AutoValue_AutoMerger_InMemoryAutoMerge(commitId.copy(), objects);
+    }
+
+    abstract ObjectId commitId();
+
+    abstract ImmutableList<InsertedObject> insertedObjects();
+  }
+
+  static class InMemoryAutoMergeWeigher
+      implements Weigher<InMemoryAutoMergeKey, InMemoryAutoMerge> {
+    @Override
+    public int weigh(InMemoryAutoMergeKey key, InMemoryAutoMerge value) {
+      int size = 20 * 2 + 2 * key.mergeStrategy().length();
+      for (InsertedObject obj : value.insertedObjects()) {
+        size += 20 + 4 + obj.data().size();
+      }
+      return size;
+    }
+  }
+
   private static class NonFlushingWrapper extends ObjectInserter.Filter {
     private final ObjectInserter ins;
 
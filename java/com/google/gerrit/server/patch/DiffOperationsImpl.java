@@ -38,6 +38,7 @@ import com.google.gerrit.server.patch.filediff.FileDiffCacheKey;
 import com.google.gerrit.server.patch.filediff.FileDiffOutput;
 import com.google.gerrit.server.patch.gitdiff.GitModifiedFilesCacheImpl;
 import com.google.gerrit.server.patch.gitdiff.ModifiedFile;
+import com.google.gerrit.server.patch.gitdiff.RenameDetectionCache;
 import com.google.gerrit.server.patch.gitfilediff.GitFileDiffCacheImpl;
 import com.google.gerrit.server.patch.gitfilediff.GitFileDiffCacheImpl.DiffAlgorithm;
 import com.google.inject.Inject;
@@ -75,6 +76,7 @@ public class DiffOperationsImpl implements DiffOperations {
         install(ModifiedFilesCacheImpl.module());
         install(GitFileDiffCacheImpl.module());
         install(FileDiffCacheImpl.module());
+        install(RenameDetectionCache.module());
       }
     };
   }
@@ -82,7 +82,7 @@ public class GitModifiedFilesCacheImpl implements GitModifiedFilesCache {
             .weigher(GitModifiedFilesWeigher.class)
             // The cache is using the default disk limit as per section cache.<name>.diskLimit
             // in the cache documentation link.
-            .version(1)
+            .version(2)
             .loader(GitModifiedFilesCacheImpl.Loader.class);
       }
     };
@@ -107,10 +107,12 @@ public class GitModifiedFilesCacheImpl implements GitModifiedFilesCache {
 
   static class Loader extends CacheLoader<GitModifiedFilesCacheKey, ImmutableList<ModifiedFile>> {
     private final GitRepositoryManager repoManager;
+    private final RenameDetectionCache renameDetectionCache;
 
     @Inject
-    Loader(GitRepositoryManager repoManager) {
+    Loader(GitRepositoryManager repoManager, RenameDetectionCache renameDetectionCache) {
       this.repoManager = repoManager;
+      this.renameDetectionCache = renameDetectionCache;
     }
 
     @Override
@@ -127,13 +129,21 @@ public class GitModifiedFilesCacheImpl implements GitModifiedFilesCache {
         Repository repo, ObjectReader reader, GitModifiedFilesCacheKey key) throws IOException {
       try (DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
         df.setReader(reader, repo.getConfig());
-        if (key.renameDetection()) {
-          df.setDetectRenames(true);
-          df.getRenameDetector().setRenameScore(key.renameScore());
-        }
         // The scan method only returns the file paths that are different. Callers may choose to
         // format these paths themselves.
-        return df.scan(key.aTree().equals(ObjectId.zeroId()) ? null : key.aTree(), key.bTree());
+        List<DiffEntry> entries =
+            df.scan(key.aTree().equals(ObjectId.zeroId()) ? null : key.aTree(), key.bTree());
+        if (!key.renameDetection()) {
+          return entries;
+        }
+        // Renames are detected with the same options as in the git file diff cache, so that both
+        // caches share the rename detection result.
+        return renameDetectionCache.detectRenames(
+            RenameDetectionCache.Key.create(
+                key.project(), key.aTree(), key.bTree(), key.renameScore(), true),
+            reader,
+            repo.getConfig(),
+            entries);
       }
     }
 
@@ -0,0 +1,195 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch.gitdiff;
+
+import static com.google.gerrit.server.patch.DiffUtil.stringSize;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+
+/**
+ * Cache for the result of rename detection between two git trees.
+ *
+ * <p>Rename detection reads and hashes the content of all added and deleted blobs of a tree diff to
+ * compute their similarity scores. Both the {@link GitModifiedFilesCacheImpl} and the {@link
+ * com.google.gerrit.server.patch.gitfilediff.GitFileDiffCacheImpl} loaders need renames for the
+ * same tree pairs, and the latter is invoked once per file path. This cache makes sure that the
+ * similarity scoring for a tree pair is done only once and that its result is shared by all
+ * loaders.
+ *
+ * <p>Values are JGit {@link DiffEntry} instances, hence this cache is in-memory only.
+ */
+@Singleton
+public class RenameDetectionCache {
+  private static final String CACHE_NAME = "diff_rename_detection";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, new TypeLiteral<ImmutableList<DiffEntry>>() {})
+            .maximumWeight(10 << 20)
+            .weigher(RenameDetectionWeigher.class);
+        bind(RenameDetectionCache.class);
+      }
+    };
+  }
+
+  private final Cache<Key, ImmutableList<DiffEntry>> cache;
+  private final Timer0 latency;
+  private final Counter0 overRenameLimit;
+
+  @Inject
+  RenameDetectionCache(
+      @Named(CACHE_NAME) Cache<Key, ImmutableList<DiffEntry>> cache, MetricMaker metricMaker) {
+    this.cache = cache;
+    this.latency =
+        metricMaker.newTimer(
+            "diff/rename_detection/latency",
+            new Description("Latency of detecting renames between two git trees")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    this.overRenameLimit =
+        metricMaker.newCounter(
+            "diff/rename_detection/over_rename_limit",
+            new Description(
+                    "Number of tree diffs for which content rename detection was skipped because"
+                        + " the number of candidates exceeded diff.renameLimit")
+                .setRate()
+                .setUnit("tree diffs"));
+  }
+
+  /**
+   * Detects renames and copies in the given diff entries. The result is computed at most once for
+   * the same {@code key}.
+   *
+   * @param key identifies the tree pair and the rename options.
+   * @param reader reader for loading the blobs if the result for {@code key} is not cached yet.
+   * @param repoConfig config of the repository, used to read the {@code diff} section.
+   * @param entries the diff entries of the tree pair identified by {@code key}, computed without
+   *     rename detection.
+   * @return the diff entries with detected renames and copies.
+   */
+  public ImmutableList<DiffEntry> detectRenames(
+      Key key, ObjectReader reader, Config repoConfig, List<DiffEntry> entries)
+      throws IOException {
+    if (entries.stream().noneMatch(e -> e.getChangeType() == ChangeType.ADD)
+        || entries.stream().noneMatch(e -> e.getChangeType() == ChangeType.DELETE)) {
+      // Without both additions and deletions there can't be any rename. Don't waste cache space.
+      return ImmutableList.copyOf(entries);
+    }
+    try {
+      return cache.get(key, () -> compute(key, reader, repoConfig, entries));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException(e.getMessage(), e.getCause());
+    }
+  }
+
+  private ImmutableList<DiffEntry> compute(
+      Key key, ObjectReader reader, Config repoConfig, List<DiffEntry> entries)
+      throws IOException {
+    try (Timer0.Context ignored = latency.start()) {
+      RenameDetector renameDetector = new RenameDetector(reader, repoConfig.get(DiffConfig.KEY));
+      renameDetector.setRenameScore(key.renameScore());
+      renameDetector.setSkipContentRenamesForBinaryFiles(key.skipContentRenamesForBinaryFiles());
+      renameDetector.addAll(entries);
+      ImmutableList<DiffEntry> result = ImmutableList.copyOf(renameDetector.compute());
+      if (renameDetector.isOverRenameLimit()) {
+        overRenameLimit.increment();
+      }
+      return result;
+    }
+  }
+
+  /** Key of the {@link RenameDetectionCache}. */
+  @AutoValue
+  public abstract static class Key {
+    public static Key create(
+        Project.NameKey project,
+        ObjectId oldTree,
+        ObjectId newTree,
+        int renameScore,
+        boolean skipContentRenamesForBinaryFiles) {
+      return new AutoValue_RenameDetectionCache_Key(
+          project, oldTree, newTree, renameScore, skipContentRenamesForBinaryFiles);
+    }
+
+    public abstract Project.NameKey project();
+
+    /**
+     * The old tree of the diff. Equals {@link ObjectId#zeroId()} if the new tree is diffed against
+     * an empty tree.
+     */
+    public abstract ObjectId oldTree();
+
+    public abstract ObjectId newTree();
+
+    /** Percentage score used to identify a file as a rename. */
+    public abstract int renameScore();
+
+    public abstract boolean skipContentRenamesForBinaryFiles();
+
+    /** Returns the size of the object in bytes */
+    int weight() {
+      return stringSize(project().get())
+          + 20 * 2 // old and new tree IDs
+          + 4 // rename score
+          + 1; // skip binary flag
+    }
+  }
+
+  static class RenameDetectionWeigher implements Weigher<Key, ImmutableList<DiffEntry>> {
+    @Override
+    public int weigh(Key key, ImmutableList<DiffEntry> entries) {
+      int size = key.weight();
+      for (DiffEntry e : entries) {
+        size +=
+            stringSize(e.getOldPath())
+                + stringSize(e.getNewPath())
+                + 20 * 2 // old and new blob IDs
+                + 4 * 2 // old and new file modes
+                + 4 // score
+                + 4; // change type
+      }
+      return size;
+    }
+  }
+}
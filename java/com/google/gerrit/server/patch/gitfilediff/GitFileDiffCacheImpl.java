@@ -40,6 +40,7 @@ import com.google.gerrit.server.logging.TraceContext;
 import com.google.gerrit.server.logging.TraceContext.TraceTimer;
 import com.google.gerrit.server.patch.DiffExecutor;
 import com.google.gerrit.server.patch.DiffNotAvailableException;
+import com.google.gerrit.server.patch.gitdiff.RenameDetectionCache;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
@@ -148,6 +149,7 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
                 : entry.getNewPath();
 
     private final GitRepositoryManager repoManager;
+    private final RenameDetectionCache renameDetectionCache;
     private final ExecutorService diffExecutor;
     private final long timeoutMillis;
 
@@ -155,8 +157,10 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
     public Loader(
         @GerritServerConfig Config cfg,
         GitRepositoryManager repoManager,
+        RenameDetectionCache renameDetectionCache,
         @DiffExecutor ExecutorService de) {
       this.repoManager = repoManager;
+      this.renameDetectionCache = renameDetectionCache;
       this.diffExecutor = de;
       this.timeoutMillis =
           ConfigUtil.getTimeUnit(
@@ -206,7 +210,8 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
 
             for (Map.Entry<DiffOptions, List<GitFileDiffCacheKey>> group :
                 optionsGroups.entrySet()) {
-              result.putAll(loadAllImpl(repo, reader, group.getKey(), group.getValue()));
+              result.putAll(
+                  loadAllImpl(entry.getKey(), repo, reader, group.getKey(), group.getValue()));
             }
           }
         }
@@ -221,7 +226,11 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
      * @return The git file diffs for all input keys.
      */
     private Map<GitFileDiffCacheKey, GitFileDiff> loadAllImpl(
-        Repository repo, ObjectReader reader, DiffOptions options, List<GitFileDiffCacheKey> keys)
+        Project.NameKey project,
+        Repository repo,
+        ObjectReader reader,
+        DiffOptions options,
+        List<GitFileDiffCacheKey> keys)
         throws IOException, DiffNotAvailableException {
       ImmutableMap.Builder<GitFileDiffCacheKey, GitFileDiff> result =
           ImmutableMap.builderWithExpectedSize(keys.size());
@@ -229,7 +238,7 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
           keys.stream().collect(Collectors.toMap(identity(), GitFileDiffCacheKey::newFilePath));
       DiffFormatter formatter = createDiffFormatter(options, repo, reader);
       ListMultimap<String, DiffEntry> diffEntries =
-          loadDiffEntries(formatter, options, filePaths.values());
+          loadDiffEntries(project, repo, reader, formatter, options, filePaths.values());
       for (GitFileDiffCacheKey key : filePaths.keySet()) {
         String newFilePath = filePaths.get(key);
         if (!diffEntries.containsKey(newFilePath)) {
@@ -259,14 +268,35 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
       return result.build();
     }
 
-    private static ListMultimap<String, DiffEntry> loadDiffEntries(
-        DiffFormatter diffFormatter, DiffOptions diffOptions, Collection<String> filePaths)
+    private ListMultimap<String, DiffEntry> loadDiffEntries(
+        Project.NameKey project,
+        Repository repo,
+        ObjectReader reader,
+        DiffFormatter diffFormatter,
+        DiffOptions diffOptions,
+        Collection<String> filePaths)
         throws IOException {
       Set<String> filePathsSet = ImmutableSet.copyOf(filePaths);
       List<DiffEntry> diffEntries =
           diffFormatter.scan(
               diffOptions.oldTree().equals(ObjectId.zeroId()) ? null : diffOptions.oldTree(),
               diffOptions.newTree());
+      if (diffOptions.renameScore() != -1) {
+        // Rename detection is not done by the diff formatter but through the rename detection
+        // cache, which shares its results across all file paths and with the git modified files
+        // cache.
+        diffEntries =
+            renameDetectionCache.detectRenames(
+                RenameDetectionCache.Key.create(
+                    project,
+                    diffOptions.oldTree(),
+                    diffOptions.newTree(),
+                    diffOptions.renameScore(),
+                    true),
+                reader,
+                repo.getConfig(),
+                diffEntries);
+      }
 
       return diffEntries.stream()
           .filter(d -> filePathsSet.contains(pathExtractor.apply(d)))
@@ -283,12 +313,7 @@ public class GitFileDiffCacheImpl implements GitFileDiffCache {
         diffFormatter.setReader(reader, repo.getConfig());
         RawTextComparator cmp = comparatorFor(diffOptions.whitespace());
         diffFormatter.setDiffComparator(cmp);
-        if (diffOptions.renameScore() != -1) {
-          diffFormatter.setDetectRenames(true);
-          diffFormatter.getRenameDetector().setRenameScore(diffOptions.renameScore());
-        }
         diffFormatter.setDiffAlgorithm(DiffAlgorithmFactory.create(diffOptions.diffAlgorithm()));
-        diffFormatter.getRenameDetector().setSkipContentRenamesForBinaryFiles(true);
         return diffFormatter;
       }
     }
@@ -561,6 +561,15 @@ public class ChangeData {
     return labelTypes;
   }
 
+  /**
+   * Sets the label types of the change, e.g. to share them between changes of the same branch.
+   *
+   * @param labelTypes label types that apply to the destination branch of the change
+   */
+  public void setLabelTypes(LabelTypes labelTypes) {
+    this.labelTypes = labelTypes;
+  }
+
   public ChangeNotes notes() {
     if (notes == null) {
       if (!lazyload()) {
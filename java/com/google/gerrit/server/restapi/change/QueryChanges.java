@@ -14,52 +14,91 @@
 
 package com.google.gerrit.server.restapi.change;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.MoreObjects;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SortedSetMultimap;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.client.ListChangesOption;
 import com.google.gerrit.extensions.client.ListOption;
 import com.google.gerrit.extensions.common.ChangeInfo;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ETagView;
 import com.google.gerrit.extensions.restapi.Response;
-import com.google.gerrit.extensions.restapi.RestReadView;
 import com.google.gerrit.extensions.restapi.TopLevelResource;
 import com.google.gerrit.index.query.QueryParseException;
 import com.google.gerrit.index.query.QueryRequiresAuthException;
 import com.google.gerrit.index.query.QueryResult;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.DynamicOptions;
+import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.change.ChangeETagComputation;
 import com.google.gerrit.server.change.ChangeJson;
+import com.google.gerrit.server.change.ChangeResource;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.permissions.GlobalPermission;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.plugincontext.PluginSetContext;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.ChangeQueryBuilder;
 import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
 import org.kohsuke.args4j.Option;
 
-public class QueryChanges implements RestReadView<TopLevelResource>, DynamicOptions.BeanReceiver {
+public class QueryChanges implements ETagView<TopLevelResource>, DynamicOptions.BeanReceiver {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+  private static final String ZERO_ID_STRING = ObjectId.zeroId().name();
+
   private final ChangeJson.Factory json;
   private final ChangeQueryBuilder qb;
   private final Provider<ChangeQueryProcessor> queryProcessorProvider;
   private final HashMap<String, DynamicOptions.DynamicBean> dynamicBeans = new HashMap<>();
   private final Provider<CurrentUser> userProvider;
   private final PermissionBackend permissionBackend;
+  private final AccountCache accountCache;
+  private final ProjectCache projectCache;
+  private final GitRepositoryManager repoManager;
+  private final PluginSetContext<ChangeETagComputation> changeETagComputation;
+  private final int streamingThreshold;
+  private final boolean eTagsEnabled;
   private EnumSet<ListChangesOption> options;
   private Integer limit;
   private Integer start;
   private Boolean noLimit;
   private Boolean skipVisibility;
 
+  private ChangeQueryProcessor queryProcessor;
+  private List<QueryResult<ChangeData>> results;
+  private Optional<String> eTag;
+
   @Option(
       name = "--query",
       aliases = {"-q"},
@@ -120,12 +159,23 @@ public class QueryChanges implements RestReadView<TopLevelResource>, DynamicOpti
       ChangeQueryBuilder qb,
       Provider<ChangeQueryProcessor> queryProcessorProvider,
       Provider<CurrentUser> userProvider,
-      PermissionBackend permissionBackend) {
+      PermissionBackend permissionBackend,
+      AccountCache accountCache,
+      ProjectCache projectCache,
+      GitRepositoryManager repoManager,
+      PluginSetContext<ChangeETagComputation> changeETagComputation,
+      @GerritServerConfig Config cfg) {
     this.json = json;
     this.qb = qb;
     this.queryProcessorProvider = queryProcessorProvider;
     this.userProvider = userProvider;
     this.permissionBackend = permissionBackend;
+    this.accountCache = accountCache;
+    this.projectCache = projectCache;
+    this.repoManager = repoManager;
+    this.changeETagComputation = changeETagComputation;
+    this.streamingThreshold = cfg.getInt("change", "queryResultStreamingThreshold", 0);
+    this.eTagsEnabled = cfg.getBoolean("change", "queryETags", true);
 
     options = EnumSet.noneOf(ListChangesOption.class);
   }
@@ -153,11 +203,147 @@ public class QueryChanges implements RestReadView<TopLevelResource>, DynamicOpti
       logger.atFine().withCause(e).log("Reject change query with 400 Bad Request: %s", queries);
       throw new BadRequestException(e.getMessage(), e);
     }
-    return Response.ok(out.size() == 1 ? out.get(0) : out);
+    List<?> value = out.size() == 1 ? out.get(0) : out;
+    // The ETag is computed from the results of the query, see getETag.
+    return eTagsEnabled ? Response.withMustRevalidate(value) : Response.ok(value);
   }
 
-  private List<List<ChangeInfo>> query() throws QueryParseException, PermissionBackendException {
-    ChangeQueryProcessor queryProcessor = queryProcessorProvider.get();
+  /**
+   * Returns the ETag of the query results.
+   *
+   * <p>The ETag is computed from the data that is stored in the change index: the IDs of the
+   * matching changes and the states of their refs. In addition it covers the state of the calling
+   * user that is relevant for visibility, the states of the accounts that are shown in the results,
+   * the configs of the projects of the changes and the tips of their destination branches. The
+   * query is executed only once per request, so that the results that are formatted by {@link
+   * #apply(TopLevelResource)} are the ones the ETag was computed for.
+   *
+   * <p>Returns {@code null} if no ETag can be computed, e.g. because the query is invalid or
+   * because the results depend on state that is not covered by the ETag.
+   */
+  @Override
+  public String getETag(TopLevelResource rsrc) {
+    if (eTag == null) {
+      eTag = Optional.ofNullable(computeETag());
+    }
+    return eTag.orElse(null);
+  }
+
+  private String computeETag() {
+    if (!eTagsEnabled
+        || !dynamicBeans.isEmpty()
+        || options.contains(ListChangesOption.CHECK)
+        || Boolean.TRUE.equals(skipVisibility)) {
+      return null;
+    }
+
+    List<QueryResult<ChangeData>> res;
+    try {
+      res = results();
+    } catch (QueryParseException | PermissionBackendException e) {
+      // apply() runs the query again and reports the error to the caller.
+      logger.atFine().withCause(e).log("Cannot compute ETag for change query %s", queries);
+      return null;
+    }
+
+    Hasher h = Hashing.murmur3_128().newHasher();
+    h.putInt(ChangeResource.JSON_FORMAT_VERSION);
+    options.forEach(o -> h.putInt(o.getValue()));
+    CurrentUser user = userProvider.get();
+    h.putInt(user.isIdentifiedUser() ? user.getAccountId().get() : 0);
+    if (user.isIdentifiedUser()) {
+      // The order in which the groups are returned is not defined.
+      for (AccountGroup.UUID uuid : new TreeSet<>(user.getEffectiveGroups().getKnownGroups())) {
+        h.putString(uuid.get(), UTF_8);
+      }
+    }
+
+    Set<Account.Id> accounts = new TreeSet<>();
+    Set<Project.NameKey> projects = new TreeSet<>();
+    SortedSetMultimap<Project.NameKey, String> branches =
+        MultimapBuilder.treeKeys().treeSetValues().build();
+    for (QueryResult<ChangeData> r : res) {
+      h.putInt(r.entities().size()).putBoolean(r.more());
+      for (ChangeData cd : r.entities()) {
+        h.putInt(cd.getId().get());
+        // The ref states of the change are stored in the index. They include the NoteDb meta ref,
+        // drafts, edits and stars, hence every update of the change changes the ETag.
+        if (cd.getRefStates().isEmpty()) {
+          return null;
+        }
+        cd.getRefStates().entries().forEach(e -> h.putBytes(e.getValue().toByteArray(e.getKey())));
+
+        accounts.add(cd.change().getOwner());
+        if (cd.change().getAssignee() != null) {
+          accounts.add(cd.change().getAssignee());
+        }
+        accounts.addAll(cd.reviewers().all());
+        projects.add(cd.project());
+        branches.put(cd.project(), cd.change().getDest().branch());
+
+        changeETagComputation.runEach(
+            c -> {
+              String pluginETag = c.getETag(cd.project(), cd.getId());
+              if (pluginETag != null) {
+                h.putString(pluginETag, UTF_8);
+              }
+            });
+      }
+    }
+
+    for (Account.Id accountId : accounts) {
+      h.putInt(accountId.get());
+      Optional<AccountState> accountState = accountCache.get(accountId);
+      if (accountState.isPresent()) {
+        h.putString(
+            MoreObjects.firstNonNull(accountState.get().account().metaId(), ZERO_ID_STRING),
+            UTF_8);
+        accountState.get().externalIds().forEach(e -> h.putString(idOf(e.blobId()), UTF_8));
+      }
+    }
+
+    for (Project.NameKey project : projects) {
+      Optional<ProjectState> projectState = projectCache.get(project);
+      if (!projectState.isPresent()) {
+        return null;
+      }
+      for (ProjectState p : projectState.get().tree()) {
+        h.putString(p.getConfig().getRevision().map(ObjectId::name).orElse(ZERO_ID_STRING), UTF_8);
+      }
+    }
+
+    // The results depend on the destination branches of the changes, e.g. whether a change is
+    // mergeable or needs a rebase, which isn't covered by the ref states of the changes.
+    for (Project.NameKey project : branches.keySet()) {
+      try (Repository repo = repoManager.openRepository(project)) {
+        for (String branch : branches.get(project)) {
+          Ref ref = repo.exactRef(branch);
+          h.putString(ref != null ? idOf(ref.getObjectId()) : ZERO_ID_STRING, UTF_8);
+        }
+      } catch (IOException e) {
+        logger.atFine().withCause(e).log("Cannot compute ETag for change query %s", queries);
+        return null;
+      }
+    }
+    return h.hash().toString();
+  }
+
+  private static String idOf(ObjectId id) {
+    return MoreObjects.firstNonNull(id, ObjectId.zeroId()).name();
+  }
+
+  /** Runs the query, or returns the results of the query if it was already run. */
+  private List<QueryResult<ChangeData>> results()
+      throws QueryParseException, PermissionBackendException {
+    if (results == null) {
+      results = runQuery();
+    }
+    return results;
+  }
+
+  private List<QueryResult<ChangeData>> runQuery()
+      throws QueryParseException, PermissionBackendException {
+    queryProcessor = queryProcessorProvider.get();
     if (queryProcessor.isDisabled()) {
       throw new QueryParseException("query disabled");
     }
@@ -184,8 +370,17 @@ public class QueryChanges implements RestReadView<TopLevelResource>, DynamicOpti
       throw new QueryParseException("limit of 10 queries");
     }
 
+    return queryProcessor.query(qb.parse(queries));
+  }
+
+  private List<List<ChangeInfo>> query() throws QueryParseException, PermissionBackendException {
+    List<QueryResult<ChangeData>> results = results();
     int cnt = queries.size();
-    List<QueryResult<ChangeData>> results = queryProcessor.query(qb.parse(queries));
+    if (streamingThreshold > 0
+        && results.stream().mapToInt(r -> r.entities().size()).sum() >= streamingThreshold) {
+      // Format the changes while the response is written, _moreChanges is set by ChangeJson.
+      return json.create(options, queryProcessor.getInfosFactory()).formatStreaming(results);
+    }
     List<List<ChangeInfo>> res =
         json.create(options, queryProcessor.getInfosFactory()).format(results);
     for (int n = 0; n < cnt; n++) {
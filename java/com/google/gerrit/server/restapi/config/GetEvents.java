@@ -0,0 +1,101 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.restapi.config;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.events.EventLog;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.args4j.Option;
+
+/** Replays the events from the {@link EventLog} that are visible to the calling user. */
+@RequiresCapability(GlobalCapability.STREAM_EVENTS)
+public class GetEvents implements RestReadView<ConfigResource> {
+  private static final int DEFAULT_LIMIT = 100;
+  private static final int MAX_LIMIT = 10000;
+
+  private final EventLog eventLog;
+  private final Provider<CurrentUser> self;
+
+  @Option(name = "--from", metaVar = "OFFSET", usage = "offset of the first event to return")
+  private long from;
+
+  @Option(
+      name = "--since",
+      metaVar = "SECONDS",
+      usage = "return only events that were logged after this time, in seconds since the epoch")
+  private long since;
+
+  @Option(
+      name = "--limit",
+      aliases = {"-n"},
+      metaVar = "CNT",
+      usage = "maximum number of events to return")
+  private int limit = DEFAULT_LIMIT;
+
+  @Inject
+  GetEvents(EventLog eventLog, Provider<CurrentUser> self) {
+    this.eventLog = eventLog;
+    this.self = self;
+  }
+
+  @Override
+  public Response<ImmutableList<EventLogInfo>> apply(ConfigResource rsrc)
+      throws ResourceNotFoundException, BadRequestException, IOException,
+          PermissionBackendException {
+    if (!eventLog.isEnabled()) {
+      throw new ResourceNotFoundException("event log is disabled");
+    }
+    if (from < 0 || since < 0 || limit <= 0) {
+      throw new BadRequestException("from and since must not be negative, limit must be positive");
+    }
+    return Response.ok(
+        eventLog
+            .replay(
+                self.get(),
+                from,
+                TimeUnit.SECONDS.toMillis(since),
+                Math.min(limit, MAX_LIMIT),
+                e -> true)
+            .stream()
+            .map(r -> new EventLogInfo(r.offset, new JsonParser().parse(r.json)))
+            .collect(toImmutableList()));
+  }
+
+  public static class EventLogInfo {
+    public long offset;
+    public JsonElement event;
+
+    EventLogInfo(long offset, JsonElement event) {
+      this.offset = offset;
+      this.event = event;
+    }
+  }
+}
@@ -0,0 +1,218 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.restapi.config;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.logging.RunningRequests;
+import com.google.gerrit.server.logging.RunningRequests.Request;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Samples the stack traces of all threads that are executing a request for a bounded time window
+ * and returns them aggregated by the operation of the request (REST view, SSH command or git
+ * operation).
+ *
+ * <p>Stack traces are returned in the folded format that is understood by common flame graph
+ * tools. Threads are sampled regardless of their state, hence the result shows where requests spend
+ * their wall-clock time, including time spent waiting.
+ */
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+public class GetProfile implements RestReadView<ConfigResource> {
+  static final int MAX_DURATION_SECONDS = 60;
+  private static final int MAX_REQUEST_IDS = 10;
+
+  // At most one profiler should run at a time to bound the overhead.
+  private static final AtomicBoolean running = new AtomicBoolean();
+
+  @Option(
+      name = "--duration",
+      metaVar = "SECONDS",
+      usage = "how long to sample request threads (at most 60 seconds)")
+  private int durationSeconds = 10;
+
+  public GetProfile setDurationSeconds(int durationSeconds) {
+    this.durationSeconds = durationSeconds;
+    return this;
+  }
+
+  @Option(
+      name = "--interval",
+      metaVar = "MILLISECONDS",
+      usage = "time between two samples of the request threads")
+  private int intervalMs = 20;
+
+  public GetProfile setIntervalMs(int intervalMs) {
+    this.intervalMs = intervalMs;
+    return this;
+  }
+
+  @Option(name = "--max-depth", metaVar = "FRAMES", usage = "maximum number of sampled frames")
+  private int maxDepth = 128;
+
+  public GetProfile setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+    return this;
+  }
+
+  @Override
+  public Response<ProfileInfo> apply(ConfigResource rsrc)
+      throws BadRequestException, ResourceConflictException {
+    if (durationSeconds < 1 || durationSeconds > MAX_DURATION_SECONDS) {
+      throw new BadRequestException(
+          String.format("duration must be between 1 and %d seconds", MAX_DURATION_SECONDS));
+    }
+    if (intervalMs < 1) {
+      throw new BadRequestException("interval must be positive");
+    }
+    if (maxDepth < 1) {
+      throw new BadRequestException("max-depth must be positive");
+    }
+    if (!running.compareAndSet(false, true)) {
+      throw new ResourceConflictException("profiler is already running");
+    }
+    try {
+      return Response.ok(profile());
+    } finally {
+      running.set(false);
+    }
+  }
+
+  private ProfileInfo profile() {
+    ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+    Thread self = Thread.currentThread();
+    Map<String, OperationSamples> byOperation = new TreeMap<>();
+    int rounds = 0;
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+    while (System.nanoTime() < end) {
+      List<Map.Entry<Thread, Request>> requests = new ArrayList<>();
+      for (Map.Entry<Thread, Request> e : RunningRequests.snapshot().entrySet()) {
+        if (e.getKey() != self) {
+          requests.add(e);
+        }
+      }
+      long[] ids = requests.stream().mapToLong(e -> e.getKey().getId()).toArray();
+      ThreadInfo[] infos = threadMxBean.getThreadInfo(ids, maxDepth);
+      for (int i = 0; i < infos.length; i++) {
+        if (infos[i] == null || infos[i].getStackTrace().length == 0) {
+          // The thread terminated in the meantime or has no Java frames.
+          continue;
+        }
+        Request request = requests.get(i).getValue();
+        byOperation
+            .computeIfAbsent(operation(request), k -> new OperationSamples())
+            .add(request, infos[i].getStackTrace());
+      }
+      rounds++;
+
+      try {
+        Thread.sleep(intervalMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    ProfileInfo info = new ProfileInfo();
+    info.durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    info.intervalMs = intervalMs;
+    info.rounds = rounds;
+    info.operations = new TreeMap<>();
+    byOperation.forEach((operation, samples) -> info.operations.put(operation, samples.toInfo()));
+    return info;
+  }
+
+  private static String operation(Request request) {
+    String operation = request.getOperation();
+    return request.getRequestType() + " " + (operation != null ? operation : "unknown");
+  }
+
+  /** Folds a stack trace into a single line, starting with the outermost frame. */
+  private static String fold(StackTraceElement[] stack) {
+    StringBuilder folded = new StringBuilder();
+    for (int i = stack.length - 1; i >= 0; i--) {
+      if (folded.length() > 0) {
+        folded.append(';');
+      }
+      folded.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+    }
+    return folded.toString();
+  }
+
+  private static class OperationSamples {
+    private final Map<String, Integer> stacks = new HashMap<>();
+    private final Set<Request> requests = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<String> requestIds = new LinkedHashSet<>();
+    private int samples;
+
+    void add(Request request, StackTraceElement[] stack) {
+      samples++;
+      stacks.merge(fold(stack), 1, Integer::sum);
+      if (requests.add(request) && requestIds.size() < MAX_REQUEST_IDS) {
+        request.getRequestIds().forEach((type, id) -> requestIds.add(type + "=" + id));
+      }
+    }
+
+    OperationProfileInfo toInfo() {
+      OperationProfileInfo info = new OperationProfileInfo();
+      info.samples = samples;
+      info.requests = requests.size();
+      info.requestIds = requestIds.isEmpty() ? null : new ArrayList<>(requestIds);
+      info.stacks =
+          stacks.entrySet().stream()
+              .sorted(comparing(Map.Entry<String, Integer>::getValue).reversed())
+              .map(e -> e.getKey() + " " + e.getValue())
+              .collect(toList());
+      return info;
+    }
+  }
+
+  public static class ProfileInfo {
+    public Long durationMs;
+    public Integer intervalMs;
+    public Integer rounds;
+    public Map<String, OperationProfileInfo> operations;
+  }
+
+  public static class OperationProfileInfo {
+    public Integer samples;
+    public Integer requests;
+    public List<String> requestIds;
+    public List<String> stacks;
+  }
+}
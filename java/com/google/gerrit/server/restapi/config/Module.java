@@ -36,6 +36,8 @@ public class Module extends RestApiModule {
     child(CONFIG_KIND, "top-menus").to(TopMenuCollection.class);
     get(CONFIG_KIND, "version").to(GetVersion.class);
     get(CONFIG_KIND, "info").to(GetServerInfo.class);
+    get(CONFIG_KIND, "profile").to(GetProfile.class);
+    get(CONFIG_KIND, "events").to(GetEvents.class);
     post(CONFIG_KIND, "check.consistency").to(CheckConsistency.class);
     post(CONFIG_KIND, "index.changes").to(IndexChanges.class);
     post(CONFIG_KIND, "reload").to(ReloadConfig.class);
@@ -18,6 +18,7 @@ import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.server.git.CodeReviewCommit;
 import com.google.gerrit.server.submit.MergeOpRepoManager.OpenRepo;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -29,7 +30,9 @@ import org.eclipse.jgit.lib.Ref;
  */
 class BranchTips {
 
-  private final Map<BranchNameKey, CodeReviewCommit> branchTips = new HashMap<>();
+  // Submit strategies of independent projects may record their tips concurrently.
+  private final Map<BranchNameKey, CodeReviewCommit> branchTips =
+      Collections.synchronizedMap(new HashMap<>());
 
   /**
    * Returns current tip of the branch, taking into account commits created during the submit
@@ -16,6 +16,7 @@ package com.google.gerrit.server.submit;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static java.util.Comparator.comparing;
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toSet;
@@ -30,6 +31,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.common.Nullable;
@@ -57,9 +59,11 @@ import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.ChangeMessagesUtil;
 import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.FanOutExecutor;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.InternalUser;
 import com.google.gerrit.server.change.NotifyResolver;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.CodeReviewCommit;
 import com.google.gerrit.server.git.MergeTip;
 import com.google.gerrit.server.git.validators.MergeValidationException;
@@ -91,16 +95,19 @@ import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
@@ -140,8 +147,12 @@ public class MergeOp implements AutoCloseable {
         bb.put(cd.change().getDest(), cd.getId());
       }
       byBranch = bb.build();
-      commits = new HashMap<>();
-      problems = MultimapBuilder.treeKeys(comparing(Change.Id::get)).arrayListValues(1).build();
+      // Repositories of independent projects may be integrated concurrently, see
+      // MergeOp#getConcurrentProjects.
+      commits = Collections.synchronizedMap(new HashMap<>());
+      problems =
+          Multimaps.synchronizedListMultimap(
+              MultimapBuilder.treeKeys(comparing(Change.Id::get)).arrayListValues(1).build());
       this.allowClosed = allowClosed;
     }
 
@@ -242,6 +253,8 @@ public class MergeOp implements AutoCloseable {
   private final RetryHelper retryHelper;
   private final ChangeData.Factory changeDataFactory;
   private final StoreSubmitRequirementsOp.Factory storeSubmitRequirementsOpFactory;
+  private final ExecutorService fanOutExecutor;
+  private final boolean integrateProjectsInParallel;
 
   // Changes that were updated by this MergeOp.
   private final Map<Change.Id, Change> updatedChanges;
@@ -276,7 +289,9 @@ public class MergeOp implements AutoCloseable {
       TopicMetrics topicMetrics,
       RetryHelper retryHelper,
       ChangeData.Factory changeDataFactory,
-      StoreSubmitRequirementsOp.Factory storeSubmitRequirementsOpFactory) {
+      StoreSubmitRequirementsOp.Factory storeSubmitRequirementsOpFactory,
+      @FanOutExecutor ExecutorService fanOutExecutor,
+      @GerritServerConfig Config cfg) {
     this.cmUtil = cmUtil;
     this.batchUpdateFactory = batchUpdateFactory;
     this.internalUserFactory = internalUserFactory;
@@ -294,6 +309,9 @@ public class MergeOp implements AutoCloseable {
     this.changeDataFactory = changeDataFactory;
     this.updatedChanges = new HashMap<>();
     this.storeSubmitRequirementsOpFactory = storeSubmitRequirementsOpFactory;
+    this.fanOutExecutor = fanOutExecutor;
+    this.integrateProjectsInParallel =
+        cfg.getBoolean("change", "integrateProjectsInParallel", false);
   }
 
   @Override
@@ -673,6 +691,10 @@ public class MergeOp implements AutoCloseable {
       try {
         submissionExecutor.setAdditionalBatchUpdateListeners(
             ImmutableList.of(new SubmitStrategyListener(submitInput, strategies, commitStatus)));
+        if (integrateProjectsInParallel) {
+          submissionExecutor.setConcurrentProjects(
+              fanOutExecutor, getConcurrentProjects(subscriptionGraph));
+        }
         submissionExecutor.execute(batchUpdates);
       } finally {
         // If the BatchUpdate fails it can be that merging some of the changes was actually
@@ -715,6 +737,21 @@ public class MergeOp implements AutoCloseable {
     }
   }
 
+  /**
+   * Returns the projects that can be integrated concurrently with all other projects.
+   *
+   * <p>These are all projects that are neither a superproject nor a submodule of any updated
+   * branch. Integrating a superproject requires the new tips of its submodules, hence the projects
+   * of the subscription graph are integrated sequentially in submodule traversal order.
+   */
+  private ImmutableSet<Project.NameKey> getConcurrentProjects(SubscriptionGraph subscriptionGraph) {
+    Set<Project.NameKey> dependent = new HashSet<>(subscriptionGraph.getAffectedSuperProjects());
+    subscriptionGraph.getSortedSuperprojectAndSubmoduleBranches().stream()
+        .map(BranchNameKey::project)
+        .forEach(dependent::add);
+    return allProjects.stream().filter(p -> !dependent.contains(p)).collect(toImmutableSet());
+  }
+
   public Set<Project.NameKey> getAllProjects() {
     return allProjects;
   }
@@ -191,7 +191,8 @@ public class MergeOpRepoManager implements AutoCloseable {
     this.notify = requireNonNull(notify);
   }
 
-  public OpenRepo getRepo(Project.NameKey project) throws NoSuchProjectException, IOException {
+  public synchronized OpenRepo getRepo(Project.NameKey project)
+      throws NoSuchProjectException, IOException {
     if (openRepos.containsKey(project)) {
       return openRepos.get(project);
     }
@@ -20,6 +20,7 @@ import static com.google.common.collect.ImmutableMultiset.toImmutableMultiset;
 import static com.google.common.flogger.LazyArgs.lazy;
 import static java.util.Comparator.comparing;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toSet;
 
@@ -27,12 +28,14 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.Multiset;
 import com.google.common.flogger.FluentLogger;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Change;
@@ -53,6 +56,7 @@ import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.validators.OnSubmitValidators;
 import com.google.gerrit.server.index.change.ChangeIndexer;
+import com.google.gerrit.server.logging.LoggingContext;
 import com.google.gerrit.server.logging.Metadata;
 import com.google.gerrit.server.logging.RequestId;
 import com.google.gerrit.server.logging.TraceContext;
@@ -65,6 +69,8 @@ import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.NoSuchRefException;
 import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.assistedinject.Assisted;
@@ -80,6 +86,9 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.ObjectInserter;
@@ -130,7 +139,37 @@ public class BatchUpdate implements AutoCloseable {
   public static void execute(
       Collection<BatchUpdate> updates, ImmutableList<BatchUpdateListener> listeners, boolean dryrun)
       throws UpdateException, RestApiException {
+    execute(updates, listeners, dryrun, null, ImmutableSet.of());
+  }
+
+  /**
+   * Executes the given updates like {@link #execute(Collection, ImmutableList, boolean)}, but runs
+   * the repository update phase of the updates for {@code concurrentProjects} concurrently on
+   * {@code executor}.
+   *
+   * <p>The repository updates of all other projects are executed sequentially on the calling
+   * thread, in the iteration order of {@code updates}. All remaining phases, in particular the ref
+   * updates, are executed as usual only after the repository updates of all projects have
+   * succeeded.
+   *
+   * @param updates the updates to execute.
+   * @param listeners listeners to notify about the progress of the execution.
+   * @param dryrun whether this is a dry run.
+   * @param executor executor for the concurrent repository updates; if null, all repository
+   *     updates are executed sequentially.
+   * @param concurrentProjects projects for which the repository updates can be executed
+   *     concurrently. The ops of the updates of these projects must neither depend on the
+   *     repository update of any other project nor on any state that is not thread-safe.
+   */
+  public static void execute(
+      Collection<BatchUpdate> updates,
+      ImmutableList<BatchUpdateListener> listeners,
+      boolean dryrun,
+      @Nullable ExecutorService executor,
+      ImmutableSet<Project.NameKey> concurrentProjects)
+      throws UpdateException, RestApiException {
     requireNonNull(listeners);
+    requireNonNull(concurrentProjects);
     if (updates.isEmpty()) {
       return;
     }
@@ -141,9 +180,7 @@ public class BatchUpdate implements AutoCloseable {
       List<ListenableFuture<ChangeData>> indexFutures = new ArrayList<>();
       List<ChangesHandle> changesHandles = new ArrayList<>(updates.size());
       try {
-        for (BatchUpdate u : updates) {
-          u.executeUpdateRepo();
-        }
+        executeUpdateRepos(updates, executor, concurrentProjects);
         notifyAfterUpdateRepo(listeners);
         for (BatchUpdate u : updates) {
           changesHandles.add(u.executeChangeOps(listeners, dryrun));
@@ -181,6 +218,69 @@ public class BatchUpdate implements AutoCloseable {
     }
   }
 
+  private static void executeUpdateRepos(
+      Collection<BatchUpdate> updates,
+      @Nullable ExecutorService executor,
+      ImmutableSet<Project.NameKey> concurrentProjects)
+      throws UpdateException, RestApiException {
+    List<BatchUpdate> concurrent =
+        executor != null
+            ? updates.stream().filter(u -> concurrentProjects.contains(u.project)).collect(toList())
+            : ImmutableList.of();
+    if (concurrent.size() < 2) {
+      for (BatchUpdate u : updates) {
+        u.executeUpdateRepo();
+      }
+      return;
+    }
+
+    logDebug("Executing updateRepo of %d projects concurrently", concurrent.size());
+    List<Future<Void>> futures = new ArrayList<>(concurrent.size());
+    for (BatchUpdate u : concurrent) {
+      futures.add(
+          executor.submit(
+              LoggingContext.copy(
+                  () -> {
+                    try (ManualRequestContext ctx =
+                        new ManualRequestContext(u.user, u.requestContext)) {
+                      u.executeUpdateRepo();
+                    }
+                    return null;
+                  })));
+    }
+    try {
+      for (BatchUpdate u : updates) {
+        if (!concurrentProjects.contains(u.project)) {
+          u.executeUpdateRepo();
+        }
+      }
+    } finally {
+      // Wait for all concurrent updates, even if a sequential one failed, so that no op is still
+      // running when the caller closes the repositories.
+      awaitUpdateRepos(futures);
+    }
+  }
+
+  private static void awaitUpdateRepos(List<Future<Void>> futures)
+      throws UpdateException, RestApiException {
+    Throwable failure = null;
+    for (Future<Void> f : futures) {
+      try {
+        Uninterruptibles.getUninterruptibly(f);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure != null) {
+      Throwables.throwIfInstanceOf(failure, UpdateException.class);
+      Throwables.throwIfInstanceOf(failure, RestApiException.class);
+      Throwables.throwIfUnchecked(failure);
+      throw new UpdateException(failure);
+    }
+  }
+
   private static void notifyAfterUpdateRepo(ImmutableList<BatchUpdateListener> listeners)
       throws Exception {
     for (BatchUpdateListener listener : listeners) {
@@ -375,6 +475,7 @@ public class BatchUpdate implements AutoCloseable {
   private final NoteDbUpdateManager.Factory updateManagerFactory;
   private final ChangeIndexer indexer;
   private final GitReferenceUpdated gitRefUpdated;
+  private final ThreadLocalRequestContext requestContext;
 
   private final Project.NameKey project;
   private final CurrentUser user;
@@ -405,6 +506,7 @@ public class BatchUpdate implements AutoCloseable {
       NoteDbUpdateManager.Factory updateManagerFactory,
       ChangeIndexer indexer,
       GitReferenceUpdated gitRefUpdated,
+      ThreadLocalRequestContext requestContext,
       @Assisted Project.NameKey project,
       @Assisted CurrentUser user,
       @Assisted Timestamp when) {
@@ -415,6 +517,7 @@ public class BatchUpdate implements AutoCloseable {
     this.updateManagerFactory = updateManagerFactory;
     this.indexer = indexer;
     this.gitRefUpdated = gitRefUpdated;
+    this.requestContext = requestContext;
     this.project = project;
     this.user = user;
     this.when = when;
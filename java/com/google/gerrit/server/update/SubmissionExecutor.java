@@ -15,10 +15,14 @@
 package com.google.gerrit.server.update;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.server.submit.MergeOpRepoManager;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
 public class SubmissionExecutor {
@@ -26,6 +30,8 @@ public class SubmissionExecutor {
   private final ImmutableList<SubmissionListener> submissionListeners;
   private final boolean dryrun;
   private ImmutableList<BatchUpdateListener> additionalListeners = ImmutableList.of();
+  private ExecutorService updateRepoExecutor;
+  private ImmutableSet<Project.NameKey> concurrentProjects = ImmutableSet.of();
 
   public SubmissionExecutor(boolean dryrun, ImmutableList<SubmissionListener> submissionListeners) {
     this.dryrun = dryrun;
@@ -44,6 +50,19 @@ public class SubmissionExecutor {
     this.additionalListeners = additionalListeners;
   }
 
+  /**
+   * Set the projects for which the repository updates can be executed concurrently on the given
+   * executor. These can be set again in each try (or will be reused if not overwritten).
+   *
+   * @see BatchUpdate#execute(Collection, ImmutableList, boolean, ExecutorService, ImmutableSet)
+   */
+  public void setConcurrentProjects(
+      @Nullable ExecutorService updateRepoExecutor,
+      ImmutableSet<Project.NameKey> concurrentProjects) {
+    this.updateRepoExecutor = updateRepoExecutor;
+    this.concurrentProjects = concurrentProjects;
+  }
+
   /** Execute the batch updates, reporting to all the Submission and BatchUpdateListeners. */
   public void execute(Collection<BatchUpdate> updates) throws RestApiException, UpdateException {
     submissionListeners.forEach(l -> l.beforeBatchUpdates(updates));
@@ -58,7 +77,7 @@ public class SubmissionExecutor {
                     .map(Optional::get)
                     .collect(Collectors.toList()))
             .build();
-    BatchUpdate.execute(updates, listeners, dryrun);
+    BatchUpdate.execute(updates, listeners, dryrun, updateRepoExecutor, concurrentProjects);
   }
 
   /**
@@ -0,0 +1,70 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.util;
+
+import com.google.common.flogger.FluentLogger;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Support for running request threads as virtual threads if {@code execution.virtualThreads} is
+ * enabled.
+ *
+ * <p>Virtual threads are only available on newer JVMs, hence they are looked up by reflection. If
+ * the JVM doesn't support virtual threads, platform threads are used.
+ *
+ * <p>Virtual threads are cheap to create and don't occupy an OS thread while they are blocked on
+ * I/O. Thread pools that use virtual threads can hence be made much larger, their size then only
+ * limits the number of tasks that can be executed concurrently.
+ */
+public class VirtualThreads {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /**
+   * Returns a thread factory that creates virtual threads if {@code execution.virtualThreads} is
+   * enabled and the JVM supports virtual threads, otherwise empty.
+   *
+   * <p>The threads that are created by the returned factory are always daemon threads, their
+   * priority cannot be changed.
+   */
+  public static Optional<ThreadFactory> threadFactory(Config cfg) {
+    if (!cfg.getBoolean("execution", "virtualThreads", false)) {
+      return Optional.empty();
+    }
+    Optional<ThreadFactory> threadFactory = newThreadFactory();
+    if (!threadFactory.isPresent()) {
+      logger.atWarning().log(
+          "execution.virtualThreads is enabled, but the JVM doesn't support virtual threads,"
+              + " using platform threads");
+    }
+    return threadFactory;
+  }
+
+  private static Optional<ThreadFactory> newThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return Optional.of(
+          (ThreadFactory)
+              Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder));
+    } catch (ReflectiveOperationException e) {
+      // Virtual threads don't exist or are a preview feature that is not enabled.
+      logger.atFine().withCause(e).log("Virtual threads are not supported");
+      return Optional.empty();
+    }
+  }
+
+  private VirtualThreads() {}
+}
@@ -29,8 +29,14 @@ import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.DynamicOptions;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.RequestCleanup;
+import com.google.gerrit.server.account.AccountLimits;
 import com.google.gerrit.server.git.ProjectRunnable;
+import com.google.gerrit.server.git.QueueProvider;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
+import com.google.gerrit.server.git.WorkQueue.FairShareRunnable;
+import com.google.gerrit.server.logging.PerformanceSummary;
+import com.google.gerrit.server.logging.RunningRequests;
 import com.google.gerrit.server.permissions.GlobalPermission;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
@@ -94,6 +100,8 @@ public abstract class BaseCommand implements Command {
 
   @Inject private PermissionBackend permissionBackend;
 
+  @Inject private AccountLimits.Factory limitsFactory;
+
   @Inject private SshScope.Context context;
 
   /** Commands declared by a plugin can be scoped by the plugin name. */
@@ -150,6 +158,11 @@ public abstract class BaseCommand implements Command {
     return commandName;
   }
 
+  /** Remembers the expensive operations executed by this command for logging them. */
+  void setPerformanceSummary(PerformanceSummary performanceSummary) {
+    context.setPerformanceSummary(performanceSummary);
+  }
+
   void setName(String prefix) {
     this.commandName = prefix;
   }
@@ -445,10 +458,12 @@ public abstract class BaseCommand implements Command {
     return m.toString();
   }
 
-  private final class TaskThunk implements CancelableRunnable, ProjectRunnable {
+  private final class TaskThunk
+      implements CancelableRunnable, ProjectRunnable, FairShareRunnable {
     private final CommandRunnable thunk;
     private final String taskName;
     private final AccessPath accessPath;
+    private final WorkQueue.Priority priority;
 
     private Project.NameKey projectName;
 
@@ -456,6 +471,10 @@ public abstract class BaseCommand implements Command {
       this.thunk = thunk;
       this.taskName = getTaskName();
       this.accessPath = accessPath;
+      this.priority =
+          limitsFactory.create(user).getQueueType() == QueueProvider.QueueType.BATCH
+              ? WorkQueue.Priority.BATCH
+              : WorkQueue.Priority.INTERACTIVE;
     }
 
     @Override
@@ -478,7 +497,7 @@ public abstract class BaseCommand implements Command {
         int rc = 0;
         context.getSession().setAccessPath(accessPath);
         final Context old = sshScope.set(context);
-        try {
+        try (RunningRequests.Registration ignored = RunningRequests.register("SSH", getName())) {
           context.start();
           thisThread.setName("SSH " + taskName);
 
@@ -542,6 +561,16 @@ public abstract class BaseCommand implements Command {
     public boolean hasCustomizedPrint() {
       return false;
     }
+
+    @Override
+    public String getTenant() {
+      return user.getLoggableName();
+    }
+
+    @Override
+    public WorkQueue.Priority getPriority() {
+      return priority;
+    }
   }
 
   /** Runnable function which can throw an exception. */
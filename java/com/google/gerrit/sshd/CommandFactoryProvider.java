@@ -53,6 +53,7 @@ class CommandFactoryProvider implements Provider<CommandFactory>, LifecycleListe
 
   private final DispatchCommandProvider dispatcher;
   private final SshLog log;
+  private final SshCommandMetrics metrics;
   private final SshScope sshScope;
   private final ScheduledExecutorService startExecutor;
   private final ExecutorService destroyExecutor;
@@ -64,10 +65,12 @@ class CommandFactoryProvider implements Provider<CommandFactory>, LifecycleListe
       @GerritServerConfig Config cfg,
       WorkQueue workQueue,
       SshLog l,
+      SshCommandMetrics m,
       SshScope s,
       DynamicItem<SshCreateCommandInterceptor> i) {
     dispatcher = d;
     log = l;
+    metrics = m;
     sshScope = s;
     createCommandInterceptor = i;
 
@@ -222,12 +225,21 @@ class CommandFactoryProvider implements Provider<CommandFactory>, LifecycleListe
     private void log(int rc) {
       if (logged.compareAndSet(false, true)) {
         log.onExecute(cmd, rc, ctx.getSession());
+        recordMetrics();
       }
     }
 
     private void log(int rc, String message) {
       if (logged.compareAndSet(false, true)) {
         log.onExecute(cmd, rc, ctx.getSession(), message);
+        recordMetrics();
+      }
+    }
+
+    private void recordMetrics() {
+      String command = cmd != null ? cmd.getExecutedCommandName() : null;
+      if (command != null) {
+        metrics.record(command, ctx);
       }
     }
 
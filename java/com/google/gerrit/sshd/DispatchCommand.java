@@ -18,6 +18,7 @@ import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Atomics;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.server.DynamicOptions;
@@ -196,4 +197,21 @@ final class DispatchCommand extends BaseCommand {
   public String getCommandName() {
     return commandName;
   }
+
+  /**
+   * Returns the full name of the command to which this dispatcher delegated, e.g. {@code "gerrit
+   * query"}, without arguments. Returns null if no command was started, e.g. because the requested
+   * command doesn't exist.
+   */
+  @Nullable
+  String getExecutedCommandName() {
+    Command cmd = atomicCmd.get();
+    if (cmd instanceof DispatchCommand) {
+      return ((DispatchCommand) cmd).getExecutedCommandName();
+    }
+    if (cmd instanceof BaseCommand) {
+      return ((BaseCommand) cmd).getName();
+    }
+    return cmd != null ? commandName : null;
+  }
 }
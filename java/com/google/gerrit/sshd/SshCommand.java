@@ -17,6 +17,7 @@ package com.google.gerrit.sshd;
 import com.google.common.base.Throwables;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.server.AccessPath;
+import com.google.gerrit.server.AdmissionController;
 import com.google.gerrit.server.CancellationMetrics;
 import com.google.gerrit.server.DeadlineChecker;
 import com.google.gerrit.server.DynamicOptions;
@@ -27,6 +28,7 @@ import com.google.gerrit.server.cancellation.RequestCancelledException;
 import com.google.gerrit.server.cancellation.RequestStateContext;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.logging.PerformanceLogContext;
+import com.google.gerrit.server.logging.PerformanceLogDispatcher;
 import com.google.gerrit.server.logging.PerformanceLogger;
 import com.google.gerrit.server.logging.TraceContext;
 import com.google.gerrit.server.plugincontext.PluginSetContext;
@@ -41,10 +43,12 @@ import org.kohsuke.args4j.Option;
 
 public abstract class SshCommand extends BaseCommand {
   @Inject private DynamicSet<PerformanceLogger> performanceLoggers;
+  @Inject private PerformanceLogDispatcher performanceLogDispatcher;
   @Inject private PluginSetContext<RequestListener> requestListeners;
   @Inject @GerritServerConfig private Config config;
   @Inject private DeadlineChecker.Factory deadlineCheckerFactory;
   @Inject private CancellationMetrics cancellationMetrics;
+  @Inject private AdmissionController admissionController;
 
   @Option(name = "--trace", usage = "enable request tracing")
   private boolean trace;
@@ -66,15 +70,19 @@ public abstract class SshCommand extends BaseCommand {
             parseCommandLine(pluginOptions);
             stdout = toPrintWriter(out);
             stderr = toPrintWriter(err);
+            PerformanceLogContext performanceLogContext = null;
             try (TraceContext traceContext = enableTracing();
-                PerformanceLogContext performanceLogContext =
-                    new PerformanceLogContext(config, performanceLoggers)) {
+                PerformanceLogContext plc =
+                    new PerformanceLogContext(
+                        config, performanceLoggers, performanceLogDispatcher)) {
+              performanceLogContext = plc;
               RequestInfo requestInfo =
                   RequestInfo.builder(RequestInfo.RequestType.SSH, user, traceContext).build();
               try (RequestStateContext requestStateContext =
-                  RequestStateContext.open()
-                      .addRequestStateProvider(
-                          deadlineCheckerFactory.create(requestInfo, deadline))) {
+                      RequestStateContext.open()
+                          .addRequestStateProvider(
+                              deadlineCheckerFactory.create(requestInfo, deadline));
+                  AdmissionController.Permit admission = admissionController.admit(requestInfo)) {
                 requestListeners.runEach(l -> l.onRequest(requestInfo));
                 SshCommand.this.run();
               } catch (InvalidDeadlineException e) {
@@ -97,6 +105,9 @@ public abstract class SshCommand extends BaseCommand {
                 stderr.println(msg.toString());
               }
             } finally {
+              if (performanceLogContext != null) {
+                performanceLogContext.getSummary().ifPresent(this::setPerformanceSummary);
+              }
               stdout.flush();
               stderr.flush();
             }
@@ -0,0 +1,105 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.gerrit.server.logging.PerformanceSummary;
+import com.google.gerrit.sshd.SshScope.Context;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/** Resource usage of SSH commands by command name. */
+@Singleton
+class SshCommandMetrics {
+  private final Histogram1<String> cpuTime;
+  private final Histogram1<String> allocatedBytes;
+  private final Histogram1<String> noteDbReads;
+  private final Histogram1<String> indexQueries;
+  private final Histogram1<String> cacheLoads;
+
+  @Inject
+  SshCommandMetrics(MetricMaker metrics) {
+    Field<String> commandField =
+        Field.ofString("command", Metadata.Builder::operationName)
+            .description("name of the SSH command, without arguments")
+            .build();
+
+    cpuTime =
+        metrics.newHistogram(
+            "sshd/commands/cpu_time",
+            new Description("CPU time of the command thread by command")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            commandField);
+
+    allocatedBytes =
+        metrics.newHistogram(
+            "sshd/commands/allocated_bytes",
+            new Description("Memory allocated by the command thread by command")
+                .setCumulative()
+                .setUnit(Units.BYTES),
+            commandField);
+
+    noteDbReads =
+        metrics.newHistogram(
+            "sshd/commands/notedb_reads",
+            new Description("Number of changes read from NoteDb per SSH command by command")
+                .setCumulative()
+                .setUnit("reads"),
+            commandField);
+
+    indexQueries =
+        metrics.newHistogram(
+            "sshd/commands/index_queries",
+            new Description("Number of index queries per SSH command by command")
+                .setCumulative()
+                .setUnit("queries"),
+            commandField);
+
+    cacheLoads =
+        metrics.newHistogram(
+            "sshd/commands/cache_loads",
+            new Description("Number of persistent cache loads per SSH command by command")
+                .setCumulative()
+                .setUnit("loads"),
+            commandField);
+  }
+
+  /**
+   * Records the resource usage of a finished command.
+   *
+   * @param command name of the command without arguments, see {@link
+   *     DispatchCommand#getExecutedCommandName()}
+   * @param ctx context of the command, must be finished
+   */
+  void record(String command, Context ctx) {
+    cpuTime.record(command, ctx.getTotalCpu());
+    long allocatedMemory = ctx.getAllocatedMemory();
+    if (allocatedMemory >= 0) {
+      allocatedBytes.record(command, allocatedMemory);
+    }
+    PerformanceSummary summary = ctx.getPerformanceSummary();
+    if (summary != null) {
+      noteDbReads.record(command, summary.noteDbReads());
+      indexQueries.record(command, summary.indexQueries());
+      cacheLoads.record(command, summary.cacheLoads());
+    }
+  }
+}
@@ -30,6 +30,7 @@ import com.google.gerrit.server.config.GerritConfigListener;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.group.GroupAuditService;
 import com.google.gerrit.server.ioutil.HexFormat;
+import com.google.gerrit.server.logging.PerformanceSummary;
 import com.google.gerrit.server.util.SystemLog;
 import com.google.gerrit.server.util.time.TimeUtil;
 import com.google.gerrit.sshd.SshScope.Context;
@@ -60,6 +61,9 @@ class SshLog implements LifecycleListener, GerritConfigListener {
   protected static final String P_TOTAL_CPU = "totalCpu";
   protected static final String P_USER_CPU = "userCpu";
   protected static final String P_MEMORY = "memory";
+  protected static final String P_NOTEDB_READS = "noteDbReads";
+  protected static final String P_INDEX_QUERIES = "indexQueries";
+  protected static final String P_CACHE_LOADS = "cacheLoads";
 
   private final Provider<SshSession> session;
   private final Provider<Context> context;
@@ -184,6 +188,12 @@ class SshLog implements LifecycleListener, GerritConfigListener {
     event.setProperty(P_TOTAL_CPU, ctx.getTotalCpu() + "ms");
     event.setProperty(P_USER_CPU, ctx.getUserCpu() + "ms");
     event.setProperty(P_MEMORY, String.valueOf(ctx.getAllocatedMemory()));
+    PerformanceSummary summary = ctx.getPerformanceSummary();
+    if (summary != null) {
+      event.setProperty(P_NOTEDB_READS, String.valueOf(summary.noteDbReads()));
+      event.setProperty(P_INDEX_QUERIES, String.valueOf(summary.indexQueries()));
+      event.setProperty(P_CACHE_LOADS, String.valueOf(summary.cacheLoads()));
+    }
 
     final String status;
     switch (exitValue) {
@@ -16,9 +16,12 @@ package com.google.gerrit.sshd;
 
 import static com.google.gerrit.sshd.SshLog.P_ACCOUNT_ID;
 import static com.google.gerrit.sshd.SshLog.P_AGENT;
+import static com.google.gerrit.sshd.SshLog.P_CACHE_LOADS;
 import static com.google.gerrit.sshd.SshLog.P_EXEC;
+import static com.google.gerrit.sshd.SshLog.P_INDEX_QUERIES;
 import static com.google.gerrit.sshd.SshLog.P_MEMORY;
 import static com.google.gerrit.sshd.SshLog.P_MESSAGE;
+import static com.google.gerrit.sshd.SshLog.P_NOTEDB_READS;
 import static com.google.gerrit.sshd.SshLog.P_SESSION;
 import static com.google.gerrit.sshd.SshLog.P_STATUS;
 import static com.google.gerrit.sshd.SshLog.P_TOTAL_CPU;
@@ -50,6 +53,9 @@ public class SshLogJsonLayout extends JsonLayout {
     public String totalCpu;
     public String userCpu;
     public String memory;
+    public String noteDbReads;
+    public String indexQueries;
+    public String cacheLoads;
     public String status;
     public String agent;
     public String timeNegotiating;
@@ -76,6 +82,9 @@ public class SshLogJsonLayout extends JsonLayout {
       this.totalCpu = getMdcString(event, P_TOTAL_CPU);
       this.userCpu = getMdcString(event, P_USER_CPU);
       this.memory = getMdcString(event, P_MEMORY);
+      this.noteDbReads = getMdcString(event, P_NOTEDB_READS);
+      this.indexQueries = getMdcString(event, P_INDEX_QUERIES);
+      this.cacheLoads = getMdcString(event, P_CACHE_LOADS);
       this.status = getMdcString(event, P_STATUS);
       this.agent = getMdcString(event, P_AGENT);
 
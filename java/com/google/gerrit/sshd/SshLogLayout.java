@@ -16,9 +16,12 @@ package com.google.gerrit.sshd;
 
 import static com.google.gerrit.sshd.SshLog.P_ACCOUNT_ID;
 import static com.google.gerrit.sshd.SshLog.P_AGENT;
+import static com.google.gerrit.sshd.SshLog.P_CACHE_LOADS;
 import static com.google.gerrit.sshd.SshLog.P_EXEC;
+import static com.google.gerrit.sshd.SshLog.P_INDEX_QUERIES;
 import static com.google.gerrit.sshd.SshLog.P_MEMORY;
 import static com.google.gerrit.sshd.SshLog.P_MESSAGE;
+import static com.google.gerrit.sshd.SshLog.P_NOTEDB_READS;
 import static com.google.gerrit.sshd.SshLog.P_SESSION;
 import static com.google.gerrit.sshd.SshLog.P_STATUS;
 import static com.google.gerrit.sshd.SshLog.P_TOTAL_CPU;
@@ -69,6 +72,9 @@ public final class SshLogLayout extends Layout {
       req(P_TOTAL_CPU, buf, event);
       req(P_USER_CPU, buf, event);
       req(P_MEMORY, buf, event);
+      req(P_NOTEDB_READS, buf, event);
+      req(P_INDEX_QUERIES, buf, event);
+      req(P_CACHE_LOADS, buf, event);
     }
 
     buf.append('\n');
@@ -14,11 +14,13 @@
 
 package com.google.gerrit.sshd;
 
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.metrics.proc.ThreadMXBeanFactory;
 import com.google.gerrit.metrics.proc.ThreadMXBeanInterface;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.RequestCleanup;
+import com.google.gerrit.server.logging.PerformanceSummary;
 import com.google.gerrit.server.util.RequestContext;
 import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.gerrit.server.util.ThreadLocalRequestScopePropagator;
@@ -52,6 +54,7 @@ public class SshScope {
     private volatile long finishedUserCpu;
     private volatile long startedMemory;
     private volatile long finishedMemory;
+    private volatile PerformanceSummary performanceSummary;
 
     private Context(SshSession s, String c, long at) {
       session = s;
@@ -113,6 +116,19 @@ public class SshScope {
       return finishedMemory - startedMemory;
     }
 
+    /**
+     * Returns the number of expensive operations executed by the command, null if the command
+     * didn't compute a summary (see {@code tracing.performanceSummary}).
+     */
+    @Nullable
+    public PerformanceSummary getPerformanceSummary() {
+      return performanceSummary;
+    }
+
+    void setPerformanceSummary(PerformanceSummary performanceSummary) {
+      this.performanceSummary = performanceSummary;
+    }
+
     String getCommandLine() {
       return commandLine;
     }
@@ -57,6 +57,7 @@ public class DefaultCommandModule extends CommandModule {
     command(gerrit, ReloadConfig.class);
     command(gerrit, ShowCaches.class);
     command(gerrit, ShowConnections.class);
+    command(gerrit, ShowProfile.class);
     command(gerrit, ShowQueue.class);
     command(gerrit, StreamEvents.class);
     command(gerrit, VersionCommand.class);
@@ -0,0 +1,90 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import static com.google.gerrit.sshd.CommandMetaData.Mode.MASTER_OR_SLAVE;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.restapi.config.GetProfile;
+import com.google.gerrit.server.restapi.config.GetProfile.OperationProfileInfo;
+import com.google.gerrit.server.restapi.config.GetProfile.ProfileInfo;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.Map;
+import org.kohsuke.args4j.Option;
+
+/** Samples the stack traces of running requests and prints them as folded stacks. */
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "show-profile",
+    description = "Sample the stack traces of running requests",
+    runsAt = MASTER_OR_SLAVE)
+final class ShowProfile extends SshCommand {
+  @Option(
+      name = "--duration",
+      metaVar = "SECONDS",
+      usage = "how long to sample request threads (at most 60 seconds)")
+  private int durationSeconds = 10;
+
+  @Option(
+      name = "--interval",
+      metaVar = "MILLISECONDS",
+      usage = "time between two samples of the request threads")
+  private int intervalMs = 20;
+
+  @Option(name = "--max-depth", metaVar = "FRAMES", usage = "maximum number of sampled frames")
+  private int maxDepth = 128;
+
+  @Option(name = "--summary", usage = "print the number of samples per operation only")
+  private boolean summary;
+
+  @Inject private GetProfile getProfile;
+
+  @Override
+  protected void run() throws Failure {
+    enableGracefulStop();
+    ProfileInfo profile;
+    try {
+      profile =
+          getProfile
+              .setDurationSeconds(durationSeconds)
+              .setIntervalMs(intervalMs)
+              .setMaxDepth(maxDepth)
+              .apply(new ConfigResource())
+              .value();
+    } catch (RestApiException e) {
+      throw die(e.getMessage());
+    }
+
+    for (Map.Entry<String, OperationProfileInfo> e : profile.operations.entrySet()) {
+      OperationProfileInfo op = e.getValue();
+      if (summary) {
+        stdout.format("%-60s %8d samples %6d requests\n", e.getKey(), op.samples, op.requests);
+        continue;
+      }
+      // Use the operation as root frame, so that the output can be rendered as one flame graph.
+      for (String stack : op.stacks) {
+        stdout.print(e.getKey());
+        stdout.print(';');
+        stdout.print(stack);
+        stdout.print('\n');
+      }
+    }
+  }
+}
@@ -26,21 +26,26 @@ import com.google.gerrit.server.DynamicOptions;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.EventGson;
+import com.google.gerrit.server.events.EventLog;
 import com.google.gerrit.server.events.EventTypes;
 import com.google.gerrit.server.events.UserScopedEventListener;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
+import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.sshd.BaseCommand;
 import com.google.gerrit.sshd.CommandMetaData;
 import com.google.gerrit.sshd.StreamCommandExecutor;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.kohsuke.args4j.Option;
@@ -50,12 +55,12 @@ import org.kohsuke.args4j.Option;
 public final class StreamEvents extends BaseCommand {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
-  /** Maximum number of events that may be queued up for each connection. */
-  private static final int MAX_EVENTS = 128;
-
   /** Number of events to write before yielding off the thread. */
   private static final int BATCH_SIZE = 32;
 
+  /** Number of events to read from the event log at once when replaying events. */
+  private static final int REPLAY_BATCH_SIZE = 1000;
+
   @Option(
       name = "--subscribe",
       aliases = {"-s"},
@@ -63,6 +68,18 @@ public final class StreamEvents extends BaseCommand {
       usage = "subscribe to specific stream-events")
   private List<String> subscribedToEvents = new ArrayList<>();
 
+  @Option(
+      name = "--replay-from",
+      metaVar = "OFFSET",
+      usage = "replay the events from the event log starting at this offset")
+  private long replayFrom = -1;
+
+  @Option(
+      name = "--replay-since",
+      metaVar = "SECONDS",
+      usage = "replay the events from the event log since this time, in seconds since the epoch")
+  private long replaySince = -1;
+
   @Inject private IdentifiedUser currentUser;
 
   @Inject private DynamicSet<UserScopedEventListener> eventListeners;
@@ -71,8 +88,14 @@ public final class StreamEvents extends BaseCommand {
 
   @Inject @EventGson private Gson gson;
 
-  /** Queue of events to stream to the connected user. */
-  private final LinkedBlockingQueue<Event> queue = new LinkedBlockingQueue<>(MAX_EVENTS);
+  @Inject private StreamEventsBuffer buffer;
+
+  @Inject private EventLog eventLog;
+
+  /**
+   * Queue of the sequence numbers of the events in {@link #buffer} to stream to the connected user.
+   */
+  private final Queue<Long> queue = new ArrayDeque<>();
 
   private RegistrationHandle eventListenerRegistration;
 
@@ -92,12 +115,18 @@ public final class StreamEvents extends BaseCommand {
   /** True if {@link DroppedOutputEvent} needs to be sent. */
   private volatile boolean dropped;
 
-  /** Lock to protect {@link #queue}, {@link #task}, {@link #done}. */
+  /** True if writing to the output failed. */
+  private volatile boolean writeFailed;
+
+  /** Lock to protect {@link #queue}, {@link #task}, {@link #done}, {@link #replaying}. */
   private final Object taskLock = new Object();
 
   /** True if no more messages should be sent to the output. */
   private boolean done;
 
+  /** True while events from the event log are replayed, live events are only queued meanwhile. */
+  private boolean replaying;
+
   /**
    * Currently scheduled task to spin out {@link #queue}.
    *
@@ -121,8 +150,15 @@ public final class StreamEvents extends BaseCommand {
         onExit(1);
         return;
       }
+      boolean replay = replayFrom >= 0 || replaySince >= 0;
+      if (replay && !eventLog.isEnabled()) {
+        err.write("fatal: event log is disabled, cannot replay events\n".getBytes(UTF_8));
+        err.flush();
+        onExit(1);
+        return;
+      }
 
-      PrintWriter stdout = toPrintWriter(out);
+      OutputStream stdout = new BufferedOutputStream(out);
       CancelableRunnable writer =
           new CancelableRunnable() {
             @Override
@@ -146,6 +182,10 @@ public final class StreamEvents extends BaseCommand {
             }
           };
 
+      synchronized (taskLock) {
+        // The live events are queued until the replay is done.
+        replaying = replay;
+      }
       eventListenerRegistration =
           eventListeners.add(
               "gerrit",
@@ -163,6 +203,34 @@ public final class StreamEvents extends BaseCommand {
                   return currentUser;
                 }
               });
+
+      if (replay) {
+        // Replay only after the listener is registered, so that no event is missed between the
+        // replayed and the live events. Events that are logged while the listener is registered
+        // may be sent twice.
+        CancelableRunnable replayer =
+            new CancelableRunnable() {
+              @Override
+              public void run() {
+                replayEvents(writer, stdout);
+              }
+
+              @Override
+              public void cancel() {
+                onExit(0);
+              }
+
+              @Override
+              public String toString() {
+                return writer + " replay";
+              }
+            };
+        synchronized (taskLock) {
+          if (!done) {
+            task = pool.submit(replayer);
+          }
+        }
+      }
     }
   }
 
@@ -203,32 +271,89 @@ public final class StreamEvents extends BaseCommand {
   }
 
   private void offer(CancelableRunnable writer, Event event) {
+    StreamEventsBuffer.Entry entry = buffer.add(event);
     synchronized (taskLock) {
-      if (!queue.offer(event)) {
+      if (queue.size() >= buffer.capacity()) {
+        // Older events would be evicted from the buffer before they are written.
         dropped = true;
+        buffer.recordOverflow();
+      } else {
+        queue.add(entry.seq);
       }
 
-      if (task == null && !done) {
+      if (task == null && !done && !replaying) {
         task = pool.submit(writer);
       }
     }
   }
 
-  private Event poll() {
+  private StreamEventsBuffer.Entry poll() {
     synchronized (taskLock) {
-      Event event = queue.poll();
-      if (event == null) {
-        task = null;
+      Long seq;
+      while ((seq = queue.poll()) != null) {
+        StreamEventsBuffer.Entry entry = buffer.get(seq);
+        if (entry != null) {
+          return entry;
+        }
+        // The session fell too far behind, the event was evicted from the buffer.
+        dropped = true;
       }
-      return event;
+      task = null;
+      return null;
     }
   }
 
-  private void writeEvents(CancelableRunnable writer, PrintWriter stdout) {
+  private void replayEvents(CancelableRunnable writer, OutputStream stdout) {
+    long offset = Math.max(replayFrom, 0);
+    long since = replaySince >= 0 ? TimeUnit.SECONDS.toMillis(replaySince) : 0;
+    try {
+      // The live listeners get an event before it is logged, hence the end of the log is read again
+      // after each pass, until the replay caught up with it.
+      long endOffset;
+      while (offset < (endOffset = eventLog.nextOffset())) {
+        if (Thread.interrupted() || writeFailed) {
+          removeEventListenerRegistration();
+          flush(stdout);
+          onExit(0);
+          return;
+        }
+        List<EventLog.Record> records =
+            eventLog.replay(
+                currentUser,
+                offset,
+                since,
+                REPLAY_BATCH_SIZE,
+                e -> subscribedToEvents.isEmpty() || subscribedToEvents.contains(e.getType()));
+        for (EventLog.Record record : records) {
+          if (record.offset >= endOffset) {
+            break;
+          }
+          write(stdout, (record.json + "\n").getBytes(UTF_8));
+          offset = record.offset + 1;
+        }
+        flush(stdout);
+        if (records.size() < REPLAY_BATCH_SIZE) {
+          // There are no more visible events before the end of the log.
+          offset = Math.max(offset, endOffset);
+        }
+      }
+    } catch (IOException | PermissionBackendException e) {
+      logger.atWarning().withCause(e).log("Cannot replay events from event log");
+      dropped = true;
+    }
+    flush(stdout);
+
+    synchronized (taskLock) {
+      replaying = false;
+      task = !queue.isEmpty() && !done ? pool.submit(writer) : null;
+    }
+  }
+
+  private void writeEvents(CancelableRunnable writer, OutputStream stdout) {
     int processed = 0;
 
     while (processed < BATCH_SIZE) {
-      if (Thread.interrupted() || stdout.checkError()) {
+      if (Thread.interrupted() || writeFailed) {
         // The other side either requested a shutdown by calling our
         // destroy() above, or it closed the stream and is no longer
         // accepting output. Either way terminate this instance.
@@ -239,17 +364,17 @@ public final class StreamEvents extends BaseCommand {
         return;
       }
 
+      StreamEventsBuffer.Entry entry = poll();
       if (dropped) {
         write(stdout, new DroppedOutputEvent());
         dropped = false;
       }
-
-      final Event event = poll();
-      if (event == null) {
+      if (entry == null) {
         break;
       }
 
-      write(stdout, event);
+      // The event is serialized only once for all sessions.
+      write(stdout, entry.payload(gson));
       processed++;
     }
 
@@ -266,7 +391,7 @@ public final class StreamEvents extends BaseCommand {
     }
   }
 
-  private void write(PrintWriter stdout, Object message) {
+  private void write(OutputStream stdout, Object message) {
     String msg = null;
     try {
       msg = gson.toJson(message) + "\n";
@@ -274,15 +399,27 @@ public final class StreamEvents extends BaseCommand {
       logger.atWarning().withCause(e).log("Could not deserialize the msg");
     }
     if (msg != null) {
-      synchronized (stdout) {
-        stdout.print(msg);
+      write(stdout, msg.getBytes(UTF_8));
+    }
+  }
+
+  private void write(OutputStream stdout, byte[] payload) {
+    synchronized (stdout) {
+      try {
+        stdout.write(payload);
+      } catch (IOException e) {
+        writeFailed = true;
       }
     }
   }
 
-  private void flush(PrintWriter stdout) {
+  private void flush(OutputStream stdout) {
     synchronized (stdout) {
-      stdout.flush();
+      try {
+        stdout.flush();
+      } catch (IOException e) {
+        writeFailed = true;
+      }
     }
   }
 }
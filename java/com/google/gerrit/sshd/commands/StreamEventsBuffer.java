@@ -0,0 +1,168 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.events.Event;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Ring of the recent events of all {@code stream-events} sessions.
+ *
+ * <p>An event that is delivered to many sessions is stored only once, and is serialized only once
+ * by the first session that writes it. The sessions don't queue the events, but only the sequence
+ * numbers of the events in the ring. The ring holds the last {@code sshd.streamEventsBufferSize}
+ * events, sessions that fall further behind than that miss events.
+ */
+@Singleton
+class StreamEventsBuffer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /**
+   * Number of recent entries that are searched for an event that is already in the ring.
+   *
+   * <p>An event is delivered to all sessions before the next event is posted, unless events are
+   * posted concurrently.
+   */
+  private static final int RECENT_ENTRIES = 16;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  /** Event in the ring. */
+  static class Entry {
+    final long seq;
+    private final Event event;
+    private volatile byte[] payload;
+
+    private Entry(long seq, Event event) {
+      this.seq = seq;
+      this.event = event;
+    }
+
+    /** Returns the event serialized as JSON line, serializing it on first use. */
+    byte[] payload(Gson gson) {
+      byte[] p = payload;
+      if (p == null) {
+        // Serializing the event twice in case of a race is harmless.
+        try {
+          p = (gson.toJson(event) + "\n").getBytes(UTF_8);
+        } catch (RuntimeException e) {
+          logger.atWarning().withCause(e).log("Could not serialize event %s", event.getType());
+          p = EMPTY;
+        }
+        payload = p;
+      }
+      return p;
+    }
+  }
+
+  private final Entry[] ring;
+  private final Counter1<String> droppedEvents;
+  private final Histogram0 sessionLag;
+  private long nextSeq;
+
+  @Inject
+  StreamEventsBuffer(@GerritServerConfig Config cfg, MetricMaker metricMaker) {
+    this(cfg.getInt("sshd", "streamEventsBufferSize", 4096), metricMaker);
+  }
+
+  @VisibleForTesting
+  StreamEventsBuffer(int capacity, MetricMaker metricMaker) {
+    this.ring = new Entry[Math.max(RECENT_ENTRIES, capacity)];
+    this.droppedEvents =
+        metricMaker.newCounter(
+            "stream_events/dropped_events",
+            new Description("Events that stream-events sessions missed")
+                .setRate()
+                .setUnit("events"),
+            Field.ofString("reason", (metadataBuilder, resolveAllUsers) -> {})
+                .description(
+                    "Why the events were missed: 'overflow' if the session queued more events than"
+                        + " the buffer holds, 'lag' if the events were evicted from the buffer"
+                        + " before the session wrote them.")
+                .build());
+    this.sessionLag =
+        metricMaker.newHistogram(
+            "stream_events/session_lag",
+            new Description("Number of events a stream-events session is behind when it writes")
+                .setCumulative()
+                .setUnit("events"));
+  }
+
+  /** Returns the number of events the ring holds. */
+  int capacity() {
+    return ring.length;
+  }
+
+  /**
+   * Adds the event to the ring, if it's not in the ring yet.
+   *
+   * @return the entry of the event
+   */
+  synchronized Entry add(Event event) {
+    // The same event is delivered to all sessions that may see it.
+    for (long seq = nextSeq - 1; seq >= 0 && seq >= nextSeq - RECENT_ENTRIES; seq--) {
+      Entry entry = ring[index(seq)];
+      if (entry.event == event) {
+        return entry;
+      }
+    }
+    Entry entry = new Entry(nextSeq, event);
+    ring[index(nextSeq)] = entry;
+    nextSeq++;
+    return entry;
+  }
+
+  /**
+   * Returns the entry with the given sequence number.
+   *
+   * @return the entry, {@code null} if the entry was already evicted from the ring
+   */
+  @Nullable
+  Entry get(long seq) {
+    long lag;
+    Entry entry;
+    synchronized (this) {
+      lag = nextSeq - seq;
+      entry = seq < nextSeq && lag <= ring.length ? ring[index(seq)] : null;
+    }
+    sessionLag.record(lag);
+    if (entry == null) {
+      droppedEvents.increment("lag");
+    }
+    return entry;
+  }
+
+  void recordOverflow() {
+    droppedEvents.increment("overflow");
+  }
+
+  private int index(long seq) {
+    return (int) (seq % ring.length);
+  }
+}
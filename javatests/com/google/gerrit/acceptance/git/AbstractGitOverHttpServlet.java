@@ -14,22 +14,48 @@
 
 package com.google.gerrit.acceptance.git;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
 
 import com.google.common.collect.ImmutableList;
 import com.google.gerrit.acceptance.FakeGroupAuditService;
+import com.google.gerrit.acceptance.GitUtil;
 import com.google.gerrit.acceptance.Sandboxed;
 import com.google.gerrit.acceptance.TestProjectInput;
+import com.google.gerrit.acceptance.config.GerritConfig;
 import com.google.gerrit.entities.Account;
+import com.google.gerrit.extensions.api.projects.BranchInput;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.extensions.registration.RegistrationHandle;
 import com.google.gerrit.pgm.http.jetty.JettyServer;
 import com.google.gerrit.server.audit.HttpAuditEvent;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.UploadPackInitializer;
 import com.google.inject.Inject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
 import org.eclipse.jgit.junit.TestRepository;
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackStatistics;
 import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.PostUploadHook;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.junit.Before;
@@ -37,6 +63,9 @@ import org.junit.Test;
 
 public class AbstractGitOverHttpServlet extends AbstractPushForReview {
   @Inject protected FakeGroupAuditService auditService;
+  @Inject private SitePaths sitePaths;
+  @Inject private DynamicSet<PostUploadHook> postUploadHooks;
+  @Inject private DynamicSet<UploadPackInitializer> uploadPackInitializers;
   private JettyServer jettyServer;
 
   @Before
@@ -155,6 +184,113 @@ public class AbstractGitOverHttpServlet extends AbstractPushForReview {
     assertThat(jettyServer.numActiveSessions()).isEqualTo(0);
   }
 
+  @Test
+  @GerritConfig(name = "upload.responseCache", value = "true")
+  public void uploadPackResponseIsCached() throws Exception {
+    String url = admin.getHttpUrl(server) + "/" + project.get();
+    createCommit("foo");
+
+    TestRepository<InMemoryRepository> first = GitUtil.cloneProject(project, url);
+    assertThat(cachedUploadPackResponses()).hasSize(1);
+    TestRepository<InMemoryRepository> second = GitUtil.cloneProject(project, url);
+    assertThat(cachedUploadPackResponses()).hasSize(1);
+    assertThat(originMaster(second)).isEqualTo(originMaster(first));
+
+    // The visible refs are part of the key, hence a new commit results in a new response.
+    createCommit("bar");
+    TestRepository<InMemoryRepository> third = GitUtil.cloneProject(project, url);
+    assertThat(cachedUploadPackResponses()).hasSize(2);
+    assertThat(originMaster(third)).isNotEqualTo(originMaster(first));
+  }
+
+  @Test
+  @GerritConfig(name = "upload.responseCache", value = "true")
+  public void postUploadHooksAreInvokedForCachedResponses() throws Exception {
+    String url = admin.getHttpUrl(server) + "/" + project.get();
+    createCommit("foo");
+
+    AtomicInteger postUploads = new AtomicInteger();
+    RegistrationHandle handle =
+        postUploadHooks.add("gerrit", stats -> postUploads.incrementAndGet());
+    try {
+      GitUtil.cloneProject(project, url);
+      GitUtil.cloneProject(project, url);
+    } finally {
+      handle.remove();
+    }
+    assertThat(cachedUploadPackResponses()).hasSize(1);
+    assertThat(postUploads.get()).isEqualTo(2);
+  }
+
+  @Test
+  @GerritConfig(name = "upload.responseCache", value = "true")
+  public void identicalConcurrentRequestsRunUploadPackOnce() throws Exception {
+    String url = admin.getHttpUrl(server) + "/" + project.get();
+    createCommit("foo");
+
+    // Responses sent from the cache are reported with the statistics of the generated response.
+    Set<PackStatistics> generated = ConcurrentHashMap.newKeySet();
+    RegistrationHandle handle = postUploadHooks.add("gerrit", generated::add);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<TestRepository<InMemoryRepository>>> clones = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        clones.add(executor.submit(() -> GitUtil.cloneProject(project, url)));
+      }
+      ObjectId master = originMaster(clones.get(0).get());
+      for (Future<TestRepository<InMemoryRepository>> clone : clones) {
+        assertThat(originMaster(clone.get())).isEqualTo(master);
+      }
+    } finally {
+      executor.shutdown();
+      handle.remove();
+    }
+    assertThat(cachedUploadPackResponses()).hasSize(1);
+    assertThat(generated).hasSize(1);
+  }
+
+  @Test
+  @GerritConfig(name = "upload.responseCache", value = "true")
+  public void uploadPackResponseIsNotCachedIfPluginInitializesUploadPack() throws Exception {
+    String url = admin.getHttpUrl(server) + "/" + project.get();
+    createCommit("foo");
+
+    RegistrationHandle handle = uploadPackInitializers.add("gerrit", (p, up) -> {});
+    try {
+      GitUtil.cloneProject(project, url);
+    } finally {
+      handle.remove();
+    }
+    assertThat(cachedUploadPackResponses()).isEmpty();
+  }
+
+  @Test
+  @GerritConfig(name = "cache.advertised_refs.memoryLimit", value = "1000")
+  public void advertisedRefsAreUpdatedAfterRefUpdate() throws Exception {
+    String url = admin.getHttpUrl(server) + "/" + project.get();
+    assertThat(lsRemote(url)).contains("refs/heads/master");
+    assertThat(lsRemote(url)).doesNotContain("refs/heads/foo");
+
+    gApi.projects().name(project.get()).branch("foo").create(new BranchInput());
+    assertThat(lsRemote(url)).contains("refs/heads/foo");
+  }
+
+  private static ImmutableList<String> lsRemote(String url) throws Exception {
+    return Git.lsRemoteRepository().setRemote(url).call().stream()
+        .map(Ref::getName)
+        .collect(toImmutableList());
+  }
+
+  private List<Path> cachedUploadPackResponses() throws Exception {
+    try (Stream<Path> files = Files.list(sitePaths.data_dir.resolve("upload-pack-cache"))) {
+      return files.filter(f -> f.toString().endsWith(".pack")).collect(toList());
+    }
+  }
+
+  private static ObjectId originMaster(TestRepository<InMemoryRepository> repo) throws Exception {
+    return repo.getRepository().exactRef("refs/remotes/origin/master").getObjectId();
+  }
+
   private void createCommit(String message) throws Exception {
     try (Repository repo = repoManager.openRepository(project);
         TestRepository<Repository> tr = new TestRepository<>(repo)) {
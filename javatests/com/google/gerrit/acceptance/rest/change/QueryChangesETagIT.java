@@ -0,0 +1,142 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.rest.change;
+
+import static com.google.common.truth.Truth.assertThat;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+
+import com.google.common.net.HttpHeaders;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.inject.Inject;
+import org.apache.http.message.BasicHeader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+public class QueryChangesETagIT extends AbstractDaemonTest {
+  private static final String QUERY = "/changes/?q=status:open";
+
+  @Inject private ProjectOperations projectOperations;
+
+  @Test
+  public void notModifiedIfResultsDidNotChange() throws Exception {
+    createChange();
+    String eTag = getETag(QUERY);
+
+    query(QUERY, eTag).assertStatus(SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void modifiedIfChangeWasUpdated() throws Exception {
+    PushOneCommit.Result r = createChange();
+    String eTag = getETag(QUERY);
+
+    gApi.changes().id(r.getChangeId()).topic("topic");
+
+    RestResponse res = query(QUERY, eTag);
+    res.assertOK();
+    assertThat(res.getHeader(HttpHeaders.ETAG)).isNotEqualTo(eTag);
+  }
+
+  @Test
+  public void modifiedIfChangeStartsToMatch() throws Exception {
+    createChange();
+    String eTag = getETag(QUERY);
+
+    createChange();
+
+    query(QUERY, eTag).assertOK();
+  }
+
+  @Test
+  public void modifiedIfChangeIsStarred() throws Exception {
+    PushOneCommit.Result r = createChange();
+    String eTag = getETag(QUERY);
+
+    gApi.accounts().self().starChange(r.getChangeId());
+
+    query(QUERY, eTag).assertOK();
+  }
+
+  @Test
+  public void modifiedIfDestinationBranchWasUpdated() throws Exception {
+    RevCommit initialHead = projectOperations.project(project).getHead("master");
+    createChange();
+    String eTag = getETag(QUERY);
+
+    // Updating the branch may change whether the change is mergeable.
+    testRepo.reset(initialHead);
+    pushFactory.create(admin.newIdent(), testRepo).to("refs/heads/master").assertOkStatus();
+
+    RestResponse res = query(QUERY, eTag);
+    res.assertOK();
+    assertThat(res.getHeader(HttpHeaders.ETAG)).isNotEqualTo(eTag);
+  }
+
+  @Test
+  public void notModifiedIfOtherBranchWasUpdated() throws Exception {
+    createBranch(BranchNameKey.create(project, "other"));
+    createChange();
+    String eTag = getETag(QUERY);
+
+    testRepo.reset(projectOperations.project(project).getHead("other"));
+    pushFactory.create(admin.newIdent(), testRepo).to("refs/heads/other").assertOkStatus();
+
+    query(QUERY, eTag).assertStatus(SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void eTagDependsOnOptions() throws Exception {
+    createChange();
+
+    assertThat(getETag(QUERY + "&o=LABELS")).isNotEqualTo(getETag(QUERY));
+  }
+
+  @Test
+  public void eTagDependsOnUser() throws Exception {
+    createChange();
+
+    assertThat(getETag(QUERY)).isNotEqualTo(getETag(userRestSession.get(QUERY)));
+  }
+
+  @Test
+  @GerritConfig(name = "change.queryETags", value = "false")
+  public void noETagIfDisabled() throws Exception {
+    createChange();
+
+    RestResponse res = adminRestSession.get(QUERY);
+    res.assertOK();
+    assertThat(res.getHeader(HttpHeaders.ETAG)).isNull();
+  }
+
+  private String getETag(String url) throws Exception {
+    return getETag(adminRestSession.get(url));
+  }
+
+  private static String getETag(RestResponse res) throws Exception {
+    res.assertOK();
+    String eTag = res.getHeader(HttpHeaders.ETAG);
+    assertThat(eTag).isNotNull();
+    return eTag;
+  }
+
+  private RestResponse query(String url, String eTag) throws Exception {
+    return adminRestSession.getWithHeaders(url, new BasicHeader(HttpHeaders.IF_NONE_MATCH, eTag));
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.rest.change;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gson.reflect.TypeToken;
+import java.util.List;
+import org.junit.Test;
+
+public class QueryChangesStreamingIT extends AbstractDaemonTest {
+  private static final String THRESHOLD = "change.queryResultStreamingThreshold";
+
+  @Test
+  @GerritConfig(name = THRESHOLD, value = "2")
+  public void resultsAboveThresholdAreStreamed() throws Exception {
+    int c1 = createChange().getChange().getId().get();
+    int c2 = createChange().getChange().getId().get();
+    int c3 = createChange().getChange().getId().get();
+
+    List<ChangeInfo> changes = query("/changes/?q=status:open");
+    assertThat(numbers(changes)).containsExactly(c3, c2, c1).inOrder();
+    assertThat(changes.get(0).project).isEqualTo(project.get());
+    assertThat(changes.get(0).owner._accountId).isEqualTo(admin.id().get());
+    assertThat(changes.stream().allMatch(c -> c._moreChanges == null)).isTrue();
+
+    // The streamed results are the same as the results of the Java API, which materializes them.
+    assertThat(numbers(changes))
+        .containsExactlyElementsIn(numbers(gApi.changes().query("status:open").get()))
+        .inOrder();
+  }
+
+  @Test
+  @GerritConfig(name = THRESHOLD, value = "2")
+  public void resultsBelowThresholdAreNotStreamed() throws Exception {
+    int c1 = createChange().getChange().getId().get();
+
+    List<ChangeInfo> changes = query("/changes/?q=status:open");
+    assertThat(numbers(changes)).containsExactly(c1);
+    assertThat(changes.get(0)._moreChanges).isNull();
+  }
+
+  @Test
+  @GerritConfig(name = THRESHOLD, value = "2")
+  public void moreChangesIsSetOnLastChangeOfStreamedResults() throws Exception {
+    createChange();
+    int c2 = createChange().getChange().getId().get();
+    int c3 = createChange().getChange().getId().get();
+
+    List<ChangeInfo> changes = query("/changes/?q=status:open&n=2");
+    assertThat(numbers(changes)).containsExactly(c3, c2).inOrder();
+    assertThat(changes.get(0)._moreChanges).isNull();
+    assertThat(changes.get(1)._moreChanges).isTrue();
+  }
+
+  @Test
+  @GerritConfig(name = THRESHOLD, value = "2")
+  public void resultsOfMultipleQueriesAreStreamed() throws Exception {
+    createChange();
+    int c2 = createChange().getChange().getId().get();
+    gApi.changes().id(c2).topic("topic");
+
+    RestResponse res = adminRestSession.get("/changes/?q=status:open&q=topic:topic&n=1");
+    res.assertOK();
+    List<List<ChangeInfo>> results =
+        newGson()
+            .fromJson(res.getReader(), new TypeToken<List<List<ChangeInfo>>>() {}.getType());
+    assertThat(results).hasSize(2);
+    assertThat(numbers(results.get(0))).containsExactly(c2);
+    assertThat(results.get(0).get(0)._moreChanges).isTrue();
+    assertThat(numbers(results.get(1))).containsExactly(c2);
+    assertThat(results.get(1).get(0)._moreChanges).isNull();
+  }
+
+  private List<ChangeInfo> query(String url) throws Exception {
+    RestResponse res = adminRestSession.get(url);
+    res.assertOK();
+    return newGson().fromJson(res.getReader(), new TypeToken<List<ChangeInfo>>() {}.getType());
+  }
+
+  private static List<Integer> numbers(List<ChangeInfo> changes) {
+    return changes.stream().map(c -> c._number).collect(toList());
+  }
+}
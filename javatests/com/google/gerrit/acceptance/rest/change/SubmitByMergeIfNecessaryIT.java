@@ -26,6 +26,7 @@ import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
 import com.google.gerrit.acceptance.GitUtil;
 import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.config.GerritConfig;
 import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
 import com.google.gerrit.acceptance.testsuite.request.RequestScopeOperations;
 import com.google.gerrit.entities.BranchNameKey;
@@ -217,6 +218,41 @@ public class SubmitByMergeIfNecessaryIT extends AbstractSubmitByMerge {
     }
   }
 
+  @Test
+  @GerritConfig(name = "change.submitWholeTopic", value = "true")
+  @GerritConfig(name = "change.integrateProjectsInParallel", value = "true")
+  public void submitChangesAcrossReposInParallel() throws Throwable {
+    Project.NameKey p1 = projectOperations.newProject().create();
+    Project.NameKey p2 = projectOperations.newProject().create();
+    Project.NameKey p3 = projectOperations.newProject().create();
+
+    TestRepository<?> repo1 = cloneProject(p1);
+    TestRepository<?> repo2 = cloneProject(p2);
+    TestRepository<?> repo3 = cloneProject(p3);
+
+    PushOneCommit.Result change1 =
+        createChange(repo1, "master", "change in project 1", "a.txt", "1", "topic");
+    PushOneCommit.Result change2 =
+        createChange(repo2, "master", "change in project 2", "a.txt", "1", "topic");
+    PushOneCommit.Result change3 =
+        createChange(repo3, "master", "change in project 3", "a.txt", "1", "topic");
+
+    approve(change1.getChangeId());
+    approve(change2.getChangeId());
+    approve(change3.getChangeId());
+    submit(change1.getChangeId());
+
+    assertThat(getRemoteLog(p1, "master").get(0).getShortMessage())
+        .isEqualTo(change1.getCommit().getShortMessage());
+    assertThat(getRemoteLog(p2, "master").get(0).getShortMessage())
+        .isEqualTo(change2.getCommit().getShortMessage());
+    assertThat(getRemoteLog(p3, "master").get(0).getShortMessage())
+        .isEqualTo(change3.getCommit().getShortMessage());
+    assertMerged(change1.getChangeId());
+    assertMerged(change2.getChangeId());
+    assertMerged(change3.getChangeId());
+  }
+
   @Test
   public void submitChangesAcrossReposBlocked() throws Throwable {
     Project.NameKey p1 = projectOperations.newProject().create();
@@ -0,0 +1,107 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.rest.config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.RestResponse;
+import com.google.gerrit.server.logging.RequestId;
+import com.google.gerrit.server.logging.RunningRequests;
+import com.google.gerrit.server.logging.RunningRequests.Registration;
+import com.google.gerrit.server.logging.TraceContext;
+import com.google.gerrit.server.restapi.config.GetProfile.OperationProfileInfo;
+import com.google.gerrit.server.restapi.config.GetProfile.ProfileInfo;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class GetProfileIT extends AbstractDaemonTest {
+  private static final String OPERATION = "TEST sleepingOperation";
+
+  @Test
+  public void profileContainsSamplesOfRunningRequests() throws Exception {
+    ProfileInfo info;
+    try (SleepingRequest request = new SleepingRequest()) {
+      RestResponse r = adminRestSession.get("/config/server/profile?duration=1&interval=10");
+      r.assertOK();
+      info = newGson().fromJson(r.getReader(), ProfileInfo.class);
+    }
+
+    assertThat(info.rounds).isGreaterThan(0);
+    assertThat(info.intervalMs).isEqualTo(10);
+    assertThat(info.operations).containsKey(OPERATION);
+    OperationProfileInfo op = info.operations.get(OPERATION);
+    assertThat(op.samples).isGreaterThan(0);
+    assertThat(op.requests).isEqualTo(1);
+    assertThat(op.requestIds).containsExactly("TRACE_ID=profiled-trace");
+    assertThat(op.stacks).isNotEmpty();
+    assertThat(op.stacks.get(0)).contains(SleepingRequest.class.getName() + ".run");
+  }
+
+  @Test
+  public void finishedRequestsAreNotSampled() throws Exception {
+    new SleepingRequest().close();
+    RestResponse r = adminRestSession.get("/config/server/profile?duration=1&interval=100");
+    r.assertOK();
+    ProfileInfo info = newGson().fromJson(r.getReader(), ProfileInfo.class);
+    assertThat(info.operations).doesNotContainKey(OPERATION);
+  }
+
+  @Test
+  public void durationMustBeWithinBounds() throws Exception {
+    adminRestSession.get("/config/server/profile?duration=0").assertBadRequest();
+    adminRestSession.get("/config/server/profile?duration=61").assertBadRequest();
+  }
+
+  @Test
+  public void intervalMustBePositive() throws Exception {
+    adminRestSession.get("/config/server/profile?duration=1&interval=0").assertBadRequest();
+  }
+
+  @Test
+  public void nonAdminCannotProfile() throws Exception {
+    userRestSession.get("/config/server/profile?duration=1").assertForbidden();
+  }
+
+  /** Thread that executes a request that sleeps until it is closed. */
+  static class SleepingRequest implements AutoCloseable {
+    private final CountDownLatch registered = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Thread thread;
+
+    SleepingRequest() throws InterruptedException {
+      thread = new Thread(this::run);
+      thread.start();
+      registered.await();
+    }
+
+    private void run() {
+      try (TraceContext traceContext =
+              TraceContext.open().addTag(RequestId.Type.TRACE_ID, "profiled-trace");
+          Registration registration = RunningRequests.register("TEST", "sleepingOperation")) {
+        registered.countDown();
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+      done.countDown();
+      thread.join();
+    }
+  }
+}
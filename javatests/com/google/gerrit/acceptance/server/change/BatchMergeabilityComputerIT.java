@@ -0,0 +1,143 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.server.change;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.client.SubmitType;
+import com.google.gerrit.server.change.BatchMergeabilityComputer;
+import com.google.gerrit.server.change.MergeabilityCache;
+import com.google.gerrit.server.change.MergeabilityCacheImpl.EntryKey;
+import com.google.gerrit.server.git.MergeUtil;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+public class BatchMergeabilityComputerIT extends AbstractDaemonTest {
+  @Inject private BatchMergeabilityComputer batchMergeabilityComputer;
+  @Inject private MergeabilityCache mergeabilityCache;
+  @Inject private MergeUtil.Factory mergeUtilFactory;
+  @Inject private ProjectOperations projectOperations;
+
+  @Inject
+  @Named("mergeability")
+  private Cache<EntryKey, Boolean> cache;
+
+  @Test
+  @GerritConfig(name = "change.mergeabilityBatchParallelism", value = "2")
+  public void batchResultsMatchPerChangeComputation() throws Exception {
+    RevCommit base = projectOperations.project(project).getHead("master");
+    PushOneCommit.Result conflicting = createChange("conflicting", "a.txt", "change content");
+    testRepo.reset(base);
+    PushOneCommit.Result mergeable1 = createChange("mergeable 1", "b.txt", "content");
+    testRepo.reset(base);
+    PushOneCommit.Result mergeable2 = createChange("mergeable 2", "c.txt", "content");
+    testRepo.reset(base);
+    pushFactory
+        .create(admin.newIdent(), testRepo, "update", "a.txt", "branch content")
+        .to("refs/heads/master")
+        .assertOkStatus();
+
+    ChangeData conflictingCd = changeData(conflicting);
+    ChangeData mergeableCd1 = changeData(mergeable1);
+    ChangeData mergeableCd2 = changeData(mergeable2);
+    ImmutableList<ChangeData> changes = ImmutableList.of(conflictingCd, mergeableCd1, mergeableCd2);
+
+    cache.invalidateAll();
+    batchMergeabilityComputer.compute(project, changes);
+    assertThat(getIfPresent(conflictingCd)).isFalse();
+    assertThat(getIfPresent(mergeableCd1)).isTrue();
+    assertThat(getIfPresent(mergeableCd2)).isTrue();
+    Map<Change.Id, Boolean> batchResults = new HashMap<>();
+    changes.forEach(cd -> batchResults.put(cd.getId(), getIfPresent(cd)));
+
+    // Compute the mergeability of each change on its own, as done without batching.
+    cache.invalidateAll();
+    try (Repository repo = repoManager.openRepository(project)) {
+      Ref dest = repo.exactRef("refs/heads/master");
+      for (ChangeData cd : changes) {
+        boolean mergeable =
+            mergeabilityCache.get(
+                cd.currentPatchSet().commitId(),
+                dest,
+                SubmitType.MERGE_IF_NECESSARY,
+                mergeStrategy(),
+                cd.change().getDest(),
+                repo);
+        assertThat(mergeable).isEqualTo(batchResults.get(cd.getId()));
+      }
+    }
+  }
+
+  @Test
+  public void workInProgressChangesAreSkipped() throws Exception {
+    PushOneCommit.Result wip = createChange();
+    gApi.changes().id(wip.getChangeId()).setWorkInProgress();
+    PushOneCommit.Result ready = createChange();
+
+    ChangeData wipCd = changeData(wip);
+    ChangeData readyCd = changeData(ready);
+
+    cache.invalidateAll();
+    batchMergeabilityComputer.compute(project, ImmutableList.of(wipCd, readyCd));
+    assertThat(getIfPresent(wipCd)).isNull();
+    assertThat(getIfPresent(readyCd)).isNotNull();
+  }
+
+  @Test
+  public void missingProjectIsSkipped() throws Exception {
+    ChangeData cd = changeData(createChange());
+
+    cache.invalidateAll();
+    batchMergeabilityComputer.compute(Project.nameKey("non-existing"), ImmutableList.of(cd));
+    assertThat(getIfPresent(cd)).isNull();
+  }
+
+  private ChangeData changeData(PushOneCommit.Result r) {
+    return changeDataFactory.create(project, r.getChange().getId());
+  }
+
+  private Boolean getIfPresent(ChangeData cd) {
+    try (Repository repo = repoManager.openRepository(project)) {
+      return mergeabilityCache.getIfPresent(
+          cd.currentPatchSet().commitId(),
+          repo.exactRef(cd.change().getDest().branch()),
+          SubmitType.MERGE_IF_NECESSARY,
+          mergeStrategy());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private String mergeStrategy() {
+    return mergeUtilFactory.create(projectCache.get(project).get()).mergeStrategyName();
+  }
+}
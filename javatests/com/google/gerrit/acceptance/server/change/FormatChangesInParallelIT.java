@@ -0,0 +1,142 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.server.change;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.config.GerritConfig;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.LabelFunction;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.server.cancellation.RequestCancelledException;
+import com.google.gerrit.server.cancellation.RequestStateContext;
+import com.google.gerrit.server.cancellation.RequestStateProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+@GerritConfig(name = "change.formatParallelism", value = "4")
+public class FormatChangesInParallelIT extends AbstractDaemonTest {
+  // Changes are formatted in parallel in chunks of at least 10 changes.
+  private static final int NUM_CHANGES = 40;
+
+  @Test
+  public void resultsAreInOrderOfQuery() throws Exception {
+    List<Integer> expected = Lists.reverse(createChanges("master", NUM_CHANGES));
+
+    List<ChangeInfo> changes = query(ListChangesOption.LABELS);
+    assertThat(numbers(changes)).containsExactlyElementsIn(expected).inOrder();
+    for (ChangeInfo c : changes) {
+      assertThat(c.labels).containsKey("Code-Review");
+    }
+  }
+
+  @Test
+  public void changesAreFormattedSequentiallyIfActionsAreRequested() throws Exception {
+    List<Integer> expected = Lists.reverse(createChanges("master", NUM_CHANGES));
+
+    List<ChangeInfo> changes = query(ListChangesOption.CHANGE_ACTIONS);
+    assertThat(numbers(changes)).containsExactlyElementsIn(expected).inOrder();
+    for (ChangeInfo c : changes) {
+      assertThat(c.actions).isNotNull();
+    }
+  }
+
+  @Test
+  public void labelTypesAreSharedWithinBranchOnly() throws Exception {
+    createBranch(BranchNameKey.create(project, "stable"));
+    configLabel("Foo", LabelFunction.NO_OP, ImmutableList.of("refs/heads/stable"));
+    ObjectId base = testRepo.getRepository().resolve("HEAD");
+    List<Integer> masterChanges = new ArrayList<>();
+    List<Integer> stableChanges = new ArrayList<>();
+    for (int i = 0; i < NUM_CHANGES / 2; i++) {
+      // The changes are based on the commit that both branches point to.
+      testRepo.reset(base);
+      masterChanges.addAll(createChanges("master", 1));
+      testRepo.reset(base);
+      stableChanges.addAll(createChanges("stable", 1));
+    }
+
+    List<ChangeInfo> changes = query(ListChangesOption.LABELS);
+    assertThat(changes).hasSize(NUM_CHANGES);
+    for (ChangeInfo c : changes) {
+      if (stableChanges.contains(c._number)) {
+        assertThat(c.labels.keySet()).containsExactly("Code-Review", "Foo");
+      } else {
+        assertThat(masterChanges).contains(c._number);
+        assertThat(c.labels.keySet()).containsExactly("Code-Review");
+      }
+    }
+  }
+
+  @Test
+  public void requestStateIsCopiedToFormattingThreads() throws Exception {
+    createChanges("master", NUM_CHANGES);
+
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    try (RequestStateContext requestStateContext =
+        RequestStateContext.open()
+            .addRequestStateProvider(onCancelled -> threads.add(Thread.currentThread()))) {
+      assertThat(query(ListChangesOption.LABELS)).hasSize(NUM_CHANGES);
+    }
+    assertThat(threads.stream().anyMatch(t -> t != Thread.currentThread())).isTrue();
+  }
+
+  @Test
+  public void formattingThreadsAbortCancelledRequest() throws Exception {
+    createChanges("master", NUM_CHANGES);
+
+    Thread requestThread = Thread.currentThread();
+    try (RequestStateContext requestStateContext =
+        RequestStateContext.open()
+            .addRequestStateProvider(
+                onCancelled -> {
+                  if (Thread.currentThread() != requestThread) {
+                    onCancelled.onCancel(
+                        RequestStateProvider.Reason.SERVER_DEADLINE_EXCEEDED, "deadline = 1ms");
+                  }
+                })) {
+      // The cancellation is propagated to the caller, rather than formatting the changes
+      // sequentially.
+      Exception e = assertThrows(Exception.class, () -> query(ListChangesOption.LABELS));
+      assertThat(RequestCancelledException.getFromCausalChain(e).isPresent()).isTrue();
+    }
+  }
+
+  private List<Integer> createChanges(String branch, int count) throws Exception {
+    List<Integer> changes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      changes.add(createChange("refs/for/" + branch).getChange().getId().get());
+    }
+    return changes;
+  }
+
+  private List<ChangeInfo> query(ListChangesOption option) throws Exception {
+    return gApi.changes().query("status:open").withOption(option).withLimit(NUM_CHANGES).get();
+  }
+
+  private static List<Integer> numbers(List<ChangeInfo> changes) {
+    return changes.stream().map(c -> c._number).collect(toList());
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.server.event;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.allow;
+import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.permissionKey;
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.acceptance.TestMetricMaker;
+import com.google.gerrit.acceptance.testsuite.account.AccountOperations;
+import com.google.gerrit.acceptance.testsuite.change.ChangeOperations;
+import com.google.gerrit.acceptance.testsuite.group.GroupOperations;
+import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
+import com.google.gerrit.acceptance.testsuite.request.RequestScopeOperations;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.entities.AccountGroup;
+import com.google.gerrit.entities.Change;
+import com.google.gerrit.entities.Permission;
+import com.google.gerrit.extensions.registration.DynamicItem;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.extensions.registration.RegistrationHandle;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.EventDispatcher;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gerrit.server.events.TopicChangedEvent;
+import com.google.gerrit.server.events.UserScopedEventListener;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+@NoHttpd
+public class EventBrokerVisibilityIT extends AbstractDaemonTest {
+  private static final String VISIBILITY_CHECKS = "events/fan_out/visibility_checks";
+
+  @Inject private AccountOperations accountOperations;
+  @Inject private ChangeOperations changeOperations;
+  @Inject private DynamicItem<EventDispatcher> eventDispatcher;
+  @Inject private DynamicSet<UserScopedEventListener> userScopedEventListeners;
+  @Inject private GroupOperations groupOperations;
+  @Inject private ProjectOperations projectOperations;
+  @Inject private RequestScopeOperations requestScopeOperations;
+  @Inject private TestMetricMaker testMetricMaker;
+
+  private final List<RegistrationHandle> registrationHandles = new ArrayList<>();
+
+  @After
+  public void removeListeners() {
+    registrationHandles.forEach(RegistrationHandle::remove);
+  }
+
+  @Test
+  public void eventIsOnlyDeliveredToUsersThatCanSeeIt() throws Exception {
+    onlyAdminsCanReadProject();
+    List<Event> adminEvents = addListener(admin.id());
+    List<Event> userEvents = addListener(user.id());
+
+    postProjectEvent();
+    assertThat(adminEvents).hasSize(1);
+    assertThat(userEvents).isEmpty();
+  }
+
+  @Test
+  public void eventIsDeliveredToProjectOwners() throws Exception {
+    onlyAdminsCanReadProject();
+    Account.Id owner = accountOperations.newAccount().create();
+    AccountGroup.UUID owners = groupOperations.newGroup().addMember(owner).create();
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.OWNER).ref("refs/*").group(owners))
+        .update();
+    List<Event> ownerEvents = addListener(owner);
+    List<Event> userEvents = addListener(user.id());
+
+    postProjectEvent();
+    assertThat(ownerEvents).hasSize(1);
+    assertThat(userEvents).isEmpty();
+  }
+
+  @Test
+  public void visibilityIsCheckedOncePerUser() throws Exception {
+    onlyAdminsCanReadProject();
+    List<Event> adminEvents1 = addListener(admin.id());
+    List<Event> adminEvents2 = addListener(admin.id());
+    List<Event> userEvents1 = addListener(user.id());
+    List<Event> userEvents2 = addListener(user.id());
+    List<Event> userEvents3 = addListener(user.id());
+
+    testMetricMaker.reset();
+    postProjectEvent();
+    // The listener of the event recorder is registered for the admin too.
+    assertThat(testMetricMaker.getCount(VISIBILITY_CHECKS)).isEqualTo(2);
+    assertThat(adminEvents1).hasSize(1);
+    assertThat(adminEvents2).hasSize(1);
+    assertThat(userEvents1).isEmpty();
+    assertThat(userEvents2).isEmpty();
+    assertThat(userEvents3).isEmpty();
+  }
+
+  @Test
+  public void visibilityIsNotSharedBetweenUsersWithSameGroups() throws Exception {
+    // Both accounts are only members of the system groups, but only the change owner can see a
+    // private change.
+    Account.Id owner = accountOperations.newAccount().create();
+    Account.Id other = accountOperations.newAccount().create();
+    Change change = createPrivateChange(owner);
+    List<Event> ownerEvents = addListener(owner);
+    List<Event> otherEvents = addListener(other);
+
+    testMetricMaker.reset();
+    eventDispatcher.get().postEvent(change, new TopicChangedEvent(change));
+    // The third check is for the admin of the event recorder.
+    assertThat(testMetricMaker.getCount(VISIBILITY_CHECKS)).isEqualTo(3);
+    assertThat(ownerEvents).hasSize(1);
+    assertThat(otherEvents).isEmpty();
+  }
+
+  @Test
+  public void visibilityIsNotReusedForNextEvent() throws Exception {
+    onlyAdminsCanReadProject();
+    List<Event> userEvents = addListener(user.id());
+
+    postProjectEvent();
+    assertThat(userEvents).isEmpty();
+
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/*").group(REGISTERED_USERS))
+        .update();
+    postProjectEvent();
+    assertThat(userEvents).hasSize(1);
+  }
+
+  private void onlyAdminsCanReadProject() {
+    projectOperations
+        .project(project)
+        .forUpdate()
+        .add(allow(Permission.READ).ref("refs/*").group(adminGroupUuid()))
+        .setExclusiveGroup(permissionKey(Permission.READ).ref("refs/*"), true)
+        .update();
+  }
+
+  private Change createPrivateChange(Account.Id owner) throws Exception {
+    Change.Id changeId = changeOperations.newChange().project(project).owner(owner).create();
+    requestScopeOperations.setApiUser(owner);
+    gApi.changes().id(changeId.get()).setPrivate(true);
+    requestScopeOperations.setApiUser(admin.id());
+    return notesFactory.createChecked(project, changeId).getChange();
+  }
+
+  private void postProjectEvent() {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = project.get();
+    event.headName = "refs/heads/master";
+    eventDispatcher.get().postEvent(project, event);
+  }
+
+  private List<Event> addListener(Account.Id accountId) {
+    CurrentUser listenerUser = identifiedUserFactory.create(accountId);
+    List<Event> events = new ArrayList<>();
+    registrationHandles.add(
+        userScopedEventListeners.add(
+            "gerrit",
+            new UserScopedEventListener() {
+              @Override
+              public void onEvent(Event event) {
+                events.add(event);
+              }
+
+              @Override
+              public CurrentUser getUser() {
+                return listenerUser;
+              }
+            }));
+    return events;
+  }
+}
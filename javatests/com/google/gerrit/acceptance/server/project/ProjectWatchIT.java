@@ -17,12 +17,15 @@ package com.google.gerrit.acceptance.server.project;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.gerrit.acceptance.testsuite.project.TestProjectUpdate.allow;
 import static com.google.gerrit.server.StarredChangesUtil.IGNORE_LABEL;
+import static java.util.concurrent.TimeUnit.HOURS;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
 import com.google.gerrit.acceptance.NoHttpd;
 import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.TestAccount;
+import com.google.gerrit.acceptance.UseClockStep;
 import com.google.gerrit.acceptance.testsuite.project.ProjectOperations;
 import com.google.gerrit.acceptance.testsuite.request.RequestScopeOperations;
 import com.google.gerrit.entities.AccountGroup;
@@ -33,8 +36,10 @@ import com.google.gerrit.entities.Permission;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.api.changes.ReviewInput;
 import com.google.gerrit.extensions.api.changes.StarsInput;
+import com.google.gerrit.extensions.client.ProjectWatchInfo;
 import com.google.gerrit.extensions.common.GroupInfo;
 import com.google.gerrit.testing.FakeEmailSender.Message;
+import com.google.gerrit.testing.TestTimeUtil;
 import com.google.inject.Inject;
 import java.util.EnumSet;
 import java.util.List;
@@ -551,4 +556,84 @@ public class ProjectWatchIT extends AbstractDaemonTest {
     assertThat(m.body()).contains("Change subject: TRIGGER\n");
     assertThat(m.body()).contains("Gerrit-PatchSet: 1\n");
   }
+
+  @Test
+  public void watchesAreUpdatedAfterTheyWereLoaded() throws Exception {
+    String watchedProject = projectOperations.newProject().create().get();
+    TestRepository<InMemoryRepository> watchedRepo =
+        cloneProject(Project.nameKey(watchedProject), admin);
+
+    // push a change before user watches the project -> loads the watchers of the project
+    pushFactory
+        .create(admin.newIdent(), watchedRepo, "DONT_TRIGGER", "a", "a1")
+        .to("refs/for/master")
+        .assertOkStatus();
+    assertThat(sender.getMessages()).isEmpty();
+
+    // watch project
+    requestScopeOperations.setApiUser(user.id());
+    watch(watchedProject, "file:a");
+
+    // push a change to watched project -> should trigger email notification
+    requestScopeOperations.setApiUser(admin.id());
+    pushFactory
+        .create(admin.newIdent(), watchedRepo, "TRIGGER", "a", "a2")
+        .to("refs/for/master")
+        .assertOkStatus();
+    List<Message> messages = sender.getMessages();
+    assertThat(messages).hasSize(1);
+    assertThat(messages.get(0).rcpt()).containsExactly(user.getNameEmail());
+    assertThat(messages.get(0).body()).contains("Change subject: TRIGGER\n");
+    sender.clear();
+
+    // change the filter of the watch -> should not trigger email notification
+    requestScopeOperations.setApiUser(user.id());
+    ProjectWatchInfo pwi = new ProjectWatchInfo();
+    pwi.project = watchedProject;
+    pwi.filter = "file:a";
+    gApi.accounts().self().deleteWatchedProjects(ImmutableList.of(pwi));
+    watch(watchedProject, "file:b");
+
+    requestScopeOperations.setApiUser(admin.id());
+    pushFactory
+        .create(admin.newIdent(), watchedRepo, "DONT_TRIGGER", "a", "a3")
+        .to("refs/for/master")
+        .assertOkStatus();
+    assertThat(sender.getMessages()).isEmpty();
+  }
+
+  @Test
+  @UseClockStep
+  public void ageFilterIsEvaluatedAtTimeOfNotification() throws Exception {
+    String watchedProject = projectOperations.newProject().create().get();
+    TestRepository<InMemoryRepository> watchedRepo =
+        cloneProject(Project.nameKey(watchedProject), admin);
+
+    // watch project for changes that were updated within the last hour
+    requestScopeOperations.setApiUser(user.id());
+    watch(watchedProject, "-age:1h");
+
+    // push a change to watched project -> should trigger email notification
+    requestScopeOperations.setApiUser(admin.id());
+    pushFactory
+        .create(admin.newIdent(), watchedRepo, "TRIGGER", "a", "a1")
+        .to("refs/for/master")
+        .assertOkStatus();
+    assertThat(sender.getMessages()).hasSize(1);
+    sender.clear();
+
+    // move the clock back, so that the next change would be older than the filter allows if the
+    // filter was evaluated at the time of the first notification
+    TestTimeUtil.incrementClock(-2, HOURS);
+
+    // push a change to watched project -> should trigger email notification
+    pushFactory
+        .create(admin.newIdent(), watchedRepo, "TRIGGER", "a", "a2")
+        .to("refs/for/master")
+        .assertOkStatus();
+    List<Message> messages = sender.getMessages();
+    assertThat(messages).hasSize(1);
+    assertThat(messages.get(0).rcpt()).containsExactly(user.getNameEmail());
+    assertThat(messages.get(0).body()).contains("Change subject: TRIGGER\n");
+  }
 }
@@ -0,0 +1,88 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.ssh;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Splitter;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.UseSsh;
+import com.google.gerrit.server.logging.RunningRequests;
+import com.google.gerrit.server.logging.RunningRequests.Registration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+@UseSsh
+public class ShowProfileIT extends AbstractDaemonTest {
+  private static final String OPERATION = "TEST sleepingOperation";
+
+  @Test
+  public void foldedStacksStartWithOperation() throws Exception {
+    String out = profile("gerrit show-profile --duration 1 --interval 10");
+    adminSshSession.assertSuccess();
+
+    List<String> lines = Splitter.on('\n').omitEmptyStrings().splitToList(out);
+    assertThat(lines).isNotEmpty();
+    assertThat(lines.stream().anyMatch(l -> l.startsWith(OPERATION + ";"))).isTrue();
+    for (String line : lines) {
+      // Each line is a folded stack followed by the number of samples.
+      assertThat(line).matches(".+;.+ [0-9]+");
+    }
+  }
+
+  @Test
+  public void summaryPrintsSamplesPerOperation() throws Exception {
+    String out = profile("gerrit show-profile --duration 1 --interval 10 --summary");
+    adminSshSession.assertSuccess();
+    assertThat(out).containsMatch(OPERATION + " +[0-9]+ samples +1 requests");
+  }
+
+  @Test
+  public void invalidDurationIsRejected() throws Exception {
+    adminSshSession.exec("gerrit show-profile --duration 61");
+    adminSshSession.assertFailure("duration must be between 1 and 60 seconds");
+  }
+
+  @Test
+  public void nonAdminCannotProfile() throws Exception {
+    userSshSession.exec("gerrit show-profile --duration 1");
+    userSshSession.assertFailure("administrate server not permitted");
+  }
+
+  private String profile(String cmd) throws Exception {
+    CountDownLatch registered = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread t =
+        new Thread(
+            () -> {
+              try (Registration registration =
+                  RunningRequests.register("TEST", "sleepingOperation")) {
+                registered.countDown();
+                done.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    t.start();
+    try {
+      registered.await();
+      return adminSshSession.exec(cmd);
+    } finally {
+      done.countDown();
+      t.join();
+    }
+  }
+}
@@ -57,6 +57,7 @@ public class SshCommandsIT extends AbstractDaemonTest {
           "reload-config",
           "show-caches",
           "show-connections",
+          "show-profile",
           "show-queue",
           "version");
 
@@ -0,0 +1,73 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.extensions.restapi;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class StreamingListTest {
+  private final AtomicInteger produced = new AtomicInteger();
+
+  private StreamingList<String> list(String... elements) {
+    return new StreamingList<String>() {
+      @Override
+      protected Iterator<String> produce() {
+        produced.incrementAndGet();
+        return ImmutableList.copyOf(elements).iterator();
+      }
+    };
+  }
+
+  @Test
+  public void elementsAreProducedOnDemand() {
+    StreamingList<String> list = list("a", "b");
+    assertThat(produced.get()).isEqualTo(0);
+
+    assertThat(ImmutableList.copyOf(list.streamingIterator())).containsExactly("a", "b").inOrder();
+    assertThat(produced.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void listMethodsProduceElementsOnce() {
+    StreamingList<String> list = list("a", "b");
+
+    assertThat(list).containsExactly("a", "b").inOrder();
+    assertThat(list.size()).isEqualTo(2);
+    assertThat(list.get(1)).isEqualTo("b");
+    assertThat(produced.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void cannotBeConsumedAgainAfterStreaming() {
+    StreamingList<String> list = list("a");
+    list.streamingIterator();
+
+    assertThrows(IllegalStateException.class, () -> list.streamingIterator());
+    assertThrows(IllegalStateException.class, () -> list.size());
+  }
+
+  @Test
+  public void cannotBeStreamedAfterListAccess() {
+    StreamingList<String> list = list("a");
+    assertThat(list.isEmpty()).isFalse();
+
+    assertThrows(IllegalStateException.class, () -> list.streamingIterator());
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd.restapi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.gerrit.extensions.registration.PluginName;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.server.change.ChangeResource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RestApiMetricsTest {
+  private RecordingMetricMaker metricMaker;
+  private RestApiMetrics metrics;
+
+  @Before
+  public void setUp() {
+    metricMaker = new RecordingMetricMaker();
+    metrics = new RestApiMetrics(metricMaker);
+  }
+
+  @Test
+  public void viewNameOmitsGerritPackagePrefix() {
+    assertThat(metrics.view(ChangeResource.class, null)).isEqualTo("change.ChangeResource");
+    assertThat(metrics.view(ChangeResource.class, PluginName.GERRIT))
+        .isEqualTo("change.ChangeResource");
+    assertThat(metrics.view(RestApiMetrics.class, null)).isEqualTo("httpd.restapi.RestApiMetrics");
+  }
+
+  @Test
+  public void viewNameOfNestedClassUsesDots() {
+    assertThat(metrics.view(NestedView.class, null))
+        .isEqualTo("httpd.restapi.RestApiMetricsTest.NestedView");
+  }
+
+  @Test
+  public void viewNameOfPluginIsPrefixedWithPluginName() {
+    assertThat(metrics.view(ChangeResource.class, "my-plugin"))
+        .isEqualTo("my-plugin-change.ChangeResource");
+    assertThat(metrics.view(String.class, "my-plugin")).isEqualTo("my-plugin-java.lang.String");
+  }
+
+  @Test
+  public void resourceUsageIsRecordedByView() {
+    String view = metrics.view(ChangeResource.class, null);
+    metrics.cpuTime.record(view, 10);
+    metrics.allocatedBytes.record(view, 1024);
+    metrics.noteDbReads.record(view, 3);
+    metrics.indexQueries.record(view, 2);
+    metrics.cacheLoads.record(view, 1);
+
+    assertThat(metricMaker.recorded.get("http/server/rest_api/cpu_time"))
+        .containsExactly(view + "=10");
+    assertThat(metricMaker.recorded.get("http/server/rest_api/allocated_bytes"))
+        .containsExactly(view + "=1024");
+    assertThat(metricMaker.recorded.get("http/server/rest_api/notedb_reads"))
+        .containsExactly(view + "=3");
+    assertThat(metricMaker.recorded.get("http/server/rest_api/index_queries"))
+        .containsExactly(view + "=2");
+    assertThat(metricMaker.recorded.get("http/server/rest_api/cache_loads"))
+        .containsExactly(view + "=1");
+  }
+
+  private static class NestedView {}
+
+  private static class RecordingMetricMaker extends DisabledMetricMaker {
+    final ListMultimap<String, String> recorded = ArrayListMultimap.create();
+
+    @Override
+    public <F1> Histogram1<F1> newHistogram(String name, Description desc, Field<F1> field1) {
+      return new Histogram1<F1>() {
+        @Override
+        public void record(F1 field1, long value) {
+          recorded.put(name, field1 + "=" + value);
+        }
+
+        @Override
+        public void remove() {}
+      };
+    }
+  }
+}
@@ -16,11 +16,12 @@ package com.google.gerrit.metrics.dropwizard;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import org.eclipse.jgit.lib.Config;
 import org.junit.Test;
 
 public class DropWizardMetricMakerTest {
   DropWizardMetricMaker metrics =
-      new DropWizardMetricMaker(null /* MetricRegistry unused in tests */);
+      new DropWizardMetricMaker(null /* MetricRegistry unused in tests */, new Config());
 
   @Test
   public void shouldSanitizeUnwantedChars() throws Exception {
@@ -0,0 +1,148 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.metrics.dropwizard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LogLinearReservoirTest {
+  private static class FakeClock extends Clock {
+    long tick;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      tick += unit.toNanos(duration);
+    }
+  }
+
+  private final FakeClock clock = new FakeClock();
+
+  @Test
+  public void emptySnapshot() {
+    Snapshot s = newReservoir().getSnapshot();
+    assertThat(s.size()).isEqualTo(0);
+    assertThat(s.getMin()).isEqualTo(0);
+    assertThat(s.getMax()).isEqualTo(0);
+    assertThat(s.getMedian()).isEqualTo(0.0);
+    assertThat(s.getValues()).isEmpty();
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LogLinearReservoir r = newReservoir();
+    for (long v = 1; v <= LogLinearReservoir.SUB_BUCKET_COUNT; v++) {
+      r.update(v);
+    }
+    Snapshot s = r.getSnapshot();
+    assertThat(s.size()).isEqualTo(LogLinearReservoir.SUB_BUCKET_COUNT);
+    assertThat(s.getMin()).isEqualTo(1);
+    assertThat(s.getMax()).isEqualTo(LogLinearReservoir.SUB_BUCKET_COUNT);
+    assertThat(s.getMedian()).isEqualTo(LogLinearReservoir.SUB_BUCKET_COUNT / 2.0);
+    assertThat(s.getMean()).isEqualTo((LogLinearReservoir.SUB_BUCKET_COUNT + 1) / 2.0);
+  }
+
+  @Test
+  public void largeValuesAreWithinRelativeError() {
+    LogLinearReservoir r = newReservoir();
+    for (long v = 1; v <= 100_000; v++) {
+      r.update(v * 1_000_000);
+    }
+    Snapshot s = r.getSnapshot();
+    double maxError = 1.0 / LogLinearReservoir.SUB_BUCKET_COUNT;
+    assertThat(s.getMedian()).isWithin(50_000e6 * maxError).of(50_000e6);
+    assertThat(s.get99thPercentile()).isWithin(99_000e6 * maxError).of(99_000e6);
+    assertThat(s.getMin()).isEqualTo(1_000_000);
+    assertThat(s.getMax()).isEqualTo(100_000_000_000L);
+  }
+
+  @Test
+  public void bucketBounds() {
+    for (long v : new long[] {0, 1, 63, 64, 127, 128, 1000, 123_456_789, Long.MAX_VALUE}) {
+      int bucket = LogLinearReservoir.bucket(v);
+      assertThat(LogLinearReservoir.lowerBound(bucket)).isAtMost(v);
+      if (v < Long.MAX_VALUE) {
+        assertThat(LogLinearReservoir.lowerBound(bucket + 1)).isGreaterThan(v);
+      }
+    }
+  }
+
+  @Test
+  public void negativeValuesAreRecordedAsZero() {
+    LogLinearReservoir r = newReservoir();
+    r.update(-5);
+    Snapshot s = r.getSnapshot();
+    assertThat(s.size()).isEqualTo(1);
+    assertThat(s.getMin()).isEqualTo(0);
+    assertThat(s.getMax()).isEqualTo(0);
+  }
+
+  @Test
+  public void snapshotCoversCurrentAndPreviousWindow() {
+    LogLinearReservoir r = newReservoir();
+    for (int i = 0; i < 100; i++) {
+      r.update(10);
+    }
+    clock.advance(1, TimeUnit.MINUTES);
+    r.update(1000);
+    Snapshot s = r.getSnapshot();
+    assertThat(s.size()).isEqualTo(101);
+    assertThat(s.getMedian()).isEqualTo(10.0);
+    assertThat(s.getMax()).isEqualTo(1000);
+
+    // The first window is dropped once it's older than one window.
+    clock.advance(1, TimeUnit.MINUTES);
+    r.update(1000);
+    s = r.getSnapshot();
+    assertThat(s.size()).isEqualTo(2);
+    assertThat(s.getMedian()).isEqualTo(1000.0);
+    assertThat(s.getMin()).isEqualTo(1000);
+  }
+
+  @Test
+  public void valuesAreDroppedWithoutNewUpdates() {
+    LogLinearReservoir r = newReservoir();
+    r.update(10);
+    clock.advance(90, TimeUnit.SECONDS);
+    assertThat(r.getSnapshot().size()).isEqualTo(1);
+
+    clock.advance(30, TimeUnit.SECONDS);
+    Snapshot s = r.getSnapshot();
+    assertThat(s.size()).isEqualTo(0);
+    assertThat(s.getMedian()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void updateAfterLongPauseDropsOldValues() {
+    LogLinearReservoir r = newReservoir();
+    r.update(10);
+    clock.advance(5, TimeUnit.MINUTES);
+    r.update(20);
+    Snapshot s = r.getSnapshot();
+    assertThat(s.size()).isEqualTo(1);
+    assertThat(s.getMin()).isEqualTo(20);
+  }
+
+  private LogLinearReservoir newReservoir() {
+    return new LogLinearReservoir(1, TimeUnit.MINUTES, clock);
+  }
+}
@@ -15,23 +15,37 @@
 package com.google.gerrit.pgm.http.jetty;
 
 import static com.google.common.truth.Truth.assertThat;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.account.AccountLimits;
 import com.google.gerrit.server.account.GroupMembership;
 import com.google.gerrit.server.git.QueueProvider;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.util.IdGenerator;
+import com.google.inject.Guice;
 import com.google.inject.Provider;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jgit.lib.Config;
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -48,6 +62,22 @@ public class ProjectQoSFilterTest {
   @Mock QueueProvider queue;
   @Mock ServletContext context;
 
+  @Mock AccountLimits limits;
+  @Mock HttpServletRequest request;
+  @Mock HttpServletResponse response;
+  @Mock FilterChain chain;
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private ScheduledThreadPoolExecutor executor;
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void shouldCallTaskEndOnListenerCompleteFromDifferentThread() {
     ProjectQoSFilter.TaskThunk taskThunk = getTaskThunk();
@@ -114,6 +144,98 @@ public class ProjectQoSFilterTest {
     assertThat(taskThunk.isDone()).isTrue();
   }
 
+  @Test
+  public void shouldShedRequestIfEstimatedWaitTimeExceedsMaxWait() throws Exception {
+    // The estimated wait time is at least 2001 * 50ms, which exceeds the max wait of 1 minute.
+    createBusyExecutor(2000);
+
+    createFilter(true).doFilter(request, response, chain);
+
+    verify(response).sendError(SC_SERVICE_UNAVAILABLE);
+    verify(request, never()).startAsync();
+  }
+
+  @Test
+  public void shouldQueueRequestIfShedRequestsIsDisabled() throws Exception {
+    createBusyExecutor(2000);
+    int queued = executor.getQueue().size();
+    when(request.getServletPath()).thenReturn("/a/project/info/refs");
+    when(request.startAsync()).thenReturn(asyncContext);
+
+    createFilter(false).doFilter(request, response, chain);
+
+    verify(response, never()).sendError(anyInt());
+    assertThat(executor.getQueue()).hasSize(queued + 1);
+  }
+
+  @Test
+  public void shouldQueueRequestIfEstimatedWaitTimeIsBelowMaxWait() throws Exception {
+    createBusyExecutor(1);
+    int queued = executor.getQueue().size();
+    when(request.getServletPath()).thenReturn("/a/project/info/refs");
+    when(request.startAsync()).thenReturn(asyncContext);
+
+    createFilter(true).doFilter(request, response, chain);
+
+    verify(response, never()).sendError(anyInt());
+    assertThat(executor.getQueue()).hasSize(queued + 1);
+  }
+
+  private ProjectQoSFilter createFilter(boolean shedRequests) {
+    Config config = new Config();
+    config.setString("httpd", null, "maxwait", "1 minute");
+    config.setBoolean("httpd", null, "shedRequests", shedRequests);
+
+    when(userProvider.get()).thenReturn(new FakeUser("testUser"));
+    when(limitsFactory.create(any())).thenReturn(limits);
+    when(limits.getQueueType()).thenReturn(QueueProvider.QueueType.INTERACTIVE);
+    when(queue.getQueue(QueueProvider.QueueType.INTERACTIVE)).thenReturn(executor);
+    return new ProjectQoSFilter(limitsFactory, userProvider, queue, context, config);
+  }
+
+  /**
+   * Creates an executor with one thread that took at least 50ms per task so far and is busy, with
+   * the given number of queued tasks.
+   */
+  private void createBusyExecutor(int queuedTasks) throws Exception {
+    executor =
+        new WorkQueue(
+                Guice.createInjector().getInstance(IdGenerator.class),
+                1,
+                new DisabledMetricMaker())
+            .createQueue(1, "Test", false);
+    executor.submit(() -> sleep(50)).get(10, TimeUnit.SECONDS);
+    // The run time of a task is recorded after its future is completed.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!WorkQueue.estimateWaitTime(executor).isPresent()) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      sleep(1);
+    }
+
+    CountDownLatch started = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    for (int i = 0; i < queuedTasks; i++) {
+      executor.execute(() -> {});
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private ProjectQoSFilter.TaskThunk getTaskThunk() {
     HttpServletRequest servletRequest = new FakeHttpServletRequest();
     Config config = new Config();
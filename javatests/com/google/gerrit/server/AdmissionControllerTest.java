@@ -0,0 +1,224 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.AdmissionController.Permit;
+import com.google.gerrit.server.cancellation.RequestCancelledException;
+import com.google.gerrit.server.cancellation.RequestStateContext;
+import com.google.gerrit.server.cancellation.RequestStateProvider;
+import com.google.gerrit.server.logging.TraceContext;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void requestsAreAdmittedIfNoLimitIsConfigured() throws Exception {
+    AdmissionController admissionController = newAdmissionController(new Config());
+    try (Permit p1 = admissionController.admit(restRequest());
+        Permit p2 = admissionController.admit(restRequest())) {
+      // both requests are admitted
+    }
+  }
+
+  @Test
+  public void requestsBelowLimitAreAdmitted() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 2, 0));
+    try (Permit p1 = admissionController.admit(restRequest());
+        Permit p2 = admissionController.admit(restRequest())) {
+      // both requests are admitted
+    }
+  }
+
+  @Test
+  public void requestWithoutDeadlineIsRejectedIfLimitIsReached() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 1, 0));
+    try (Permit p = admissionController.admit(restRequest())) {
+      assertRejected(admissionController);
+    }
+
+    // Once the running request is done, requests are admitted again.
+    admissionController.admit(restRequest()).close();
+  }
+
+  @Test
+  public void requestsThatDoNotMatchAreNotLimited() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("SSH", 1, 0));
+    try (Permit p1 = admissionController.admit(restRequest());
+        Permit p2 = admissionController.admit(restRequest())) {
+      // both requests are admitted
+    }
+  }
+
+  @Test
+  public void requestThatCannotMeetDeadlineIsRejectedIfLimitIsReached() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 1, 10_000));
+    slowRequest(admissionController, 200);
+
+    try (Permit p = admissionController.admit(restRequest())) {
+      try (RequestStateContext requestStateContext =
+          RequestStateContext.open().addRequestStateProvider(new DeadlineProvider(50))) {
+        long start = System.nanoTime();
+        assertRejected(admissionController);
+        // The request is rejected right away, rather than when maxWait is exceeded.
+        assertThat(System.nanoTime() - start).isLessThan(SECONDS.toNanos(5));
+      }
+    }
+  }
+
+  @Test
+  public void requestWithTightDeadlineIsAdmittedIfLimitIsNotReached() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 1, 0));
+    slowRequest(admissionController, 200);
+
+    // The average latency exceeds the deadline, but the endpoint has spare capacity. Admitting the
+    // request is required to let the endpoint recover, since the average latency is only updated
+    // when admitted requests finish.
+    try (RequestStateContext requestStateContext =
+        RequestStateContext.open().addRequestStateProvider(new DeadlineProvider(10))) {
+      for (int i = 0; i < 10; i++) {
+        admissionController.admit(restRequest()).close();
+      }
+    }
+  }
+
+  @Test
+  public void endpointRecoversAfterSlowRequests() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 1, 10_000));
+    slowRequest(admissionController, 500);
+
+    // Fast requests decrease the average latency.
+    for (int i = 0; i < 30; i++) {
+      admissionController.admit(restRequest()).close();
+    }
+
+    // A deferred request with a deadline that is shorter than the latency of the slow request is
+    // no longer rejected, but waits until the running request finishes. Before the average latency
+    // recovered, the expected wait time plus the expected latency exceeded the deadline.
+    Permit running = admissionController.admit(restRequest());
+    CountDownLatch waiting = new CountDownLatch(1);
+    Future<?> deferred =
+        executor.submit(
+            () -> {
+              try (RequestStateContext requestStateContext =
+                  RequestStateContext.open().addRequestStateProvider(new DeadlineProvider(300))) {
+                waiting.countDown();
+                admissionController.admit(restRequest()).close();
+              }
+              return null;
+            });
+    assertThat(waiting.await(10, SECONDS)).isTrue();
+    running.close();
+    deferred.get(10, SECONDS);
+  }
+
+  @Test
+  public void deferredRequestIsAdmittedWhenRunningRequestFinishes() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 1, 10_000));
+    Permit running = admissionController.admit(restRequest());
+
+    CountDownLatch waiting = new CountDownLatch(1);
+    Future<?> deferred =
+        executor.submit(
+            () -> {
+              waiting.countDown();
+              admissionController.admit(restRequest()).close();
+              return null;
+            });
+    assertThat(waiting.await(10, SECONDS)).isTrue();
+    MILLISECONDS.sleep(50);
+    assertThat(deferred.isDone()).isFalse();
+
+    running.close();
+    deferred.get(10, SECONDS);
+  }
+
+  @Test
+  public void deferredRequestIsRejectedWhenMaxWaitIsExceeded() throws Exception {
+    AdmissionController admissionController = newAdmissionController(limit("REST", 1, 50));
+    try (Permit p = admissionController.admit(restRequest())) {
+      long start = System.nanoTime();
+      assertRejected(admissionController);
+      assertThat(System.nanoTime() - start).isAtLeast(MILLISECONDS.toNanos(50));
+    }
+  }
+
+  private static void slowRequest(AdmissionController admissionController, long latencyMs)
+      throws Exception {
+    try (Permit p = admissionController.admit(restRequest())) {
+      MILLISECONDS.sleep(latencyMs);
+    }
+  }
+
+  private static void assertRejected(AdmissionController admissionController) {
+    RequestCancelledException e =
+        assertThrows(
+            RequestCancelledException.class, () -> admissionController.admit(restRequest()));
+    assertThat(e.getCancellationReason())
+        .isEqualTo(RequestStateProvider.Reason.SERVER_OVERLOADED);
+  }
+
+  private static AdmissionController newAdmissionController(Config cfg) {
+    return new AdmissionController(cfg, new DisabledMetricMaker());
+  }
+
+  private static Config limit(String requestType, int maxConcurrency, long maxWaitMs) {
+    Config cfg = new Config();
+    cfg.setString("admission", "test", "requestType", requestType);
+    cfg.setInt("admission", "test", "maxConcurrency", maxConcurrency);
+    cfg.setString("admission", "test", "maxWait", maxWaitMs + "ms");
+    return cfg;
+  }
+
+  private static RequestInfo restRequest() {
+    return RequestInfo.builder(
+            RequestInfo.RequestType.REST, new InternalUser(), TraceContext.open())
+        .build();
+  }
+
+  private static class DeadlineProvider implements RequestStateProvider {
+    private final long deadline;
+
+    DeadlineProvider(long timeoutMs) {
+      this.deadline = System.nanoTime() + MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    @Override
+    public void checkIfCancelled(OnCancelled onCancelled) {}
+
+    @Override
+    public Optional<Long> getDeadline() {
+      return Optional.of(deadline);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.logging.LoggingContext;
+import com.google.gerrit.server.logging.Metadata;
+import com.google.gerrit.server.logging.PerformanceLogRecord;
+import com.google.gerrit.server.logging.PerformanceLogger;
+import com.google.gerrit.server.logging.TraceContext;
+import com.google.gerrit.server.util.IdGenerator;
+import com.google.inject.Guice;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncPerformanceLogDispatcherTest {
+  private WorkQueue workQueue;
+  private DynamicSet<PerformanceLogger> performanceLoggers;
+  private TagRecordingPerformanceLogger performanceLogger;
+
+  @Before
+  public void setUp() {
+    workQueue =
+        new WorkQueue(
+            Guice.createInjector().getInstance(IdGenerator.class), 1, new DisabledMetricMaker());
+    performanceLoggers = new DynamicSet<>();
+    performanceLogger = new TagRecordingPerformanceLogger();
+    performanceLoggers.add("gerrit", performanceLogger);
+  }
+
+  @After
+  public void tearDown() {
+    ScheduledThreadPoolExecutor executor = workQueue.getExecutor("PerformanceLogger");
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void performanceLoggersAreInvokedWithTagsOfRequest() throws Exception {
+    AsyncPerformanceLogDispatcher dispatcher = newDispatcher(true);
+    performanceLogger.expect(3);
+
+    try (TraceContext traceContext = TraceContext.open().addTag("request", "request-1")) {
+      dispatcher.dispatch(performanceLoggers, records("op1", "op2"));
+    }
+    try (TraceContext traceContext = TraceContext.open().addTag("request", "request-2")) {
+      dispatcher.dispatch(performanceLoggers, records("op3"));
+    }
+
+    performanceLogger.await();
+    assertThat(performanceLogger.tags.get("op1")).containsExactly("request", "request-1");
+    assertThat(performanceLogger.tags.get("op2")).containsExactly("request", "request-1");
+    assertThat(performanceLogger.tags.get("op3")).containsExactly("request", "request-2");
+    assertThat(performanceLogger.threads.get("op1")).isNotEqualTo(Thread.currentThread());
+  }
+
+  @Test
+  public void recordsWithoutTagsAreLoggedWithoutTags() throws Exception {
+    AsyncPerformanceLogDispatcher dispatcher = newDispatcher(true);
+    performanceLogger.expect(2);
+
+    try (TraceContext traceContext = TraceContext.open().addTag("request", "request-1")) {
+      dispatcher.dispatch(performanceLoggers, records("op1"));
+    }
+    dispatcher.dispatch(performanceLoggers, records("op2"));
+
+    performanceLogger.await();
+    assertThat(performanceLogger.tags.get("op1")).containsExactly("request", "request-1");
+    assertThat(performanceLogger.tags.get("op2")).isEmpty();
+  }
+
+  @Test
+  public void tagsOfDispatchingThreadAreNotChanged() throws Exception {
+    AsyncPerformanceLogDispatcher dispatcher = newDispatcher(true);
+    performanceLogger.expect(1);
+
+    try (TraceContext traceContext = TraceContext.open().addTag("request", "request-1")) {
+      dispatcher.dispatch(performanceLoggers, records("op1"));
+      performanceLogger.await();
+      assertThat(LoggingContext.getInstance().getTagsAsMap())
+          .containsExactly("request", "request-1");
+    }
+    assertThat(LoggingContext.getInstance().getTagsAsMap()).isEmpty();
+  }
+
+  @Test
+  public void performanceLoggersAreInvokedSynchronouslyByDefault() throws Exception {
+    AsyncPerformanceLogDispatcher dispatcher = newDispatcher(false);
+
+    try (TraceContext traceContext = TraceContext.open().addTag("request", "request-1")) {
+      dispatcher.dispatch(performanceLoggers, records("op1"));
+    }
+
+    assertThat(performanceLogger.tags.get("op1")).containsExactly("request", "request-1");
+    assertThat(performanceLogger.threads.get("op1")).isEqualTo(Thread.currentThread());
+  }
+
+  private AsyncPerformanceLogDispatcher newDispatcher(boolean async) {
+    Config cfg = new Config();
+    cfg.setBoolean("tracing", null, "asyncPerformanceLogging", async);
+    return new AsyncPerformanceLogDispatcher(cfg, workQueue, new DisabledMetricMaker());
+  }
+
+  private static ImmutableList<PerformanceLogRecord> records(String... operations) {
+    ImmutableList.Builder<PerformanceLogRecord> records = ImmutableList.builder();
+    for (String operation : operations) {
+      records.add(PerformanceLogRecord.create(operation, 1));
+    }
+    return records.build();
+  }
+
+  private static class TagRecordingPerformanceLogger implements PerformanceLogger {
+    final Map<String, ImmutableSetMultimap<String, String>> tags = new ConcurrentHashMap<>();
+    final Map<String, Thread> threads = new ConcurrentHashMap<>();
+    private CountDownLatch latch = new CountDownLatch(0);
+
+    void expect(int count) {
+      latch = new CountDownLatch(count);
+    }
+
+    void await() throws InterruptedException {
+      assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Override
+    public void log(String operation, long durationMs, Metadata metadata) {
+      tags.put(operation, LoggingContext.getInstance().getTagsAsMap());
+      threads.put(operation, Thread.currentThread());
+      latch.countDown();
+    }
+  }
+}
@@ -19,7 +19,9 @@ import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static com.google.gerrit.proto.testing.SerializedClassSubject.assertThatSerializedClass;
 import static com.google.gerrit.server.cache.testing.CacheSerializerTestUtil.byteString;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.gerrit.entities.Account;
 import com.google.gerrit.server.account.externalids.AllExternalIds.Serializer;
@@ -104,17 +106,81 @@ public class AllExternalIdsTest {
             .build());
   }
 
+  @Test
+  public void serializeUpdatedExternalIds() throws Exception {
+    Account.Id accountId = Account.id(1001);
+    AllExternalIds allExternalIds =
+        allExternalIds(
+            ExternalId.create("scheme1", "id1", accountId),
+            ExternalId.create("scheme2", "id2", accountId));
+    // Serialize the old state, so that the serialized forms of its shards are reused.
+    Serializer.INSTANCE.serialize(allExternalIds);
+
+    assertRoundTrip(
+        allExternalIds.update(
+            ImmutableList.of(ExternalId.create("scheme1", "id1", accountId)),
+            ImmutableList.of(ExternalId.create("scheme3", "id3", accountId))),
+        AllExternalIdsProto.newBuilder()
+            .addExternalId(
+                ExternalIdProto.newBuilder().setKey("scheme2:id2").setAccountId(1001).build())
+            .addExternalId(
+                ExternalIdProto.newBuilder().setKey("scheme3:id3").setAccountId(1001).build())
+            .build());
+  }
+
+  @Test
+  public void updateExternalIds() {
+    Account.Id accountId1 = Account.id(1001);
+    Account.Id accountId2 = Account.id(1002);
+    ExternalId extId1 = ExternalId.createEmail(accountId1, "foo@example.com");
+    ExternalId extId2 = ExternalId.create("scheme", "id", accountId1);
+    ExternalId extId3 = ExternalId.createEmail(accountId2, "bar@example.com");
+    AllExternalIds allExternalIds = allExternalIds(extId1, extId2);
+
+    AllExternalIds updated =
+        allExternalIds.update(ImmutableList.of(extId1), ImmutableList.of(extId3));
+
+    assertThat(updated).isEqualTo(allExternalIds(extId2, extId3));
+    assertThat(updated.size()).isEqualTo(2);
+    assertThat(updated.byKey(extId1.key())).isEmpty();
+    assertThat(updated.byKey(extId3.key())).hasValue(extId3);
+    assertThat(updated.byAccount(accountId1)).containsExactly(extId2);
+    assertThat(updated.byAccount(accountId2)).containsExactly(extId3);
+    assertThat(updated.byEmail("foo@example.com")).isEmpty();
+    assertThat(updated.byEmail("bar@example.com")).containsExactly(extId3);
+    assertThat(updated.allByAccount())
+        .isEqualTo(ImmutableSetMultimap.of(accountId1, extId2, accountId2, extId3));
+    assertThat(updated.allByEmail()).isEqualTo(ImmutableSetMultimap.of("bar@example.com", extId3));
+
+    // The old state is not modified.
+    assertThat(allExternalIds.byAccount(accountId1)).containsExactly(extId1, extId2);
+    assertThat(allExternalIds.byEmail("foo@example.com")).containsExactly(extId1);
+  }
+
+  @Test
+  public void addingExternalIdWithExistingKeyReplacesIt() {
+    ExternalId extId = ExternalId.create("scheme", "id", Account.id(1001));
+    ExternalId reassigned = ExternalId.create("scheme", "id", Account.id(1002));
+
+    AllExternalIds updated =
+        allExternalIds(extId).update(ImmutableList.of(), ImmutableList.of(reassigned));
+
+    assertThat(updated.byKey(extId.key())).hasValue(reassigned);
+    assertThat(updated.byAccount(Account.id(1001))).isEmpty();
+    assertThat(updated.byAccount(Account.id(1002))).containsExactly(reassigned);
+  }
+
   @Test
   public void allExternalIdsMethods() {
     assertThatSerializedClass(AllExternalIds.class)
         .hasAutoValueMethods(
             ImmutableMap.of(
-                "byKey",
-                new TypeLiteral<ImmutableMap<ExternalId.Key, ExternalId>>() {}.getType(),
-                "byAccount",
-                new TypeLiteral<ImmutableSetMultimap<Account.Id, ExternalId>>() {}.getType(),
-                "byEmail",
-                new TypeLiteral<ImmutableSetMultimap<String, ExternalId>>() {}.getType()));
+                "keys",
+                new TypeLiteral<ShardedMap<ExternalId.Key, ExternalId>>() {}.getType(),
+                "accounts",
+                new TypeLiteral<ShardedMap<Account.Id, ImmutableSet<ExternalId>>>() {}.getType(),
+                "emails",
+                new TypeLiteral<ShardedMap<String, ImmutableSet<ExternalId>>>() {}.getType()));
   }
 
   @Test
@@ -0,0 +1,132 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.account.externalids;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class ShardedMapTest {
+  @Test
+  public void putAndRemove() {
+    ShardedMap.Builder<Integer, String> builder = ShardedMap.<Integer, String>empty().toBuilder();
+    for (int i = 0; i < 5000; i++) {
+      builder.put(i, "v" + i);
+    }
+    ShardedMap<Integer, String> map = builder.build();
+    assertThat(map.size()).isEqualTo(5000);
+    assertThat(map.get(42)).isEqualTo("v42");
+    assertThat(map.get(5000)).isNull();
+
+    ShardedMap<Integer, String> updated = map.toBuilder().remove(42).put(4711, "new").build();
+    assertThat(updated.size()).isEqualTo(4999);
+    assertThat(updated.get(42)).isNull();
+    assertThat(updated.get(4711)).isEqualTo("new");
+
+    // The old version is not modified.
+    assertThat(map.get(42)).isEqualTo("v42");
+    assertThat(map.get(4711)).isEqualTo("v4711");
+  }
+
+  @Test
+  public void removeOfMissingKeyIsIgnored() {
+    ShardedMap<Integer, String> map = ShardedMap.<Integer, String>empty().toBuilder().build();
+    assertThat(map.toBuilder().remove(1).build()).isSameInstanceAs(map);
+    assertThat(map.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void equalsComparesEntries() {
+    ShardedMap<Integer, String> map1 =
+        ShardedMap.<Integer, String>empty().toBuilder().put(1, "a").put(2, "b").build();
+    ShardedMap<Integer, String> map2 =
+        ShardedMap.<Integer, String>empty().toBuilder().put(2, "b").put(1, "a").build();
+    assertThat(map1).isEqualTo(map2);
+    assertThat(map1.hashCode()).isEqualTo(map2.hashCode());
+    assertThat(map1).isNotEqualTo(map2.toBuilder().put(1, "c").build());
+  }
+
+  @Test
+  public void derivedValuesOfUnmodifiedShardsAreReused() {
+    ShardedMap.Builder<Integer, String> builder = ShardedMap.<Integer, String>empty().toBuilder();
+    for (int i = 0; i < 5000; i++) {
+      builder.put(i, "v" + i);
+    }
+    ShardedMap<Integer, String> map = builder.build();
+    AtomicInteger computed = new AtomicInteger();
+    List<Integer> sizes =
+        map.deriveFromShards(
+                s -> {
+                  if (!s.isEmpty()) {
+                    computed.incrementAndGet();
+                  }
+                  return s.size();
+                })
+            .collect(toList());
+    int nonEmptyShards = computed.get();
+    assertThat(sizes.stream().mapToInt(Integer::intValue).sum()).isEqualTo(5000);
+
+    computed.set(0);
+    ShardedMap<Integer, String> updated = map.toBuilder().put(1, "new").build();
+    updated
+        .deriveFromShards(
+            s -> {
+              if (!s.isEmpty()) {
+                computed.incrementAndGet();
+              }
+              return s.size();
+            })
+        .collect(toList());
+    assertThat(computed.get()).isEqualTo(1);
+    assertThat(nonEmptyShards).isGreaterThan(1);
+  }
+
+  @Test
+  public void derivedValuesAreNotRetained() throws Exception {
+    ShardedMap<Integer, String> map =
+        ShardedMap.<Integer, String>empty().toBuilder().put(1, "a").build();
+    AtomicInteger computed = new AtomicInteger();
+    WeakReference<byte[]> derived =
+        new WeakReference<>(deriveBytes(map, computed).filter(b -> b.length > 0).findAny().get());
+    assertThat(computed.get()).isEqualTo(1);
+
+    for (int i = 0; i < 100 && derived.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(derived.get()).isNull();
+
+    // The derived value is computed again once it was garbage collected.
+    assertThat(deriveBytes(map, computed).filter(b -> b.length > 0).count()).isEqualTo(1);
+    assertThat(computed.get()).isEqualTo(2);
+  }
+
+  private static Stream<byte[]> deriveBytes(
+      ShardedMap<Integer, String> map, AtomicInteger computed) {
+    return map.deriveFromShards(
+        s -> {
+          if (s.isEmpty()) {
+            return new byte[0];
+          }
+          computed.incrementAndGet();
+          return new byte[1024];
+        });
+  }
+}
@@ -20,6 +20,10 @@ import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.server.cancellation.RequestStateContext.NonCancellableOperationContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 
 public class RequestStateContextTest {
@@ -251,6 +255,62 @@ public class RequestStateContextTest {
     }
   }
 
+  @Test
+  public void copyToOtherThread() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      RequestStateProvider requestStateProvider = new TestRequestStateProvider();
+      Callable<ImmutableSet<RequestStateProvider>> callable;
+      try (RequestStateContext requestStateContext =
+          RequestStateContext.open().addRequestStateProvider(requestStateProvider)) {
+        callable = RequestStateContext.copy(RequestStateContext::getRequestStateProviders);
+      }
+
+      assertThat(executor.submit(callable).get()).containsExactly(requestStateProvider);
+      // The request state providers are removed from the other thread after the callable is done.
+      assertThat(executor.submit(RequestStateContext::getRequestStateProviders).get()).isEmpty();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void copiedContextIsCancelled() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Callable<Void> callable;
+      try (RequestStateContext requestStateContext =
+          RequestStateContext.open()
+              .addRequestStateProvider(
+                  new RequestStateProvider() {
+                    @Override
+                    public void checkIfCancelled(OnCancelled onCancelled) {
+                      onCancelled.onCancel(
+                          RequestStateProvider.Reason.CLIENT_CLOSED_REQUEST, /* message= */ null);
+                    }
+                  })) {
+        callable =
+            RequestStateContext.copy(
+                () -> {
+                  RequestStateContext.abortIfCancelled();
+                  return null;
+                });
+      }
+
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> executor.submit(callable).get());
+      assertThat(e).hasCauseThat().isInstanceOf(RequestCancelledException.class);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void copyWithoutRequestStateProviders() throws Exception {
+    Callable<String> callable = () -> "foo";
+    assertThat(RequestStateContext.copy(callable)).isSameInstanceAs(callable);
+  }
+
   private void assertNoRequestStateProviders() {
     assertRequestStateProviders(ImmutableSet.of());
   }
@@ -19,6 +19,8 @@ import static com.google.gerrit.entities.RefNames.REFS_TAGS;
 
 import com.google.common.truth.Correspondence;
 import com.google.gerrit.truth.NullAwareCorrespondence;
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepository;
 import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
 import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
 import org.eclipse.jgit.junit.TestRepository;
@@ -160,6 +162,26 @@ public class IncludedInResolverTest {
         .containsExactly(BRANCH_1_3, BRANCH_2_5);
   }
 
+  @Test
+  public void resolveWithBitmapIndex() throws Exception {
+    assertThat(IncludedInResolver.hasBitmapIndex(tr.getRevWalk())).isFalse();
+    new DfsGarbageCollector((DfsRepository) tr.getRepository()).pack(null);
+    assertThat(IncludedInResolver.hasBitmapIndex(tr.getRevWalk())).isTrue();
+
+    IncludedInResolver.Result detail = resolve(commit_v1_3);
+    assertThat(detail.tags())
+        .comparingElementsUsing(hasShortName())
+        .containsExactly(TAG_1_3, TAG_2_5, TAG_2_5_ANNOTATED, TAG_2_5_ANNOTATED_TWICE);
+    assertThat(detail.branches())
+        .comparingElementsUsing(hasShortName())
+        .containsExactly(BRANCH_1_3, BRANCH_2_5);
+
+    detail = resolve(commit_initial);
+    assertThat(detail.branches())
+        .comparingElementsUsing(hasShortName())
+        .containsExactly(BRANCH_MASTER, BRANCH_1_0, BRANCH_1_3, BRANCH_2_0, BRANCH_2_5);
+  }
+
   private IncludedInResolver.Result resolve(RevCommit commit) throws Exception {
     return IncludedInResolver.resolve(tr.getRepository(), tr.getRevWalk(), commit);
   }
@@ -0,0 +1,163 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.events;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventLogTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Gson gson = new EventGsonProvider().get();
+  private Path dir;
+
+  @Before
+  public void setUp() {
+    dir = temporaryFolder.getRoot().toPath().resolve("events");
+  }
+
+  @Test
+  public void logAndRead() throws Exception {
+    EventLog log = newEventLog(1024 * 1024, Long.MAX_VALUE);
+    log.onEvent(projectCreated("p1"));
+    log.onEvent(projectCreated("p2"));
+    log.onEvent(projectCreated("p3"));
+
+    ImmutableList<EventLog.Record> records = log.read(0, 0, 10);
+    assertThat(offsets(records)).containsExactly(0L, 1L, 2L).inOrder();
+    assertThat(projectName(records.get(1))).isEqualTo("p2");
+
+    assertThat(offsets(log.read(1, 0, 1))).containsExactly(1L);
+    assertThat(log.read(3, 0, 10)).isEmpty();
+    assertThat(log.nextOffset()).isEqualTo(3);
+  }
+
+  @Test
+  public void offsetsContinueAfterRestart() throws Exception {
+    EventLog log = newEventLog(1024 * 1024, Long.MAX_VALUE);
+    log.onEvent(projectCreated("p1"));
+    log.onEvent(projectCreated("p2"));
+    log.stop();
+
+    log = newEventLog(1024 * 1024, Long.MAX_VALUE);
+    log.onEvent(projectCreated("p3"));
+
+    ImmutableList<EventLog.Record> records = log.read(0, 0, 10);
+    assertThat(offsets(records)).containsExactly(0L, 1L, 2L).inOrder();
+    assertThat(projectName(records.get(2))).isEqualTo("p3");
+  }
+
+  @Test
+  public void partiallyWrittenRecordIsDropped() throws Exception {
+    EventLog log = newEventLog(1024 * 1024, Long.MAX_VALUE);
+    log.onEvent(projectCreated("p1"));
+    log.stop();
+    Path segment = segments().get(0);
+    Files.write(segment, new byte[] {0, 0, 1, 0, 0, 0}, StandardOpenOption.APPEND);
+
+    log = newEventLog(1024 * 1024, Long.MAX_VALUE);
+    log.onEvent(projectCreated("p2"));
+
+    ImmutableList<EventLog.Record> records = log.read(0, 0, 10);
+    assertThat(offsets(records)).containsExactly(0L, 1L).inOrder();
+    assertThat(projectName(records.get(1))).isEqualTo("p2");
+  }
+
+  @Test
+  public void oldSegmentsAreDeleted() throws Exception {
+    // Every event is written to a new segment.
+    EventLog log = newEventLog(1, 300);
+    for (int i = 0; i < 10; i++) {
+      log.onEvent(projectCreated("p" + i));
+    }
+
+    List<Path> segments = segments();
+    assertThat(segments.size()).isLessThan(10);
+    assertThat(segments.get(segments.size() - 1).getFileName().toString())
+        .isEqualTo("00000000000000000009.log");
+
+    ImmutableList<EventLog.Record> records = log.read(0, 0, 10);
+    assertThat(records.get(0).offset).isGreaterThan(0L);
+    assertThat(records.get(records.size() - 1).offset).isEqualTo(9L);
+  }
+
+  @Test
+  public void expiredSegmentsAreDeletedWithoutNewEvents() throws Exception {
+    EventLog log = new EventLog(gson, () -> null, true, dir, 1, Long.MAX_VALUE, 60 * 1000);
+    log.start();
+    for (int i = 0; i < 3; i++) {
+      log.onEvent(projectCreated("p" + i));
+    }
+    assertThat(segments()).hasSize(3);
+
+    FileTime expired = FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 1000);
+    for (Path segment : segments()) {
+      Files.setLastModifiedTime(segment, expired);
+    }
+    log.deleteExpiredSegments();
+
+    // The current segment is kept.
+    assertThat(segments()).hasSize(1);
+    assertThat(offsets(log.read(0, 0, 10))).containsExactly(2L);
+  }
+
+  @Test
+  public void disabledLogDoesNotWrite() throws Exception {
+    EventLog log = new EventLog(gson, () -> null, false, dir, 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+    log.start();
+    log.onEvent(projectCreated("p1"));
+
+    assertThat(Files.exists(dir)).isFalse();
+  }
+
+  private EventLog newEventLog(long segmentSize, long maxSize) {
+    EventLog log = new EventLog(gson, () -> null, true, dir, segmentSize, maxSize, Long.MAX_VALUE);
+    log.start();
+    return log;
+  }
+
+  private List<Path> segments() throws Exception {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.sorted().collect(toList());
+    }
+  }
+
+  private String projectName(EventLog.Record record) {
+    return ((ProjectCreatedEvent) gson.fromJson(record.json, Event.class)).projectName;
+  }
+
+  private static List<Long> offsets(List<EventLog.Record> records) {
+    return records.stream().map(r -> r.offset).collect(toList());
+  }
+
+  private static ProjectCreatedEvent projectCreated(String project) {
+    ProjectCreatedEvent event = new ProjectCreatedEvent();
+    event.projectName = project;
+    return event;
+  }
+}
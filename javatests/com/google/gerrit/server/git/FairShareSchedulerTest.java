@@ -0,0 +1,100 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.server.git.FairShareScheduler.Ticket;
+import com.google.gerrit.server.git.WorkQueue.Priority;
+import java.util.EnumMap;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FairShareSchedulerTest {
+  private FairShareScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    EnumMap<Priority, Integer> weights = new EnumMap<>(Priority.class);
+    weights.put(Priority.INTERACTIVE, 4);
+    weights.put(Priority.BATCH, 1);
+    scheduler = new FairShareScheduler(weights);
+  }
+
+  @Test
+  public void tasksOfSingleTenantKeepFifoOrder() {
+    Ticket first = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket second = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket third = scheduler.enqueue("ci", Priority.BATCH);
+
+    assertThat(first).isLessThan(second);
+    assertThat(second).isLessThan(third);
+  }
+
+  @Test
+  public void newTenantIsNotQueuedBehindBacklogOfOtherTenant() {
+    Ticket ci1 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket ci2 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket ci3 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket user = scheduler.enqueue("user", Priority.BATCH);
+
+    assertThat(user).isEquivalentAccordingToCompareTo(ci1);
+    assertThat(user).isLessThan(ci2);
+    assertThat(user).isLessThan(ci3);
+  }
+
+  @Test
+  public void higherWeightGetsLargerShare() {
+    Ticket batch1 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket batch2 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket interactive1 = scheduler.enqueue("user", Priority.INTERACTIVE);
+    Ticket interactive2 = scheduler.enqueue("user", Priority.INTERACTIVE);
+    Ticket interactive3 = scheduler.enqueue("user", Priority.INTERACTIVE);
+    Ticket interactive4 = scheduler.enqueue("user", Priority.INTERACTIVE);
+
+    assertThat(batch1).isEquivalentAccordingToCompareTo(interactive1);
+    assertThat(interactive2).isLessThan(batch2);
+    assertThat(interactive3).isLessThan(batch2);
+    assertThat(interactive4).isLessThan(batch2);
+  }
+
+  @Test
+  public void expensiveTasksAreCharged() {
+    Ticket ci = scheduler.enqueue("ci", Priority.BATCH);
+    scheduler.started(ci);
+    scheduler.finished(ci, 100 * FairShareScheduler.INITIAL_COST_NANOS);
+
+    Ticket ci2 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket user1 = scheduler.enqueue("user", Priority.BATCH);
+    Ticket user2 = scheduler.enqueue("user", Priority.BATCH);
+    Ticket user3 = scheduler.enqueue("user", Priority.BATCH);
+
+    assertThat(user1).isLessThan(ci2);
+    assertThat(user2).isLessThan(ci2);
+    assertThat(user3).isLessThan(ci2);
+  }
+
+  @Test
+  public void idleTenantDoesNotAccumulateCredit() {
+    Ticket ci1 = scheduler.enqueue("ci", Priority.BATCH);
+    Ticket ci2 = scheduler.enqueue("ci", Priority.BATCH);
+    scheduler.started(ci1);
+    scheduler.started(ci2);
+
+    // A tenant that didn't queue tasks for a while starts at the current virtual time.
+    Ticket user = scheduler.enqueue("user", Priority.BATCH);
+    assertThat(user).isEquivalentAccordingToCompareTo(ci2);
+  }
+}
@@ -0,0 +1,381 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.git.WorkQueue.FairShareRunnable;
+import com.google.gerrit.server.git.WorkQueue.Priority;
+import com.google.gerrit.server.git.WorkQueue.Task;
+import com.google.gerrit.server.util.IdGenerator;
+import com.google.inject.Guice;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkQueueTest {
+  private final List<ScheduledThreadPoolExecutor> executors = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    executors.forEach(ScheduledThreadPoolExecutor::shutdownNow);
+  }
+
+  @Test
+  public void platformThreadsByDefault() throws Exception {
+    ScheduledThreadPoolExecutor executor = createQueue(new Config(), 1, "Test");
+    Thread thread = executingThread(executor);
+    assertThat(thread.getName()).startsWith("Test-");
+    assertThat(isVirtual(thread)).isFalse();
+  }
+
+  @Test
+  public void virtualThreadsIfEnabled() throws Exception {
+    assumeTrue(virtualThreadsSupported());
+    ScheduledThreadPoolExecutor executor = createQueue(virtualThreads(), 1, "Test");
+    Thread thread = executingThread(executor);
+    assertThat(thread.getName()).startsWith("Test-");
+    assertThat(isVirtual(thread)).isTrue();
+  }
+
+  @Test
+  public void poolSizeLimitsConcurrentTasksWithVirtualThreads() throws Exception {
+    assumeTrue(virtualThreadsSupported());
+    ScheduledThreadPoolExecutor executor = createQueue(virtualThreads(), 2, "Test");
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                started.countDown();
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+              }));
+    }
+
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    // The tasks that exceed the limit wait in the queue, so that they are visible as READY and
+    // the active_threads metric is the number of executing tasks.
+    assertThat(executor.getActiveCount()).isEqualTo(2);
+    assertThat(executor.getQueue()).hasSize(3);
+
+    release.countDown();
+    for (Future<?> f : futures) {
+      f.get(10, TimeUnit.SECONDS);
+    }
+    assertThat(maxRunning.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void fairShareQueueDoesNotQueueTenantBehindBacklogOfOtherTenant() throws Exception {
+    Config cfg = new Config();
+    cfg.setString("execution", null, "fairShareQueue", "Test");
+    ScheduledThreadPoolExecutor executor = createQueue(cfg, 1, "Test");
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+
+    List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    List<Future<?>> futures = new ArrayList<>();
+    for (String name : ImmutableList.of("ci-1", "ci-2", "ci-3")) {
+      futures.add(executor.submit(new TenantTask("ci", name, executed)));
+    }
+    futures.add(executor.submit(new TenantTask("user", "user-1", executed)));
+
+    release.countDown();
+    for (Future<?> f : futures) {
+      f.get(10, TimeUnit.SECONDS);
+    }
+    assertThat(executed).containsExactly("ci-1", "user-1", "ci-2", "ci-3").inOrder();
+  }
+
+  @Test
+  public void orderOfFairShareTasksAndDelayedTasksIsTotal() throws Exception {
+    Config cfg = new Config();
+    cfg.setString("execution", null, "fairShareQueue", "Test");
+    WorkQueue workQueue = createWorkQueue(cfg);
+    ScheduledThreadPoolExecutor executor = workQueue.createQueue(1, "Test", false);
+    executors.add(executor);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+
+    List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    executor.schedule(() -> {}, 2, TimeUnit.HOURS);
+    executor.submit(new TenantTask("ci", "ci-1", executed));
+    executor.schedule(() -> {}, 1, TimeUnit.HOURS);
+    executor.submit(new TenantTask("ci", "ci-2", executed));
+    executor.submit(new TenantTask("user", "user-1", executed));
+    executor.schedule(() -> {}, 3, TimeUnit.HOURS);
+
+    List<Task<?>> tasks =
+        workQueue.getTasks().stream()
+            .filter(t -> t.getQueueName().equals("Test"))
+            .collect(toList());
+    assertThat(tasks).hasSize(7);
+    for (Task<?> a : tasks) {
+      assertThat(a.compareTo(a)).isEqualTo(0);
+      for (Task<?> b : tasks) {
+        assertThat(Integer.signum(a.compareTo(b))).isEqualTo(-Integer.signum(b.compareTo(a)));
+        for (Task<?> c : tasks) {
+          if (a.compareTo(b) <= 0 && b.compareTo(c) <= 0) {
+            assertThat(a.compareTo(c)).isAtMost(0);
+          }
+        }
+      }
+    }
+
+    // Ready tasks are not held up by delayed tasks.
+    release.countDown();
+    executor.submit(() -> {}).get(10, TimeUnit.SECONDS);
+    assertThat(executed).containsExactly("ci-1", "user-1", "ci-2").inOrder();
+  }
+
+  @Test
+  public void dueDelayedTaskIsNotStarvedByFairShareTasks() throws Exception {
+    Config cfg = new Config();
+    cfg.setString("execution", null, "fairShareQueue", "Test");
+    ScheduledThreadPoolExecutor executor = createQueue(cfg, 1, "Test");
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+
+    List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    ScheduledFuture<?> delayed =
+        executor.schedule(new TenantTask("user", "user-1", executed), 10, TimeUnit.MILLISECONDS);
+    List<Future<?>> futures = new ArrayList<>();
+    for (String name : ImmutableList.of("ci-1", "ci-2", "ci-3")) {
+      futures.add(executor.submit(new TenantTask("ci", name, executed)));
+    }
+    while (delayed.getDelay(TimeUnit.MILLISECONDS) > 0) {
+      Thread.sleep(1);
+    }
+
+    release.countDown();
+    delayed.get(10, TimeUnit.SECONDS);
+    for (Future<?> f : futures) {
+      f.get(10, TimeUnit.SECONDS);
+    }
+    assertThat(executed).containsExactly("ci-1", "user-1", "ci-2", "ci-3").inOrder();
+  }
+
+  @Test
+  public void estimatedWaitTimeIsUnknownIfNoTaskFinished() {
+    ScheduledThreadPoolExecutor executor = createQueue(new Config(), 1, "Test");
+    assertThat(WorkQueue.estimateWaitTime(executor)).isEmpty();
+  }
+
+  @Test
+  public void estimatedWaitTimeIsUnknownForOtherExecutors() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    executors.add(executor);
+    assertThat(WorkQueue.estimateWaitTime(executor)).isEmpty();
+  }
+
+  @Test
+  public void estimatedWaitTimeIsZeroIfThreadIsAvailable() throws Exception {
+    ScheduledThreadPoolExecutor executor = createQueue(new Config(), 2, "Test");
+    runTask(executor, 50);
+    assertThat(WorkQueue.estimateWaitTime(executor)).hasValue(0L);
+
+    // One of two threads is busy.
+    CountDownLatch release = new CountDownLatch(1);
+    block(executor, release);
+    assertThat(WorkQueue.estimateWaitTime(executor)).hasValue(0L);
+    release.countDown();
+  }
+
+  @Test
+  public void estimatedWaitTimeGrowsWithQueuedTasks() throws Exception {
+    ScheduledThreadPoolExecutor executor = createQueue(new Config(), 1, "Test");
+    runTask(executor, 50);
+
+    CountDownLatch release = new CountDownLatch(1);
+    block(executor, release);
+    // The thread is busy, a new task has to wait until the running task is done.
+    long waitTime = WorkQueue.estimateWaitTime(executor).get();
+    assertThat(waitTime).isAtLeast(TimeUnit.MILLISECONDS.toNanos(50));
+
+    for (int i = 0; i < 3; i++) {
+      executor.execute(() -> {});
+    }
+    // A new task has to wait until the running task and the 3 queued tasks are done.
+    assertThat(WorkQueue.estimateWaitTime(executor)).hasValue(4 * waitTime);
+    release.countDown();
+  }
+
+  private ScheduledThreadPoolExecutor createQueue(Config cfg, int poolSize, String name) {
+    ScheduledThreadPoolExecutor executor = createWorkQueue(cfg).createQueue(poolSize, name, false);
+    executors.add(executor);
+    return executor;
+  }
+
+  private WorkQueue createWorkQueue(Config cfg) {
+    WorkQueue workQueue =
+        new WorkQueue(
+            Guice.createInjector().getInstance(IdGenerator.class), cfg, new DisabledMetricMaker());
+    executors.add((ScheduledThreadPoolExecutor) workQueue.getDefaultQueue());
+    return workQueue;
+  }
+
+  /**
+   * Runs a task that takes at least the given time and waits until its run time is included in the
+   * estimated wait time of the executor.
+   */
+  private static void runTask(ScheduledThreadPoolExecutor executor, long runTimeMs)
+      throws Exception {
+    executor
+        .submit(
+            () -> {
+              try {
+                TimeUnit.MILLISECONDS.sleep(runTimeMs);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            })
+        .get(10, TimeUnit.SECONDS);
+    // The run time is recorded after the future is completed.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!WorkQueue.estimateWaitTime(executor).isPresent()) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+  }
+
+  /** Occupies one thread of the executor until the given latch is released. */
+  private static void block(ScheduledThreadPoolExecutor executor, CountDownLatch release)
+      throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private static Thread executingThread(ScheduledThreadPoolExecutor executor) throws Exception {
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    executor.submit(() -> thread.set(Thread.currentThread())).get(10, TimeUnit.SECONDS);
+    return thread.get();
+  }
+
+  private static Config virtualThreads() {
+    Config cfg = new Config();
+    cfg.setBoolean("execution", null, "virtualThreads", true);
+    return cfg;
+  }
+
+  private static class TenantTask implements FairShareRunnable {
+    private final String tenant;
+    private final String name;
+    private final List<String> executed;
+
+    TenantTask(String tenant, String name, List<String> executed) {
+      this.tenant = tenant;
+      this.name = name;
+      this.executed = executed;
+    }
+
+    @Override
+    public String getTenant() {
+      return tenant;
+    }
+
+    @Override
+    public Priority getPriority() {
+      return Priority.BATCH;
+    }
+
+    @Override
+    public void run() {
+      executed.add(name);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static boolean virtualThreadsSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual").invoke(null);
+      return true;
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    try {
+      return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+}
@@ -356,6 +356,51 @@ public class PerformanceLogContextTest {
     assertThat(LoggingContext.getInstance().getPerformanceLogRecords()).isEmpty();
   }
 
+  @Test
+  public void performanceLogRecordsAreHandedOverToDispatcherWithoutState() {
+    List<PerformanceLogRecord> dispatchedRecords = new ArrayList<>();
+    PerformanceLogDispatcher dispatcher =
+        (loggers, records) -> {
+          assertThat(loggers).isSameInstanceAs(performanceLoggers);
+          assertThat(LoggingContext.getInstance().isPerformanceLogging()).isFalse();
+          assertThat(LoggingContext.getInstance().getPerformanceLogRecords()).isEmpty();
+          dispatchedRecords.addAll(records);
+        };
+
+    try (PerformanceLogContext traceContext =
+        new PerformanceLogContext(config, performanceLoggers, dispatcher)) {
+      TraceContext.newTimer("test1").close();
+      TraceContext.newTimer("test2").close();
+    }
+
+    assertThat(dispatchedRecords.stream().map(PerformanceLogRecord::operation))
+        .containsExactly("test1", "test2")
+        .inOrder();
+    assertThat(testPerformanceLogger.logEntries()).isEmpty();
+  }
+
+  @Test
+  public void recordsCreatedWhileDispatchingAreNotAddedToEnclosingContext() {
+    PerformanceLogDispatcher dispatcher =
+        (loggers, records) -> TraceContext.newTimer("dispatch").close();
+
+    try (PerformanceLogContext traceContext1 =
+        new PerformanceLogContext(config, performanceLoggers)) {
+      TraceContext.newTimer("test1").close();
+
+      try (PerformanceLogContext traceContext2 =
+          new PerformanceLogContext(config, performanceLoggers, dispatcher)) {
+        TraceContext.newTimer("test2").close();
+      }
+
+      assertThat(LoggingContext.getInstance().isPerformanceLogging()).isTrue();
+      assertThat(
+              LoggingContext.getInstance().getPerformanceLogRecords().stream()
+                  .map(PerformanceLogRecord::operation))
+          .containsExactly("test1");
+    }
+  }
+
   private static class TestPerformanceLogger implements PerformanceLogger {
     private List<PerformanceLogEntry> logEntries = new ArrayList<>();
 
@@ -0,0 +1,91 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.logging;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.truth.OptionalSubject.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Test;
+
+public class PerformanceSummaryTest {
+  @After
+  public void cleanup() {
+    LoggingContext.getInstance().clearPerformanceLogEntries();
+    LoggingContext.getInstance().performanceLogging(false);
+  }
+
+  @Test
+  public void countsOperations() {
+    PerformanceSummary summary =
+        PerformanceSummary.of(
+            ImmutableList.of(
+                PerformanceLogRecord.create(PerformanceSummary.NOTEDB_READ, 1),
+                PerformanceLogRecord.create(PerformanceSummary.NOTEDB_READ, 2),
+                PerformanceLogRecord.create(PerformanceSummary.INDEX_QUERY, 3),
+                PerformanceLogRecord.create(PerformanceSummary.CACHE_LOAD, 4),
+                PerformanceLogRecord.create(PerformanceSummary.CACHE_LOAD_ALL, 5),
+                PerformanceLogRecord.create("other", 6)));
+    assertThat(summary).isEqualTo(PerformanceSummary.create(2, 1, 2));
+  }
+
+  @Test
+  public void emptySummary() {
+    assertThat(PerformanceSummary.of(ImmutableList.of()))
+        .isEqualTo(PerformanceSummary.create(0, 0, 0));
+  }
+
+  @Test
+  public void summaryIsComputedByPerformanceLogContextIfEnabled() {
+    Config cfg = new Config();
+    cfg.setBoolean("tracing", null, "performanceSummary", true);
+
+    // The summary is computed even if no performance logger is registered.
+    PerformanceLogContext ctx = new PerformanceLogContext(cfg, DynamicSet.emptySet());
+    try (PerformanceLogContext c = ctx) {
+      assertThat(LoggingContext.getInstance().isPerformanceLogging()).isTrue();
+      TraceContext.newTimer(PerformanceSummary.NOTEDB_READ).close();
+      TraceContext.newTimer(PerformanceSummary.INDEX_QUERY).close();
+      TraceContext.newTimer(PerformanceSummary.INDEX_QUERY).close();
+      assertThat(c.getSummary()).isEmpty();
+    }
+    assertThat(ctx.getSummary()).value().isEqualTo(PerformanceSummary.create(1, 2, 0));
+  }
+
+  @Test
+  public void summaryIsNotComputedByDefault() {
+    PerformanceLogContext ctx = new PerformanceLogContext(new Config(), DynamicSet.emptySet());
+    try (PerformanceLogContext c = ctx) {
+      assertThat(LoggingContext.getInstance().isPerformanceLogging()).isFalse();
+      TraceContext.newTimer(PerformanceSummary.NOTEDB_READ).close();
+    }
+    assertThat(ctx.getSummary()).isEmpty();
+  }
+
+  @Test
+  public void summaryIsNotComputedIfPerformanceLoggingIsDisabled() {
+    Config cfg = new Config();
+    cfg.setBoolean("tracing", null, "performanceLogging", false);
+    cfg.setBoolean("tracing", null, "performanceSummary", true);
+    PerformanceLogContext ctx = new PerformanceLogContext(cfg, DynamicSet.emptySet());
+    try (PerformanceLogContext c = ctx) {
+      TraceContext.newTimer(PerformanceSummary.NOTEDB_READ).close();
+    }
+    assertThat(ctx.getSummary()).isEmpty();
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.logging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.server.logging.RunningRequests.Registration;
+import com.google.gerrit.server.logging.RunningRequests.Request;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+public class RunningRequestsTest {
+  @After
+  public void cleanup() {
+    LoggingContext.getInstance().clearTags();
+  }
+
+  @Test
+  public void registeredRequestIsInSnapshotUntilClosed() {
+    try (Registration registration = RunningRequests.register("REST", "GetChange")) {
+      Request request = RunningRequests.snapshot().get(Thread.currentThread());
+      assertThat(request).isNotNull();
+      assertThat(request.getRequestType()).isEqualTo("REST");
+      assertThat(request.getOperation()).isEqualTo("GetChange");
+    }
+    assertThat(RunningRequests.snapshot()).doesNotContainKey(Thread.currentThread());
+  }
+
+  @Test
+  public void operationCanBeSetLater() {
+    try (Registration registration = RunningRequests.register("SSH", null)) {
+      Request request = RunningRequests.snapshot().get(Thread.currentThread());
+      assertThat(request.getOperation()).isNull();
+
+      registration.setOperation("gerrit query");
+      assertThat(request.getOperation()).isEqualTo("gerrit query");
+    }
+  }
+
+  @Test
+  public void closingNestedRegistrationRestoresOuterRegistration() {
+    try (Registration outer = RunningRequests.register("GIT", "git-receive-pack")) {
+      try (Registration inner = RunningRequests.register("REST", "PostReview")) {
+        assertThat(RunningRequests.snapshot().get(Thread.currentThread()).getOperation())
+            .isEqualTo("PostReview");
+      }
+      assertThat(RunningRequests.snapshot().get(Thread.currentThread()).getOperation())
+          .isEqualTo("git-receive-pack");
+    }
+    assertThat(RunningRequests.snapshot()).doesNotContainKey(Thread.currentThread());
+  }
+
+  @Test
+  public void loggingTagsAreCapturedOnRegistration() {
+    try (TraceContext traceContext =
+            TraceContext.open()
+                .addTag(RequestId.Type.TRACE_ID, "trace-1")
+                .addTag("project", "foo");
+        Registration registration = RunningRequests.register("REST", "GetChange")) {
+      Request request = RunningRequests.snapshot().get(Thread.currentThread());
+      assertThat(request.getTags()).containsEntry("project", "foo");
+      assertThat(request.getRequestIds()).containsExactly("TRACE_ID", "trace-1");
+    }
+  }
+
+  @Test
+  public void requestsOfOtherThreadsAreVisible() throws Exception {
+    CountDownLatch registered = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    Thread t =
+        new Thread(
+            () -> {
+              thread.set(Thread.currentThread());
+              try (Registration registration = RunningRequests.register("SSH", "gerrit ls")) {
+                registered.countDown();
+                done.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    t.start();
+    try {
+      registered.await();
+      assertThat(RunningRequests.snapshot().get(thread.get()).getOperation())
+          .isEqualTo("gerrit ls");
+    } finally {
+      done.countDown();
+      t.join();
+    }
+    assertThat(RunningRequests.snapshot()).doesNotContainKey(t);
+  }
+}
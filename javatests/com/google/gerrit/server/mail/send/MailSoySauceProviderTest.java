@@ -15,17 +15,27 @@
 package com.google.gerrit.server.mail.send;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.io.Resources;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.plugincontext.PluginContext.PluginMetrics;
 import com.google.gerrit.server.plugincontext.PluginSetContext;
+import com.google.template.soy.jbcsrc.api.SoySauce;
 import com.google.template.soy.shared.SoyAstCache;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import org.eclipse.jgit.lib.Config;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class MailSoySauceProviderTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   private SitePaths sitePaths;
   private DynamicSet<MailSoyTemplateProvider> set;
@@ -40,9 +50,67 @@ public class MailSoySauceProviderTest {
   public void soyCompilation() {
     MailSoySauceProvider provider =
         new MailSoySauceProvider(
+            new Config(),
             sitePaths,
             new SoyAstCache(),
             new PluginSetContext<>(set, PluginMetrics.DISABLED_INSTANCE));
     assertThat(provider.get()).isNotNull(); // should not throw
   }
+
+  @Test
+  public void compiledTemplatesAreReused() {
+    MailSoySauceProvider provider = newProvider(sitePaths, "0");
+    assertThat(provider.get()).isSameInstanceAs(provider.get());
+  }
+
+  @Test
+  public void templatesAreRecompiledWhenSiteTemplateChanges() throws Exception {
+    SitePaths site = new SitePaths(temporaryFolder.getRoot().toPath());
+    MailSoySauceProvider provider = newProvider(site, "0");
+    SoySauce original = provider.get();
+
+    Files.createDirectories(site.mail_dir);
+    Path footer = site.mail_dir.resolve("Footer.soy");
+    Files.write(
+        footer,
+        Resources.toString(
+                Resources.getResource("com/google/gerrit/server/mail/Footer.soy"), UTF_8)
+            .getBytes(UTF_8));
+    SoySauce withOverride = provider.get();
+    assertThat(withOverride).isNotSameInstanceAs(original);
+    assertThat(provider.get()).isSameInstanceAs(withOverride);
+
+    Files.setLastModifiedTime(
+        footer, FileTime.fromMillis(Files.getLastModifiedTime(footer).toMillis() + 10_000));
+    SoySauce modified = provider.get();
+    assertThat(modified).isNotSameInstanceAs(withOverride);
+
+    Files.delete(footer);
+    assertThat(provider.get()).isNotSameInstanceAs(modified);
+  }
+
+  @Test
+  public void siteTemplatesAreOnlyCheckedAtCheckFrequency() throws Exception {
+    SitePaths site = new SitePaths(temporaryFolder.getRoot().toPath());
+    MailSoySauceProvider provider = newProvider(site, "1 h");
+    SoySauce original = provider.get();
+
+    Files.createDirectories(site.mail_dir);
+    Files.write(
+        site.mail_dir.resolve("Footer.soy"),
+        Resources.toString(
+                Resources.getResource("com/google/gerrit/server/mail/Footer.soy"), UTF_8)
+            .getBytes(UTF_8));
+    assertThat(provider.get()).isSameInstanceAs(original);
+  }
+
+  private MailSoySauceProvider newProvider(SitePaths site, String checkFrequency) {
+    Config cfg = new Config();
+    cfg.setString("sendemail", null, "templateCheckFrequency", checkFrequency);
+    return new MailSoySauceProvider(
+        cfg,
+        site,
+        new SoyAstCache(),
+        new PluginSetContext<>(set, PluginMetrics.DISABLED_INSTANCE));
+  }
 }
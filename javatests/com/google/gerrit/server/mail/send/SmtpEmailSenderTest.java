@@ -0,0 +1,315 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail.send;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Address;
+import com.google.gerrit.entities.EmailHeader;
+import com.google.gerrit.exceptions.EmailException;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmtpEmailSenderTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private FakeSmtpServer server;
+  private ScheduledExecutorService executor;
+  private Path queueDir;
+  private Config cfg;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeSmtpServer();
+    executor = Executors.newSingleThreadScheduledExecutor();
+    queueDir = temporaryFolder.getRoot().toPath().resolve("mail-queue");
+    cfg = new Config();
+    cfg.setString("sendemail", null, "smtpServer", "127.0.0.1");
+    cfg.setInt("sendemail", null, "smtpServerPort", server.port());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    server.close();
+  }
+
+  @Test
+  public void connectionIsReused() throws Exception {
+    SmtpEmailSender sender = newSender(null);
+    send(sender, "first");
+    send(sender, "second");
+
+    assertThat(server.messages).hasSize(2);
+    assertThat(server.messages.get(0)).contains("Subject: first");
+    assertThat(server.messages.get(1)).contains("Subject: second");
+    assertThat(server.connections.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void connectionIsClosedAfterMaxMessages() throws Exception {
+    cfg.setInt("sendemail", null, "maxMessagesPerConnection", 1);
+    SmtpEmailSender sender = newSender(null);
+    send(sender, "first");
+    send(sender, "second");
+
+    assertThat(server.messages).hasSize(2);
+    assertThat(server.connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void noIdleConnections() throws Exception {
+    cfg.setInt("sendemail", null, "maxIdleConnections", 0);
+    SmtpEmailSender sender = newSender(null);
+    send(sender, "first");
+    send(sender, "second");
+
+    assertThat(server.messages).hasSize(2);
+    assertThat(server.connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void rejectedRecipientFailsSynchronousSend() throws Exception {
+    SmtpEmailSender sender = newSender(null);
+    EmailException e =
+        assertThrows(
+            EmailException.class,
+            () ->
+                sender.send(
+                    Address.create("from@example.com"),
+                    ImmutableList.of(
+                        Address.create("to@example.com"), Address.create("reject@example.com")),
+                    ImmutableMap.of("Subject", new EmailHeader.String("test")),
+                    "body"));
+    assertThat(e).hasMessageThat().contains("rejected recipient reject@example.com");
+    assertThat(server.messages).hasSize(1);
+  }
+
+  @Test
+  public void queuedEmailIsDelivered() throws Exception {
+    SmtpEmailSender sender = newSender(executor);
+    sender.start();
+    send(sender, "queued");
+
+    server.awaitMessages(1);
+    assertThat(server.messages.get(0)).contains("Subject: queued");
+    awaitEmptyQueue();
+  }
+
+  @Test
+  public void deliveryIsRetried() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    SmtpOutboundQueue queue =
+        newQueue(
+            (from, rcpt, data) -> {
+              if (attempts.incrementAndGet() < 3) {
+                throw new EmailException("temporary failure");
+              }
+            });
+    queue.start();
+    queue.add("from@example.com", ImmutableList.of("to@example.com"), "data");
+
+    awaitEmptyQueue();
+    assertThat(attempts.get()).isEqualTo(3);
+    assertThat(queue.pending()).isEqualTo(0);
+  }
+
+  @Test
+  public void undeliverableEmailIsMovedToFailed() throws Exception {
+    SmtpOutboundQueue queue =
+        newQueue(
+            (from, rcpt, data) -> {
+              throw new EmailException("permanent failure");
+            });
+    queue.start();
+    queue.add("from@example.com", ImmutableList.of("to@example.com"), "data");
+
+    awaitEmptyQueue();
+    try (Stream<Path> failed = Files.list(queueDir.resolve("failed"))) {
+      assertThat(failed.count()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void queuedEmailsAreDeliveredAfterRestart() throws Exception {
+    SmtpOutboundQueue queue =
+        new SmtpOutboundQueue(
+            queueDir,
+            executor,
+            (from, rcpt, data) -> {
+              throw new EmailException("server down");
+            },
+            new DisabledMetricMaker(),
+            10,
+            TimeUnit.HOURS.toMillis(1),
+            TimeUnit.HOURS.toMillis(1));
+    queue.start();
+    queue.add("from@example.com", ImmutableList.of("to@example.com"), "data");
+
+    List<String> delivered = new CopyOnWriteArrayList<>();
+    SmtpOutboundQueue restarted = newQueue((from, rcpt, data) -> delivered.add(data));
+    restarted.start();
+
+    awaitEmptyQueue();
+    assertThat(delivered).containsExactly("data");
+  }
+
+  @Test
+  public void retryDelayIsDoubledUpToMax() throws Exception {
+    SmtpOutboundQueue queue =
+        new SmtpOutboundQueue(
+            queueDir, executor, (from, rcpt, data) -> {}, new DisabledMetricMaker(), 10, 10, 50);
+    assertThat(queue.retryDelay(1)).isEqualTo(10);
+    assertThat(queue.retryDelay(2)).isEqualTo(20);
+    assertThat(queue.retryDelay(3)).isEqualTo(40);
+    assertThat(queue.retryDelay(4)).isEqualTo(50);
+    assertThat(queue.retryDelay(100)).isEqualTo(50);
+  }
+
+  private SmtpEmailSender newSender(ScheduledExecutorService deliveryExecutor) {
+    if (deliveryExecutor != null) {
+      cfg.setBoolean("sendemail", null, "outboundQueue", true);
+    }
+    return new SmtpEmailSender(cfg, new DisabledMetricMaker(), deliveryExecutor, queueDir);
+  }
+
+  private SmtpOutboundQueue newQueue(SmtpOutboundQueue.Transport transport) {
+    return new SmtpOutboundQueue(
+        queueDir, executor, transport, new DisabledMetricMaker(), 3, 1, 1);
+  }
+
+  private static void send(SmtpEmailSender sender, String subject) throws Exception {
+    sender.send(
+        Address.create("from@example.com"),
+        ImmutableList.of(Address.create("to@example.com")),
+        ImmutableMap.of("Subject", new EmailHeader.String(subject)),
+        "body");
+  }
+
+  private void awaitEmptyQueue() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      try (Stream<Path> files = Files.list(queueDir)) {
+        if (files.noneMatch(f -> f.getFileName().toString().endsWith(".json"))) {
+          return;
+        }
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("queue was not emptied");
+  }
+
+  /** Minimal SMTP server that accepts all emails, except for recipients starting with "reject". */
+  private static class FakeSmtpServer {
+    final List<String> messages = new CopyOnWriteArrayList<>();
+    final AtomicInteger connections = new AtomicInteger();
+    private final ServerSocket socket;
+
+    FakeSmtpServer() throws IOException {
+      socket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      Thread t = new Thread(this::accept, "FakeSmtpServer");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    int port() {
+      return socket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+
+    void awaitMessages(int count) throws InterruptedException {
+      for (int i = 0; i < 500 && messages.size() < count; i++) {
+        Thread.sleep(10);
+      }
+      assertThat(messages).hasSize(count);
+    }
+
+    private void accept() {
+      while (!socket.isClosed()) {
+        try {
+          Socket client = socket.accept();
+          connections.incrementAndGet();
+          Thread t = new Thread(() -> serve(client), "FakeSmtpConnection");
+          t.setDaemon(true);
+          t.start();
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    private void serve(Socket client) {
+      try (Socket c = client;
+          BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), UTF_8));
+          OutputStream out = c.getOutputStream()) {
+        reply(out, "220 localhost ESMTP");
+        String line;
+        while ((line = in.readLine()) != null) {
+          String cmd = line.toUpperCase();
+          if (cmd.startsWith("RCPT TO:") && cmd.contains("<REJECT")) {
+            reply(out, "550 no such user");
+          } else if (cmd.startsWith("DATA")) {
+            reply(out, "354 go ahead");
+            StringBuilder data = new StringBuilder();
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+              data.append(line).append('\n');
+            }
+            messages.add(data.toString());
+            reply(out, "250 ok");
+          } else if (cmd.startsWith("QUIT")) {
+            reply(out, "221 bye");
+            return;
+          } else {
+            reply(out, "250 ok");
+          }
+        }
+      } catch (IOException e) {
+        // The client disconnected.
+      }
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+      out.write((reply + "\r\n").getBytes(UTF_8));
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.patch.AutoMerger.InMemoryAutoMerge;
+import com.google.gerrit.server.patch.AutoMerger.InMemoryAutoMergeKey;
+import com.google.gerrit.server.patch.AutoMerger.InMemoryAutoMergeWeigher;
+import com.google.inject.util.Providers;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ThreeWayMergeStrategy;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AutoMergerTest {
+  private InMemoryRepository repo;
+  private TestRepository<InMemoryRepository> tr;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = new InMemoryRepository(new DfsRepositoryDescription("project"));
+    tr = new TestRepository<>(repo);
+  }
+
+  @Test
+  public void cacheHitReturnsSameAutoMerge() throws Exception {
+    Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> cache = CacheBuilder.newBuilder().build();
+    AutoMerger autoMerger = newAutoMerger(cache);
+    RevCommit merge = createConflictingMerge("a.txt");
+
+    AutoMergeResult first = lookup(autoMerger, merge, MergeStrategy.RECURSIVE, "a.txt");
+    assertThat(first.content).contains("<<<<<<<");
+    assertThat(cache.size()).isEqualTo(1);
+
+    // The second lookup uses a new inserter and a new walk, so the auto-merge is only readable if
+    // the cached objects are inserted.
+    AutoMergeResult second = lookup(autoMerger, merge, MergeStrategy.RECURSIVE, "a.txt");
+    assertThat(second.commitId).isEqualTo(first.commitId);
+    assertThat(second.content).isEqualTo(first.content);
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void differentMergeStrategiesDontCollide() throws Exception {
+    Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> cache = CacheBuilder.newBuilder().build();
+    AutoMerger autoMerger = newAutoMerger(cache);
+    RevCommit merge = createConflictingMerge("a.txt");
+
+    lookup(autoMerger, merge, MergeStrategy.RECURSIVE, "a.txt");
+    lookup(autoMerger, merge, MergeStrategy.RESOLVE, "a.txt");
+    assertThat(cache.asMap().keySet())
+        .containsExactly(
+            InMemoryAutoMergeKey.create(merge, MergeStrategy.RECURSIVE.getName()),
+            InMemoryAutoMergeKey.create(merge, MergeStrategy.RESOLVE.getName()));
+  }
+
+  @Test
+  public void cacheIsBoundedByWeightOfInsertedObjects() throws Exception {
+    RevCommit merge1 = createConflictingMerge("a.txt");
+    RevCommit merge2 = createConflictingMerge("b.txt");
+    InMemoryAutoMergeWeigher weigher = new InMemoryAutoMergeWeigher();
+
+    Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> unbounded = CacheBuilder.newBuilder().build();
+    lookup(newAutoMerger(unbounded), merge1, MergeStrategy.RECURSIVE, "a.txt");
+    InMemoryAutoMergeKey key =
+        InMemoryAutoMergeKey.create(merge1, MergeStrategy.RECURSIVE.getName());
+    InMemoryAutoMerge autoMerge = unbounded.getIfPresent(key);
+    int weight = weigher.weigh(key, autoMerge);
+    assertThat(weight)
+        .isAtLeast(autoMerge.insertedObjects().stream().mapToInt(o -> o.data().size()).sum());
+
+    // A cache that only has room for one auto-merge evicts the older one.
+    Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> bounded =
+        CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .maximumWeight(weight + weight / 2)
+            .weigher(weigher)
+            .build();
+    AutoMerger autoMerger = newAutoMerger(bounded);
+    lookup(autoMerger, merge1, MergeStrategy.RECURSIVE, "a.txt");
+    lookup(autoMerger, merge2, MergeStrategy.RECURSIVE, "b.txt");
+    assertThat(bounded.asMap().keySet())
+        .containsExactly(InMemoryAutoMergeKey.create(merge2, MergeStrategy.RECURSIVE.getName()));
+  }
+
+  private static class AutoMergeResult {
+    final ObjectId commitId;
+    final String content;
+
+    AutoMergeResult(ObjectId commitId, String content) {
+      this.commitId = commitId;
+      this.content = content;
+    }
+  }
+
+  private AutoMerger newAutoMerger(Cache<InMemoryAutoMergeKey, InMemoryAutoMerge> cache) {
+    Config cfg = new Config();
+    cfg.setBoolean("change", null, "cacheAutomerge", false);
+    return new AutoMerger(
+        new DisabledMetricMaker(),
+        cfg,
+        Providers.of(new PersonIdent("Gerrit Code Review", "gerrit@example.com")),
+        cache);
+  }
+
+  private AutoMergeResult lookup(
+      AutoMerger autoMerger, RevCommit merge, ThreeWayMergeStrategy strategy, String file)
+      throws Exception {
+    try (InMemoryInserter ins = new InMemoryInserter(repo);
+        ObjectReader reader = ins.newReader();
+        RevWalk rw = new RevWalk(reader)) {
+      RevCommit autoMerge =
+          autoMerger.lookupFromGitOrMergeInMemory(repo, rw, ins, rw.parseCommit(merge), strategy);
+      try (TreeWalk tw = TreeWalk.forPath(reader, file, autoMerge.getTree())) {
+        return new AutoMergeResult(
+            autoMerge.copy(), new String(reader.open(tw.getObjectId(0)).getBytes(), UTF_8));
+      }
+    }
+  }
+
+  private RevCommit createConflictingMerge(String file) throws Exception {
+    RevCommit base = tr.commit().add(file, "base\n").create();
+    RevCommit left = tr.commit().parent(base).add(file, "left\n").create();
+    RevCommit right = tr.commit().parent(base).add(file, "right\n").create();
+    return tr.commit().parent(left).parent(right).add(file, "merged\n").create();
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch.gitdiff;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.util.List;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenameDetectionCacheTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("project");
+  private static final String CONTENT = "line 1\nline 2\nline 3\nline 4\nline 5\n";
+
+  private InMemoryRepository repo;
+  private TestRepository<InMemoryRepository> tr;
+  private ObjectReader reader;
+  private Cache<RenameDetectionCache.Key, ImmutableList<DiffEntry>> cache;
+  private RenameDetectionCache renameDetectionCache;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = new InMemoryRepository(new DfsRepositoryDescription(PROJECT.get()));
+    tr = new TestRepository<>(repo);
+    reader = repo.newObjectReader();
+    cache = CacheBuilder.newBuilder().build();
+    renameDetectionCache = new RenameDetectionCache(cache, new DisabledMetricMaker());
+  }
+
+  @After
+  public void tearDown() {
+    reader.close();
+  }
+
+  @Test
+  public void renameIsDetected() throws Exception {
+    RevTree oldTree = tr.tree(tr.file("a.txt", tr.blob(CONTENT)));
+    RevTree newTree = tr.tree(tr.file("b.txt", tr.blob(CONTENT)));
+
+    ImmutableList<DiffEntry> result = detectRenames(oldTree, newTree, 60);
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getChangeType()).isEqualTo(ChangeType.RENAME);
+    assertThat(result.get(0).getOldPath()).isEqualTo("a.txt");
+    assertThat(result.get(0).getNewPath()).isEqualTo("b.txt");
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void cacheHitReturnsCachedResult() throws Exception {
+    RevTree oldTree = tr.tree(tr.file("a.txt", tr.blob(CONTENT)));
+    RevTree newTree = tr.tree(tr.file("b.txt", tr.blob(CONTENT)));
+
+    ImmutableList<DiffEntry> first = detectRenames(oldTree, newTree, 60);
+    ImmutableList<DiffEntry> second = detectRenames(oldTree, newTree, 60);
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void differentTreesDontCollide() throws Exception {
+    RevTree oldTree = tr.tree(tr.file("a.txt", tr.blob(CONTENT)));
+    RevTree newTree1 = tr.tree(tr.file("b.txt", tr.blob(CONTENT)));
+    RevTree newTree2 = tr.tree(tr.file("c.txt", tr.blob(CONTENT)));
+
+    ImmutableList<DiffEntry> result1 = detectRenames(oldTree, newTree1, 60);
+    ImmutableList<DiffEntry> result2 = detectRenames(oldTree, newTree2, 60);
+    assertThat(result1.get(0).getNewPath()).isEqualTo("b.txt");
+    assertThat(result2.get(0).getNewPath()).isEqualTo("c.txt");
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void differentRenameScoresDontCollide() throws Exception {
+    RevTree oldTree = tr.tree(tr.file("a.txt", tr.blob(CONTENT)));
+    RevTree newTree = tr.tree(tr.file("b.txt", tr.blob(CONTENT + "line 6\nline 7\n")));
+
+    ImmutableList<DiffEntry> lowScore = detectRenames(oldTree, newTree, 60);
+    assertThat(lowScore).hasSize(1);
+    assertThat(lowScore.get(0).getChangeType()).isEqualTo(ChangeType.RENAME);
+
+    ImmutableList<DiffEntry> highScore = detectRenames(oldTree, newTree, 100);
+    assertThat(highScore).hasSize(2);
+    assertThat(highScore.stream().map(DiffEntry::getChangeType))
+        .containsExactly(ChangeType.ADD, ChangeType.DELETE);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void differentBinaryOptionsDontCollide() throws Exception {
+    String binary = "\0" + CONTENT;
+    RevTree oldTree = tr.tree(tr.file("a.bin", tr.blob(binary)));
+    RevTree newTree = tr.tree(tr.file("b.bin", tr.blob(binary + "more")));
+
+    ImmutableList<DiffEntry> withBinaryRenames = detectRenames(oldTree, newTree, 60, false);
+    assertThat(withBinaryRenames).hasSize(1);
+    assertThat(withBinaryRenames.get(0).getChangeType()).isEqualTo(ChangeType.RENAME);
+
+    ImmutableList<DiffEntry> withoutBinaryRenames = detectRenames(oldTree, newTree, 60, true);
+    assertThat(withoutBinaryRenames).hasSize(2);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void resultWithoutRenameCandidatesIsNotCached() throws Exception {
+    RevTree oldTree = tr.tree(tr.file("a.txt", tr.blob(CONTENT)));
+    RevTree newTree =
+        tr.tree(tr.file("a.txt", tr.blob(CONTENT)), tr.file("b.txt", tr.blob(CONTENT)));
+
+    ImmutableList<DiffEntry> result = detectRenames(oldTree, newTree, 60);
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getChangeType()).isEqualTo(ChangeType.ADD);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  private ImmutableList<DiffEntry> detectRenames(RevTree oldTree, RevTree newTree, int score)
+      throws Exception {
+    return detectRenames(oldTree, newTree, score, false);
+  }
+
+  private ImmutableList<DiffEntry> detectRenames(
+      RevTree oldTree, RevTree newTree, int score, boolean skipBinary) throws Exception {
+    return renameDetectionCache.detectRenames(
+        RenameDetectionCache.Key.create(PROJECT, oldTree, newTree, score, skipBinary),
+        reader,
+        repo.getConfig(),
+        scan(oldTree, newTree));
+  }
+
+  private List<DiffEntry> scan(RevTree oldTree, RevTree newTree) throws Exception {
+    try (TreeWalk tw = new TreeWalk(reader)) {
+      tw.setRecursive(true);
+      tw.addTree(oldTree);
+      tw.addTree(newTree);
+      return DiffEntry.scan(tw);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+  @Test
+  public void disabledByDefault() {
+    assertThat(VirtualThreads.threadFactory(new Config())).isEmpty();
+  }
+
+  @Test
+  public void threadFactoryCreatesVirtualThreadsIfSupported() throws Exception {
+    assumeTrue(isSupported());
+    Config cfg = new Config();
+    cfg.setBoolean("execution", null, "virtualThreads", true);
+
+    Optional<ThreadFactory> threadFactory = VirtualThreads.threadFactory(cfg);
+    assertThat(threadFactory).isPresent();
+    Thread thread = threadFactory.get().newThread(() -> {});
+    assertThat(isVirtual(thread)).isTrue();
+    assertThat(thread.isDaemon()).isTrue();
+  }
+
+  @Test
+  public void noThreadFactoryIfNotSupported() {
+    assumeTrue(!isSupported());
+    Config cfg = new Config();
+    cfg.setBoolean("execution", null, "virtualThreads", true);
+
+    assertThat(VirtualThreads.threadFactory(cfg)).isEmpty();
+  }
+
+  private static boolean isSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual").invoke(null);
+      return true;
+    } catch (ReflectiveOperationException e) {
+      // Virtual threads don't exist or are a preview feature that is not enabled.
+      return false;
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram1;
+import com.google.gerrit.server.logging.PerformanceSummary;
+import com.google.gerrit.sshd.SshScope.Context;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SshCommandMetricsTest {
+  private RecordingMetricMaker metricMaker;
+  private SshCommandMetrics metrics;
+
+  @Before
+  public void setUp() {
+    metricMaker = new RecordingMetricMaker();
+    metrics = new SshCommandMetrics(metricMaker);
+  }
+
+  @Test
+  public void resourceUsageIsRecordedByCommand() {
+    metrics.record("gerrit version", finishedContext(null));
+
+    assertThat(metricMaker.fields("sshd/commands/cpu_time")).containsExactly("gerrit version");
+    assertThat(metricMaker.values("sshd/commands/cpu_time").get(0)).isAtLeast(0L);
+    assertThat(metricMaker.fields("sshd/commands/allocated_bytes"))
+        .containsExactly("gerrit version");
+  }
+
+  @Test
+  public void performanceSummaryIsRecordedIfComputed() {
+    metrics.record("gerrit query", finishedContext(PerformanceSummary.create(3, 2, 1)));
+
+    assertThat(metricMaker.fields("sshd/commands/notedb_reads")).containsExactly("gerrit query");
+    assertThat(metricMaker.values("sshd/commands/notedb_reads")).containsExactly(3L);
+    assertThat(metricMaker.values("sshd/commands/index_queries")).containsExactly(2L);
+    assertThat(metricMaker.values("sshd/commands/cache_loads")).containsExactly(1L);
+  }
+
+  @Test
+  public void performanceSummaryIsNotRecordedIfNotComputed() {
+    metrics.record("gerrit query", finishedContext(null));
+
+    assertThat(metricMaker.fields("sshd/commands/notedb_reads")).isEmpty();
+    assertThat(metricMaker.fields("sshd/commands/index_queries")).isEmpty();
+    assertThat(metricMaker.fields("sshd/commands/cache_loads")).isEmpty();
+  }
+
+  private static Context finishedContext(PerformanceSummary summary) {
+    // Creating a context uses neither the request context nor the user factory.
+    Context ctx = new SshScope(null, null).newContext(null, "command");
+    ctx.start();
+    ctx.finish();
+    if (summary != null) {
+      ctx.setPerformanceSummary(summary);
+    }
+    return ctx;
+  }
+
+  private static class RecordingMetricMaker extends DisabledMetricMaker {
+    private final Map<String, List<Object>> fields = new HashMap<>();
+    private final Map<String, List<Long>> values = new HashMap<>();
+
+    @Override
+    public <F1> Histogram1<F1> newHistogram(String name, Description desc, Field<F1> field1) {
+      return new Histogram1<F1>() {
+        @Override
+        public void record(F1 field1, long value) {
+          fields.computeIfAbsent(name, n -> new ArrayList<>()).add(field1);
+          values.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        }
+
+        @Override
+        public void remove() {}
+      };
+    }
+
+    List<Object> fields(String name) {
+      return fields.getOrDefault(name, new ArrayList<>());
+    }
+
+    List<Long> values(String name) {
+      return values.getOrDefault(name, new ArrayList<>());
+    }
+  }
+}
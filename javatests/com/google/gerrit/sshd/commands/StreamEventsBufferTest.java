@@ -0,0 +1,75 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.ProjectCreatedEvent;
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamEventsBufferTest {
+  private static final int CAPACITY = 32;
+
+  private final Gson gson = new Gson();
+  private StreamEventsBuffer buffer;
+
+  @Before
+  public void setUp() {
+    buffer = new StreamEventsBuffer(CAPACITY, new DisabledMetricMaker());
+  }
+
+  @Test
+  public void eventIsAddedOnce() {
+    Event event = new ProjectCreatedEvent();
+    StreamEventsBuffer.Entry entry = buffer.add(event);
+
+    assertThat(buffer.add(event)).isSameInstanceAs(entry);
+    assertThat(buffer.add(new ProjectCreatedEvent()).seq).isEqualTo(entry.seq + 1);
+  }
+
+  @Test
+  public void payloadIsSerializedOnce() {
+    Event event = new ProjectCreatedEvent();
+    StreamEventsBuffer.Entry entry = buffer.add(event);
+
+    byte[] payload = entry.payload(gson);
+    assertThat(new String(payload, UTF_8)).isEqualTo(gson.toJson(event) + "\n");
+    assertThat(buffer.get(entry.seq).payload(gson)).isSameInstanceAs(payload);
+  }
+
+  @Test
+  public void evictedEntriesAreNotReturned() {
+    StreamEventsBuffer.Entry first = buffer.add(new ProjectCreatedEvent());
+    for (int i = 0; i < CAPACITY - 1; i++) {
+      buffer.add(new ProjectCreatedEvent());
+    }
+    assertThat(buffer.get(first.seq)).isSameInstanceAs(first);
+
+    buffer.add(new ProjectCreatedEvent());
+    assertThat(buffer.get(first.seq)).isNull();
+    assertThat(buffer.get(first.seq + 1)).isNotNull();
+  }
+
+  @Test
+  public void futureEntriesAreNotReturned() {
+    StreamEventsBuffer.Entry entry = buffer.add(new ProjectCreatedEvent());
+    assertThat(buffer.get(entry.seq + 1)).isNull();
+  }
+}